@@ -0,0 +1,27 @@
+package org.elasticsearch.action.image.backfill;
+
+import org.elasticsearch.action.ClientAction;
+import org.elasticsearch.client.Client;
+
+/**
+ * Reindex in the background the docs of each primary shard that miss features or hashes added to the mapping of an image field
+ */
+public class ImageBackfillAction extends ClientAction<ImageBackfillRequest, ImageBackfillResponse, ImageBackfillRequestBuilder> {
+
+    public static final ImageBackfillAction INSTANCE = new ImageBackfillAction();
+    public static final String NAME = "indices/image/backfill";
+
+    private ImageBackfillAction() {
+        super(NAME);
+    }
+
+    @Override
+    public ImageBackfillResponse newResponse() {
+        return new ImageBackfillResponse();
+    }
+
+    @Override
+    public ImageBackfillRequestBuilder newRequestBuilder(Client client) {
+        return new ImageBackfillRequestBuilder(client);
+    }
+}
@@ -0,0 +1,89 @@
+package org.elasticsearch.action.image.backfill;
+
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+public class ImageBackfillRequest extends BroadcastOperationRequest<ImageBackfillRequest> {
+
+    public static final float DEFAULT_DOCS_PER_SECOND = 50;
+
+    private String field;
+
+    private float docsPerSecond = DEFAULT_DOCS_PER_SECOND;
+
+    private boolean start = true;
+
+    ImageBackfillRequest() {
+    }
+
+    public ImageBackfillRequest(String... indices) {
+        super(indices);
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public ImageBackfillRequest field(String field) {
+        this.field = field;
+        return this;
+    }
+
+    /**
+     * Max docs reindexed per second on each shard
+     */
+    public float docsPerSecond() {
+        return docsPerSecond;
+    }
+
+    public ImageBackfillRequest docsPerSecond(float docsPerSecond) {
+        this.docsPerSecond = docsPerSecond;
+        return this;
+    }
+
+    /**
+     * Start backfill on shards where it is not running, otherwise only report progress
+     */
+    public boolean start() {
+        return start;
+    }
+
+    public ImageBackfillRequest start(boolean start) {
+        this.start = start;
+        return this;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = super.validate();
+        if (field == null) {
+            validationException = addValidationError("field is missing", validationException);
+        }
+        if (docsPerSecond <= 0) {
+            validationException = addValidationError("docs_per_second must be positive", validationException);
+        }
+        return validationException;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        docsPerSecond = in.readFloat();
+        start = in.readBoolean();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeFloat(docsPerSecond);
+        out.writeBoolean(start);
+    }
+}
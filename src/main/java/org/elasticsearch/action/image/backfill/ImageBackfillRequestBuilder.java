@@ -0,0 +1,32 @@
+package org.elasticsearch.action.image.backfill;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequestBuilder;
+import org.elasticsearch.client.Client;
+
+public class ImageBackfillRequestBuilder extends BroadcastOperationRequestBuilder<ImageBackfillRequest, ImageBackfillResponse, ImageBackfillRequestBuilder, Client> {
+
+    public ImageBackfillRequestBuilder(Client client) {
+        super(client, new ImageBackfillRequest());
+    }
+
+    public ImageBackfillRequestBuilder setField(String field) {
+        request.field(field);
+        return this;
+    }
+
+    public ImageBackfillRequestBuilder setDocsPerSecond(float docsPerSecond) {
+        request.docsPerSecond(docsPerSecond);
+        return this;
+    }
+
+    public ImageBackfillRequestBuilder setStart(boolean start) {
+        request.start(start);
+        return this;
+    }
+
+    @Override
+    protected void doExecute(ActionListener<ImageBackfillResponse> listener) {
+        client.execute(ImageBackfillAction.INSTANCE, request, listener);
+    }
+}
@@ -0,0 +1,128 @@
+package org.elasticsearch.action.image.backfill;
+
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.elasticsearch.rest.action.support.RestActions.buildBroadcastShardsHeader;
+
+public class ImageBackfillResponse extends BroadcastOperationResponse implements ToXContent {
+
+    private int runningShards;
+
+    private long total;
+
+    private long processed;
+
+    private long backfilled;
+
+    private long skipped;
+
+    private long conflicts;
+
+    private long failed;
+
+    ImageBackfillResponse() {
+    }
+
+    ImageBackfillResponse(int totalShards, int successfulShards, int failedShards, List<ShardOperationFailedException> shardFailures,
+                          int runningShards, long total, long processed, long backfilled, long skipped, long conflicts, long failed) {
+        super(totalShards, successfulShards, failedShards, shardFailures);
+        this.runningShards = runningShards;
+        this.total = total;
+        this.processed = processed;
+        this.backfilled = backfilled;
+        this.skipped = skipped;
+        this.conflicts = conflicts;
+        this.failed = failed;
+    }
+
+    /**
+     * Number of shards still backfilling, 0 once all are done
+     */
+    public int getRunningShards() {
+        return runningShards;
+    }
+
+    /**
+     * Number of docs in the shards when their backfill started
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Number of docs checked so far, backfilled or not
+     */
+    public long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * Number of docs reindexed with the missing features
+     */
+    public long getBackfilled() {
+        return backfilled;
+    }
+
+    /**
+     * Number of docs missing features without an image in _source to extract them from
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Number of docs updated since the backfill started, they are indexed with all features already
+     */
+    public long getConflicts() {
+        return conflicts;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        buildBroadcastShardsHeader(builder, this);
+        builder.field("running_shards", runningShards);
+        builder.field("total", total);
+        builder.field("processed", processed);
+        builder.field("backfilled", backfilled);
+        builder.field("skipped", skipped);
+        builder.field("conflicts", conflicts);
+        builder.field("failed", failed);
+        return builder;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        runningShards = in.readVInt();
+        total = in.readVLong();
+        processed = in.readVLong();
+        backfilled = in.readVLong();
+        skipped = in.readVLong();
+        conflicts = in.readVLong();
+        failed = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(runningShards);
+        out.writeVLong(total);
+        out.writeVLong(processed);
+        out.writeVLong(backfilled);
+        out.writeVLong(skipped);
+        out.writeVLong(conflicts);
+        out.writeVLong(failed);
+    }
+}
@@ -0,0 +1,54 @@
+package org.elasticsearch.action.image.backfill;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+class ShardImageBackfillRequest extends BroadcastShardOperationRequest {
+
+    private String field;
+
+    private float docsPerSecond;
+
+    private boolean start;
+
+    ShardImageBackfillRequest() {
+    }
+
+    ShardImageBackfillRequest(String index, int shardId, ImageBackfillRequest request) {
+        super(index, shardId, request);
+        this.field = request.field();
+        this.docsPerSecond = request.docsPerSecond();
+        this.start = request.start();
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public float docsPerSecond() {
+        return docsPerSecond;
+    }
+
+    public boolean start() {
+        return start;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        docsPerSecond = in.readFloat();
+        start = in.readBoolean();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeFloat(docsPerSecond);
+        out.writeBoolean(start);
+    }
+}
@@ -0,0 +1,91 @@
+package org.elasticsearch.action.image.backfill;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+class ShardImageBackfillResponse extends BroadcastShardOperationResponse {
+
+    private boolean running;
+
+    private long total;
+
+    private long processed;
+
+    private long backfilled;
+
+    private long skipped;
+
+    private long conflicts;
+
+    private long failed;
+
+    ShardImageBackfillResponse() {
+    }
+
+    ShardImageBackfillResponse(String index, int shardId, boolean running, long total, long processed, long backfilled, long skipped,
+                               long conflicts, long failed) {
+        super(index, shardId);
+        this.running = running;
+        this.total = total;
+        this.processed = processed;
+        this.backfilled = backfilled;
+        this.skipped = skipped;
+        this.conflicts = conflicts;
+        this.failed = failed;
+    }
+
+    public boolean running() {
+        return running;
+    }
+
+    public long total() {
+        return total;
+    }
+
+    public long processed() {
+        return processed;
+    }
+
+    public long backfilled() {
+        return backfilled;
+    }
+
+    public long skipped() {
+        return skipped;
+    }
+
+    public long conflicts() {
+        return conflicts;
+    }
+
+    public long failed() {
+        return failed;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        running = in.readBoolean();
+        total = in.readVLong();
+        processed = in.readVLong();
+        backfilled = in.readVLong();
+        skipped = in.readVLong();
+        conflicts = in.readVLong();
+        failed = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeBoolean(running);
+        out.writeVLong(total);
+        out.writeVLong(processed);
+        out.writeVLong(backfilled);
+        out.writeVLong(skipped);
+        out.writeVLong(conflicts);
+        out.writeVLong(failed);
+    }
+}
@@ -0,0 +1,364 @@
+package org.elasticsearch.action.image.backfill;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.ElasticsearchIllegalStateException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.TransportIndexAction;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastOperationAction;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Sets;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.fieldvisitor.CustomFieldsVisitor;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.mapper.internal.ParentFieldMapper;
+import org.elasticsearch.index.mapper.internal.RoutingFieldMapper;
+import org.elasticsearch.index.mapper.internal.UidFieldMapper;
+import org.elasticsearch.index.shard.IndexShardState;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.shard.service.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Start a throttled backfill on each primary shard, or report the progress of the running ones.
+ * A backfill walks a point in time snapshot of the shard and reindexes the docs missing any mapped feature or hash of the field
+ * with their image from _source, the features already in doc values are given along so only the missing ones are extracted.
+ * Docs updated since the snapshot are version conflicts and left alone, they were indexed with the new mapping already
+ */
+public class TransportImageBackfillAction extends TransportBroadcastOperationAction<ImageBackfillRequest, ImageBackfillResponse, ShardImageBackfillRequest, ShardImageBackfillResponse> {
+
+    private static final Set<String> ROUTING_FIELDS = Sets.newHashSet(RoutingFieldMapper.NAME, ParentFieldMapper.NAME);
+
+    private final IndicesService indicesService;
+
+    private final TransportIndexAction indexAction;
+
+    private final ConcurrentMap<ShardId, ShardBackfill> backfills = ConcurrentCollections.newConcurrentMap();
+
+    @Inject
+    public TransportImageBackfillAction(Settings settings, ThreadPool threadPool, ClusterService clusterService, TransportService transportService,
+                                        IndicesService indicesService, TransportIndexAction indexAction) {
+        super(settings, ImageBackfillAction.NAME, threadPool, clusterService, transportService);
+        this.indicesService = indicesService;
+        this.indexAction = indexAction;
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.MANAGEMENT;
+    }
+
+    @Override
+    protected ImageBackfillRequest newRequest() {
+        return new ImageBackfillRequest();
+    }
+
+    @Override
+    protected ImageBackfillResponse newResponse(ImageBackfillRequest request, AtomicReferenceArray shardsResponses, ClusterState clusterState) {
+        int successfulShards = 0;
+        int failedShards = 0;
+        List<ShardOperationFailedException> shardFailures = null;
+        int runningShards = 0;
+        long total = 0, processed = 0, backfilled = 0, skipped = 0, conflicts = 0, failed = 0;
+        for (int i = 0; i < shardsResponses.length(); i++) {
+            Object shardResponse = shardsResponses.get(i);
+            if (shardResponse == null) {
+                // a non active shard, ignore...
+            } else if (shardResponse instanceof BroadcastShardOperationFailedException) {
+                failedShards++;
+                if (shardFailures == null) {
+                    shardFailures = Lists.newArrayList();
+                }
+                shardFailures.add(new DefaultShardOperationFailedException((BroadcastShardOperationFailedException) shardResponse));
+            } else {
+                ShardImageBackfillResponse response = (ShardImageBackfillResponse) shardResponse;
+                if (response.running()) {
+                    runningShards++;
+                }
+                total += response.total();
+                processed += response.processed();
+                backfilled += response.backfilled();
+                skipped += response.skipped();
+                conflicts += response.conflicts();
+                failed += response.failed();
+                successfulShards++;
+            }
+        }
+        return new ImageBackfillResponse(shardsResponses.length(), successfulShards, failedShards, shardFailures, runningShards,
+                total, processed, backfilled, skipped, conflicts, failed);
+    }
+
+    @Override
+    protected ShardImageBackfillRequest newShardRequest() {
+        return new ShardImageBackfillRequest();
+    }
+
+    @Override
+    protected ShardImageBackfillRequest newShardRequest(int numShards, ShardRouting shard, ImageBackfillRequest request) {
+        return new ShardImageBackfillRequest(shard.index(), shard.id(), request);
+    }
+
+    @Override
+    protected ShardImageBackfillResponse newShardResponse() {
+        return new ShardImageBackfillResponse();
+    }
+
+    @Override
+    protected ShardImageBackfillResponse shardOperation(ShardImageBackfillRequest request) throws ElasticsearchException {
+        IndexShard indexShard = indicesService.indexServiceSafe(request.index()).shardSafe(request.shardId());
+        ShardId shardId = indexShard.shardId();
+        ShardBackfill backfill = backfills.get(shardId);
+        if (request.start() && (backfill == null || !backfill.running)) {
+            MapperService mapperService = indexShard.mapperService();
+            ImageMapper imageMapper = ImageMapper.imageMapper(mapperService, mapperService.types(), request.field());
+            if (imageMapper == null) {
+                throw new ElasticsearchIllegalArgumentException("Field [" + request.field() + "] is not an image field");
+            }
+            // only the request that puts its backfill in starts it, concurrent ones report its progress
+            ShardBackfill newBackfill = new ShardBackfill(indexShard, request.field(), request.docsPerSecond());
+            if (backfill == null ? backfills.putIfAbsent(shardId, newBackfill) == null : backfills.replace(shardId, backfill, newBackfill)) {
+                newBackfill.start();
+            }
+            backfill = backfills.get(shardId);
+        }
+        if (backfill == null) {
+            return new ShardImageBackfillResponse(request.index(), request.shardId(), false, 0, 0, 0, 0, 0, 0);
+        }
+        if (!backfill.field.equals(request.field())) {
+            if (request.start() && backfill.running) {
+                throw new ElasticsearchIllegalStateException("Backfill of [" + backfill.field + "] is running, [" + request.field()
+                        + "] can only be backfilled once it is done");
+            }
+            return new ShardImageBackfillResponse(request.index(), request.shardId(), false, 0, 0, 0, 0, 0, 0);
+        }
+        return new ShardImageBackfillResponse(request.index(), request.shardId(), backfill.running, backfill.total, backfill.processed,
+                backfill.backfilled, backfill.skipped, backfill.conflicts, backfill.failed);
+    }
+
+    @Override
+    protected GroupShardsIterator shards(ClusterState clusterState, ImageBackfillRequest request, String[] concreteIndices) {
+        return clusterState.routingTable().activePrimaryShardsGrouped(concreteIndices, true);
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, ImageBackfillRequest request) {
+        return state.blocks().globalBlockedException(request.start() ? ClusterBlockLevel.WRITE : ClusterBlockLevel.READ);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, ImageBackfillRequest request, String[] concreteIndices) {
+        return state.blocks().indicesBlockedException(request.start() ? ClusterBlockLevel.WRITE : ClusterBlockLevel.READ, concreteIndices);
+    }
+
+    /**
+     * Backfill of one shard. Each step runs on the generic pool until the throttle asks to wait, then the next step is scheduled
+     * instead of sleeping, so no thread is held for the whole backfill. Progress counters are only written by the running step
+     */
+    private class ShardBackfill implements Runnable {
+        private final IndexShard indexShard;
+        private final String field;
+        private final String[] path;
+        private final float docsPerSecond;
+        private volatile boolean running = true;
+        private volatile long total;
+        private volatile long processed;
+        private volatile long backfilled;
+        private volatile long skipped;
+        private volatile long conflicts;
+        private volatile long failed;
+
+        // position of the next step, steps never run concurrently and each one happens after the previous one was scheduled
+        private Engine.Searcher searcher;
+        private long startTime;
+        private long attempts;
+        private int leaf;
+        private int doc;
+        private ImageMapper imageMapper;
+        private FixedBitSet complete;
+
+        ShardBackfill(IndexShard indexShard, String field, float docsPerSecond) {
+            this.indexShard = indexShard;
+            this.field = field;
+            this.path = Strings.splitStringToArray(field, '.');
+            this.docsPerSecond = docsPerSecond;
+        }
+
+        /**
+         * Take the snapshot of the shard and run the first step
+         */
+        void start() {
+            try {
+                searcher = indexShard.acquireSearcher("image_backfill");
+            } catch (RuntimeException e) {
+                running = false;
+                throw e;
+            }
+            total = searcher.reader().numDocs();
+            startTime = System.nanoTime();
+            threadPool.generic().execute(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                long waitNanos = backfill();
+                if (waitNanos > 0) {
+                    threadPool.schedule(TimeValue.timeValueMillis(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos))), ThreadPool.Names.GENERIC, this);
+                    return;
+                }
+                logger.debug("{} backfilled [{}] of [{}] docs of [{}], skipped [{}], conflicts [{}], failed [{}]", indexShard.shardId(),
+                        backfilled, processed, field, skipped, conflicts, failed);
+                if (skipped > 0) {
+                    logger.info("{} skipped [{}] docs of [{}] without the image in _source, they must be indexed again with the image",
+                            indexShard.shardId(), skipped, field);
+                }
+            } catch (Throwable e) {
+                logger.warn("{} failed to backfill [{}]", e, indexShard.shardId(), field);
+            }
+            searcher.close();
+            running = false;
+        }
+
+        /**
+         * Backfill from where the previous step stopped until the throttle asks to wait.
+         * Nanos to wait before the next step, 0 once the snapshot is done
+         */
+        private long backfill() throws Exception {
+            List<AtomicReaderContext> leaves = searcher.reader().leaves();
+            while (leaf < leaves.size()) {
+                AtomicReader reader = leaves.get(leaf).reader();
+                if (imageMapper == null) {
+                    // mapping is read again per segment, so a merge done meanwhile is picked up
+                    MapperService mapperService = indexShard.mapperService();
+                    imageMapper = ImageMapper.imageMapper(mapperService, mapperService.types(), field);
+                    if (imageMapper == null) {
+                        throw new ElasticsearchIllegalArgumentException("Field [" + field + "] is not an image field");
+                    }
+                    complete = imageMapper.complete(reader);
+                }
+                Bits liveDocs = reader.getLiveDocs();
+                for (; doc < reader.maxDoc(); doc++) {
+                    if (liveDocs != null && !liveDocs.get(doc)) {
+                        continue;
+                    }
+                    if (indexShard.state() == IndexShardState.CLOSED) {
+                        return 0;
+                    }
+                    if (complete.get(doc)) {
+                        processed++;
+                        continue;
+                    }
+
+                    // throttle, the doc is backfilled by the next step
+                    long waitNanos = startTime + (long) ((attempts + 1) * TimeUnit.SECONDS.toNanos(1) / docsPerSecond) - System.nanoTime();
+                    if (waitNanos > 0) {
+                        return waitNanos;
+                    }
+                    attempts++;
+                    processed++;
+
+                    try {
+                        IndexRequest indexRequest = indexRequest(imageMapper, path, searcher, reader, doc);
+                        if (indexRequest == null) {
+                            skipped++;
+                            continue;
+                        }
+                        indexAction.execute(indexRequest).actionGet();
+                        backfilled++;
+                    } catch (Throwable e) {
+                        if (ExceptionsHelper.unwrapCause(e) instanceof VersionConflictEngineException) {
+                            conflicts++;
+                        } else {
+                            failed++;
+                            logger.debug("{} failed to backfill doc [{}] of segment [{}]", e, indexShard.shardId(), doc, reader);
+                        }
+                    }
+                }
+                leaf++;
+                doc = 0;
+                imageMapper = null;
+                complete = null;
+            }
+            return 0;
+        }
+
+        /**
+         * Request to reindex doc at its current version, with the features it has given along with the image from _source.
+         * Null if there is no image in _source
+         */
+        @SuppressWarnings({"unchecked"})
+        private IndexRequest indexRequest(ImageMapper imageMapper, String[] path, Engine.Searcher searcher, AtomicReader reader, int doc) throws IOException {
+            CustomFieldsVisitor fieldsVisitor = new CustomFieldsVisitor(ROUTING_FIELDS, true);
+            reader.document(doc, fieldsVisitor);
+            if (fieldsVisitor.source() == null) {
+                return null;
+            }
+            Tuple<XContentType, Map<String, Object>> typeAndSource = XContentHelper.convertToMap(fieldsVisitor.source(), true);
+            Map<String, Object> parent = typeAndSource.v2();
+            for (int p = 0; p < path.length - 1 && parent != null; p++) {
+                Object child = parent.get(path[p]);
+                parent = child instanceof Map ? (Map<String, Object>) child : null;
+            }
+            Object image = parent == null ? null : parent.get(path[path.length - 1]);
+            if (!(image instanceof String)) {
+                return null;
+            }
+            Map<String, Object> value = imageMapper.indexedValues(reader, doc);
+            value.put(ImageMapper.CONTENT, image);
+            parent.put(path[path.length - 1], value);
+
+            Uid uid = fieldsVisitor.uid();
+            long version = Versions.loadVersion(searcher.reader(), new Term(UidFieldMapper.NAME, uid.toBytesRef()));
+            IndexRequest indexRequest = new IndexRequest(indexShard.shardId().index().name(), uid.type(), uid.id())
+                    .source(XContentFactory.contentBuilder(typeAndSource.v1()).map(typeAndSource.v2()))
+                    .version(version);
+            List<Object> routing = fieldsVisitor.fields().get(RoutingFieldMapper.NAME);
+            if (routing != null && !routing.isEmpty()) {
+                indexRequest.routing(routing.get(0).toString());
+            }
+            List<Object> parentId = fieldsVisitor.fields().get(ParentFieldMapper.NAME);
+            if (parentId != null && !parentId.isEmpty()) {
+                indexRequest.parent(Uid.createUid(parentId.get(0).toString()).id());
+            }
+            return indexRequest;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.elasticsearch.action.image.batch;
+
+import org.elasticsearch.action.ClientAction;
+import org.elasticsearch.client.Client;
+
+/**
+ * Search many query images on one feature, each shard scans feature doc values once for all queries
+ */
+public class ImageBatchSearchAction extends ClientAction<ImageBatchSearchRequest, ImageBatchSearchResponse, ImageBatchSearchRequestBuilder> {
+
+    public static final ImageBatchSearchAction INSTANCE = new ImageBatchSearchAction();
+    public static final String NAME = "indices/image/batch_search";
+
+    private ImageBatchSearchAction() {
+        super(NAME);
+    }
+
+    @Override
+    public ImageBatchSearchResponse newResponse() {
+        return new ImageBatchSearchResponse();
+    }
+
+    @Override
+    public ImageBatchSearchRequestBuilder newRequestBuilder(Client client) {
+        return new ImageBatchSearchRequestBuilder(client);
+    }
+}
@@ -0,0 +1,79 @@
+package org.elasticsearch.action.image.batch;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+public class ImageBatchSearchHit implements Streamable, ToXContent {
+
+    private String index;
+
+    private String type;
+
+    private String id;
+
+    private float score;
+
+    ImageBatchSearchHit() {
+    }
+
+    ImageBatchSearchHit(String index, String type, String id, float score) {
+        this.index = index;
+        this.type = type;
+        this.id = id;
+        this.score = score;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public float getScore() {
+        return score;
+    }
+
+    static ImageBatchSearchHit readHit(StreamInput in) throws IOException {
+        ImageBatchSearchHit hit = new ImageBatchSearchHit();
+        hit.readFrom(in);
+        return hit;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        index = in.readString();
+        type = in.readString();
+        id = in.readString();
+        score = in.readFloat();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(index);
+        out.writeString(type);
+        out.writeString(id);
+        out.writeFloat(score);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("_index", index);
+        builder.field("_type", type);
+        builder.field("_id", id);
+        builder.field("_score", score);
+        builder.endObject();
+        return builder;
+    }
+}
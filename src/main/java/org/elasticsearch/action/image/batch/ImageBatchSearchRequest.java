@@ -0,0 +1,228 @@
+package org.elasticsearch.action.image.batch;
+
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequest;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Queries are the images, then the lookups, then the features, results are returned in the same order
+ */
+public class ImageBatchSearchRequest extends BroadcastOperationRequest<ImageBatchSearchRequest> {
+
+    public static final int DEFAULT_SIZE = 10;
+
+    private String field;
+
+    private String feature;
+
+    private int size = DEFAULT_SIZE;
+
+    private List<byte[]> images = Lists.newArrayList();
+
+    private List<Lookup> lookups = Lists.newArrayList();
+
+    private List<byte[]> features = Lists.newArrayList();
+
+    ImageBatchSearchRequest() {
+    }
+
+    public ImageBatchSearchRequest(String... indices) {
+        super(indices);
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public ImageBatchSearchRequest field(String field) {
+        this.field = field;
+        return this;
+    }
+
+    public String feature() {
+        return feature;
+    }
+
+    public ImageBatchSearchRequest feature(String feature) {
+        this.feature = feature;
+        return this;
+    }
+
+    /**
+     * Number of hits to return for each query
+     */
+    public int size() {
+        return size;
+    }
+
+    public ImageBatchSearchRequest size(int size) {
+        this.size = size;
+        return this;
+    }
+
+    public List<byte[]> images() {
+        return images;
+    }
+
+    public ImageBatchSearchRequest addImage(byte[] image) {
+        this.images.add(image);
+        return this;
+    }
+
+    /**
+     * Existing images to search by, their features are loaded on the coordinating node before shards are searched
+     */
+    public List<Lookup> lookups() {
+        return lookups;
+    }
+
+    public ImageBatchSearchRequest addLookup(Lookup lookup) {
+        this.lookups.add(lookup);
+        return this;
+    }
+
+    /**
+     * Features in the byte representation of LIRE
+     */
+    public List<byte[]> features() {
+        return features;
+    }
+
+    public ImageBatchSearchRequest addFeature(byte[] feature) {
+        this.features.add(feature);
+        return this;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = super.validate();
+        if (field == null) {
+            validationException = addValidationError("field is missing", validationException);
+        }
+        if (feature == null) {
+            validationException = addValidationError("feature is missing", validationException);
+        }
+        if (images.isEmpty() && lookups.isEmpty() && features.isEmpty()) {
+            validationException = addValidationError("no image or feature to search", validationException);
+        }
+        if (size <= 0) {
+            validationException = addValidationError("size must be positive", validationException);
+        }
+        return validationException;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        feature = in.readString();
+        size = in.readVInt();
+        images = readByteArrays(in);
+        int lookupCount = in.readVInt();
+        lookups = Lists.newArrayListWithCapacity(lookupCount);
+        for (int i = 0; i < lookupCount; i++) {
+            lookups.add(Lookup.readLookup(in));
+        }
+        features = readByteArrays(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeString(feature);
+        out.writeVInt(size);
+        writeByteArrays(out, images);
+        out.writeVInt(lookups.size());
+        for (Lookup lookup : lookups) {
+            lookup.writeTo(out);
+        }
+        writeByteArrays(out, features);
+    }
+
+    static List<byte[]> readByteArrays(StreamInput in) throws IOException {
+        int count = in.readVInt();
+        List<byte[]> arrays = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            byte[] array = new byte[in.readVInt()];
+            in.readBytes(array, 0, array.length);
+            arrays.add(array);
+        }
+        return arrays;
+    }
+
+    static void writeByteArrays(StreamOutput out, List<byte[]> arrays) throws IOException {
+        out.writeVInt(arrays.size());
+        for (byte[] array : arrays) {
+            out.writeVInt(array.length);
+            out.writeBytes(array);
+        }
+    }
+
+    /**
+     * Image field of an existing doc, like the lookup of image query
+     */
+    public static class Lookup {
+        private String index;
+        private String type;
+        private String id;
+        private String path;
+        private String routing;
+
+        public Lookup(String index, String type, String id, String path) {
+            this.index = index;
+            this.type = type;
+            this.id = id;
+            this.path = path;
+        }
+
+        public String index() {
+            return index;
+        }
+
+        public String type() {
+            return type;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        /**
+         * Image field of the doc
+         */
+        public String path() {
+            return path;
+        }
+
+        public String routing() {
+            return routing;
+        }
+
+        public Lookup routing(String routing) {
+            this.routing = routing;
+            return this;
+        }
+
+        static Lookup readLookup(StreamInput in) throws IOException {
+            Lookup lookup = new Lookup(in.readString(), in.readString(), in.readString(), in.readString());
+            lookup.routing = in.readOptionalString();
+            return lookup;
+        }
+
+        void writeTo(StreamOutput out) throws IOException {
+            out.writeString(index);
+            out.writeString(type);
+            out.writeString(id);
+            out.writeString(path);
+            out.writeOptionalString(routing);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.elasticsearch.action.image.batch;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequestBuilder;
+import org.elasticsearch.client.Client;
+
+public class ImageBatchSearchRequestBuilder extends BroadcastOperationRequestBuilder<ImageBatchSearchRequest, ImageBatchSearchResponse, ImageBatchSearchRequestBuilder, Client> {
+
+    public ImageBatchSearchRequestBuilder(Client client) {
+        super(client, new ImageBatchSearchRequest());
+    }
+
+    public ImageBatchSearchRequestBuilder setField(String field) {
+        request.field(field);
+        return this;
+    }
+
+    public ImageBatchSearchRequestBuilder setFeature(String feature) {
+        request.feature(feature);
+        return this;
+    }
+
+    public ImageBatchSearchRequestBuilder setSize(int size) {
+        request.size(size);
+        return this;
+    }
+
+    public ImageBatchSearchRequestBuilder addImage(byte[] image) {
+        request.addImage(image);
+        return this;
+    }
+
+    public ImageBatchSearchRequestBuilder addLookup(String index, String type, String id, String path) {
+        request.addLookup(new ImageBatchSearchRequest.Lookup(index, type, id, path));
+        return this;
+    }
+
+    public ImageBatchSearchRequestBuilder addFeature(byte[] feature) {
+        request.addFeature(feature);
+        return this;
+    }
+
+    @Override
+    protected void doExecute(ActionListener<ImageBatchSearchResponse> listener) {
+        client.execute(ImageBatchSearchAction.INSTANCE, request, listener);
+    }
+}
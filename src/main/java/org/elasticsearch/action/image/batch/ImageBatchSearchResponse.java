@@ -0,0 +1,88 @@
+package org.elasticsearch.action.image.batch;
+
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationResponse;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.elasticsearch.rest.action.support.RestActions.buildBroadcastShardsHeader;
+
+public class ImageBatchSearchResponse extends BroadcastOperationResponse implements ToXContent {
+
+    private List<List<ImageBatchSearchHit>> hits;
+
+    ImageBatchSearchResponse() {
+    }
+
+    ImageBatchSearchResponse(int totalShards, int successfulShards, int failedShards, List<ShardOperationFailedException> shardFailures,
+                             List<List<ImageBatchSearchHit>> hits) {
+        super(totalShards, successfulShards, failedShards, shardFailures);
+        this.hits = hits;
+    }
+
+    /**
+     * Top hits of each query, in the order of queries in request
+     */
+    public List<List<ImageBatchSearchHit>> getHits() {
+        return hits;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        buildBroadcastShardsHeader(builder, this);
+        builder.startArray("responses");
+        for (List<ImageBatchSearchHit> queryHits : hits) {
+            builder.startObject();
+            builder.startArray("hits");
+            for (ImageBatchSearchHit hit : queryHits) {
+                hit.toXContent(builder, params);
+            }
+            builder.endArray();
+            builder.endObject();
+        }
+        builder.endArray();
+        return builder;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        hits = readHits(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        writeHits(out, hits);
+    }
+
+    static List<List<ImageBatchSearchHit>> readHits(StreamInput in) throws IOException {
+        int queries = in.readVInt();
+        List<List<ImageBatchSearchHit>> hits = Lists.newArrayListWithCapacity(queries);
+        for (int q = 0; q < queries; q++) {
+            int size = in.readVInt();
+            List<ImageBatchSearchHit> queryHits = Lists.newArrayListWithCapacity(size);
+            for (int i = 0; i < size; i++) {
+                queryHits.add(ImageBatchSearchHit.readHit(in));
+            }
+            hits.add(queryHits);
+        }
+        return hits;
+    }
+
+    static void writeHits(StreamOutput out, List<List<ImageBatchSearchHit>> hits) throws IOException {
+        out.writeVInt(hits.size());
+        for (List<ImageBatchSearchHit> queryHits : hits) {
+            out.writeVInt(queryHits.size());
+            for (ImageBatchSearchHit hit : queryHits) {
+                hit.writeTo(out);
+            }
+        }
+    }
+}
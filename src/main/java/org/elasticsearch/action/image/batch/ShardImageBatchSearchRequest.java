@@ -0,0 +1,64 @@
+package org.elasticsearch.action.image.batch;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.util.List;
+
+class ShardImageBatchSearchRequest extends BroadcastShardOperationRequest {
+
+    private String field;
+
+    private String feature;
+
+    private int size;
+
+    private List<byte[]> features;
+
+    ShardImageBatchSearchRequest() {
+    }
+
+    ShardImageBatchSearchRequest(String index, int shardId, ImageBatchSearchRequest request) {
+        super(index, shardId, request);
+        this.field = request.field();
+        this.feature = request.feature();
+        this.size = request.size();
+        this.features = request.features();
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public String feature() {
+        return feature;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public List<byte[]> features() {
+        return features;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        feature = in.readString();
+        size = in.readVInt();
+        features = ImageBatchSearchRequest.readByteArrays(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeString(feature);
+        out.writeVInt(size);
+        ImageBatchSearchRequest.writeByteArrays(out, features);
+    }
+}
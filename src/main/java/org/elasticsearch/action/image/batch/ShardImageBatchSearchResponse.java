@@ -0,0 +1,40 @@
+package org.elasticsearch.action.image.batch;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.util.List;
+
+class ShardImageBatchSearchResponse extends BroadcastShardOperationResponse {
+
+    private List<List<ImageBatchSearchHit>> hits;
+
+    ShardImageBatchSearchResponse() {
+    }
+
+    ShardImageBatchSearchResponse(String index, int shardId, List<List<ImageBatchSearchHit>> hits) {
+        super(index, shardId);
+        this.hits = hits;
+    }
+
+    /**
+     * Top hits of each query on this shard
+     */
+    public List<List<ImageBatchSearchHit>> hits() {
+        return hits;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        hits = ImageBatchSearchResponse.readHits(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        ImageBatchSearchResponse.writeHits(out, hits);
+    }
+}
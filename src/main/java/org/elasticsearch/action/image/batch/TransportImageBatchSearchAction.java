@@ -0,0 +1,327 @@
+package org.elasticsearch.action.image.batch;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.image.lookup.ImageLookupRequest;
+import org.elasticsearch.action.image.lookup.ImageLookupResponse;
+import org.elasticsearch.action.image.lookup.TransportImageLookupAction;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastOperationAction;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.fieldvisitor.JustUidFieldsVisitor;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageDecoder;
+import org.elasticsearch.index.query.image.AbstractImageScorer;
+import org.elasticsearch.index.shard.service.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Extract features of query images and load features of referenced images once on the coordinating node, then on each shard decode every doc feature once
+ * and score it against all queries, keeping a top hits heap per query
+ */
+public class TransportImageBatchSearchAction extends TransportBroadcastOperationAction<ImageBatchSearchRequest, ImageBatchSearchResponse, ShardImageBatchSearchRequest, ShardImageBatchSearchResponse> {
+
+    private static final Comparator<ScoreDoc> SCORE_DOC_COMPARATOR = new Comparator<ScoreDoc>() {
+        @Override
+        public int compare(ScoreDoc o1, ScoreDoc o2) {
+            int cmp = Float.compare(o1.score, o2.score);
+            return cmp != 0 ? cmp : o2.doc - o1.doc;
+        }
+    };
+
+    private static final Comparator<ImageBatchSearchHit> HIT_COMPARATOR = new Comparator<ImageBatchSearchHit>() {
+        @Override
+        public int compare(ImageBatchSearchHit o1, ImageBatchSearchHit o2) {
+            return Float.compare(o2.getScore(), o1.getScore());
+        }
+    };
+
+    private final IndicesService indicesService;
+
+    private final TransportImageLookupAction imageLookupAction;
+
+    private final ImageDecoder imageDecoder;
+
+    @Inject
+    public TransportImageBatchSearchAction(Settings settings, ThreadPool threadPool, ClusterService clusterService, TransportService transportService,
+                                           IndicesService indicesService, TransportImageLookupAction imageLookupAction, ImageDecoder imageDecoder) {
+        super(settings, ImageBatchSearchAction.NAME, threadPool, clusterService, transportService);
+        this.indicesService = indicesService;
+        this.imageLookupAction = imageLookupAction;
+        this.imageDecoder = imageDecoder;
+    }
+
+    @Override
+    protected void doExecute(final ImageBatchSearchRequest request, final ActionListener<ImageBatchSearchResponse> listener) {
+        if (request.lookups().isEmpty()) {
+            extractAndExecute(request, Collections.<byte[]>emptyList(), listener);
+            return;
+        }
+
+        // load features of all referenced docs at once, continue when the last one arrives without blocking a thread
+        final FeatureEnum featureEnum = FeatureEnum.getByName(request.feature());
+        final int lookupCount = request.lookups().size();
+        final AtomicReferenceArray<byte[]> lookupFeatures = new AtomicReferenceArray<byte[]>(lookupCount);
+        final AtomicInteger pending = new AtomicInteger(lookupCount);
+        final AtomicBoolean failed = new AtomicBoolean();
+        for (int i = 0; i < lookupCount; i++) {
+            final int index = i;
+            final ImageBatchSearchRequest.Lookup lookup = request.lookups().get(i);
+            final String lookupField = lookup.path() + "." + featureEnum.name();
+            ImageLookupRequest lookupRequest = new ImageLookupRequest(lookup.index(), lookup.type(), lookup.id()).routing(lookup.routing()).fields(lookupField);
+            lookupRequest.listenerThreaded(false);
+            imageLookupAction.execute(lookupRequest, new ActionListener<ImageLookupResponse>() {
+                @Override
+                public void onResponse(ImageLookupResponse response) {
+                    BytesReference bytes = response.getField(lookupField);
+                    if (bytes == null) {
+                        onFailure(new ElasticsearchIllegalArgumentException("No [" + lookupField + "] found in [" + lookup.index() + "]["
+                                + lookup.type() + "][" + lookup.id() + "]"));
+                        return;
+                    }
+                    lookupFeatures.set(index, bytes.toBytes());
+                    if (pending.decrementAndGet() == 0) {
+                        List<byte[]> features = Lists.newArrayListWithCapacity(lookupCount);
+                        for (int j = 0; j < lookupCount; j++) {
+                            features.add(lookupFeatures.get(j));
+                        }
+                        extractAndExecute(request, features, listener);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    if (failed.compareAndSet(false, true)) {
+                        listener.onFailure(e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Extract features of images before sending to shards, so each image is only decoded once. Queries are the images,
+     * then the looked up features, then the given features
+     */
+    private void extractAndExecute(final ImageBatchSearchRequest request, final List<byte[]> lookupFeatures, final ActionListener<ImageBatchSearchResponse> listener) {
+        if (request.images().isEmpty()) {
+            request.lookups().clear();
+            request.features().addAll(0, lookupFeatures);
+            super.doExecute(request, listener);
+            return;
+        }
+
+        threadPool.executor(executor()).execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FeatureEnum featureEnum = FeatureEnum.getByName(request.feature());
+                    List<byte[]> features = Lists.newArrayListWithCapacity(request.images().size() + lookupFeatures.size() + request.features().size());
+                    for (byte[] image : request.images()) {
+                        BufferedImage img = imageDecoder.read(image);
+                        LireFeature feature = featureEnum.newFeature();
+                        feature.extract(img);
+                        features.add(feature.getByteArrayRepresentation());
+                    }
+                    features.addAll(lookupFeatures);
+                    features.addAll(request.features());
+                    request.images().clear();
+                    request.lookups().clear();
+                    request.features().clear();
+                    request.features().addAll(features);
+                } catch (Throwable e) {
+                    listener.onFailure(new ElasticsearchImageProcessException("Failed to parse image", e));
+                    return;
+                }
+                TransportImageBatchSearchAction.super.doExecute(request, listener);
+            }
+        });
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.SEARCH;
+    }
+
+    @Override
+    protected ImageBatchSearchRequest newRequest() {
+        return new ImageBatchSearchRequest();
+    }
+
+    @Override
+    protected ImageBatchSearchResponse newResponse(ImageBatchSearchRequest request, AtomicReferenceArray shardsResponses, ClusterState clusterState) {
+        int successfulShards = 0;
+        int failedShards = 0;
+        List<ShardOperationFailedException> shardFailures = null;
+        List<List<ImageBatchSearchHit>> hits = Lists.newArrayListWithCapacity(request.features().size());
+        for (int q = 0; q < request.features().size(); q++) {
+            hits.add(Lists.<ImageBatchSearchHit>newArrayList());
+        }
+        for (int i = 0; i < shardsResponses.length(); i++) {
+            Object shardResponse = shardsResponses.get(i);
+            if (shardResponse == null) {
+                // a non active shard, ignore...
+            } else if (shardResponse instanceof BroadcastShardOperationFailedException) {
+                failedShards++;
+                if (shardFailures == null) {
+                    shardFailures = Lists.newArrayList();
+                }
+                shardFailures.add(new DefaultShardOperationFailedException((BroadcastShardOperationFailedException) shardResponse));
+            } else {
+                List<List<ImageBatchSearchHit>> shardHits = ((ShardImageBatchSearchResponse) shardResponse).hits();
+                for (int q = 0; q < shardHits.size(); q++) {
+                    hits.get(q).addAll(shardHits.get(q));
+                }
+                successfulShards++;
+            }
+        }
+
+        // merge top hits of all shards
+        for (int q = 0; q < hits.size(); q++) {
+            List<ImageBatchSearchHit> queryHits = hits.get(q);
+            Collections.sort(queryHits, HIT_COMPARATOR);
+            if (queryHits.size() > request.size()) {
+                hits.set(q, Lists.newArrayList(queryHits.subList(0, request.size())));
+            }
+        }
+        return new ImageBatchSearchResponse(shardsResponses.length(), successfulShards, failedShards, shardFailures, hits);
+    }
+
+    @Override
+    protected ShardImageBatchSearchRequest newShardRequest() {
+        return new ShardImageBatchSearchRequest();
+    }
+
+    @Override
+    protected ShardImageBatchSearchRequest newShardRequest(int numShards, ShardRouting shard, ImageBatchSearchRequest request) {
+        return new ShardImageBatchSearchRequest(shard.index(), shard.id(), request);
+    }
+
+    @Override
+    protected ShardImageBatchSearchResponse newShardResponse() {
+        return new ShardImageBatchSearchResponse();
+    }
+
+    @Override
+    protected ShardImageBatchSearchResponse shardOperation(ShardImageBatchSearchRequest request) throws ElasticsearchException {
+        IndexShard indexShard = indicesService.indexServiceSafe(request.index()).shardSafe(request.shardId());
+        FeatureEnum featureEnum = FeatureEnum.getByName(request.feature());
+        String luceneFieldName = request.field() + "." + featureEnum.name();
+        int size = request.size();
+
+        Engine.Searcher searcher = indexShard.acquireSearcher("image_batch_search");
+        try {
+            int queries = request.features().size();
+            LireFeature[] queryFeatures = new LireFeature[queries];
+            List<PriorityQueue<ScoreDoc>> queues = Lists.newArrayListWithCapacity(queries);
+            for (int q = 0; q < queries; q++) {
+                byte[] bytes = request.features().get(q);
+                queryFeatures[q] = featureEnum.newFeature();
+                queryFeatures[q].setByteArrayRepresentation(bytes, 0, bytes.length);
+                queues.add(new PriorityQueue<ScoreDoc>(size, SCORE_DOC_COMPARATOR));
+            }
+
+            LireFeature docFeature = featureEnum.newFeature();
+            for (AtomicReaderContext context : searcher.reader().leaves()) {
+                AtomicReader reader = context.reader();
+                BinaryDocValues binaryDocValues = reader.getBinaryDocValues(luceneFieldName);
+                if (binaryDocValues == null) {
+                    continue;
+                }
+                Bits liveDocs = reader.getLiveDocs();
+                for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                    if (liveDocs != null && !liveDocs.get(doc)) {
+                        continue;
+                    }
+                    BytesRef bytesRef = binaryDocValues.get(doc);
+                    if (bytesRef.length == 0) {
+                        continue;
+                    }
+                    // decode once, score against all queries
+                    docFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                    for (int q = 0; q < queries; q++) {
+                        float score = AbstractImageScorer.score(queryFeatures[q].getDistance(docFeature));
+                        PriorityQueue<ScoreDoc> queue = queues.get(q);
+                        if (queue.size() < size) {
+                            queue.add(new ScoreDoc(context.docBase + doc, score));
+                        } else if (score > queue.peek().score) {
+                            queue.poll();
+                            queue.add(new ScoreDoc(context.docBase + doc, score));
+                        }
+                    }
+                }
+            }
+
+            // load uid of top docs, a doc may be in top hits of several queries
+            Map<Integer, Uid> uids = Maps.newHashMap();
+            List<List<ImageBatchSearchHit>> hits = Lists.newArrayListWithCapacity(queries);
+            for (PriorityQueue<ScoreDoc> queue : queues) {
+                ScoreDoc[] scoreDocs = queue.toArray(new ScoreDoc[queue.size()]);
+                Arrays.sort(scoreDocs, Collections.reverseOrder(SCORE_DOC_COMPARATOR));
+                List<ImageBatchSearchHit> queryHits = Lists.newArrayListWithCapacity(scoreDocs.length);
+                for (ScoreDoc scoreDoc : scoreDocs) {
+                    Uid uid = uids.get(scoreDoc.doc);
+                    if (uid == null) {
+                        JustUidFieldsVisitor fieldsVisitor = new JustUidFieldsVisitor();
+                        searcher.searcher().doc(scoreDoc.doc, fieldsVisitor);
+                        uid = fieldsVisitor.uid();
+                        uids.put(scoreDoc.doc, uid);
+                    }
+                    queryHits.add(new ImageBatchSearchHit(request.index(), uid.type(), uid.id(), scoreDoc.score));
+                }
+                hits.add(queryHits);
+            }
+            return new ShardImageBatchSearchResponse(request.index(), request.shardId(), hits);
+        } catch (Exception e) {
+            throw new BroadcastShardOperationFailedException(indexShard.shardId(), "Failed to search images", e);
+        } finally {
+            searcher.close();
+        }
+    }
+
+    @Override
+    protected GroupShardsIterator shards(ClusterState clusterState, ImageBatchSearchRequest request, String[] concreteIndices) {
+        return clusterService.operationRouting().searchShards(clusterState, request.indices(), concreteIndices, null, null);
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, ImageBatchSearchRequest request) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.READ);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, ImageBatchSearchRequest request, String[] concreteIndices) {
+        return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+    }
+}
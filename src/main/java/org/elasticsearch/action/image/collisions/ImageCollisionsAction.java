@@ -0,0 +1,28 @@
+package org.elasticsearch.action.image.collisions;
+
+import org.elasticsearch.action.ClientAction;
+import org.elasticsearch.client.Client;
+
+/**
+ * Count docs by the number of hash terms they share with a query image on all shards, and pick the global
+ * min hash collisions that keeps the candidates of a hashed image query within a budget
+ */
+public class ImageCollisionsAction extends ClientAction<ImageCollisionsRequest, ImageCollisionsResponse, ImageCollisionsRequestBuilder> {
+
+    public static final ImageCollisionsAction INSTANCE = new ImageCollisionsAction();
+    public static final String NAME = "indices/image/collisions";
+
+    private ImageCollisionsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public ImageCollisionsResponse newResponse() {
+        return new ImageCollisionsResponse();
+    }
+
+    @Override
+    public ImageCollisionsRequestBuilder newRequestBuilder(Client client) {
+        return new ImageCollisionsRequestBuilder(client);
+    }
+}
@@ -0,0 +1,178 @@
+package org.elasticsearch.action.image.collisions;
+
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.mapper.image.HashEnum;
+
+import java.io.IOException;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+public class ImageCollisionsRequest extends BroadcastOperationRequest<ImageCollisionsRequest> {
+
+    public static final int DEFAULT_BUDGET = 100;
+
+    private String field;
+
+    private String feature;
+
+    private String hash = HashEnum.BIT_SAMPLING.name();
+
+    private byte[] image;
+
+    private int[] hashes;
+
+    private int budget = DEFAULT_BUDGET;
+
+    private float maxHashFreq = 1;
+
+    ImageCollisionsRequest() {
+    }
+
+    public ImageCollisionsRequest(String... indices) {
+        super(indices);
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public ImageCollisionsRequest field(String field) {
+        this.field = field;
+        return this;
+    }
+
+    public String feature() {
+        return feature;
+    }
+
+    public ImageCollisionsRequest feature(String feature) {
+        this.feature = feature;
+        return this;
+    }
+
+    /**
+     * Hash of the feature to count collisions of, must be indexed in mapping
+     */
+    public String hash() {
+        return hash;
+    }
+
+    public ImageCollisionsRequest hash(String hash) {
+        this.hash = hash;
+        return this;
+    }
+
+    /**
+     * Query image, its hashes are computed once on the coordinating node
+     */
+    public byte[] image() {
+        return image;
+    }
+
+    public ImageCollisionsRequest image(byte[] image) {
+        this.image = image;
+        return this;
+    }
+
+    /**
+     * Hashes precomputed by client, instead of image
+     */
+    public int[] hashes() {
+        return hashes;
+    }
+
+    public ImageCollisionsRequest hashes(int[] hashes) {
+        this.hashes = hashes;
+        return this;
+    }
+
+    /**
+     * Max number of candidates on all shards together
+     */
+    public int budget() {
+        return budget;
+    }
+
+    public ImageCollisionsRequest budget(int budget) {
+        this.budget = budget;
+        return this;
+    }
+
+    /**
+     * Hash terms in more than this fraction of docs of a shard are not counted, same as max_hash_freq of the image query
+     */
+    public float maxHashFreq() {
+        return maxHashFreq;
+    }
+
+    public ImageCollisionsRequest maxHashFreq(float maxHashFreq) {
+        this.maxHashFreq = maxHashFreq;
+        return this;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = super.validate();
+        if (field == null) {
+            validationException = addValidationError("field is missing", validationException);
+        }
+        if (feature == null) {
+            validationException = addValidationError("feature is missing", validationException);
+        }
+        if (hash == null) {
+            validationException = addValidationError("hash is missing", validationException);
+        }
+        if ((image == null) == (hashes == null)) {
+            validationException = addValidationError("exactly one of image or hashes is required", validationException);
+        }
+        if (hashes != null && hashes.length == 0) {
+            validationException = addValidationError("hashes must not be empty", validationException);
+        }
+        if (budget <= 0) {
+            validationException = addValidationError("budget must be positive", validationException);
+        }
+        if (maxHashFreq <= 0 || maxHashFreq > 1) {
+            validationException = addValidationError("max_hash_freq must be in (0, 1]", validationException);
+        }
+        return validationException;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        feature = in.readString();
+        hash = in.readString();
+        if (in.readBoolean()) {
+            image = new byte[in.readVInt()];
+            in.readBytes(image, 0, image.length);
+        }
+        if (in.readBoolean()) {
+            hashes = in.readIntArray();
+        }
+        budget = in.readVInt();
+        maxHashFreq = in.readFloat();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeString(feature);
+        out.writeString(hash);
+        out.writeBoolean(image != null);
+        if (image != null) {
+            out.writeVInt(image.length);
+            out.writeBytes(image);
+        }
+        out.writeBoolean(hashes != null);
+        if (hashes != null) {
+            out.writeIntArray(hashes);
+        }
+        out.writeVInt(budget);
+        out.writeFloat(maxHashFreq);
+    }
+}
@@ -0,0 +1,52 @@
+package org.elasticsearch.action.image.collisions;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequestBuilder;
+import org.elasticsearch.client.Client;
+
+public class ImageCollisionsRequestBuilder extends BroadcastOperationRequestBuilder<ImageCollisionsRequest, ImageCollisionsResponse, ImageCollisionsRequestBuilder, Client> {
+
+    public ImageCollisionsRequestBuilder(Client client) {
+        super(client, new ImageCollisionsRequest());
+    }
+
+    public ImageCollisionsRequestBuilder setField(String field) {
+        request.field(field);
+        return this;
+    }
+
+    public ImageCollisionsRequestBuilder setFeature(String feature) {
+        request.feature(feature);
+        return this;
+    }
+
+    public ImageCollisionsRequestBuilder setHash(String hash) {
+        request.hash(hash);
+        return this;
+    }
+
+    public ImageCollisionsRequestBuilder setImage(byte[] image) {
+        request.image(image);
+        return this;
+    }
+
+    public ImageCollisionsRequestBuilder setHashes(int[] hashes) {
+        request.hashes(hashes);
+        return this;
+    }
+
+    public ImageCollisionsRequestBuilder setBudget(int budget) {
+        request.budget(budget);
+        return this;
+    }
+
+    public ImageCollisionsRequestBuilder setMaxHashFreq(float maxHashFreq) {
+        request.maxHashFreq(maxHashFreq);
+        return this;
+    }
+
+    @Override
+    protected void doExecute(ActionListener<ImageCollisionsResponse> listener) {
+        client.execute(ImageCollisionsAction.INSTANCE, request, listener);
+    }
+}
@@ -0,0 +1,92 @@
+package org.elasticsearch.action.image.collisions;
+
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.elasticsearch.rest.action.support.RestActions.buildBroadcastShardsHeader;
+
+public class ImageCollisionsResponse extends BroadcastOperationResponse implements ToXContent {
+
+    private int[] hashes;
+
+    private long[] histogram;
+
+    private int minHashCollisions;
+
+    private long candidates;
+
+    ImageCollisionsResponse() {
+    }
+
+    ImageCollisionsResponse(int totalShards, int successfulShards, int failedShards, List<ShardOperationFailedException> shardFailures,
+                            int[] hashes, long[] histogram, int minHashCollisions, long candidates) {
+        super(totalShards, successfulShards, failedShards, shardFailures);
+        this.hashes = hashes;
+        this.histogram = histogram;
+        this.minHashCollisions = minHashCollisions;
+        this.candidates = candidates;
+    }
+
+    /**
+     * Hashes of the query, to pass on to the image query so the image is not hashed again
+     */
+    public int[] getHashes() {
+        return hashes;
+    }
+
+    /**
+     * Number of docs on all shards by the number of query hashes they share, indexed by collisions
+     */
+    public long[] getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * Smallest min_hash_collisions of the image query keeping the candidates within budget
+     */
+    public int getMinHashCollisions() {
+        return minHashCollisions;
+    }
+
+    /**
+     * Number of docs on all shards with at least min hash collisions, more than the budget only if docs sharing all hashes already are
+     */
+    public long getCandidates() {
+        return candidates;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        buildBroadcastShardsHeader(builder, this);
+        builder.field("min_hash_collisions", minHashCollisions);
+        builder.field("candidates", candidates);
+        builder.field("hashes", hashes);
+        builder.field("histogram", histogram);
+        return builder;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        hashes = in.readIntArray();
+        histogram = in.readLongArray();
+        minHashCollisions = in.readVInt();
+        candidates = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeIntArray(hashes);
+        out.writeLongArray(histogram);
+        out.writeVInt(minHashCollisions);
+        out.writeVLong(candidates);
+    }
+}
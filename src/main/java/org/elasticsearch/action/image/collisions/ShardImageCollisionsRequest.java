@@ -0,0 +1,72 @@
+package org.elasticsearch.action.image.collisions;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+class ShardImageCollisionsRequest extends BroadcastShardOperationRequest {
+
+    private String field;
+
+    private String feature;
+
+    private String hash;
+
+    private int[] hashes;
+
+    private float maxHashFreq;
+
+    ShardImageCollisionsRequest() {
+    }
+
+    ShardImageCollisionsRequest(String index, int shardId, ImageCollisionsRequest request) {
+        super(index, shardId, request);
+        this.field = request.field();
+        this.feature = request.feature();
+        this.hash = request.hash();
+        this.hashes = request.hashes();
+        this.maxHashFreq = request.maxHashFreq();
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public String feature() {
+        return feature;
+    }
+
+    public String hash() {
+        return hash;
+    }
+
+    public int[] hashes() {
+        return hashes;
+    }
+
+    public float maxHashFreq() {
+        return maxHashFreq;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        feature = in.readString();
+        hash = in.readString();
+        hashes = in.readIntArray();
+        maxHashFreq = in.readFloat();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeString(feature);
+        out.writeString(hash);
+        out.writeIntArray(hashes);
+        out.writeFloat(maxHashFreq);
+    }
+}
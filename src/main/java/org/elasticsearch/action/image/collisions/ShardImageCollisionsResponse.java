@@ -0,0 +1,39 @@
+package org.elasticsearch.action.image.collisions;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+class ShardImageCollisionsResponse extends BroadcastShardOperationResponse {
+
+    private long[] histogram;
+
+    ShardImageCollisionsResponse() {
+    }
+
+    ShardImageCollisionsResponse(String index, int shardId, long[] histogram) {
+        super(index, shardId);
+        this.histogram = histogram;
+    }
+
+    /**
+     * Number of docs on this shard by the number of query hashes they share, indexed by collisions
+     */
+    public long[] histogram() {
+        return histogram;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        histogram = in.readLongArray();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeLongArray(histogram);
+    }
+}
@@ -0,0 +1,217 @@
+package org.elasticsearch.action.image.collisions;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.indexing.hashing.BitSampling;
+import net.semanticmetadata.lire.indexing.hashing.LocalitySensitiveHashing;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastOperationAction;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.hppc.IntIntOpenHashMap;
+import org.elasticsearch.common.hppc.cursors.IntIntCursor;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.HashEnum;
+import org.elasticsearch.index.mapper.image.ImageDecoder;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.shard.service.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hash the query image once on the coordinating node, then each shard counts how many of the query hashes each doc shares.
+ * Histograms of all shards are summed and the min hash collisions is raised until the docs above it fit the budget
+ */
+public class TransportImageCollisionsAction extends TransportBroadcastOperationAction<ImageCollisionsRequest, ImageCollisionsResponse, ShardImageCollisionsRequest, ShardImageCollisionsResponse> {
+
+    private final IndicesService indicesService;
+
+    private final ImageDecoder imageDecoder;
+
+    @Inject
+    public TransportImageCollisionsAction(Settings settings, ThreadPool threadPool, ClusterService clusterService, TransportService transportService,
+                                          IndicesService indicesService, ImageDecoder imageDecoder) {
+        super(settings, ImageCollisionsAction.NAME, threadPool, clusterService, transportService);
+        this.indicesService = indicesService;
+        this.imageDecoder = imageDecoder;
+    }
+
+    @Override
+    protected void doExecute(final ImageCollisionsRequest request, final ActionListener<ImageCollisionsResponse> listener) {
+        if (request.image() == null) {
+            super.doExecute(request, listener);
+            return;
+        }
+
+        threadPool.executor(executor()).execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    BufferedImage img = imageDecoder.read(request.image());
+                    LireFeature feature = FeatureEnum.getByName(request.feature()).newFeature();
+                    feature.extract(img);
+                    if (HashEnum.getByName(request.hash()).equals(HashEnum.BIT_SAMPLING)) {
+                        request.hashes(BitSampling.generateHashes(feature.getDoubleHistogram()));
+                    } else {
+                        request.hashes(LocalitySensitiveHashing.generateHashes(feature.getDoubleHistogram()));
+                    }
+                    request.image(null);
+                } catch (Throwable e) {
+                    listener.onFailure(new ElasticsearchImageProcessException("Failed to parse image", e));
+                    return;
+                }
+                TransportImageCollisionsAction.super.doExecute(request, listener);
+            }
+        });
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.SEARCH;
+    }
+
+    @Override
+    protected ImageCollisionsRequest newRequest() {
+        return new ImageCollisionsRequest();
+    }
+
+    @Override
+    protected ImageCollisionsResponse newResponse(ImageCollisionsRequest request, AtomicReferenceArray shardsResponses, ClusterState clusterState) {
+        int successfulShards = 0;
+        int failedShards = 0;
+        List<ShardOperationFailedException> shardFailures = null;
+        long[] histogram = new long[request.hashes().length + 1];
+        for (int i = 0; i < shardsResponses.length(); i++) {
+            Object shardResponse = shardsResponses.get(i);
+            if (shardResponse == null) {
+                // a non active shard, ignore...
+            } else if (shardResponse instanceof BroadcastShardOperationFailedException) {
+                failedShards++;
+                if (shardFailures == null) {
+                    shardFailures = Lists.newArrayList();
+                }
+                shardFailures.add(new DefaultShardOperationFailedException((BroadcastShardOperationFailedException) shardResponse));
+            } else {
+                long[] shardHistogram = ((ShardImageCollisionsResponse) shardResponse).histogram();
+                for (int c = 0; c < histogram.length; c++) {
+                    histogram[c] += shardHistogram[c];
+                }
+                successfulShards++;
+            }
+        }
+
+        // lowest threshold whose docs fit the budget, docs sharing all hashes are kept even if they don't
+        int minHashCollisions = histogram.length - 1;
+        long candidates = histogram[minHashCollisions];
+        while (minHashCollisions > 1 && candidates + histogram[minHashCollisions - 1] <= request.budget()) {
+            minHashCollisions--;
+            candidates += histogram[minHashCollisions];
+        }
+        return new ImageCollisionsResponse(shardsResponses.length(), successfulShards, failedShards, shardFailures,
+                request.hashes(), histogram, minHashCollisions, candidates);
+    }
+
+    @Override
+    protected ShardImageCollisionsRequest newShardRequest() {
+        return new ShardImageCollisionsRequest();
+    }
+
+    @Override
+    protected ShardImageCollisionsRequest newShardRequest(int numShards, ShardRouting shard, ImageCollisionsRequest request) {
+        return new ShardImageCollisionsRequest(shard.index(), shard.id(), request);
+    }
+
+    @Override
+    protected ShardImageCollisionsResponse newShardResponse() {
+        return new ShardImageCollisionsResponse();
+    }
+
+    @Override
+    protected ShardImageCollisionsResponse shardOperation(ShardImageCollisionsRequest request) throws ElasticsearchException {
+        IndexShard indexShard = indicesService.indexServiceSafe(request.index()).shardSafe(request.shardId());
+        FeatureEnum featureEnum = FeatureEnum.getByName(request.feature());
+        HashEnum hashEnum = HashEnum.getByName(request.hash());
+        String hashFieldName = request.field() + "." + featureEnum.name() + "." + ImageMapper.HASH + "." + hashEnum.name();
+        int[] hashes = request.hashes();
+
+        Engine.Searcher searcher = indexShard.acquireSearcher("image_collisions");
+        try {
+            IndexReader reader = searcher.reader();
+            long[] histogram = new long[hashes.length + 1];
+
+            // too common terms are skipped by the image query as well, by their doc freq on the shard
+            List<BytesRef> terms = Lists.newArrayListWithCapacity(hashes.length);
+            for (int h : hashes) {
+                Term term = new Term(hashFieldName, Integer.toString(h));
+                if (request.maxHashFreq() < 1 && reader.docFreq(term) > request.maxHashFreq() * reader.maxDoc()) {
+                    continue;
+                }
+                terms.add(term.bytes());
+            }
+
+            IntIntOpenHashMap collisions = new IntIntOpenHashMap();
+            for (AtomicReaderContext context : reader.leaves()) {
+                Terms segmentTerms = context.reader().terms(hashFieldName);
+                if (segmentTerms == null) {
+                    continue;
+                }
+                TermsEnum termsEnum = segmentTerms.iterator(null);
+                DocsEnum docsEnum = null;
+                collisions.clear();
+                for (BytesRef term : terms) {
+                    if (!termsEnum.seekExact(term)) {
+                        continue;
+                    }
+                    docsEnum = termsEnum.docs(context.reader().getLiveDocs(), docsEnum, DocsEnum.FLAG_NONE);
+                    int doc;
+                    while ((doc = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                        collisions.putOrAdd(doc, 1, 1);
+                    }
+                }
+                for (IntIntCursor cursor : collisions) {
+                    histogram[cursor.value]++;
+                }
+            }
+            return new ShardImageCollisionsResponse(request.index(), request.shardId(), histogram);
+        } catch (Exception e) {
+            throw new BroadcastShardOperationFailedException(indexShard.shardId(), "Failed to count hash collisions", e);
+        } finally {
+            searcher.close();
+        }
+    }
+
+    @Override
+    protected GroupShardsIterator shards(ClusterState clusterState, ImageCollisionsRequest request, String[] concreteIndices) {
+        return clusterService.operationRouting().searchShards(clusterState, request.indices(), concreteIndices, null, null);
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, ImageCollisionsRequest request) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.READ);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, ImageCollisionsRequest request, String[] concreteIndices) {
+        return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+    }
+}
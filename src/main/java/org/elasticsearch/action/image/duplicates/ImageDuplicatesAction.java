@@ -0,0 +1,27 @@
+package org.elasticsearch.action.image.duplicates;
+
+import org.elasticsearch.action.ClientAction;
+import org.elasticsearch.client.Client;
+
+/**
+ * Find near duplicate image clusters in an index, images are blocked by hash terms and only compared within blocks
+ */
+public class ImageDuplicatesAction extends ClientAction<ImageDuplicatesRequest, ImageDuplicatesResponse, ImageDuplicatesRequestBuilder> {
+
+    public static final ImageDuplicatesAction INSTANCE = new ImageDuplicatesAction();
+    public static final String NAME = "indices/image/duplicates";
+
+    private ImageDuplicatesAction() {
+        super(NAME);
+    }
+
+    @Override
+    public ImageDuplicatesResponse newResponse() {
+        return new ImageDuplicatesResponse();
+    }
+
+    @Override
+    public ImageDuplicatesRequestBuilder newRequestBuilder(Client client) {
+        return new ImageDuplicatesRequestBuilder(client);
+    }
+}
@@ -0,0 +1,97 @@
+package org.elasticsearch.action.image.duplicates;
+
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Docs of an index whose images are near duplicates of each other
+ */
+public class ImageDuplicatesCluster implements Streamable, ToXContent {
+
+    private String index;
+
+    private List<String> types;
+
+    private List<String> ids;
+
+    ImageDuplicatesCluster() {
+    }
+
+    ImageDuplicatesCluster(String index) {
+        this.index = index;
+        this.types = Lists.newArrayList();
+        this.ids = Lists.newArrayList();
+    }
+
+    void addDoc(String type, String id) {
+        types.add(type);
+        ids.add(id);
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public List<String> getTypes() {
+        return types;
+    }
+
+    public List<String> getIds() {
+        return ids;
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    static ImageDuplicatesCluster readCluster(StreamInput in) throws IOException {
+        ImageDuplicatesCluster cluster = new ImageDuplicatesCluster();
+        cluster.readFrom(in);
+        return cluster;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        index = in.readString();
+        int size = in.readVInt();
+        types = Lists.newArrayListWithCapacity(size);
+        ids = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            types.add(in.readString());
+            ids.add(in.readString());
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(index);
+        out.writeVInt(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            out.writeString(types.get(i));
+            out.writeString(ids.get(i));
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("_index", index);
+        builder.startArray("docs");
+        for (int i = 0; i < ids.size(); i++) {
+            builder.startObject();
+            builder.field("_type", types.get(i));
+            builder.field("_id", ids.get(i));
+            builder.endObject();
+        }
+        builder.endArray();
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,190 @@
+package org.elasticsearch.action.image.duplicates;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.hppc.IntArrayList;
+import org.elasticsearch.common.hppc.IntIntOpenHashMap;
+import org.elasticsearch.common.hppc.IntObjectOpenHashMap;
+import org.elasticsearch.common.hppc.cursors.ObjectCursor;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Clusters the images of all shards of an index. Blocks of the same hash term on different shards are merged, only pairs within
+ * a block are compared, and pairs within max distance are merged with union find.
+ * A block with more than max block size images is split by the next oversized block each of its images is in, images also sharing
+ * a smaller block are compared there. A part still larger than max block size compares each image with the next max block size images
+ */
+class ImageDuplicatesClustering {
+
+    private static final Comparator<List<Integer>> GROUP_COMPARATOR = new Comparator<List<Integer>>() {
+        @Override
+        public int compare(List<Integer> o1, List<Integer> o2) {
+            return o2.size() - o1.size();
+        }
+    };
+
+    private final List<String> types = Lists.newArrayList();
+
+    private final List<String> ids = Lists.newArrayList();
+
+    private final List<LireFeature> features = Lists.newArrayList();
+
+    private final float maxDistance;
+
+    private final int maxBlockSize;
+
+    private final IntIntOpenHashMap parents = new IntIntOpenHashMap();
+
+    private long comparisons = 0;
+
+    ImageDuplicatesClustering(List<ShardImageDuplicatesResponse> responses, FeatureEnum featureEnum, float maxDistance, int maxBlockSize) {
+        this.maxDistance = maxDistance;
+        this.maxBlockSize = maxBlockSize;
+
+        // number images of all shards one after the other, and merge blocks by term
+        Map<BytesRef, IntArrayList> termBlocks = Maps.newHashMap();
+        for (ShardImageDuplicatesResponse response : responses) {
+            int offset = ids.size();
+            for (int i = 0; i < response.ids().size(); i++) {
+                types.add(response.types().get(i));
+                ids.add(response.ids().get(i));
+                BytesRef bytesRef = response.features().get(i);
+                LireFeature feature = featureEnum.newFeature();
+                feature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                features.add(feature);
+            }
+            for (int i = 0; i < response.blocks().size(); i++) {
+                IntArrayList block = termBlocks.get(response.blockTerms().get(i));
+                if (block == null) {
+                    block = new IntArrayList();
+                    termBlocks.put(response.blockTerms().get(i), block);
+                }
+                for (int doc : response.blocks().get(i)) {
+                    block.add(offset + doc);
+                }
+            }
+        }
+
+        // blocks in term order, and for each image in an oversized block the oversized blocks it is in
+        List<BytesRef> terms = Lists.newArrayList(termBlocks.keySet());
+        Collections.sort(terms);
+        int[][] blocks = new int[terms.size()][];
+        IntObjectOpenHashMap<IntArrayList> oversizedBlocks = new IntObjectOpenHashMap<>();
+        for (int t = 0; t < blocks.length; t++) {
+            blocks[t] = termBlocks.get(terms.get(t)).toArray();
+            if (blocks[t].length > maxBlockSize) {
+                for (int doc : blocks[t]) {
+                    IntArrayList docBlocks = oversizedBlocks.get(doc);
+                    if (docBlocks == null) {
+                        docBlocks = new IntArrayList();
+                        oversizedBlocks.put(doc, docBlocks);
+                    }
+                    docBlocks.add(t);
+                }
+            }
+        }
+
+        for (int t = 0; t < blocks.length; t++) {
+            if (blocks[t].length <= maxBlockSize) {
+                compare(blocks[t]);
+                continue;
+            }
+            IntObjectOpenHashMap<IntArrayList> parts = new IntObjectOpenHashMap<>();
+            for (int doc : blocks[t]) {
+                IntArrayList docBlocks = oversizedBlocks.get(doc);
+                for (int i = 0; i < docBlocks.size(); i++) {
+                    int next = docBlocks.get(i);
+                    if (next <= t) {
+                        continue;
+                    }
+                    IntArrayList part = parts.get(next);
+                    if (part == null) {
+                        part = new IntArrayList();
+                        parts.put(next, part);
+                    }
+                    part.add(doc);
+                }
+            }
+            for (ObjectCursor<IntArrayList> part : parts.values()) {
+                compare(part.value.toArray());
+            }
+        }
+    }
+
+    /**
+     * Compare each image of the block with the next max block size images, all pairs if the block is not larger
+     */
+    private void compare(int[] block) {
+        for (int i = 0; i < block.length; i++) {
+            for (int j = i + 1; j < block.length && j - i <= maxBlockSize; j++) {
+                int root1 = find(block[i]);
+                int root2 = find(block[j]);
+                if (root1 == root2) {  // already in the same cluster
+                    continue;
+                }
+                comparisons++;
+                if (features.get(block[i]).getDistance(features.get(block[j])) <= maxDistance) {
+                    parents.put(root2, root1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Root of the cluster of doc, docs without parent are roots. Compress the path on the way
+     */
+    private int find(int doc) {
+        int root = doc;
+        while (parents.containsKey(root)) {
+            root = parents.lget();
+        }
+        while (doc != root) {
+            int next = parents.get(doc);
+            parents.put(doc, root);
+            doc = next;
+        }
+        return root;
+    }
+
+    /**
+     * Number of image pairs compared
+     */
+    long comparisons() {
+        return comparisons;
+    }
+
+    /**
+     * Largest clusters, largest first
+     */
+    List<ImageDuplicatesCluster> clusters(String index, int size) {
+        Map<Integer, List<Integer>> groups = Maps.newHashMap();
+        for (int doc : parents.keys().toArray()) {
+            int root = find(doc);
+            List<Integer> group = groups.get(root);
+            if (group == null) {
+                group = Lists.newArrayList(root);
+                groups.put(root, group);
+            }
+            group.add(doc);
+        }
+        List<List<Integer>> sortedGroups = Lists.newArrayList(groups.values());
+        Collections.sort(sortedGroups, GROUP_COMPARATOR);
+
+        List<ImageDuplicatesCluster> clusters = Lists.newArrayList();
+        for (List<Integer> group : sortedGroups.subList(0, Math.min(size, sortedGroups.size()))) {
+            ImageDuplicatesCluster cluster = new ImageDuplicatesCluster(index);
+            for (int doc : group) {
+                cluster.addDoc(types.get(doc), ids.get(doc));
+            }
+            clusters.add(cluster);
+        }
+        return clusters;
+    }
+}
@@ -0,0 +1,152 @@
+package org.elasticsearch.action.image.duplicates;
+
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.mapper.image.HashEnum;
+
+import java.io.IOException;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+public class ImageDuplicatesRequest extends BroadcastOperationRequest<ImageDuplicatesRequest> {
+
+    public static final float DEFAULT_MAX_DISTANCE = 1.0f;
+
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 1000;
+
+    public static final int DEFAULT_SIZE = 100;
+
+    private String field;
+
+    private String feature;
+
+    private String hash = HashEnum.BIT_SAMPLING.name();
+
+    private float maxDistance = DEFAULT_MAX_DISTANCE;
+
+    private int maxBlockSize = DEFAULT_MAX_BLOCK_SIZE;
+
+    private int size = DEFAULT_SIZE;
+
+    ImageDuplicatesRequest() {
+    }
+
+    public ImageDuplicatesRequest(String... indices) {
+        super(indices);
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public ImageDuplicatesRequest field(String field) {
+        this.field = field;
+        return this;
+    }
+
+    public String feature() {
+        return feature;
+    }
+
+    public ImageDuplicatesRequest feature(String feature) {
+        this.feature = feature;
+        return this;
+    }
+
+    /**
+     * Hash of the feature to block images by, must be indexed in mapping
+     */
+    public String hash() {
+        return hash;
+    }
+
+    public ImageDuplicatesRequest hash(String hash) {
+        this.hash = hash;
+        return this;
+    }
+
+    /**
+     * Images within this distance of each other are duplicates
+     */
+    public float maxDistance() {
+        return maxDistance;
+    }
+
+    public ImageDuplicatesRequest maxDistance(float maxDistance) {
+        this.maxDistance = maxDistance;
+        return this;
+    }
+
+    /**
+     * Blocks with more images are split by another hash term their images share, parts still larger only compare each image
+     * with the next max block size images
+     */
+    public int maxBlockSize() {
+        return maxBlockSize;
+    }
+
+    public ImageDuplicatesRequest maxBlockSize(int maxBlockSize) {
+        this.maxBlockSize = maxBlockSize;
+        return this;
+    }
+
+    /**
+     * Number of largest clusters to return
+     */
+    public int size() {
+        return size;
+    }
+
+    public ImageDuplicatesRequest size(int size) {
+        this.size = size;
+        return this;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = super.validate();
+        if (field == null) {
+            validationException = addValidationError("field is missing", validationException);
+        }
+        if (feature == null) {
+            validationException = addValidationError("feature is missing", validationException);
+        }
+        if (hash == null) {
+            validationException = addValidationError("hash is missing", validationException);
+        }
+        if (maxDistance < 0) {
+            validationException = addValidationError("max_distance must not be negative", validationException);
+        }
+        if (maxBlockSize < 2) {
+            validationException = addValidationError("max_block_size must be at least 2", validationException);
+        }
+        if (size <= 0) {
+            validationException = addValidationError("size must be positive", validationException);
+        }
+        return validationException;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        feature = in.readString();
+        hash = in.readString();
+        maxDistance = in.readFloat();
+        maxBlockSize = in.readVInt();
+        size = in.readVInt();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeString(feature);
+        out.writeString(hash);
+        out.writeFloat(maxDistance);
+        out.writeVInt(maxBlockSize);
+        out.writeVInt(size);
+    }
+}
@@ -0,0 +1,47 @@
+package org.elasticsearch.action.image.duplicates;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequestBuilder;
+import org.elasticsearch.client.Client;
+
+public class ImageDuplicatesRequestBuilder extends BroadcastOperationRequestBuilder<ImageDuplicatesRequest, ImageDuplicatesResponse, ImageDuplicatesRequestBuilder, Client> {
+
+    public ImageDuplicatesRequestBuilder(Client client) {
+        super(client, new ImageDuplicatesRequest());
+    }
+
+    public ImageDuplicatesRequestBuilder setField(String field) {
+        request.field(field);
+        return this;
+    }
+
+    public ImageDuplicatesRequestBuilder setFeature(String feature) {
+        request.feature(feature);
+        return this;
+    }
+
+    public ImageDuplicatesRequestBuilder setHash(String hash) {
+        request.hash(hash);
+        return this;
+    }
+
+    public ImageDuplicatesRequestBuilder setMaxDistance(float maxDistance) {
+        request.maxDistance(maxDistance);
+        return this;
+    }
+
+    public ImageDuplicatesRequestBuilder setMaxBlockSize(int maxBlockSize) {
+        request.maxBlockSize(maxBlockSize);
+        return this;
+    }
+
+    public ImageDuplicatesRequestBuilder setSize(int size) {
+        request.size(size);
+        return this;
+    }
+
+    @Override
+    protected void doExecute(ActionListener<ImageDuplicatesResponse> listener) {
+        client.execute(ImageDuplicatesAction.INSTANCE, request, listener);
+    }
+}
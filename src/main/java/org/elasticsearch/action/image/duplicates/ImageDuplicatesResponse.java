@@ -0,0 +1,87 @@
+package org.elasticsearch.action.image.duplicates;
+
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationResponse;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.elasticsearch.rest.action.support.RestActions.buildBroadcastShardsHeader;
+
+public class ImageDuplicatesResponse extends BroadcastOperationResponse implements ToXContent {
+
+    private List<ImageDuplicatesCluster> clusters;
+
+    private long comparisons;
+
+    ImageDuplicatesResponse() {
+    }
+
+    ImageDuplicatesResponse(int totalShards, int successfulShards, int failedShards, List<ShardOperationFailedException> shardFailures,
+                            List<ImageDuplicatesCluster> clusters, long comparisons) {
+        super(totalShards, successfulShards, failedShards, shardFailures);
+        this.clusters = clusters;
+        this.comparisons = comparisons;
+    }
+
+    /**
+     * Duplicate clusters, largest first
+     */
+    public List<ImageDuplicatesCluster> getClusters() {
+        return clusters;
+    }
+
+    /**
+     * Number of image pairs compared
+     */
+    public long getComparisons() {
+        return comparisons;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        buildBroadcastShardsHeader(builder, this);
+        builder.field("comparisons", comparisons);
+        builder.startArray("clusters");
+        for (ImageDuplicatesCluster cluster : clusters) {
+            cluster.toXContent(builder, params);
+        }
+        builder.endArray();
+        return builder;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        clusters = readClusters(in);
+        comparisons = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        writeClusters(out, clusters);
+        out.writeVLong(comparisons);
+    }
+
+    static List<ImageDuplicatesCluster> readClusters(StreamInput in) throws IOException {
+        int size = in.readVInt();
+        List<ImageDuplicatesCluster> clusters = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            clusters.add(ImageDuplicatesCluster.readCluster(in));
+        }
+        return clusters;
+    }
+
+    static void writeClusters(StreamOutput out, List<ImageDuplicatesCluster> clusters) throws IOException {
+        out.writeVInt(clusters.size());
+        for (ImageDuplicatesCluster cluster : clusters) {
+            cluster.writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.elasticsearch.action.image.duplicates;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+class ShardImageDuplicatesRequest extends BroadcastShardOperationRequest {
+
+    private String field;
+
+    private String feature;
+
+    private String hash;
+
+    private float maxDistance;
+
+    private int maxBlockSize;
+
+    private int size;
+
+    ShardImageDuplicatesRequest() {
+    }
+
+    ShardImageDuplicatesRequest(String index, int shardId, ImageDuplicatesRequest request) {
+        super(index, shardId, request);
+        this.field = request.field();
+        this.feature = request.feature();
+        this.hash = request.hash();
+        this.maxDistance = request.maxDistance();
+        this.maxBlockSize = request.maxBlockSize();
+        this.size = request.size();
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public String feature() {
+        return feature;
+    }
+
+    public String hash() {
+        return hash;
+    }
+
+    public float maxDistance() {
+        return maxDistance;
+    }
+
+    public int maxBlockSize() {
+        return maxBlockSize;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        feature = in.readString();
+        hash = in.readString();
+        maxDistance = in.readFloat();
+        maxBlockSize = in.readVInt();
+        size = in.readVInt();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeString(feature);
+        out.writeString(hash);
+        out.writeFloat(maxDistance);
+        out.writeVInt(maxBlockSize);
+        out.writeVInt(size);
+    }
+}
@@ -0,0 +1,114 @@
+package org.elasticsearch.action.image.duplicates;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationResponse;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Images of a shard with their features, and the blocks they form: for each hash term, the images of the shard sharing it.
+ * Images are numbered by their position in the response
+ */
+class ShardImageDuplicatesResponse extends BroadcastShardOperationResponse {
+
+    private List<String> types;
+
+    private List<String> ids;
+
+    private List<BytesRef> features;
+
+    private List<BytesRef> blockTerms;
+
+    private List<int[]> blocks;
+
+    ShardImageDuplicatesResponse() {
+    }
+
+    ShardImageDuplicatesResponse(String index, int shardId, List<String> types, List<String> ids, List<BytesRef> features,
+                                 List<BytesRef> blockTerms, List<int[]> blocks) {
+        super(index, shardId);
+        this.types = types;
+        this.ids = ids;
+        this.features = features;
+        this.blockTerms = blockTerms;
+        this.blocks = blocks;
+    }
+
+    public List<String> types() {
+        return types;
+    }
+
+    public List<String> ids() {
+        return ids;
+    }
+
+    /**
+     * Feature of each image, as in doc values
+     */
+    public List<BytesRef> features() {
+        return features;
+    }
+
+    /**
+     * Hash term of each block
+     */
+    public List<BytesRef> blockTerms() {
+        return blockTerms;
+    }
+
+    /**
+     * Images of each block, by position
+     */
+    public List<int[]> blocks() {
+        return blocks;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        int size = in.readVInt();
+        types = Lists.newArrayListWithCapacity(size);
+        ids = Lists.newArrayListWithCapacity(size);
+        features = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            types.add(in.readString());
+            ids.add(in.readString());
+            features.add(in.readBytesRef());
+        }
+        int blockCount = in.readVInt();
+        blockTerms = Lists.newArrayListWithCapacity(blockCount);
+        blocks = Lists.newArrayListWithCapacity(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            blockTerms.add(in.readBytesRef());
+            int[] block = new int[in.readVInt()];
+            for (int j = 0; j < block.length; j++) {
+                block[j] = in.readVInt();
+            }
+            blocks.add(block);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            out.writeString(types.get(i));
+            out.writeString(ids.get(i));
+            out.writeBytesRef(features.get(i));
+        }
+        out.writeVInt(blocks.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            out.writeBytesRef(blockTerms.get(i));
+            int[] block = blocks.get(i);
+            out.writeVInt(block.length);
+            for (int doc : block) {
+                out.writeVInt(doc);
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.elasticsearch.action.image.duplicates;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastOperationAction;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.hppc.IntArrayList;
+import org.elasticsearch.common.hppc.IntIntOpenHashMap;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.fieldvisitor.JustUidFieldsVisitor;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.HashEnum;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.shard.service.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Each shard walks the hash terms of the feature and sends, for each term, the docs sharing it with their features from doc values.
+ * Blocks of the same term on all shards of an index are merged and clustered on the coordinating node, so duplicates are found
+ * whatever shard they are in
+ */
+public class TransportImageDuplicatesAction extends TransportBroadcastOperationAction<ImageDuplicatesRequest, ImageDuplicatesResponse, ShardImageDuplicatesRequest, ShardImageDuplicatesResponse> {
+
+    private static final Comparator<ImageDuplicatesCluster> CLUSTER_COMPARATOR = new Comparator<ImageDuplicatesCluster>() {
+        @Override
+        public int compare(ImageDuplicatesCluster o1, ImageDuplicatesCluster o2) {
+            return o2.size() - o1.size();
+        }
+    };
+
+    private final IndicesService indicesService;
+
+    @Inject
+    public TransportImageDuplicatesAction(Settings settings, ThreadPool threadPool, ClusterService clusterService, TransportService transportService,
+                                          IndicesService indicesService) {
+        super(settings, ImageDuplicatesAction.NAME, threadPool, clusterService, transportService);
+        this.indicesService = indicesService;
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.SEARCH;
+    }
+
+    @Override
+    protected ImageDuplicatesRequest newRequest() {
+        return new ImageDuplicatesRequest();
+    }
+
+    @Override
+    protected ImageDuplicatesResponse newResponse(ImageDuplicatesRequest request, AtomicReferenceArray shardsResponses, ClusterState clusterState) {
+        int successfulShards = 0;
+        int failedShards = 0;
+        List<ShardOperationFailedException> shardFailures = null;
+        Map<String, List<ShardImageDuplicatesResponse>> indexResponses = Maps.newHashMap();
+        for (int i = 0; i < shardsResponses.length(); i++) {
+            Object shardResponse = shardsResponses.get(i);
+            if (shardResponse == null) {
+                // a non active shard, ignore...
+            } else if (shardResponse instanceof BroadcastShardOperationFailedException) {
+                failedShards++;
+                if (shardFailures == null) {
+                    shardFailures = Lists.newArrayList();
+                }
+                shardFailures.add(new DefaultShardOperationFailedException((BroadcastShardOperationFailedException) shardResponse));
+            } else {
+                ShardImageDuplicatesResponse response = (ShardImageDuplicatesResponse) shardResponse;
+                List<ShardImageDuplicatesResponse> responses = indexResponses.get(response.getIndex());
+                if (responses == null) {
+                    responses = Lists.newArrayList();
+                    indexResponses.put(response.getIndex(), responses);
+                }
+                responses.add(response);
+                successfulShards++;
+            }
+        }
+
+        FeatureEnum featureEnum = FeatureEnum.getByName(request.feature());
+        List<ImageDuplicatesCluster> clusters = Lists.newArrayList();
+        long comparisons = 0;
+        for (Map.Entry<String, List<ShardImageDuplicatesResponse>> entry : indexResponses.entrySet()) {
+            ImageDuplicatesClustering clustering = new ImageDuplicatesClustering(entry.getValue(), featureEnum, request.maxDistance(), request.maxBlockSize());
+            clusters.addAll(clustering.clusters(entry.getKey(), request.size()));
+            comparisons += clustering.comparisons();
+        }
+
+        Collections.sort(clusters, CLUSTER_COMPARATOR);
+        if (clusters.size() > request.size()) {
+            clusters = Lists.newArrayList(clusters.subList(0, request.size()));
+        }
+        return new ImageDuplicatesResponse(shardsResponses.length(), successfulShards, failedShards, shardFailures, clusters, comparisons);
+    }
+
+    @Override
+    protected ShardImageDuplicatesRequest newShardRequest() {
+        return new ShardImageDuplicatesRequest();
+    }
+
+    @Override
+    protected ShardImageDuplicatesRequest newShardRequest(int numShards, ShardRouting shard, ImageDuplicatesRequest request) {
+        return new ShardImageDuplicatesRequest(shard.index(), shard.id(), request);
+    }
+
+    @Override
+    protected ShardImageDuplicatesResponse newShardResponse() {
+        return new ShardImageDuplicatesResponse();
+    }
+
+    @Override
+    protected ShardImageDuplicatesResponse shardOperation(ShardImageDuplicatesRequest request) throws ElasticsearchException {
+        IndexShard indexShard = indicesService.indexServiceSafe(request.index()).shardSafe(request.shardId());
+        FeatureEnum featureEnum = FeatureEnum.getByName(request.feature());
+        HashEnum hashEnum = HashEnum.getByName(request.hash());
+        String luceneFieldName = request.field() + "." + featureEnum.name();
+        String hashFieldName = luceneFieldName + "." + ImageMapper.HASH + "." + hashEnum.name();
+
+        Engine.Searcher searcher = indexShard.acquireSearcher("image_duplicates");
+        try {
+            IndexReader reader = searcher.reader();
+            Terms terms = MultiFields.getTerms(reader, hashFieldName);
+            BinaryDocValues binaryDocValues = MultiDocValues.getBinaryValues(reader, luceneFieldName);
+            List<String> types = Lists.newArrayList();
+            List<String> ids = Lists.newArrayList();
+            List<BytesRef> features = Lists.newArrayList();
+            List<BytesRef> blockTerms = Lists.newArrayList();
+            List<int[]> blocks = Lists.newArrayList();
+
+            if (terms != null && binaryDocValues != null) {
+                Bits liveDocs = MultiFields.getLiveDocs(reader);
+                IntIntOpenHashMap positions = new IntIntOpenHashMap();  // position of a doc in the response, -1 if it has no feature
+                TermsEnum termsEnum = terms.iterator(null);
+                DocsEnum docsEnum = null;
+                IntArrayList block = new IntArrayList();
+                BytesRef term;
+                while ((term = termsEnum.next()) != null) {
+                    // a single doc here may still share the term with docs of other shards
+                    block.clear();
+                    docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_NONE);
+                    int doc;
+                    while ((doc = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                        int position;
+                        if (positions.containsKey(doc)) {
+                            position = positions.lget();
+                        } else {
+                            position = -1;
+                            BytesRef bytesRef = binaryDocValues.get(doc);
+                            if (bytesRef.length > 0) {
+                                JustUidFieldsVisitor fieldsVisitor = new JustUidFieldsVisitor();
+                                searcher.searcher().doc(doc, fieldsVisitor);
+                                Uid uid = fieldsVisitor.uid();
+                                position = ids.size();
+                                types.add(uid.type());
+                                ids.add(uid.id());
+                                features.add(BytesRef.deepCopyOf(bytesRef));
+                            }
+                            positions.put(doc, position);
+                        }
+                        if (position >= 0) {
+                            block.add(position);
+                        }
+                    }
+                    if (!block.isEmpty()) {
+                        blockTerms.add(BytesRef.deepCopyOf(term));
+                        blocks.add(block.toArray());
+                    }
+                }
+            }
+            return new ShardImageDuplicatesResponse(request.index(), request.shardId(), types, ids, features, blockTerms, blocks);
+        } catch (Exception e) {
+            throw new BroadcastShardOperationFailedException(indexShard.shardId(), "Failed to find duplicate images", e);
+        } finally {
+            searcher.close();
+        }
+    }
+
+    @Override
+    protected GroupShardsIterator shards(ClusterState clusterState, ImageDuplicatesRequest request, String[] concreteIndices) {
+        return clusterService.operationRouting().searchShards(clusterState, request.indices(), concreteIndices, null, null);
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, ImageDuplicatesRequest request) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.READ);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, ImageDuplicatesRequest request, String[] concreteIndices) {
+        return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+    }
+}
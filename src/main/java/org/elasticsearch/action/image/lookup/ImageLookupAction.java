@@ -0,0 +1,27 @@
+package org.elasticsearch.action.image.lookup;
+
+import org.elasticsearch.action.ClientAction;
+import org.elasticsearch.client.Client;
+
+/**
+ * Load features of an image doc from doc values, so features don't need to be stored to search by an existing image
+ */
+public class ImageLookupAction extends ClientAction<ImageLookupRequest, ImageLookupResponse, ImageLookupRequestBuilder> {
+
+    public static final ImageLookupAction INSTANCE = new ImageLookupAction();
+    public static final String NAME = "indices/image/lookup";
+
+    private ImageLookupAction() {
+        super(NAME);
+    }
+
+    @Override
+    public ImageLookupResponse newResponse() {
+        return new ImageLookupResponse();
+    }
+
+    @Override
+    public ImageLookupRequestBuilder newRequestBuilder(Client client) {
+        return new ImageLookupRequestBuilder(client);
+    }
+}
@@ -0,0 +1,115 @@
+package org.elasticsearch.action.image.lookup;
+
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.single.shard.SingleShardOperationRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+public class ImageLookupRequest extends SingleShardOperationRequest<ImageLookupRequest> {
+
+    private String type;
+
+    private String id;
+
+    private String routing;
+
+    private String preference;
+
+    private String[] fields;
+
+    ImageLookupRequest() {
+    }
+
+    public ImageLookupRequest(String index, String type, String id) {
+        super(index);
+        this.type = type;
+        this.id = id;
+    }
+
+    public String type() {
+        return type;
+    }
+
+    public ImageLookupRequest type(String type) {
+        this.type = type;
+        return this;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public ImageLookupRequest id(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String routing() {
+        return routing;
+    }
+
+    public ImageLookupRequest routing(String routing) {
+        this.routing = routing;
+        return this;
+    }
+
+    public String preference() {
+        return preference;
+    }
+
+    public ImageLookupRequest preference(String preference) {
+        this.preference = preference;
+        return this;
+    }
+
+    /**
+     * Full names of the feature fields to load, e.g. my_img.CEDD
+     */
+    public String[] fields() {
+        return fields;
+    }
+
+    public ImageLookupRequest fields(String... fields) {
+        this.fields = fields;
+        return this;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = super.validate();
+        if (type == null) {
+            validationException = addValidationError("type is missing", validationException);
+        }
+        if (id == null) {
+            validationException = addValidationError("id is missing", validationException);
+        }
+        if (fields == null || fields.length == 0) {
+            validationException = addValidationError("fields are missing", validationException);
+        }
+        return validationException;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        type = in.readString();
+        id = in.readString();
+        routing = in.readOptionalString();
+        preference = in.readOptionalString();
+        fields = in.readStringArray();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(type);
+        out.writeString(id);
+        out.writeOptionalString(routing);
+        out.writeOptionalString(preference);
+        out.writeStringArray(fields);
+    }
+}
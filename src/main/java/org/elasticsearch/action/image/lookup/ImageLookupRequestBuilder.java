@@ -0,0 +1,42 @@
+package org.elasticsearch.action.image.lookup;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.single.shard.SingleShardOperationRequestBuilder;
+import org.elasticsearch.client.Client;
+
+public class ImageLookupRequestBuilder extends SingleShardOperationRequestBuilder<ImageLookupRequest, ImageLookupResponse, ImageLookupRequestBuilder> {
+
+    public ImageLookupRequestBuilder(Client client) {
+        super(client, new ImageLookupRequest());
+    }
+
+    public ImageLookupRequestBuilder setType(String type) {
+        request.type(type);
+        return this;
+    }
+
+    public ImageLookupRequestBuilder setId(String id) {
+        request.id(id);
+        return this;
+    }
+
+    public ImageLookupRequestBuilder setRouting(String routing) {
+        request.routing(routing);
+        return this;
+    }
+
+    public ImageLookupRequestBuilder setPreference(String preference) {
+        request.preference(preference);
+        return this;
+    }
+
+    public ImageLookupRequestBuilder setFields(String... fields) {
+        request.fields(fields);
+        return this;
+    }
+
+    @Override
+    protected void doExecute(ActionListener<ImageLookupResponse> listener) {
+        client.execute(ImageLookupAction.INSTANCE, request, listener);
+    }
+}
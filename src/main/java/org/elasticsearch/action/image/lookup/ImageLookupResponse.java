@@ -0,0 +1,58 @@
+package org.elasticsearch.action.image.lookup;
+
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.util.Map;
+
+public class ImageLookupResponse extends ActionResponse {
+
+    private boolean exists;
+
+    private Map<String, BytesReference> fields;
+
+    ImageLookupResponse() {
+    }
+
+    public ImageLookupResponse(boolean exists, Map<String, BytesReference> fields) {
+        this.exists = exists;
+        this.fields = fields;
+    }
+
+    public boolean isExists() {
+        return exists;
+    }
+
+    /**
+     * Feature bytes of the field, null if the doc has no value for it
+     */
+    public BytesReference getField(String field) {
+        return fields.get(field);
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        exists = in.readBoolean();
+        int size = in.readVInt();
+        fields = Maps.newHashMapWithExpectedSize(size);
+        for (int i = 0; i < size; i++) {
+            fields.put(in.readString(), in.readBytesReference());
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeBoolean(exists);
+        out.writeVInt(fields.size());
+        for (Map.Entry<String, BytesReference> entry : fields.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeBytesReference(entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.elasticsearch.action.image.lookup;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.support.single.shard.TransportShardSingleOperationAction;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.routing.ShardIterator;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.index.mapper.internal.UidFieldMapper;
+import org.elasticsearch.index.shard.service.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Find the doc by uid on the shard it's routed to, read feature bytes from the binary doc values of its segment
+ */
+public class TransportImageLookupAction extends TransportShardSingleOperationAction<ImageLookupRequest, ImageLookupResponse> {
+
+    private final IndicesService indicesService;
+
+    @Inject
+    public TransportImageLookupAction(Settings settings, ThreadPool threadPool, ClusterService clusterService, TransportService transportService,
+                                      IndicesService indicesService) {
+        super(settings, ImageLookupAction.NAME, threadPool, clusterService, transportService);
+        this.indicesService = indicesService;
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.GET;
+    }
+
+    @Override
+    protected ImageLookupRequest newRequest() {
+        return new ImageLookupRequest();
+    }
+
+    @Override
+    protected ImageLookupResponse newResponse() {
+        return new ImageLookupResponse();
+    }
+
+    @Override
+    protected void resolveRequest(ClusterState state, ImageLookupRequest request) {
+        request.routing(state.metaData().resolveIndexRouting(request.routing(), request.index()));
+        request.index(state.metaData().concreteSingleIndex(request.index()));
+    }
+
+    @Override
+    protected ShardIterator shards(ClusterState state, ImageLookupRequest request) throws ElasticsearchException {
+        return clusterService.operationRouting().getShards(state, request.index(), request.type(), request.id(), request.routing(), request.preference());
+    }
+
+    @Override
+    protected ImageLookupResponse shardOperation(ImageLookupRequest request, int shardId) throws ElasticsearchException {
+        IndexShard indexShard = indicesService.indexServiceSafe(request.index()).shardSafe(shardId);
+        Engine.Searcher searcher = indexShard.acquireSearcher("image_lookup");
+        try {
+            Versions.DocIdAndVersion docIdAndVersion = Versions.loadDocIdAndVersion(searcher.reader(),
+                    new Term(UidFieldMapper.NAME, Uid.createUidAsBytes(request.type(), request.id())));
+            Map<String, BytesReference> fields = Maps.newHashMap();
+            if (docIdAndVersion == null) {
+                return new ImageLookupResponse(false, fields);
+            }
+            for (String field : request.fields()) {
+                BinaryDocValues binaryDocValues = docIdAndVersion.context.reader().getBinaryDocValues(field);
+                if (binaryDocValues == null) {
+                    continue;
+                }
+                BytesRef bytesRef = binaryDocValues.get(docIdAndVersion.docId);
+                if (bytesRef.length > 0) {
+                    fields.put(field, new BytesArray(BytesRef.deepCopyOf(bytesRef)));
+                }
+            }
+            return new ImageLookupResponse(true, fields);
+        } catch (IOException e) {
+            throw new ElasticsearchException("Failed to load features of [" + request.type() + "][" + request.id() + "]", e);
+        } finally {
+            searcher.close();
+        }
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, ImageLookupRequest request) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.READ);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, ImageLookupRequest request) {
+        return state.blocks().indexBlockedException(ClusterBlockLevel.READ, request.index());
+    }
+}
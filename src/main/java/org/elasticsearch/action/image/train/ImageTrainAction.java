@@ -0,0 +1,27 @@
+package org.elasticsearch.action.image.train;
+
+import org.elasticsearch.action.ClientAction;
+import org.elasticsearch.client.Client;
+
+/**
+ * Train centroids for the ivf index mode from features sampled across all shards of an index
+ */
+public class ImageTrainAction extends ClientAction<ImageTrainRequest, ImageTrainResponse, ImageTrainRequestBuilder> {
+
+    public static final ImageTrainAction INSTANCE = new ImageTrainAction();
+    public static final String NAME = "indices/image/train";
+
+    private ImageTrainAction() {
+        super(NAME);
+    }
+
+    @Override
+    public ImageTrainResponse newResponse() {
+        return new ImageTrainResponse();
+    }
+
+    @Override
+    public ImageTrainRequestBuilder newRequestBuilder(Client client) {
+        return new ImageTrainRequestBuilder(client);
+    }
+}
@@ -0,0 +1,160 @@
+package org.elasticsearch.action.image.train;
+
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.mapper.image.ProductQuantizer;
+
+import java.io.IOException;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+public class ImageTrainRequest extends BroadcastOperationRequest<ImageTrainRequest> {
+
+    public static final int DEFAULT_CLUSTERS = 64;
+    public static final int DEFAULT_SAMPLE_SIZE = 5000;
+    public static final int DEFAULT_MAX_ITERATIONS = 25;
+    public static final int DEFAULT_SUBSPACES = 16;
+
+    private String method = ImageMapper.IVF;
+
+    private String field;
+
+    private String feature;
+
+    private int clusters = DEFAULT_CLUSTERS;
+
+    private int sampleSize = DEFAULT_SAMPLE_SIZE;
+
+    private int maxIterations = DEFAULT_MAX_ITERATIONS;
+
+    private int subspaces = DEFAULT_SUBSPACES;
+
+    ImageTrainRequest() {
+    }
+
+    public ImageTrainRequest(String... indices) {
+        super(indices);
+    }
+
+    /**
+     * What to train, {@code ivf} centroids or {@code pq} codebooks
+     */
+    public String method() {
+        return method;
+    }
+
+    public ImageTrainRequest method(String method) {
+        this.method = method;
+        return this;
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public ImageTrainRequest field(String field) {
+        this.field = field;
+        return this;
+    }
+
+    public String feature() {
+        return feature;
+    }
+
+    public ImageTrainRequest feature(String feature) {
+        this.feature = feature;
+        return this;
+    }
+
+    public int clusters() {
+        return clusters;
+    }
+
+    public ImageTrainRequest clusters(int clusters) {
+        this.clusters = clusters;
+        return this;
+    }
+
+    public int sampleSize() {
+        return sampleSize;
+    }
+
+    public ImageTrainRequest sampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+        return this;
+    }
+
+    public int maxIterations() {
+        return maxIterations;
+    }
+
+    public ImageTrainRequest maxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+        return this;
+    }
+
+    public int subspaces() {
+        return subspaces;
+    }
+
+    public ImageTrainRequest subspaces(int subspaces) {
+        this.subspaces = subspaces;
+        return this;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = super.validate();
+        if (!ImageMapper.IVF.equals(method) && !ImageMapper.PQ.equals(method)) {
+            validationException = addValidationError("method must be [ivf] or [pq]", validationException);
+        }
+        if (ImageMapper.PQ.equals(method)) {
+            if (clusters > ProductQuantizer.MAX_CLUSTERS) {
+                validationException = addValidationError("clusters must not be greater than " + ProductQuantizer.MAX_CLUSTERS + " for pq", validationException);
+            }
+            if (subspaces <= 0) {
+                validationException = addValidationError("subspaces must be positive", validationException);
+            }
+        }
+        if (field == null) {
+            validationException = addValidationError("field is missing", validationException);
+        }
+        if (feature == null) {
+            validationException = addValidationError("feature is missing", validationException);
+        }
+        if (clusters <= 0) {
+            validationException = addValidationError("clusters must be positive", validationException);
+        }
+        if (sampleSize < clusters) {
+            validationException = addValidationError("sample_size must not be less than clusters", validationException);
+        }
+        return validationException;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        method = in.readString();
+        field = in.readString();
+        feature = in.readString();
+        clusters = in.readVInt();
+        sampleSize = in.readVInt();
+        maxIterations = in.readVInt();
+        subspaces = in.readVInt();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(method);
+        out.writeString(field);
+        out.writeString(feature);
+        out.writeVInt(clusters);
+        out.writeVInt(sampleSize);
+        out.writeVInt(maxIterations);
+        out.writeVInt(subspaces);
+    }
+}
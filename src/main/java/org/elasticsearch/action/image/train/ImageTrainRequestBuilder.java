@@ -0,0 +1,52 @@
+package org.elasticsearch.action.image.train;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequestBuilder;
+import org.elasticsearch.client.Client;
+
+public class ImageTrainRequestBuilder extends BroadcastOperationRequestBuilder<ImageTrainRequest, ImageTrainResponse, ImageTrainRequestBuilder, Client> {
+
+    public ImageTrainRequestBuilder(Client client) {
+        super(client, new ImageTrainRequest());
+    }
+
+    public ImageTrainRequestBuilder setMethod(String method) {
+        request.method(method);
+        return this;
+    }
+
+    public ImageTrainRequestBuilder setField(String field) {
+        request.field(field);
+        return this;
+    }
+
+    public ImageTrainRequestBuilder setFeature(String feature) {
+        request.feature(feature);
+        return this;
+    }
+
+    public ImageTrainRequestBuilder setClusters(int clusters) {
+        request.clusters(clusters);
+        return this;
+    }
+
+    public ImageTrainRequestBuilder setSampleSize(int sampleSize) {
+        request.sampleSize(sampleSize);
+        return this;
+    }
+
+    public ImageTrainRequestBuilder setMaxIterations(int maxIterations) {
+        request.maxIterations(maxIterations);
+        return this;
+    }
+
+    public ImageTrainRequestBuilder setSubspaces(int subspaces) {
+        request.subspaces(subspaces);
+        return this;
+    }
+
+    @Override
+    protected void doExecute(ActionListener<ImageTrainResponse> listener) {
+        client.execute(ImageTrainAction.INSTANCE, request, listener);
+    }
+}
@@ -0,0 +1,136 @@
+package org.elasticsearch.action.image.train;
+
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.elasticsearch.rest.action.support.RestActions.buildBroadcastShardsHeader;
+
+public class ImageTrainResponse extends BroadcastOperationResponse implements ToXContent {
+
+    private int sampleCount;
+
+    private double[][] centroids;
+
+    private double[][][] codebooks;
+
+    ImageTrainResponse() {
+    }
+
+    ImageTrainResponse(int totalShards, int successfulShards, int failedShards, List<ShardOperationFailedException> shardFailures,
+                       int sampleCount, double[][] centroids, double[][][] codebooks) {
+        super(totalShards, successfulShards, failedShards, shardFailures);
+        this.sampleCount = sampleCount;
+        this.centroids = centroids;
+        this.codebooks = codebooks;
+    }
+
+    /**
+     * Number of features the centroids are trained from
+     */
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Trained ivf centroids, null if pq is trained
+     */
+    public double[][] getCentroids() {
+        return centroids;
+    }
+
+    /**
+     * Trained pq codebooks, null if ivf is trained
+     */
+    public double[][][] getCodebooks() {
+        return codebooks;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        buildBroadcastShardsHeader(builder, this);
+        builder.field("sample_count", sampleCount);
+        if (centroids != null) {
+            builder.startObject(ImageMapper.IVF);
+            builder.field(ImageMapper.CENTROIDS);
+            writeVectors(builder, centroids);
+            builder.endObject();
+        }
+        if (codebooks != null) {
+            builder.startObject(ImageMapper.PQ);
+            builder.startArray(ImageMapper.CODEBOOKS);
+            for (double[][] codebook : codebooks) {
+                writeVectors(builder, codebook);
+            }
+            builder.endArray();
+            builder.endObject();
+        }
+        return builder;
+    }
+
+    private static void writeVectors(XContentBuilder builder, double[][] vectors) throws IOException {
+        builder.startArray();
+        for (double[] vector : vectors) {
+            builder.startArray();
+            for (double value : vector) {
+                builder.value(value);
+            }
+            builder.endArray();
+        }
+        builder.endArray();
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        sampleCount = in.readVInt();
+        if (in.readBoolean()) {
+            centroids = readVectors(in);
+        }
+        if (in.readBoolean()) {
+            codebooks = new double[in.readVInt()][][];
+            for (int m = 0; m < codebooks.length; m++) {
+                codebooks[m] = readVectors(in);
+            }
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(sampleCount);
+        out.writeBoolean(centroids != null);
+        if (centroids != null) {
+            writeVectors(out, centroids);
+        }
+        out.writeBoolean(codebooks != null);
+        if (codebooks != null) {
+            out.writeVInt(codebooks.length);
+            for (double[][] codebook : codebooks) {
+                writeVectors(out, codebook);
+            }
+        }
+    }
+
+    private static double[][] readVectors(StreamInput in) throws IOException {
+        double[][] vectors = new double[in.readVInt()][];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = in.readDoubleArray();
+        }
+        return vectors;
+    }
+
+    private static void writeVectors(StreamOutput out, double[][] vectors) throws IOException {
+        out.writeVInt(vectors.length);
+        for (double[] vector : vectors) {
+            out.writeDoubleArray(vector);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.elasticsearch.action.image.train;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+class ShardImageTrainRequest extends BroadcastShardOperationRequest {
+
+    private String field;
+
+    private String feature;
+
+    private int sampleSize;
+
+    ShardImageTrainRequest() {
+    }
+
+    ShardImageTrainRequest(String index, int shardId, int sampleSize, ImageTrainRequest request) {
+        super(index, shardId, request);
+        this.field = request.field();
+        this.feature = request.feature();
+        this.sampleSize = sampleSize;
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public String feature() {
+        return feature;
+    }
+
+    public int sampleSize() {
+        return sampleSize;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        feature = in.readString();
+        sampleSize = in.readVInt();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeString(feature);
+        out.writeVInt(sampleSize);
+    }
+}
@@ -0,0 +1,45 @@
+package org.elasticsearch.action.image.train;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationResponse;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.util.List;
+
+class ShardImageTrainResponse extends BroadcastShardOperationResponse {
+
+    private List<double[]> samples;
+
+    ShardImageTrainResponse() {
+    }
+
+    ShardImageTrainResponse(String index, int shardId, List<double[]> samples) {
+        super(index, shardId);
+        this.samples = samples;
+    }
+
+    public List<double[]> samples() {
+        return samples;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        int size = in.readVInt();
+        samples = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            samples.add(in.readDoubleArray());
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(samples.size());
+        for (double[] sample : samples) {
+            out.writeDoubleArray(sample);
+        }
+    }
+}
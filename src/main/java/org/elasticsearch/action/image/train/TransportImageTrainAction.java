@@ -0,0 +1,175 @@
+package org.elasticsearch.action.image.train;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastOperationAction;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.mapper.image.KMeans;
+import org.elasticsearch.index.mapper.image.ProductQuantizer;
+import org.elasticsearch.index.shard.service.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sample features from doc values on each shard, then run k-means over all samples (per subspace for pq)
+ */
+public class TransportImageTrainAction extends TransportBroadcastOperationAction<ImageTrainRequest, ImageTrainResponse, ShardImageTrainRequest, ShardImageTrainResponse> {
+
+    private final IndicesService indicesService;
+
+    @Inject
+    public TransportImageTrainAction(Settings settings, ThreadPool threadPool, ClusterService clusterService, TransportService transportService,
+                                     IndicesService indicesService) {
+        super(settings, ImageTrainAction.NAME, threadPool, clusterService, transportService);
+        this.indicesService = indicesService;
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.SEARCH;
+    }
+
+    @Override
+    protected ImageTrainRequest newRequest() {
+        return new ImageTrainRequest();
+    }
+
+    @Override
+    protected ImageTrainResponse newResponse(ImageTrainRequest request, AtomicReferenceArray shardsResponses, ClusterState clusterState) {
+        int successfulShards = 0;
+        int failedShards = 0;
+        List<ShardOperationFailedException> shardFailures = null;
+        List<double[]> samples = Lists.newArrayList();
+        for (int i = 0; i < shardsResponses.length(); i++) {
+            Object shardResponse = shardsResponses.get(i);
+            if (shardResponse == null) {
+                // a non active shard, ignore...
+            } else if (shardResponse instanceof BroadcastShardOperationFailedException) {
+                failedShards++;
+                if (shardFailures == null) {
+                    shardFailures = Lists.newArrayList();
+                }
+                shardFailures.add(new DefaultShardOperationFailedException((BroadcastShardOperationFailedException) shardResponse));
+            } else {
+                samples.addAll(((ShardImageTrainResponse) shardResponse).samples());
+                successfulShards++;
+            }
+        }
+        if (samples.isEmpty()) {
+            throw new ElasticsearchImageProcessException("No feature [" + request.feature() + "] found in [" + request.field() + "] to train from");
+        }
+
+        double[][] centroids = null;
+        double[][][] codebooks = null;
+        if (ImageMapper.PQ.equals(request.method())) {
+            codebooks = ProductQuantizer.train(samples, request.subspaces(), request.clusters(), request.maxIterations(), new Random());
+        } else {
+            centroids = KMeans.cluster(samples, request.clusters(), request.maxIterations(), new Random());
+        }
+        return new ImageTrainResponse(shardsResponses.length(), successfulShards, failedShards, shardFailures, samples.size(), centroids, codebooks);
+    }
+
+    @Override
+    protected ShardImageTrainRequest newShardRequest() {
+        return new ShardImageTrainRequest();
+    }
+
+    @Override
+    protected ShardImageTrainRequest newShardRequest(int numShards, ShardRouting shard, ImageTrainRequest request) {
+        int sampleSize = (request.sampleSize() + numShards - 1) / numShards;
+        return new ShardImageTrainRequest(shard.index(), shard.id(), sampleSize, request);
+    }
+
+    @Override
+    protected ShardImageTrainResponse newShardResponse() {
+        return new ShardImageTrainResponse();
+    }
+
+    @Override
+    protected ShardImageTrainResponse shardOperation(ShardImageTrainRequest request) throws ElasticsearchException {
+        IndexShard indexShard = indicesService.indexServiceSafe(request.index()).shardSafe(request.shardId());
+        FeatureEnum featureEnum = FeatureEnum.getByName(request.feature());
+        String luceneFieldName = request.field() + "." + featureEnum.name();
+
+        // reservoir sampling over all live docs having the feature
+        List<double[]> samples = Lists.newArrayList();
+        Random random = new Random();
+        int seen = 0;
+        Engine.Searcher searcher = indexShard.acquireSearcher("image_train");
+        try {
+            for (AtomicReaderContext context : searcher.reader().leaves()) {
+                AtomicReader reader = context.reader();
+                BinaryDocValues binaryDocValues = reader.getBinaryDocValues(luceneFieldName);
+                if (binaryDocValues == null) {
+                    continue;
+                }
+                Bits liveDocs = reader.getLiveDocs();
+                for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                    if (liveDocs != null && !liveDocs.get(doc)) {
+                        continue;
+                    }
+                    BytesRef bytesRef = binaryDocValues.get(doc);
+                    if (bytesRef.length == 0) {
+                        continue;
+                    }
+                    seen++;
+                    int slot = seen <= request.sampleSize() ? seen - 1 : random.nextInt(seen);
+                    if (slot < request.sampleSize()) {
+                        LireFeature docFeature = featureEnum.newFeature();
+                        docFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                        if (slot == samples.size()) {
+                            samples.add(docFeature.getDoubleHistogram());
+                        } else {
+                            samples.set(slot, docFeature.getDoubleHistogram());
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            throw new BroadcastShardOperationFailedException(indexShard.shardId(), "Failed to sample features", e);
+        } finally {
+            searcher.close();
+        }
+        return new ShardImageTrainResponse(request.index(), request.shardId(), samples);
+    }
+
+    @Override
+    protected GroupShardsIterator shards(ClusterState clusterState, ImageTrainRequest request, String[] concreteIndices) {
+        return clusterService.operationRouting().searchShards(clusterState, request.indices(), concreteIndices, null, null);
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, ImageTrainRequest request) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.READ);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, ImageTrainRequest request, String[] concreteIndices) {
+        return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+    }
+}
@@ -0,0 +1,51 @@
+package org.elasticsearch.index.codec.docvaluesformat;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+
+/**
+ * Binary doc values where every value has the same width, values are stored contiguously by doc id
+ */
+public class FixedWidthBinaryDocValues extends BinaryDocValues {
+
+    private final IndexInput data;
+    private final long offset;
+    private final int width;
+    private final Bits docsWithField;
+    private final BytesRef term;
+
+    FixedWidthBinaryDocValues(IndexInput data, long offset, int width, Bits docsWithField) {
+        this.data = data;
+        this.offset = offset;
+        this.width = width;
+        this.docsWithField = docsWithField;
+        this.term = new BytesRef(width);
+    }
+
+    /**
+     * Length in bytes of every value
+     */
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public BytesRef get(int docID) {
+        if (docsWithField != null && !docsWithField.get(docID)) {
+            term.length = 0;
+            return term;
+        }
+        try {
+            data.seek(offset + (long) docID * width);
+            data.readBytes(term.bytes, 0, width);
+            term.length = width;
+            return term;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
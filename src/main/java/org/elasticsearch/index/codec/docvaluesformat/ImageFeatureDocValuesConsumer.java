@@ -0,0 +1,151 @@
+package org.elasticsearch.index.codec.docvaluesformat;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.DocValuesConsumer;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.packed.MonotonicBlockPackedWriter;
+import org.apache.lucene.util.packed.PackedInts;
+
+import java.io.IOException;
+
+/**
+ * Writer for {@link ImageFeatureDocValuesFormat}
+ */
+class ImageFeatureDocValuesConsumer extends DocValuesConsumer {
+
+    private final int maxDoc;
+    private IndexOutput data, meta;
+
+    ImageFeatureDocValuesConsumer(SegmentWriteState state) throws IOException {
+        maxDoc = state.segmentInfo.getDocCount();
+        boolean success = false;
+        try {
+            String dataName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix, ImageFeatureDocValuesFormat.DATA_EXTENSION);
+            data = state.directory.createOutput(dataName, state.context);
+            CodecUtil.writeHeader(data, ImageFeatureDocValuesFormat.DATA_CODEC, ImageFeatureDocValuesFormat.VERSION_CURRENT);
+            String metaName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix, ImageFeatureDocValuesFormat.META_EXTENSION);
+            meta = state.directory.createOutput(metaName, state.context);
+            CodecUtil.writeHeader(meta, ImageFeatureDocValuesFormat.META_CODEC, ImageFeatureDocValuesFormat.VERSION_CURRENT);
+            success = true;
+        } finally {
+            if (!success) {
+                IOUtils.closeWhileHandlingException(this);
+            }
+        }
+    }
+
+    @Override
+    public void addBinaryField(FieldInfo field, Iterable<BytesRef> values) throws IOException {
+        int minLength = Integer.MAX_VALUE;
+        int maxLength = Integer.MIN_VALUE;
+        int count = 0;
+        FixedBitSet docsWithField = new FixedBitSet(maxDoc);
+        for (BytesRef value : values) {
+            if (value != null) {
+                docsWithField.set(count);
+                minLength = Math.min(minLength, value.length);
+                maxLength = Math.max(maxLength, value.length);
+            }
+            count++;
+        }
+        boolean missing = docsWithField.cardinality() != count;
+        if (minLength > maxLength) {  // no value at all
+            minLength = maxLength = 0;
+        }
+        int width = minLength == maxLength ? minLength : -1;
+
+        meta.writeInt(field.number);
+        meta.writeVInt(count);
+        if (missing) {
+            long[] bits = docsWithField.getBits();
+            meta.writeVInt(bits.length);
+            for (long word : bits) {
+                meta.writeLong(word);
+            }
+        } else {
+            meta.writeVInt(0);
+        }
+        meta.writeInt(width);
+        meta.writeLong(data.getFilePointer());
+
+        if (width >= 0) {
+            // fixed width, missing docs are filled with zeros so address of doc is always doc * width
+            byte[] zeros = new byte[width];
+            for (BytesRef value : values) {
+                if (value == null) {
+                    data.writeBytes(zeros, 0, width);
+                } else {
+                    data.writeBytes(value.bytes, value.offset, value.length);
+                }
+            }
+        } else {
+            for (BytesRef value : values) {
+                if (value != null) {
+                    data.writeBytes(value.bytes, value.offset, value.length);
+                }
+            }
+            // count + 1 addresses relative to the start of values
+            meta.writeLong(data.getFilePointer());
+            meta.writeVInt(PackedInts.VERSION_CURRENT);
+            meta.writeVInt(ImageFeatureDocValuesFormat.BLOCK_SIZE);
+            MonotonicBlockPackedWriter writer = new MonotonicBlockPackedWriter(data, ImageFeatureDocValuesFormat.BLOCK_SIZE);
+            long address = 0;
+            writer.add(address);
+            for (BytesRef value : values) {
+                if (value != null) {
+                    address += value.length;
+                }
+                writer.add(address);
+            }
+            writer.finish();
+        }
+    }
+
+    @Override
+    public void addNumericField(FieldInfo field, Iterable<Number> values) throws IOException {
+        throw new UnsupportedOperationException("Only binary doc values are supported by " + ImageFeatureDocValuesFormat.NAME);
+    }
+
+    @Override
+    public void addSortedField(FieldInfo field, Iterable<BytesRef> values, Iterable<Number> docToOrd) throws IOException {
+        throw new UnsupportedOperationException("Only binary doc values are supported by " + ImageFeatureDocValuesFormat.NAME);
+    }
+
+    @Override
+    public void addSortedNumericField(FieldInfo field, Iterable<Number> docToValueCount, Iterable<Number> values) throws IOException {
+        throw new UnsupportedOperationException("Only binary doc values are supported by " + ImageFeatureDocValuesFormat.NAME);
+    }
+
+    @Override
+    public void addSortedSetField(FieldInfo field, Iterable<BytesRef> values, Iterable<Number> docToOrdCount, Iterable<Number> ords) throws IOException {
+        throw new UnsupportedOperationException("Only binary doc values are supported by " + ImageFeatureDocValuesFormat.NAME);
+    }
+
+    @Override
+    public void close() throws IOException {
+        boolean success = false;
+        try {
+            if (meta != null) {
+                meta.writeInt(-1);  // EOF marker
+                CodecUtil.writeFooter(meta);
+            }
+            if (data != null) {
+                CodecUtil.writeFooter(data);
+            }
+            success = true;
+        } finally {
+            if (success) {
+                IOUtils.close(data, meta);
+            } else {
+                IOUtils.closeWhileHandlingException(data, meta);
+            }
+            meta = data = null;
+        }
+    }
+}
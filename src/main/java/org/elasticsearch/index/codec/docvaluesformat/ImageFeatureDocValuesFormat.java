@@ -0,0 +1,42 @@
+package org.elasticsearch.index.codec.docvaluesformat;
+
+import org.apache.lucene.codecs.DocValuesConsumer;
+import org.apache.lucene.codecs.DocValuesFormat;
+import org.apache.lucene.codecs.DocValuesProducer;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+
+import java.io.IOException;
+
+/**
+ * Binary doc values format for image features.
+ * When all features of a field in a segment have the same length (which is the case for most LIRE features),
+ * values are stored contiguously without per document addresses, address of a doc is {@code doc * width}.
+ * Otherwise values are followed by monotonic packed addresses. Only binary doc values are supported.
+ */
+public class ImageFeatureDocValuesFormat extends DocValuesFormat {
+
+    public static final String NAME = "ImageFeature";
+
+    static final String DATA_CODEC = "ImageFeatureDocValuesData";
+    static final String DATA_EXTENSION = "ifd";
+    static final String META_CODEC = "ImageFeatureDocValuesMetadata";
+    static final String META_EXTENSION = "ifm";
+    static final int VERSION_START = 0;
+    static final int VERSION_CURRENT = VERSION_START;
+    static final int BLOCK_SIZE = 16384;
+
+    public ImageFeatureDocValuesFormat() {
+        super(NAME);
+    }
+
+    @Override
+    public DocValuesConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+        return new ImageFeatureDocValuesConsumer(state);
+    }
+
+    @Override
+    public DocValuesProducer fieldsProducer(SegmentReadState state) throws IOException {
+        return new ImageFeatureDocValuesProducer(state);
+    }
+}
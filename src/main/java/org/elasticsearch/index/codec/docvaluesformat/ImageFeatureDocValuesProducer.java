@@ -0,0 +1,190 @@
+package org.elasticsearch.index.codec.docvaluesformat;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.DocValuesProducer;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.packed.MonotonicBlockPackedReader;
+import org.elasticsearch.common.collect.Maps;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reader for {@link ImageFeatureDocValuesFormat}
+ */
+class ImageFeatureDocValuesProducer extends DocValuesProducer {
+
+    private final Map<Integer, BinaryEntry> binaries = Maps.newHashMap();
+    private final Map<Integer, MonotonicBlockPackedReader> addressInstances = Maps.newHashMap();
+    private final IndexInput data;
+    private final int maxDoc;
+    private final AtomicLong ramBytesUsed;
+
+    ImageFeatureDocValuesProducer(SegmentReadState state) throws IOException {
+        maxDoc = state.segmentInfo.getDocCount();
+        String metaName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix, ImageFeatureDocValuesFormat.META_EXTENSION);
+        ChecksumIndexInput in = state.directory.openChecksumInput(metaName, state.context);
+        long ramBytesUsed = 0;
+        boolean success = false;
+        try {
+            CodecUtil.checkHeader(in, ImageFeatureDocValuesFormat.META_CODEC, ImageFeatureDocValuesFormat.VERSION_START, ImageFeatureDocValuesFormat.VERSION_CURRENT);
+            int fieldNumber = in.readInt();
+            while (fieldNumber != -1) {
+                BinaryEntry entry = readEntry(in);
+                if (entry.docsWithField != null) {
+                    ramBytesUsed += RamUsageEstimator.sizeOf(entry.docsWithField.getBits());
+                }
+                binaries.put(fieldNumber, entry);
+                fieldNumber = in.readInt();
+            }
+            CodecUtil.checkFooter(in);
+            success = true;
+        } finally {
+            if (success) {
+                IOUtils.close(in);
+            } else {
+                IOUtils.closeWhileHandlingException(in);
+            }
+        }
+        this.ramBytesUsed = new AtomicLong(ramBytesUsed);
+
+        String dataName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix, ImageFeatureDocValuesFormat.DATA_EXTENSION);
+        data = state.directory.openInput(dataName, state.context);
+        success = false;
+        try {
+            CodecUtil.checkHeader(data, ImageFeatureDocValuesFormat.DATA_CODEC, ImageFeatureDocValuesFormat.VERSION_START, ImageFeatureDocValuesFormat.VERSION_CURRENT);
+            CodecUtil.retrieveChecksum(data);
+            success = true;
+        } finally {
+            if (!success) {
+                IOUtils.closeWhileHandlingException(data);
+            }
+        }
+    }
+
+    private BinaryEntry readEntry(IndexInput in) throws IOException {
+        BinaryEntry entry = new BinaryEntry();
+        int count = in.readVInt();
+        entry.count = count;
+        int words = in.readVInt();
+        if (words > 0) {
+            long[] bits = new long[words];
+            for (int i = 0; i < words; i++) {
+                bits[i] = in.readLong();
+            }
+            entry.docsWithField = new FixedBitSet(bits, count);
+        }
+        entry.width = in.readInt();
+        entry.offset = in.readLong();
+        if (entry.width < 0) {
+            entry.addressesOffset = in.readLong();
+            entry.packedIntsVersion = in.readVInt();
+            entry.blockSize = in.readVInt();
+        }
+        return entry;
+    }
+
+    @Override
+    public BinaryDocValues getBinary(FieldInfo field) throws IOException {
+        final BinaryEntry entry = binaries.get(field.number);
+        final IndexInput input = data.clone();
+        if (entry.width >= 0) {
+            return new FixedWidthBinaryDocValues(input, entry.offset, entry.width, entry.docsWithField);
+        }
+
+        final MonotonicBlockPackedReader addresses = addresses(field, entry);
+        return new BinaryDocValues() {
+            final BytesRef term = new BytesRef();
+
+            @Override
+            public BytesRef get(int docID) {
+                try {
+                    long start = addresses.get(docID);
+                    int length = (int) (addresses.get(docID + 1) - start);
+                    term.bytes = ArrayUtil.grow(term.bytes, length);
+                    input.seek(entry.offset + start);
+                    input.readBytes(term.bytes, 0, length);
+                    term.length = length;
+                    return term;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    private synchronized MonotonicBlockPackedReader addresses(FieldInfo field, BinaryEntry entry) throws IOException {
+        MonotonicBlockPackedReader addresses = addressInstances.get(field.number);
+        if (addresses == null) {
+            IndexInput input = data.clone();
+            input.seek(entry.addressesOffset);
+            addresses = MonotonicBlockPackedReader.of(input, entry.packedIntsVersion, entry.blockSize, entry.count + 1, false);
+            addressInstances.put(field.number, addresses);
+            ramBytesUsed.addAndGet(addresses.ramBytesUsed());
+        }
+        return addresses;
+    }
+
+    @Override
+    public Bits getDocsWithField(FieldInfo field) throws IOException {
+        BinaryEntry entry = binaries.get(field.number);
+        if (entry.docsWithField == null) {
+            return new Bits.MatchAllBits(maxDoc);
+        }
+        return entry.docsWithField;
+    }
+
+    @Override
+    public NumericDocValues getNumeric(FieldInfo field) throws IOException {
+        throw new UnsupportedOperationException("Only binary doc values are supported by " + ImageFeatureDocValuesFormat.NAME);
+    }
+
+    @Override
+    public SortedDocValues getSorted(FieldInfo field) throws IOException {
+        throw new UnsupportedOperationException("Only binary doc values are supported by " + ImageFeatureDocValuesFormat.NAME);
+    }
+
+    @Override
+    public SortedNumericDocValues getSortedNumeric(FieldInfo field) throws IOException {
+        throw new UnsupportedOperationException("Only binary doc values are supported by " + ImageFeatureDocValuesFormat.NAME);
+    }
+
+    @Override
+    public SortedSetDocValues getSortedSet(FieldInfo field) throws IOException {
+        throw new UnsupportedOperationException("Only binary doc values are supported by " + ImageFeatureDocValuesFormat.NAME);
+    }
+
+    @Override
+    public void checkIntegrity() throws IOException {
+        CodecUtil.checksumEntireFile(data);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return ramBytesUsed.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+    }
+
+    static class BinaryEntry {
+        FixedBitSet docsWithField;
+        int count;
+        int width;
+        long offset;
+        long addressesOffset;
+        int packedIntsVersion;
+        int blockSize;
+    }
+}
@@ -0,0 +1,38 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+/**
+ * Starts the fork join pool counting rows of {@link ParallelAutoColorCorrelogram} with the node and shuts it down with the node.
+ * Its size is bounded by the processors of the node, 1 counts every image on the thread extracting it
+ */
+public class AutoCorrelogramPool extends AbstractLifecycleComponent<AutoCorrelogramPool> {
+
+    public static final String THREADS_SETTING = "image.auto_color_correlogram.threads";
+
+    private final int threads;
+
+    @Inject
+    public AutoCorrelogramPool(Settings settings) {
+        super(settings);
+        this.threads = settings.getAsInt(THREADS_SETTING, EsExecutors.boundedNumberOfProcessors(settings));
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+        ParallelAutoCorrelogramExtraction.acquirePool(threads);
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        ParallelAutoCorrelogramExtraction.releasePool();
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+    }
+}
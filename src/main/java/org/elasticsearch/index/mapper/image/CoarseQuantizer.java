@@ -0,0 +1,95 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Assign features to the nearest of K coarse centroids, used by the ivf (inverted file) index mode
+ */
+public class CoarseQuantizer {
+
+    private final double[][] centroids;
+
+    public CoarseQuantizer(double[][] centroids) {
+        if (centroids == null || centroids.length == 0) {
+            throw new ElasticsearchIllegalArgumentException("No centroids found");
+        }
+        this.centroids = centroids;
+    }
+
+    /**
+     * Build from the centroids in mapping, a list of centroids where each centroid is a list of numbers
+     */
+    @SuppressWarnings({"unchecked"})
+    public static CoarseQuantizer parse(Object centroidsNode) {
+        if (!(centroidsNode instanceof List)) {
+            throw new ElasticsearchIllegalArgumentException("Malformed centroids value");
+        }
+        List<Object> centroidList = (List<Object>) centroidsNode;
+        double[][] centroids = new double[centroidList.size()][];
+        for (int i = 0; i < centroids.length; i++) {
+            centroids[i] = parseVector(centroidList.get(i));
+        }
+        return new CoarseQuantizer(centroids);
+    }
+
+    @SuppressWarnings({"unchecked"})
+    static double[] parseVector(Object vectorNode) {
+        if (!(vectorNode instanceof List)) {
+            throw new ElasticsearchIllegalArgumentException("Malformed centroid value");
+        }
+        List<Object> values = (List<Object>) vectorNode;
+        double[] vector = new double[values.size()];
+        for (int i = 0; i < vector.length; i++) {
+            Object value = values.get(i);
+            if (!(value instanceof Number)) {
+                throw new ElasticsearchIllegalArgumentException("Malformed centroid value");
+            }
+            vector[i] = ((Number) value).doubleValue();
+        }
+        return vector;
+    }
+
+    public int size() {
+        return centroids.length;
+    }
+
+    public double[][] centroids() {
+        return centroids;
+    }
+
+    /**
+     * Id of the centroid nearest to vector
+     */
+    public int nearest(double[] vector) {
+        return KMeans.nearest(centroids, vector);
+    }
+
+    /**
+     * Ids of the n centroids nearest to vector, nearest first
+     */
+    public int[] nearest(final double[] vector, int n) {
+        n = Math.min(n, centroids.length);
+        Integer[] ids = new Integer[centroids.length];
+        final double[] distances = new double[centroids.length];
+        for (int c = 0; c < centroids.length; c++) {
+            ids[c] = c;
+            distances[c] = KMeans.squaredDistance(centroids[c], vector);
+        }
+        Arrays.sort(ids, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(distances[o1], distances[o2]);
+            }
+        });
+
+        int[] nearest = new int[n];
+        for (int i = 0; i < n; i++) {
+            nearest[i] = ids[i];
+        }
+        return nearest;
+    }
+}
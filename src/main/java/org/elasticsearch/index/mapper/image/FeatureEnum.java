@@ -3,6 +3,9 @@ package org.elasticsearch.index.mapper.image;
 
 import net.semanticmetadata.lire.imageanalysis.*;
 import net.semanticmetadata.lire.imageanalysis.joint.JointHistogram;
+import org.elasticsearch.common.metrics.CounterMetric;
+
+import java.awt.image.BufferedImage;
 
 /**
  * Features supported by LIRE
@@ -10,28 +13,125 @@ import net.semanticmetadata.lire.imageanalysis.joint.JointHistogram;
  */
 public enum FeatureEnum {
 
-    AUTO_COLOR_CORRELOGRAM(AutoColorCorrelogram.class),
-    BINARY_PATTERNS_PYRAMID(BinaryPatternsPyramid.class),
-    CEDD(CEDD.class),
-    SIMPLE_COLOR_HISTOGRAM(SimpleColorHistogram.class),
-    COLOR_LAYOUT(ColorLayout.class),
-    EDGE_HISTOGRAM(EdgeHistogram.class),
-    FCTH(FCTH.class),
-    GABOR(Gabor.class),
-    JCD(JCD.class),
-    JOINT_HISTOGRAM(JointHistogram.class),
-    JPEG_COEFFICIENT_HISTOGRAM(JpegCoefficientHistogram.class),
-    LOCAL_BINARY_PATTERNS(LocalBinaryPatterns.class),
-    LUMINANCE_LAYOUT(LuminanceLayout.class),
-    OPPONENT_HISTOGRAM(OpponentHistogram.class),
-    PHOG(PHOG.class),
-    ROTATION_INVARIANT_LOCAL_BINARY_PATTERNS(RotationInvariantLocalBinaryPatterns.class),
-    SCALABLE_COLOR(ScalableColor.class),
-    TAMURA(Tamura.class),
+    AUTO_COLOR_CORRELOGRAM(ParallelAutoColorCorrelogram.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new ParallelAutoColorCorrelogram();
+        }
+    },
+    BINARY_PATTERNS_PYRAMID(BinaryPatternsPyramid.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new BinaryPatternsPyramid();
+        }
+    },
+    CEDD(CEDD.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new CEDD();
+        }
+    },
+    SIMPLE_COLOR_HISTOGRAM(SimpleColorHistogram.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new SimpleColorHistogram();
+        }
+    },
+    COLOR_LAYOUT(ColorLayout.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new ColorLayout();
+        }
+    },
+    EDGE_HISTOGRAM(EdgeHistogram.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new EdgeHistogram();
+        }
+    },
+    FCTH(FCTH.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new FCTH();
+        }
+    },
+    GABOR(Gabor.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new Gabor();
+        }
+    },
+    JCD(JCD.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new JCD();
+        }
+    },
+    JOINT_HISTOGRAM(JointHistogram.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new JointHistogram();
+        }
+    },
+    JPEG_COEFFICIENT_HISTOGRAM(JpegCoefficientHistogram.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new JpegCoefficientHistogram();
+        }
+    },
+    LOCAL_BINARY_PATTERNS(LocalBinaryPatterns.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new LocalBinaryPatterns();
+        }
+    },
+    LUMINANCE_LAYOUT(LuminanceLayout.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new LuminanceLayout();
+        }
+    },
+    OPPONENT_HISTOGRAM(OpponentHistogram.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new OpponentHistogram();
+        }
+    },
+    PHOG(PHOG.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new PHOG();
+        }
+    },
+    ROTATION_INVARIANT_LOCAL_BINARY_PATTERNS(RotationInvariantLocalBinaryPatterns.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new RotationInvariantLocalBinaryPatterns();
+        }
+    },
+    SCALABLE_COLOR(ScalableColor.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new ScalableColor();
+        }
+    },
+    TAMURA(Tamura.class) {
+        @Override
+        public LireFeature newFeature() {
+            return new Tamura();
+        }
+    },
     ;
 
     private Class<? extends LireFeature> featureClass;
 
+    /** Idle instance of each thread, threads never share an instance so no locking is needed */
+    private final ThreadLocal<LireFeature> idle = new ThreadLocal<LireFeature>();
+
+    private final CounterMetric created = new CounterMetric();
+
+    private volatile int dimension = 0;
+
     FeatureEnum(Class<? extends LireFeature> featureClass) {
         this.featureClass = featureClass;
     }
@@ -40,6 +140,70 @@ public enum FeatureEnum {
         return featureClass;
     }
 
+    /**
+     * New instance of the feature, for features that outlive the caller such as the feature of a query
+     */
+    public abstract LireFeature newFeature();
+
+    /**
+     * Idle instance of the feature of the current thread, or a new one if the thread has none.
+     * The instance is confined to the caller until given back with {@link #returnFeature(LireFeature)},
+     * its content is only valid after it is overwritten by extract or setByteArrayRepresentation
+     */
+    public LireFeature borrowFeature() {
+        LireFeature feature = idle.get();
+        if (feature == null) {
+            created.inc();
+            return newFeature();
+        }
+        idle.set(null);
+        return feature;
+    }
+
+    /**
+     * Give back an instance taken with {@link #borrowFeature()}, it becomes the idle instance of the current thread
+     * and must not be used by the caller anymore
+     */
+    public void returnFeature(LireFeature feature) {
+        idle.set(feature);
+    }
+
+    /**
+     * Number of instances created by {@link #borrowFeature()} because the thread had no idle one
+     */
+    public long created() {
+        return created.count();
+    }
+
+    /**
+     * Feature of the class of the given feature instance
+     */
+    public static FeatureEnum getByFeature(LireFeature lireFeature) {
+        for (FeatureEnum featureEnum : values()) {
+            if (featureEnum.featureClass == lireFeature.getClass()) {
+                return featureEnum;
+            }
+        }
+        throw new IllegalArgumentException("Unknown feature class [" + lireFeature.getClass().getName() + "]");
+    }
+
+    /**
+     * Length of the double histogram of the feature, taken from a feature extracted from a blank image once.
+     * -1 if it can't be determined
+     */
+    public int getDimension() {
+        if (dimension == 0) {
+            try {
+                LireFeature feature = newFeature();
+                feature.extract(new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB));
+                dimension = feature.getDoubleHistogram().length;
+            } catch (Throwable e) {
+                dimension = -1;
+            }
+        }
+        return dimension;
+    }
+
     public static FeatureEnum getByName(String name) {
         return valueOf(name.toUpperCase());
     }
@@ -0,0 +1,89 @@
+package org.elasticsearch.index.mapper.image;
+
+import net.semanticmetadata.lire.utils.ImageUtils;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.common.breaker.MemoryCircuitBreaker;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.indices.fielddata.breaker.CircuitBreakerService;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Decode untrusted image bytes. Dimensions are read from the header first, images with more than max pixels are rejected
+ * before any pixel is decoded, and the raster size is charged against the circuit breaker while the image is decoded and scaled,
+ * so many large images decoded at once trip the breaker instead of running out of memory
+ */
+public class ImageDecoder extends AbstractComponent {
+
+    public static final String MAX_PIXELS_SETTING = "image.decoder.max_pixels";
+
+    public static final long DEFAULT_MAX_PIXELS = 50000000;
+
+    private static final int BYTES_PER_PIXEL = 4;  // decoded rasters are at most one int per pixel
+
+    private final CircuitBreakerService circuitBreakerService;
+
+    private final long maxPixels;
+
+    @Inject
+    public ImageDecoder(Settings settings, CircuitBreakerService circuitBreakerService) {
+        super(settings);
+        this.circuitBreakerService = circuitBreakerService;
+        this.maxPixels = settings.getAsLong(MAX_PIXELS_SETTING, DEFAULT_MAX_PIXELS);
+    }
+
+    public long maxPixels() {
+        return maxPixels;
+    }
+
+    /**
+     * Decode content and scale it down to {@link ImageMapper#MAX_IMAGE_DIMENSION} if larger
+     */
+    public BufferedImage read(byte[] content) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(new BytesStreamInput(content, false));
+        if (input == null) {
+            throw new ElasticsearchImageProcessException("Failed to read image");
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new ElasticsearchImageProcessException("Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                long width = reader.getWidth(0);
+                long height = reader.getHeight(0);
+                if (width * height > maxPixels) {
+                    throw new ElasticsearchImageProcessException("Image of [" + width + "x" + height + "] pixels is larger than ["
+                            + MAX_PIXELS_SETTING + "] of [" + maxPixels + "]");
+                }
+
+                long bytes = width * height * BYTES_PER_PIXEL;
+                MemoryCircuitBreaker breaker = circuitBreakerService.getBreaker();
+                breaker.addEstimateBytesAndMaybeBreak(bytes, "image [" + width + "x" + height + "]");
+                try {
+                    BufferedImage img = reader.read(0, reader.getDefaultReadParam());
+                    if (Math.max(img.getHeight(), img.getWidth()) > ImageMapper.MAX_IMAGE_DIMENSION) {
+                        img = ImageUtils.scaleImage(img, ImageMapper.MAX_IMAGE_DIMENSION);
+                    }
+                    return img;
+                } finally {
+                    breaker.addWithoutBreaking(-bytes);
+                }
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -8,13 +8,30 @@ import com.drew.metadata.Tag;
 import net.semanticmetadata.lire.imageanalysis.LireFeature;
 import net.semanticmetadata.lire.indexing.hashing.BitSampling;
 import net.semanticmetadata.lire.indexing.hashing.LocalitySensitiveHashing;
-import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 import org.elasticsearch.ElasticsearchIllegalArgumentException;
 import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.compress.Compressor;
+import org.elasticsearch.common.compress.CompressorFactory;
 import org.elasticsearch.common.collect.Lists;
 import org.elasticsearch.common.collect.MapMaker;
 import org.elasticsearch.common.collect.Maps;
@@ -24,15 +41,30 @@ import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.codec.docvaluesformat.DocValuesFormatProvider;
+import org.elasticsearch.index.codec.docvaluesformat.ImageFeatureDocValuesFormat;
+import org.elasticsearch.index.codec.docvaluesformat.PreBuiltDocValuesFormatProvider;
 import org.elasticsearch.index.mapper.*;
+import org.elasticsearch.index.mapper.core.BinaryFieldMapper;
+import org.elasticsearch.index.mapper.object.ObjectMapper;
+import org.elasticsearch.index.mapper.internal.SourceFieldMapper;
 import org.elasticsearch.threadpool.ThreadPool;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
@@ -52,7 +84,30 @@ public class ImageMapper implements Mapper {
 
     public static final String HASH = "hash";
 
+    public static final String IVF = "ivf";
+    public static final String CENTROIDS = "centroids";
+
+    public static final String PQ = "pq";
+    public static final String CODEBOOKS = "codebooks";
+
+    public static final String BOVW = "bovw";
+    public static final String VOCABULARY = "vocabulary";
+    public static final String MAX_KEYPOINTS = "max_keypoints";
+
+    public static final String PHASH = "phash";
+    public static final String BANDS = "bands";
+    public static final String BAND = "band";
+
     public static final String FEATURE = "feature";
+
+    public static final String STORE_FEATURES = "store_features";
+
+    public static final String SOURCE_DIGEST = "source_digest";
+    public static final String DIGEST = "digest";
+
+    public static final String CONTENT = "content";
+
+    private static final DocValuesFormatProvider FEATURE_DOC_VALUES_FORMAT = new PreBuiltDocValuesFormatProvider(new ImageFeatureDocValuesFormat());
     public static final String METADATA = "metadata";
 
     public static final String BIT_SAMPLING_FILE = "/hash/LshBitSampling.obj";
@@ -72,13 +127,24 @@ public class ImageMapper implements Mapper {
 
         private ThreadPool threadPool;
 
+        private ImageDecoder imageDecoder;
+
         private Map<FeatureEnum, Map<String, Object>> features = Maps.newHashMap();
 
         private Map<String, Mapper.Builder> metadataBuilders = Maps.newHashMap();
 
-        public Builder(String name, ThreadPool threadPool) {
+        private int phashBands = 0;
+
+        private boolean storeFeatures = true;
+
+        private boolean sourceDigest = false;
+
+        private VisualWords visualWords;
+
+        public Builder(String name, ThreadPool threadPool, ImageDecoder imageDecoder) {
             super(name);
             this.threadPool = threadPool;
+            this.imageDecoder = imageDecoder;
             this.builder = this;
         }
 
@@ -87,6 +153,38 @@ public class ImageMapper implements Mapper {
             return this;
         }
 
+        /**
+         * Index perceptual hash of image split into the number of bands, 0 to disable
+         */
+        public Builder phashBands(int phashBands) {
+            this.phashBands = phashBands;
+            return this;
+        }
+
+        /**
+         * Store features and hashes as stored fields as well, features are always in doc values
+         */
+        public Builder storeFeatures(boolean storeFeatures) {
+            this.storeFeatures = storeFeatures;
+            return this;
+        }
+
+        /**
+         * Replace image in stored _source with its digest once features are extracted
+         */
+        public Builder sourceDigest(boolean sourceDigest) {
+            this.sourceDigest = sourceDigest;
+            return this;
+        }
+
+        /**
+         * Index visual words of local keypoints quantized with the vocabulary, null to disable
+         */
+        public Builder visualWords(VisualWords visualWords) {
+            this.visualWords = visualWords;
+            return this;
+        }
+
         public Builder addMetadata(String metadata, Mapper.Builder metadataBuilder) {
             this.metadataBuilders.put(metadata, metadataBuilder);
             return this;
@@ -97,7 +195,11 @@ public class ImageMapper implements Mapper {
             Map<String, Mapper> featureMappers = Maps.newHashMap();
             Map<String, Mapper> hashMappers = Maps.newHashMap();
             Map<String, Mapper> metadataMappers = Maps.newHashMap();
+            Map<FeatureEnum, CoarseQuantizer> coarseQuantizers = Maps.newHashMap();
+            Map<FeatureEnum, ProductQuantizer> productQuantizers = Maps.newHashMap();
 
+            String fullName = context.path().fullPathAsText(name);
+            boolean fixedWidthDocValues = context.indexSettings().getAsBoolean("index.image.fixed_width_doc_values", true);
             context.path().add(name);
             // add feature and hash mappers
             for (FeatureEnum featureEnum : features.keySet()) {
@@ -105,7 +207,11 @@ public class ImageMapper implements Mapper {
                 String featureName = featureEnum.name();
 
                 // add feature mapper
-                featureMappers.put(featureName, binaryField(featureName).store(true).includeInAll(false).index(false).build(context));
+                BinaryFieldMapper.Builder featureBuilder = binaryField(featureName).store(storeFeatures).includeInAll(false).index(false);
+                if (fixedWidthDocValues) {
+                    featureBuilder.docValuesFormat(FEATURE_DOC_VALUES_FORMAT);
+                }
+                featureMappers.put(featureName, featureBuilder.build(context));
 
 
                 // add hash mapper if hash is required
@@ -113,9 +219,34 @@ public class ImageMapper implements Mapper {
                     List<String> hashes = (List<String>) featureMap.get(HASH);
                     for (String h : hashes) {
                         String hashFieldName = featureName + "." + HASH + "." + h;
-                        hashMappers.put(hashFieldName, stringField(hashFieldName).store(true).includeInAll(false).index(true).build(context));
+                        hashMappers.put(hashFieldName, stringField(hashFieldName).store(storeFeatures).includeInAll(false).index(true).build(context));
                     }
                 }
+
+                // add ivf mapper if ivf is required, cluster id is indexed as a term
+                if (featureMap.containsKey(IVF)) {
+                    Map<String, Object> ivfMap = (Map<String, Object>) featureMap.get(IVF);
+                    coarseQuantizers.put(featureEnum, CoarseQuantizer.parse(ivfMap.get(CENTROIDS)));
+                    String ivfFieldName = featureName + "." + IVF;
+                    hashMappers.put(ivfFieldName, stringField(ivfFieldName).store(storeFeatures).includeInAll(false).index(true).build(context));
+                }
+
+                // pq code is only stored in doc values
+                if (featureMap.containsKey(PQ)) {
+                    Map<String, Object> pqMap = (Map<String, Object>) featureMap.get(PQ);
+                    productQuantizers.put(featureEnum, ProductQuantizer.parse(pqMap.get(CODEBOOKS)));
+                }
+            }
+
+            // add phash band mapper, the hash itself is only stored in doc values
+            if (phashBands > 0) {
+                String bandFieldName = PHASH + "." + BAND;
+                hashMappers.put(bandFieldName, stringField(bandFieldName).store(false).includeInAll(false).index(true).tokenized(false).build(context));
+            }
+
+            // add visual words mapper, one term per keypoint so term frequency counts keypoints, keypoints are only stored in doc values
+            if (visualWords != null) {
+                hashMappers.put(BOVW, stringField(BOVW).store(false).includeInAll(false).index(true).tokenized(false).build(context));
             }
 
             // add metadata mappers
@@ -128,23 +259,77 @@ public class ImageMapper implements Mapper {
             context.path().remove();  // remove METADATA
             context.path().remove();  // remove name
 
-            return new ImageMapper(name, threadPool, context.indexSettings(), features, featureMappers, hashMappers, metadataMappers);
+            ImageMapper imageMapper = new ImageMapper(name, threadPool, imageDecoder, context.indexSettings(), features, featureMappers, hashMappers,
+                    metadataMappers, coarseQuantizers, productQuantizers, phashBands, visualWords, storeFeatures, sourceDigest);
+            imageMapper.fullName = fullName;
+            return imageMapper;
+        }
+    }
+
+    /**
+     * Live image mapper of the full field name in the given types, null if not found.
+     * Only the parent object of the field is walked, mappers built for merges that are not applied are never seen
+     */
+    public static ImageMapper imageMapper(MapperService mapperService, Collection<String> types, String fullName) {
+        int dot = fullName.lastIndexOf('.');
+        for (String type : types) {
+            DocumentMapper docMapper = mapperService.documentMapper(type);
+            if (docMapper == null) {
+                continue;
+            }
+            ObjectMapper parent = dot < 0 ? docMapper.root() : docMapper.objectMappers().get(fullName.substring(0, dot));
+            if (parent == null) {
+                continue;
+            }
+            ImageMappersListener listener = new ImageMappersListener();
+            parent.traverse(listener);
+            for (ImageMapper imageMapper : listener.imageMappers) {
+                if (fullName.equals(imageMapper.fullName)) {
+                    return imageMapper;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Live image mappers of all image fields of the type
+     */
+    public static List<ImageMapper> imageMappers(DocumentMapper docMapper) {
+        ImageMappersListener listener = new ImageMappersListener();
+        docMapper.root().traverse(listener);
+        return listener.imageMappers;
+    }
+
+    /**
+     * Collects image mappers while traversing the field mappers of an object mapper
+     */
+    private static class ImageMappersListener extends FieldMapperListener {
+        final List<ImageMapper> imageMappers = Lists.newArrayList();
+
+        @Override
+        public void fieldMapper(FieldMapper fieldMapper) {
         }
     }
 
     public static class TypeParser implements Mapper.TypeParser {
         private ThreadPool threadPool;
 
-        public TypeParser(ThreadPool threadPool) {
+        private ImageDecoder imageDecoder;
+
+        public TypeParser(ThreadPool threadPool, ImageDecoder imageDecoder) {
             this.threadPool = threadPool;
+            this.imageDecoder = imageDecoder;
         }
 
         @SuppressWarnings({"unchecked"})
         @Override
         public Mapper.Builder parse(String name, Map<String, Object> node, ParserContext parserContext) throws MapperParsingException {
-            ImageMapper.Builder builder = new ImageMapper.Builder(name, threadPool);
+            ImageMapper.Builder builder = new ImageMapper.Builder(name, threadPool, imageDecoder);
             Map<String, Object> features = Maps.newHashMap();
             Map<String, Object> metadatas = Maps.newHashMap();
+            int phashBands = 0;
+            VisualWords visualWords = null;
 
             for (Map.Entry<String, Object> entry : node.entrySet()) {
                 String fieldName = entry.getKey();
@@ -154,12 +339,22 @@ public class ImageMapper implements Mapper {
                     features = (Map<String, Object>) fieldNode;
                 } else if (METADATA.equals(fieldName)) {
                     metadatas = (Map<String, Object>) fieldNode;
+                } else if (PHASH.equals(fieldName)) {
+                    phashBands = parsePhashBands(fieldNode);
+                } else if (BOVW.equals(fieldName)) {
+                    visualWords = parseVisualWords(fieldNode);
+                } else if (STORE_FEATURES.equals(fieldName)) {
+                    builder.storeFeatures(XContentMapValues.nodeBooleanValue(fieldNode));
+                } else if (SOURCE_DIGEST.equals(fieldName)) {
+                    builder.sourceDigest(XContentMapValues.nodeBooleanValue(fieldNode));
                 }
             }
 
-            if (features == null || features.isEmpty()) {
+            if ((features == null || features.isEmpty()) && phashBands == 0 && visualWords == null) {
                 throw new ElasticsearchIllegalArgumentException("Feature not found");
             }
+            builder.phashBands(phashBands);
+            builder.visualWords(visualWords);
 
             // process features
             for (Map.Entry<String, Object> entry : features.entrySet()) {
@@ -182,6 +377,24 @@ public class ImageMapper implements Mapper {
                     featureMap.put(HASH, hashes);
                 }
 
+                // validate ivf centroids
+                if (featureMap.containsKey(IVF)) {
+                    Object ivfVal = featureMap.get(IVF);
+                    if (!(ivfVal instanceof Map) || !((Map<String, Object>) ivfVal).containsKey(CENTROIDS)) {
+                        throw new ElasticsearchIllegalArgumentException("Malformed ivf value, centroids are required");
+                    }
+                    CoarseQuantizer.parse(((Map<String, Object>) ivfVal).get(CENTROIDS));
+                }
+
+                // validate pq codebooks
+                if (featureMap.containsKey(PQ)) {
+                    Object pqVal = featureMap.get(PQ);
+                    if (!(pqVal instanceof Map) || !((Map<String, Object>) pqVal).containsKey(CODEBOOKS)) {
+                        throw new ElasticsearchIllegalArgumentException("Malformed pq value, codebooks are required");
+                    }
+                    ProductQuantizer.parse(((Map<String, Object>) pqVal).get(CODEBOOKS));
+                }
+
                 FeatureEnum featureEnum = FeatureEnum.getByName(feature);
                 builder.addFeature(featureEnum, featureMap);
             }
@@ -197,12 +410,53 @@ public class ImageMapper implements Mapper {
 
             return builder;
         }
+
+        @SuppressWarnings({"unchecked"})
+        private VisualWords parseVisualWords(Object bovwNode) {
+            if (!(bovwNode instanceof Map) || !((Map<String, Object>) bovwNode).containsKey(VOCABULARY)) {
+                throw new ElasticsearchIllegalArgumentException("Malformed bovw value, vocabulary is required");
+            }
+            Map<String, Object> bovwMap = (Map<String, Object>) bovwNode;
+            CoarseQuantizer vocabulary = CoarseQuantizer.parse(bovwMap.get(VOCABULARY));
+            for (double[] word : vocabulary.centroids()) {
+                if (word.length != KeypointExtractor.DESCRIPTOR_SIZE) {
+                    throw new ElasticsearchIllegalArgumentException("Visual words should have " + KeypointExtractor.DESCRIPTOR_SIZE + " dimensions");
+                }
+            }
+            Object maxKeypointsVal = bovwMap.get(MAX_KEYPOINTS);
+            if (maxKeypointsVal != null && !(maxKeypointsVal instanceof Number)) {
+                throw new ElasticsearchIllegalArgumentException("Malformed bovw max_keypoints value");
+            }
+            return new VisualWords(vocabulary, maxKeypointsVal == null ? VisualWords.DEFAULT_MAX_KEYPOINTS : ((Number) maxKeypointsVal).intValue());
+        }
+
+        @SuppressWarnings({"unchecked"})
+        private int parsePhashBands(Object phashNode) {
+            int bands;
+            if (phashNode instanceof Boolean) {
+                bands = (Boolean) phashNode ? PerceptualHash.DEFAULT_BANDS : 0;
+            } else if (phashNode instanceof Map) {
+                Object bandsVal = ((Map<String, Object>) phashNode).get(BANDS);
+                if (bandsVal != null && !(bandsVal instanceof Number)) {
+                    throw new ElasticsearchIllegalArgumentException("Malformed phash bands value");
+                }
+                bands = bandsVal == null ? PerceptualHash.DEFAULT_BANDS : ((Number) bandsVal).intValue();
+            } else {
+                throw new ElasticsearchIllegalArgumentException("Malformed phash value");
+            }
+            if (bands > 0) {
+                PerceptualHash.validateBands(bands);
+            }
+            return bands;
+        }
     }
 
     private final String name;
 
     private final ThreadPool threadPool;
 
+    private final ImageDecoder imageDecoder;
+
     private final Settings settings;
 
     private volatile ImmutableOpenMap<FeatureEnum, Map<String, Object>> features = ImmutableOpenMap.of();
@@ -213,11 +467,32 @@ public class ImageMapper implements Mapper {
 
     private volatile ImmutableOpenMap<String, Mapper> metadataMappers = ImmutableOpenMap.of();
 
+    private volatile ImmutableOpenMap<FeatureEnum, CoarseQuantizer> coarseQuantizers = ImmutableOpenMap.of();
 
-    public ImageMapper(String name, ThreadPool threadPool, Settings settings, Map<FeatureEnum, Map<String, Object>> features, Map<String, Mapper> featureMappers,
-                       Map<String, Mapper> hashMappers, Map<String, Mapper> metadataMappers) {
+    private volatile ImmutableOpenMap<FeatureEnum, ProductQuantizer> productQuantizers = ImmutableOpenMap.of();
+
+    private final int phashBands;
+
+    private final VisualWords visualWords;
+
+    private final boolean storeFeatures;
+
+    private final boolean sourceDigest;
+
+    private String fullName;  // path of the image in _source, the parse path already has name when the image is given as an object
+
+
+    public ImageMapper(String name, ThreadPool threadPool, ImageDecoder imageDecoder, Settings settings, Map<FeatureEnum, Map<String, Object>> features, Map<String, Mapper> featureMappers,
+                       Map<String, Mapper> hashMappers, Map<String, Mapper> metadataMappers, Map<FeatureEnum, CoarseQuantizer> coarseQuantizers,
+                       Map<FeatureEnum, ProductQuantizer> productQuantizers, int phashBands, VisualWords visualWords, boolean storeFeatures,
+                       boolean sourceDigest) {
         this.name = name;
+        this.phashBands = phashBands;
+        this.visualWords = visualWords;
+        this.storeFeatures = storeFeatures;
+        this.sourceDigest = sourceDigest;
         this.threadPool = threadPool;
+        this.imageDecoder = imageDecoder;
         this.settings = settings;
         if (features != null) {
             this.features = ImmutableOpenMap.builder(this.features).putAll(features).build();
@@ -231,6 +506,12 @@ public class ImageMapper implements Mapper {
         if (metadataMappers != null) {
             this.metadataMappers = ImmutableOpenMap.builder(this.metadataMappers).putAll(metadataMappers).build();
         }
+        if (coarseQuantizers != null) {
+            this.coarseQuantizers = ImmutableOpenMap.builder(this.coarseQuantizers).putAll(coarseQuantizers).build();
+        }
+        if (productQuantizers != null) {
+            this.productQuantizers = ImmutableOpenMap.builder(this.productQuantizers).putAll(productQuantizers).build();
+        }
     }
 
     @Override
@@ -238,47 +519,295 @@ public class ImageMapper implements Mapper {
         return name;
     }
 
+    /**
+     * Coarse quantizer of feature if it's indexed with ivf, otherwise null
+     */
+    public CoarseQuantizer coarseQuantizer(FeatureEnum featureEnum) {
+        return coarseQuantizers.get(featureEnum);
+    }
+
+    /**
+     * Product quantizer of feature if it's encoded with pq, otherwise null
+     */
+    public ProductQuantizer productQuantizer(FeatureEnum featureEnum) {
+        return productQuantizers.get(featureEnum);
+    }
+
+    /**
+     * Number of bands the perceptual hash is indexed in, 0 if phash is not enabled
+     */
+    public int phashBands() {
+        return phashBands;
+    }
+
+    /**
+     * Visual words of local keypoints if bovw is enabled, otherwise null
+     */
+    public VisualWords visualWords() {
+        return visualWords;
+    }
+
+    /**
+     * Read all feature, pq, keypoint and phash doc values and walk all hash term dictionaries of this field in the segment,
+     * so their structures are loaded and their files are in the page cache before the first query. Returns number of values read
+     */
+    public long warm(AtomicReader reader) throws IOException {
+        long values = 0;
+        for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
+            values += warmBinary(reader, name + "." + cursor.key.name());
+            if (productQuantizers.containsKey(cursor.key)) {
+                values += warmBinary(reader, name + "." + cursor.key.name() + "." + PQ);
+            }
+        }
+        if (visualWords != null) {
+            values += warmBinary(reader, name + "." + BOVW);
+        }
+        if (phashBands > 0) {
+            NumericDocValues numericDocValues = reader.getNumericDocValues(name + "." + PHASH);
+            if (numericDocValues != null) {
+                for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                    numericDocValues.get(doc);
+                    values++;
+                }
+            }
+        }
+        for (ObjectObjectCursor<String, Mapper> cursor : hashMappers) {
+            Terms terms = reader.terms(((FieldMapper) cursor.value).names().indexName());
+            if (terms == null) {
+                continue;
+            }
+            TermsEnum termsEnum = terms.iterator(null);
+            while (termsEnum.next() != null) {
+                termsEnum.docFreq();
+                values++;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Docs of the segment with all features, hashes, phash and keypoints of this field indexed.
+     * Docs indexed before a feature or hash was added to the mapping are left out until they are backfilled
+     */
+    public FixedBitSet complete(AtomicReader reader) throws IOException {
+        FixedBitSet complete = new FixedBitSet(reader.maxDoc());
+        complete.set(0, reader.maxDoc());
+        for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
+            retainDocsWithField(complete, reader.getDocsWithField(name + "." + cursor.key.name()));
+            if (productQuantizers.containsKey(cursor.key)) {
+                retainDocsWithField(complete, reader.getDocsWithField(name + "." + cursor.key.name() + "." + PQ));
+            }
+        }
+        if (visualWords != null) {
+            retainDocsWithField(complete, reader.getDocsWithField(name + "." + BOVW));
+        }
+        if (phashBands > 0) {
+            retainDocsWithField(complete, reader.getDocsWithField(name + "." + PHASH));
+        }
+        for (ObjectObjectCursor<String, Mapper> cursor : hashMappers) {
+            if (BOVW.equals(cursor.key)) {  // image without keypoints has no word, keypoints in doc values tell instead
+                continue;
+            }
+            Terms terms = reader.terms(((FieldMapper) cursor.value).names().indexName());
+            if (terms == null) {
+                return new FixedBitSet(reader.maxDoc());
+            }
+            if (terms.getDocCount() == reader.maxDoc()) {
+                continue;
+            }
+            FixedBitSet docsWithTerms = new FixedBitSet(reader.maxDoc());
+            TermsEnum termsEnum = terms.iterator(null);
+            DocsEnum docsEnum = null;
+            while (termsEnum.next() != null) {
+                docsEnum = termsEnum.docs(null, docsEnum, DocsEnum.FLAG_NONE);
+                docsWithTerms.or(docsEnum);
+            }
+            complete.and(docsWithTerms);
+        }
+        return complete;
+    }
+
+    private static void retainDocsWithField(FixedBitSet docs, Bits docsWithField) {
+        if (docsWithField == null) {
+            docs.clear(0, docs.length());
+            return;
+        }
+        for (int doc = docs.nextSetBit(0); doc != -1; doc = doc + 1 < docs.length() ? docs.nextSetBit(doc + 1) : -1) {
+            if (!docsWithField.get(doc)) {
+                docs.clear(doc);
+            }
+        }
+    }
+
+    /**
+     * Features, phash and keypoints of doc already in doc values, as given with the image in the object form of the field
+     */
+    public Map<String, Object> indexedValues(AtomicReader reader, int doc) throws IOException {
+        Map<String, Object> values = Maps.newHashMap();
+        for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
+            putBinary(values, cursor.key.name(), reader, name + "." + cursor.key.name(), doc);
+        }
+        if (visualWords != null) {
+            putBinary(values, BOVW, reader, name + "." + BOVW, doc);
+        }
+        if (phashBands > 0) {
+            Bits docsWithField = reader.getDocsWithField(name + "." + PHASH);
+            if (docsWithField != null && docsWithField.get(doc)) {
+                values.put(PHASH, reader.getNumericDocValues(name + "." + PHASH).get(doc));
+            }
+        }
+        return values;
+    }
+
+    private static void putBinary(Map<String, Object> values, String key, AtomicReader reader, String field, int doc) throws IOException {
+        Bits docsWithField = reader.getDocsWithField(field);
+        if (docsWithField != null && docsWithField.get(doc)) {
+            BytesRef bytesRef = reader.getBinaryDocValues(field).get(doc);
+            values.put(key, Base64.encodeBytes(bytesRef.bytes, bytesRef.offset, bytesRef.length));
+        }
+    }
+
+    private static long warmBinary(AtomicReader reader, String field) throws IOException {
+        BinaryDocValues binaryDocValues = reader.getBinaryDocValues(field);
+        if (binaryDocValues == null) {
+            return 0;
+        }
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+            binaryDocValues.get(doc);
+        }
+        return reader.maxDoc();
+    }
+
     @Override
     public void parse(ParseContext context) throws IOException {
         byte[] content = null;
+        Map<FeatureEnum, byte[]> featureVectors = null;
+        Long phash = null;
+        VisualWords.Keypoint[] keypoints = null;
 
         XContentParser parser = context.parser();
         XContentParser.Token token = parser.currentToken();
         if (token == XContentParser.Token.VALUE_STRING) {
             content = parser.binaryValue();
+        } else if (token == XContentParser.Token.START_OBJECT) {  // features extracted by client
+            featureVectors = Maps.newHashMap();
+            String currentFieldName = null;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentFieldName = parser.currentName();
+                } else if (DIGEST.equals(currentFieldName)) {
+                    throw new MapperParsingException("Image of [" + name + "] was replaced by its digest in _source because of [" + SOURCE_DIGEST
+                            + "], the doc can't be updated or reindexed from _source, index it again with the image instead");
+                } else if (CONTENT.equals(currentFieldName)) {
+                    content = parser.binaryValue();
+                } else if (PHASH.equals(currentFieldName)) {
+                    phash = parser.longValue();
+                } else if (BOVW.equals(currentFieldName)) {
+                    byte[] encodedKeypoints = parser.binaryValue();
+                    keypoints = VisualWords.decode(encodedKeypoints, 0, encodedKeypoints.length);
+                } else {
+                    FeatureEnum featureEnum;
+                    try {
+                        featureEnum = FeatureEnum.getByName(currentFieldName);
+                    } catch (IllegalArgumentException e) {
+                        throw new MapperParsingException("Unknown feature [" + currentFieldName + "]");
+                    }
+                    featureVectors.put(featureEnum, parser.binaryValue());
+                }
+            }
         }
 
-        if (content == null) {
+        if (content == null && featureVectors == null) {
             throw new MapperParsingException("No content is provided.");
         }
 
         final Boolean useThreadPool = settings.getAsBoolean("index.image.use_thread_pool", true);
         final Boolean ignoreMetadataError = settings.getAsBoolean("index.image.ignore_metadata_error", true);
 
-        BufferedImage img = ImageIO.read(new BytesStreamInput(content, false));
-        if (Math.max(img.getHeight(), img.getWidth()) > MAX_IMAGE_DIMENSION) {
-            img = ImageUtils.scaleImage(img, MAX_IMAGE_DIMENSION);
+        final Map<FeatureEnum, FeatureValues> featureExtractMap = new MapMaker().makeMap();
+        BufferedImage img = null;
+
+        // features given by client are used as is, without image all mapped features must be given
+        if (featureVectors != null) {
+            for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
+                byte[] featureVector = featureVectors.remove(cursor.key);
+                if (featureVector != null) {
+                    featureExtractMap.put(cursor.key, parseFeatureVector(cursor.key, featureVector));
+                } else if (content == null) {
+                    throw new MapperParsingException("Feature [" + cursor.key.name() + "] is not provided");
+                }
+            }
+            if (!featureVectors.isEmpty()) {
+                throw new MapperParsingException("Features " + featureVectors.keySet() + " are not mapped");
+            }
+            if (content == null && phashBands > 0 && phash == null) {
+                throw new MapperParsingException("Perceptual hash [" + PHASH + "] is not provided");
+            }
+        }
+        if (keypoints != null && visualWords == null) {
+            throw new MapperParsingException("Visual words [" + BOVW + "] are not mapped");
+        }
+
+        // only decode image if something is left to extract from it
+        boolean extract = featureExtractMap.size() < features.size() || (phashBands > 0 && phash == null) || (visualWords != null && keypoints == null);
+        if (content != null && extract) {
+            img = imageDecoder.read(content);
+            if (phashBands > 0 && phash == null) {
+                phash = PerceptualHash.hash(img);
+            }
         }
         final BufferedImage finalImg = img;
 
+        // add visual words if required, keypoints can only be extracted from image
+        if (visualWords != null && (img != null || keypoints != null)) {
+            try {
+                if (keypoints == null) {
+                    keypoints = visualWords.extract(img);
+                }
+                Mapper bovwMapper = hashMappers.get(BOVW);
+                for (VisualWords.Keypoint keypoint : keypoints) {
+                    context.externalValue(Integer.toString(keypoint.word));
+                    bovwMapper.parse(context);
+                }
+                context.doc().add(new BinaryDocValuesField(name() + "." + BOVW, new BytesRef(VisualWords.encode(keypoints))));
+            } catch (Exception e) {
+                throw new ElasticsearchImageProcessException("Failed to index visual words", e);
+            }
+        }
 
+        // add perceptual hash if required
+        if (phashBands > 0) {
+            context.doc().add(new NumericDocValuesField(name() + "." + PHASH, phash));
+            Mapper bandMapper = hashMappers.get(PHASH + "." + BAND);
+            for (String band : PerceptualHash.bands(phash, phashBands)) {
+                context.externalValue(band);
+                bandMapper.parse(context);
+            }
+        }
 
-        final Map<FeatureEnum, LireFeature> featureExtractMap = new MapMaker().makeMap();
 
-        // have multiple features, use ThreadPool to process each feature
-        if (useThreadPool && features.size() > 1) {
-            final CountDownLatch latch = new CountDownLatch(features.size());
+        // have multiple features to extract, use ThreadPool to process each feature
+        if (img != null && useThreadPool && features.size() - featureExtractMap.size() > 1) {
+            final CountDownLatch latch = new CountDownLatch(features.size() - featureExtractMap.size());
             Executor executor = threadPool.generic();
 
             for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
                 final FeatureEnum featureEnum = cursor.key;
+                if (featureExtractMap.containsKey(featureEnum)) {
+                    continue;
+                }
                 executor.execute(new Runnable() {
                     @Override
                     public void run() {
                         try {
-                            LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
-                            lireFeature.extract(finalImg);
-                            featureExtractMap.put(featureEnum, lireFeature);
+                            // given back on this thread, so the next feature extracted here reuses it
+                            LireFeature lireFeature = featureEnum.borrowFeature();
+                            try {
+                                lireFeature.extract(finalImg);
+                                featureExtractMap.put(featureEnum, new FeatureValues(lireFeature));
+                            } finally {
+                                featureEnum.returnFeature(lireFeature);
+                            }
                         } catch (Throwable e){
                             logger.error("Failed to extract feature from image", e);
                         } finally {
@@ -300,19 +829,24 @@ public class ImageMapper implements Mapper {
             FeatureEnum featureEnum = cursor.key;
             Map<String, Object> featureMap = cursor.value;
 
+            FeatureValues featureValues = featureExtractMap.remove(featureEnum);   // null if not processed yet
             try {
-                LireFeature lireFeature;
-                if (featureExtractMap.containsKey(featureEnum)) {   // already processed
-                    lireFeature = featureExtractMap.get(featureEnum);
-                } else {
-                    lireFeature = featureEnum.getFeatureClass().newInstance();
-                    lireFeature.extract(img);
+                if (featureValues == null) {
+                    LireFeature lireFeature = featureEnum.borrowFeature();
+                    try {
+                        lireFeature.extract(img);
+                        featureValues = new FeatureValues(lireFeature);
+                    } finally {
+                        featureEnum.returnFeature(lireFeature);
+                    }
                 }
-                byte[] parsedContent = lireFeature.getByteArrayRepresentation();
+                byte[] parsedContent = featureValues.bytes;
 
-                Mapper featureMapper = featureMappers.get(featureEnum.name());
-                context.externalValue(parsedContent);
-                featureMapper.parse(context);
+                if (storeFeatures) {  // a binary mapper that doesn't store leaves the external value to the next field
+                    Mapper featureMapper = featureMappers.get(featureEnum.name());
+                    context.externalValue(parsedContent);
+                    featureMapper.parse(context);
+                }
                 context.doc().add(new BinaryDocValuesField(name() + "." + featureEnum.name(), new BytesRef(parsedContent)));
 
                 // add hash if required
@@ -322,9 +856,9 @@ public class ImageMapper implements Mapper {
                         HashEnum hashEnum = HashEnum.valueOf(h);
                         int[] hashVals = null;
                         if (hashEnum.equals(HashEnum.BIT_SAMPLING)) {
-                            hashVals = BitSampling.generateHashes(lireFeature.getDoubleHistogram());
+                            hashVals = BitSampling.generateHashes(featureValues.histogram);
                         } else if (hashEnum.equals(HashEnum.LSH)) {
-                            hashVals = LocalitySensitiveHashing.generateHashes(lireFeature.getDoubleHistogram());
+                            hashVals = LocalitySensitiveHashing.generateHashes(featureValues.histogram);
                         }
 
                         String mapperName = featureEnum.name() + "." + HASH + "." + h;
@@ -333,13 +867,36 @@ public class ImageMapper implements Mapper {
                         hashMapper.parse(context);
                     }
                 }
+
+                // add ivf cluster if required
+                CoarseQuantizer coarseQuantizer = coarseQuantizers.get(featureEnum);
+                if (coarseQuantizer != null) {
+                    int cluster = coarseQuantizer.nearest(featureValues.histogram);
+                    Mapper ivfMapper = hashMappers.get(featureEnum.name() + "." + IVF);
+                    context.externalValue(Integer.toString(cluster));
+                    ivfMapper.parse(context);
+                }
+
+                // add pq code if required
+                ProductQuantizer productQuantizer = productQuantizers.get(featureEnum);
+                if (productQuantizer != null) {
+                    byte[] code = productQuantizer.encode(featureValues.histogram);
+                    context.doc().add(new BinaryDocValuesField(name() + "." + featureEnum.name() + "." + PQ, new BytesRef(code)));
+                }
             } catch (Exception e) {
                 throw new ElasticsearchImageProcessException("Failed to index feature " + featureEnum.name(), e);
             }
         }
 
-        // process metadata if required
-        if (!metadataMappers.isEmpty()) {
+        // keep only digest of image in stored _source, translog still has the image so recovery can replay it
+        if (content != null && sourceDigest) {
+            replaceSource(context, digest(content));
+        } else if (content != null && featureVectors != null) {  // features given with the image are only for indexing
+            replaceSource(context, Base64.encodeBytes(content));
+        }
+
+        // process metadata if required, only available from image
+        if (content != null && !metadataMappers.isEmpty()) {
             try {
                 Metadata metadata = ImageMetadataReader.readMetadata(new BufferedInputStream(new BytesStreamInput(content, false)), false);
                 for (Directory directory : metadata.getDirectories()) {
@@ -364,12 +921,197 @@ public class ImageMapper implements Mapper {
 
     }
 
+    /**
+     * Replace image in the stored _source field with value, e.g. {"digest": sha1 of image}. Nothing to do if _source is disabled or excludes the image
+     */
+    @SuppressWarnings({"unchecked"})
+    private void replaceSource(ParseContext context, Object value) throws IOException {
+        List<IndexableField> fields = context.rootDoc().getFields();
+        for (int i = 0; i < fields.size(); i++) {
+            IndexableField field = fields.get(i);
+            if (!SourceFieldMapper.NAME.equals(field.name()) || field.binaryValue() == null) {
+                continue;
+            }
+            BytesReference source = new BytesArray(field.binaryValue());
+            Compressor compressor = CompressorFactory.compressor(source);
+            Tuple<XContentType, Map<String, Object>> typeAndSource = XContentHelper.convertToMap(source, true);
+
+            // find the object holding the image
+            String[] path = Strings.splitStringToArray(fullName, '.');
+            Map<String, Object> parent = typeAndSource.v2();
+            for (int p = 0; p < path.length - 1 && parent != null; p++) {
+                Object child = parent.get(path[p]);
+                parent = child instanceof Map ? (Map<String, Object>) child : null;
+            }
+            Object image = parent == null ? null : parent.get(path[path.length - 1]);
+            if (!(image instanceof String) && !(image instanceof Map && ((Map<String, Object>) image).containsKey(CONTENT))) {
+                return;
+            }
+            parent.put(path[path.length - 1], value);
+
+            BytesReference replacedSource = XContentFactory.contentBuilder(typeAndSource.v1()).map(typeAndSource.v2()).bytes();
+            byte[] bytes = replacedSource.toBytes();
+            if (compressor != null) {
+                bytes = compressor.compress(bytes, 0, bytes.length);
+            }
+            fields.set(i, new StoredField(SourceFieldMapper.NAME, bytes));
+            return;
+        }
+    }
+
+    private static Map<String, Object> digest(byte[] content) {
+        Map<String, Object> digest = Maps.newHashMap();
+        try {
+            digest.put(DIGEST, String.format(Locale.ROOT, "%040x", new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(content))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new ElasticsearchImageProcessException("Failed to digest image", e);
+        }
+        return digest;
+    }
+
+    /**
+     * Feature from its byte representation, validated against the histogram length of the feature
+     */
+    private FeatureValues parseFeatureVector(FeatureEnum featureEnum, byte[] featureVector) {
+        LireFeature lireFeature = featureEnum.borrowFeature();
+        try {
+            try {
+                lireFeature.setByteArrayRepresentation(featureVector);
+            } catch (Exception e) {
+                throw new MapperParsingException("Failed to parse feature [" + featureEnum.name() + "]", e);
+            }
+            int dimension = featureEnum.getDimension();
+            if (dimension > 0 && lireFeature.getDoubleHistogram().length != dimension) {
+                throw new MapperParsingException("Feature [" + featureEnum.name() + "] should have " + dimension + " dimensions, got "
+                        + lireFeature.getDoubleHistogram().length);
+            }
+            return new FeatureValues(lireFeature);
+        } finally {
+            featureEnum.returnFeature(lireFeature);
+        }
+    }
+
+    /**
+     * Copy of what is indexed from a feature, taken before the pooled instance is given back on the thread that borrowed it
+     */
+    private static class FeatureValues {
+        final byte[] bytes;
+        final double[] histogram;
+
+        FeatureValues(LireFeature lireFeature) {
+            bytes = lireFeature.getByteArrayRepresentation().clone();
+            histogram = lireFeature.getDoubleHistogram().clone();
+        }
+    }
+
+    /**
+     * Add new features and new hashes of existing features, docs indexed before only get them once reindexed or backfilled.
+     * Any other change is a conflict
+     */
+    @SuppressWarnings({"unchecked"})
     @Override
     public void merge(Mapper mergeWith, MergeContext mergeContext) throws MergeMappingException {
+        if (!(mergeWith instanceof ImageMapper)) {
+            mergeContext.addConflict("mapper [" + name + "] of different type, current_type [" + CONTENT_TYPE + "]");
+            return;
+        }
+        ImageMapper other = (ImageMapper) mergeWith;
+        if (phashBands != other.phashBands) {
+            mergeContext.addConflict("mapper [" + name + "] has different " + PHASH + " " + BANDS);
+        }
+        if (visualWords == null ? other.visualWords != null : other.visualWords == null
+                || !Arrays.deepEquals(visualWords.vocabulary().centroids(), other.visualWords.vocabulary().centroids())
+                || visualWords.maxKeypoints() != other.visualWords.maxKeypoints()) {
+            mergeContext.addConflict("mapper [" + name + "] has different " + BOVW);
+        }
+        if (storeFeatures != other.storeFeatures) {
+            mergeContext.addConflict("mapper [" + name + "] has different " + STORE_FEATURES);
+        }
+        if (sourceDigest != other.sourceDigest) {
+            mergeContext.addConflict("mapper [" + name + "] has different " + SOURCE_DIGEST);
+        }
+
+        Map<FeatureEnum, Map<String, Object>> mergedFeatures = Maps.newHashMap();
+        for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : other.features) {
+            Map<String, Object> featureMap = features.get(cursor.key);
+            if (featureMap == null) {  // new feature
+                mergedFeatures.put(cursor.key, cursor.value);
+                continue;
+            }
+            if (!equals(featureMap.get(IVF), cursor.value.get(IVF)) || !equals(featureMap.get(PQ), cursor.value.get(PQ))) {
+                mergeContext.addConflict("mapper [" + name + "] has different " + IVF + " or " + PQ + " for feature [" + cursor.key.name() + "]");
+                continue;
+            }
+            List<String> hashes = featureMap.containsKey(HASH) ? (List<String>) featureMap.get(HASH) : Lists.<String>newArrayList();
+            List<String> mergedHashes = Lists.newArrayList(hashes);
+            if (cursor.value.containsKey(HASH)) {
+                for (String h : (List<String>) cursor.value.get(HASH)) {
+                    if (!mergedHashes.contains(h)) {
+                        mergedHashes.add(h);
+                    }
+                }
+            }
+            if (mergedHashes.size() > hashes.size()) {
+                Map<String, Object> mergedFeatureMap = Maps.newHashMap(featureMap);
+                mergedFeatureMap.put(HASH, mergedHashes);
+                mergedFeatures.put(cursor.key, mergedFeatureMap);
+            }
+        }
+        if (mergeContext.mergeFlags().simulate() || mergeContext.hasConflicts() || mergedFeatures.isEmpty()) {
+            return;
+        }
+
+        // take the new field mappers built for mergeWith
+        ImmutableOpenMap.Builder<String, Mapper> newFeatureMappers = ImmutableOpenMap.builder(featureMappers);
+        ImmutableOpenMap.Builder<String, Mapper> newHashMappers = ImmutableOpenMap.builder(hashMappers);
+        ImmutableOpenMap.Builder<FeatureEnum, CoarseQuantizer> newCoarseQuantizers = ImmutableOpenMap.builder(coarseQuantizers);
+        ImmutableOpenMap.Builder<FeatureEnum, ProductQuantizer> newProductQuantizers = ImmutableOpenMap.builder(productQuantizers);
+        List<FieldMapper> newFieldMappers = Lists.newArrayList();
+        for (Map.Entry<FeatureEnum, Map<String, Object>> entry : mergedFeatures.entrySet()) {
+            FeatureEnum featureEnum = entry.getKey();
+            String featureName = featureEnum.name();
+            if (!featureMappers.containsKey(featureName)) {
+                Mapper featureMapper = other.featureMappers.get(featureName);
+                newFeatureMappers.put(featureName, featureMapper);
+                newFieldMappers.add((FieldMapper) featureMapper);
+                if (other.coarseQuantizers.containsKey(featureEnum)) {
+                    Mapper ivfMapper = other.hashMappers.get(featureName + "." + IVF);
+                    newHashMappers.put(featureName + "." + IVF, ivfMapper);
+                    newFieldMappers.add((FieldMapper) ivfMapper);
+                    newCoarseQuantizers.put(featureEnum, other.coarseQuantizers.get(featureEnum));
+                }
+                if (other.productQuantizers.containsKey(featureEnum)) {
+                    newProductQuantizers.put(featureEnum, other.productQuantizers.get(featureEnum));
+                }
+            }
+            if (entry.getValue().containsKey(HASH)) {
+                for (String h : (List<String>) entry.getValue().get(HASH)) {
+                    String hashFieldName = featureName + "." + HASH + "." + h;
+                    if (!hashMappers.containsKey(hashFieldName)) {
+                        Mapper hashMapper = other.hashMappers.get(hashFieldName);
+                        newHashMappers.put(hashFieldName, hashMapper);
+                        newFieldMappers.add((FieldMapper) hashMapper);
+                    }
+                }
+            }
+        }
+        featureMappers = newFeatureMappers.build();
+        hashMappers = newHashMappers.build();
+        coarseQuantizers = newCoarseQuantizers.build();
+        productQuantizers = newProductQuantizers.build();
+        features = ImmutableOpenMap.builder(features).putAll(mergedFeatures).build();
+        mergeContext.docMapper().addFieldMappers(newFieldMappers);
+    }
+
+    private static boolean equals(Object o1, Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
     }
 
     @Override
     public void traverse(FieldMapperListener fieldMapperListener) {
+        if (fieldMapperListener instanceof ImageMappersListener) {
+            ((ImageMappersListener) fieldMapperListener).imageMappers.add(this);
+        }
         for (ObjectObjectCursor<String, Mapper> cursor : featureMappers) {
             cursor.value.traverse(fieldMapperListener);
         }
@@ -402,6 +1144,27 @@ public class ImageMapper implements Mapper {
         }
         builder.endObject();
 
+        if (!storeFeatures) {
+            builder.field(STORE_FEATURES, false);
+        }
+
+        if (sourceDigest) {
+            builder.field(SOURCE_DIGEST, true);
+        }
+
+        if (phashBands > 0) {
+            builder.startObject(PHASH);
+            builder.field(BANDS, phashBands);
+            builder.endObject();
+        }
+
+        if (visualWords != null) {
+            builder.startObject(BOVW);
+            builder.field(VOCABULARY, visualWords.vocabulary().centroids());
+            builder.field(MAX_KEYPOINTS, visualWords.maxKeypoints());
+            builder.endObject();
+        }
+
         builder.startObject(METADATA);
         for (ObjectObjectCursor<String, Mapper> cursor : metadataMappers) {
             cursor.value.toXContent(builder, params);
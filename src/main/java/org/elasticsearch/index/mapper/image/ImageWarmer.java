@@ -0,0 +1,91 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.shard.service.IndexShard;
+import org.elasticsearch.indices.warmer.IndicesWarmer;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Warm image fields of new segments before they are searchable, so the first image query after a refresh or merge
+ * doesn't load doc values and hash term dictionaries cold. Each segment and image field is warmed in parallel on the warmer pool
+ */
+public class ImageWarmer extends AbstractComponent {
+
+    public static final String ENABLED_SETTING = "index.image.warmer.enabled";
+
+    private final CounterMetric warmedValues = new CounterMetric();
+
+    @Inject
+    public ImageWarmer(Settings settings, IndicesWarmer indicesWarmer) {
+        super(settings);
+        indicesWarmer.addListener(new ImageFieldsWarmer());
+    }
+
+    /**
+     * Doc values read by the warmer on this node, all of them were read before their segment was searchable
+     */
+    public long warmedValues() {
+        return warmedValues.count();
+    }
+
+    private class ImageFieldsWarmer extends IndicesWarmer.Listener {
+
+        @Override
+        public TerminationHandle warm(final IndexShard indexShard, IndexMetaData indexMetaData, IndicesWarmer.WarmerContext context, ThreadPool threadPool) {
+            if (!indexMetaData.settings().getAsBoolean(ENABLED_SETTING, true)) {
+                return TerminationHandle.NO_WAIT;
+            }
+            List<ImageMapper> imageMappers = Lists.newArrayList();
+            for (DocumentMapper docMapper : indexShard.mapperService().docMappers(false)) {
+                imageMappers.addAll(ImageMapper.imageMappers(docMapper));
+            }
+            List<AtomicReaderContext> leaves = context.newSearcher().reader().leaves();
+            if (imageMappers.isEmpty() || leaves.isEmpty()) {
+                return TerminationHandle.NO_WAIT;
+            }
+
+            Executor executor = threadPool.executor(executor());
+            final CountDownLatch latch = new CountDownLatch(leaves.size() * imageMappers.size());
+            for (final AtomicReaderContext leaf : leaves) {
+                for (final ImageMapper imageMapper : imageMappers) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                long start = System.nanoTime();
+                                long values = imageMapper.warm(leaf.reader());
+                                warmedValues.inc(values);
+                                if (logger.isTraceEnabled()) {
+                                    logger.trace("warmed [{}] values of image field [{}] in {} in [{}ms]", values, imageMapper.name(),
+                                            indexShard.shardId(), (System.nanoTime() - start) / 1000000);
+                                }
+                            } catch (Throwable t) {
+                                logger.warn("failed to warm image field [{}] in {}", t, imageMapper.name(), indexShard.shardId());
+                            } finally {
+                                latch.countDown();
+                            }
+                        }
+                    });
+                }
+            }
+
+            return new TerminationHandle() {
+                @Override
+                public void awaitTermination() throws InterruptedException {
+                    latch.await();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Lloyd's k-means, used to train centroids from sampled feature histograms
+ */
+public class KMeans {
+
+    /**
+     * Cluster samples into at most k centroids
+     * @param samples vectors to cluster, all of the same length
+     * @param k number of centroids, capped to the number of samples
+     * @param maxIterations stop after this many iterations even if assignments still change
+     * @param random source of randomness for the initial centroids
+     */
+    public static double[][] cluster(List<double[]> samples, int k, int maxIterations, Random random) {
+        if (samples.isEmpty()) {
+            throw new ElasticsearchIllegalArgumentException("No samples to cluster");
+        }
+        if (k <= 0) {
+            throw new ElasticsearchIllegalArgumentException("Number of clusters must be positive");
+        }
+        k = Math.min(k, samples.size());
+        int dimension = samples.get(0).length;
+
+        // initialize with randomly picked samples
+        List<double[]> shuffled = new ArrayList<double[]>(samples);
+        Collections.shuffle(shuffled, random);
+        double[][] centroids = new double[k][];
+        for (int i = 0; i < k; i++) {
+            centroids[i] = shuffled.get(i).clone();
+        }
+
+        int[] assignments = new int[samples.size()];
+        Arrays.fill(assignments, -1);
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            boolean changed = false;
+            for (int i = 0; i < samples.size(); i++) {
+                int nearest = nearest(centroids, samples.get(i));
+                if (nearest != assignments[i]) {
+                    assignments[i] = nearest;
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                break;
+            }
+
+            double[][] sums = new double[k][dimension];
+            int[] counts = new int[k];
+            for (int i = 0; i < samples.size(); i++) {
+                double[] sample = samples.get(i);
+                double[] sum = sums[assignments[i]];
+                for (int d = 0; d < dimension; d++) {
+                    sum[d] += sample[d];
+                }
+                counts[assignments[i]]++;
+            }
+            for (int c = 0; c < k; c++) {
+                if (counts[c] == 0) {  // empty cluster, reseed with a random sample
+                    centroids[c] = samples.get(random.nextInt(samples.size())).clone();
+                    continue;
+                }
+                for (int d = 0; d < dimension; d++) {
+                    sums[c][d] /= counts[c];
+                }
+                centroids[c] = sums[c];
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * Index of the centroid nearest to vector
+     */
+    public static int nearest(double[][] centroids, double[] vector) {
+        int nearest = 0;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int c = 0; c < centroids.length; c++) {
+            double distance = squaredDistance(centroids[c], vector);
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = c;
+            }
+        }
+        return nearest;
+    }
+
+    public static double squaredDistance(double[] a, double[] b) {
+        int length = Math.min(a.length, b.length);
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            double diff = a[i] - b[i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,275 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.elasticsearch.common.collect.Lists;
+
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Detect Harris corners on an image pyramid and describe each with a SIFT like descriptor:
+ * 4x4 cells of 8 gradient orientation bins around the corner, rotated to the dominant gradient orientation
+ */
+public class KeypointExtractor {
+
+    public static final int DESCRIPTOR_SIZE = 128;
+
+    private static final int MAX_SIDE = 512;
+
+    private static final int OCTAVES = 3;
+
+    private static final int WINDOW = 16;  // descriptor window side at the octave
+
+    private static final int MARGIN = 12;  // rotated descriptor window stays inside the image
+
+    private static final float HARRIS_K = 0.04f;
+
+    private static final float RELATIVE_THRESHOLD = 0.01f;
+
+    private static final Comparator<LocalFeature> RESPONSE_COMPARATOR = new Comparator<LocalFeature>() {
+        @Override
+        public int compare(LocalFeature o1, LocalFeature o2) {
+            return Float.compare(o2.response, o1.response);
+        }
+    };
+
+    /**
+     * At most max local features of image with the strongest corner response
+     */
+    public static List<LocalFeature> extract(BufferedImage image, int max) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int step = 1;
+        while (Math.max(width, height) / step > MAX_SIDE) {
+            step *= 2;
+        }
+
+        float[][] grey = grey(image, step);
+        List<LocalFeature> features = Lists.newArrayList();
+        float scale = step;
+        for (int octave = 0; octave < OCTAVES && Math.min(grey.length, grey[0].length) > 2 * MARGIN + 1; octave++) {
+            float[][] smoothed = smooth(grey);
+            detect(smoothed, scale, features);
+            grey = half(smoothed);
+            scale *= 2;
+        }
+
+        Collections.sort(features, RESPONSE_COMPARATOR);
+        return features.size() > max ? features.subList(0, max) : features;
+    }
+
+    private static void detect(float[][] img, float scale, List<LocalFeature> features) {
+        int h = img.length;
+        int w = img[0].length;
+        float[][] gx = new float[h][w];
+        float[][] gy = new float[h][w];
+        for (int y = 1; y < h - 1; y++) {
+            for (int x = 1; x < w - 1; x++) {
+                gx[y][x] = (img[y][x + 1] - img[y][x - 1]) / 2;
+                gy[y][x] = (img[y + 1][x] - img[y - 1][x]) / 2;
+            }
+        }
+
+        // harris response from gradient products summed over a 5x5 window
+        float[][] response = new float[h][w];
+        float maxResponse = 0;
+        for (int y = MARGIN; y < h - MARGIN; y++) {
+            for (int x = MARGIN; x < w - MARGIN; x++) {
+                float xx = 0, yy = 0, xy = 0;
+                for (int dy = -2; dy <= 2; dy++) {
+                    for (int dx = -2; dx <= 2; dx++) {
+                        float ix = gx[y + dy][x + dx];
+                        float iy = gy[y + dy][x + dx];
+                        xx += ix * ix;
+                        yy += iy * iy;
+                        xy += ix * iy;
+                    }
+                }
+                float trace = xx + yy;
+                response[y][x] = xx * yy - xy * xy - HARRIS_K * trace * trace;
+                maxResponse = Math.max(maxResponse, response[y][x]);
+            }
+        }
+
+        float threshold = maxResponse * RELATIVE_THRESHOLD;
+        for (int y = MARGIN; y < h - MARGIN; y++) {
+            for (int x = MARGIN; x < w - MARGIN; x++) {
+                float r = response[y][x];
+                if (r <= threshold || !isLocalMax(response, x, y)) {
+                    continue;
+                }
+                float orientation = orientation(gx, gy, x, y);
+                double[] descriptor = descriptor(gx, gy, x, y, orientation);
+                features.add(new LocalFeature(x * scale, y * scale, scale, orientation, descriptor, r / maxResponse));
+            }
+        }
+    }
+
+    private static boolean isLocalMax(float[][] response, int x, int y) {
+        float r = response[y][x];
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                if ((dx != 0 || dy != 0) && response[y + dy][x + dx] >= r) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Peak of the 36 bins histogram of gradient orientations around the point, weighted by magnitude
+     */
+    private static float orientation(float[][] gx, float[][] gy, int x, int y) {
+        double[] histogram = new double[36];
+        for (int dy = -6; dy <= 6; dy++) {
+            for (int dx = -6; dx <= 6; dx++) {
+                float ix = gx[y + dy][x + dx];
+                float iy = gy[y + dy][x + dx];
+                double weight = Math.sqrt(ix * ix + iy * iy) * Math.exp(-(dx * dx + dy * dy) / 18.0);
+                histogram[bin(Math.atan2(iy, ix), 36)] += weight;
+            }
+        }
+        int peak = 0;
+        for (int b = 1; b < histogram.length; b++) {
+            if (histogram[b] > histogram[peak]) {
+                peak = b;
+            }
+        }
+        return (float) ((peak + 0.5) * 2 * Math.PI / 36);
+    }
+
+    private static double[] descriptor(float[][] gx, float[][] gy, int x, int y, float orientation) {
+        double[] descriptor = new double[DESCRIPTOR_SIZE];
+        double cos = Math.cos(orientation);
+        double sin = Math.sin(orientation);
+        int half = WINDOW / 2;
+        for (int v = -half; v < half; v++) {
+            for (int u = -half; u < half; u++) {
+                int sx = (int) Math.round(x + cos * (u + 0.5) - sin * (v + 0.5));
+                int sy = (int) Math.round(y + sin * (u + 0.5) + cos * (v + 0.5));
+                float ix = gx[sy][sx];
+                float iy = gy[sy][sx];
+                int cell = ((v + half) / 4) * 4 + (u + half) / 4;
+                int b = bin(Math.atan2(iy, ix) - orientation, 8);
+                descriptor[cell * 8 + b] += Math.sqrt(ix * ix + iy * iy);
+            }
+        }
+
+        // normalize, clip large gradients and normalize again, as SIFT does against lighting changes
+        normalize(descriptor);
+        for (int i = 0; i < descriptor.length; i++) {
+            descriptor[i] = Math.min(descriptor[i], 0.2);
+        }
+        normalize(descriptor);
+        return descriptor;
+    }
+
+    private static int bin(double angle, int bins) {
+        angle = angle % (2 * Math.PI);
+        if (angle < 0) {
+            angle += 2 * Math.PI;
+        }
+        return Math.min(bins - 1, (int) (angle * bins / (2 * Math.PI)));
+    }
+
+    private static void normalize(double[] vector) {
+        double sum = 0;
+        for (double value : vector) {
+            sum += value * value;
+        }
+        if (sum == 0) {
+            return;
+        }
+        double norm = Math.sqrt(sum);
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] /= norm;
+        }
+    }
+
+    /**
+     * Grey levels in [0, 1], averaged over step x step blocks
+     */
+    private static float[][] grey(BufferedImage image, int step) {
+        int w = image.getWidth() / step;
+        int h = image.getHeight() / step;
+        float[][] grey = new float[h][w];
+        int[] row = new int[image.getWidth()];
+        for (int y = 0; y < h * step; y++) {
+            image.getRGB(0, y, image.getWidth(), 1, row, 0, image.getWidth());
+            for (int x = 0; x < w * step; x++) {
+                int rgb = row[x];
+                grey[y / step][x / step] += (((rgb >> 16) & 0xFF) * 0.299f + ((rgb >> 8) & 0xFF) * 0.587f + (rgb & 0xFF) * 0.114f) / 255;
+            }
+        }
+        float area = step * step;
+        for (float[] line : grey) {
+            for (int x = 0; x < w; x++) {
+                line[x] /= area;
+            }
+        }
+        return grey;
+    }
+
+    /**
+     * Separable [1 4 6 4 1] / 16 blur, borders are clamped
+     */
+    private static float[][] smooth(float[][] img) {
+        int h = img.length;
+        int w = img[0].length;
+        float[] kernel = {1 / 16f, 4 / 16f, 6 / 16f, 4 / 16f, 1 / 16f};
+        float[][] tmp = new float[h][w];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                float sum = 0;
+                for (int k = -2; k <= 2; k++) {
+                    sum += kernel[k + 2] * img[y][Math.min(w - 1, Math.max(0, x + k))];
+                }
+                tmp[y][x] = sum;
+            }
+        }
+        float[][] out = new float[h][w];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                float sum = 0;
+                for (int k = -2; k <= 2; k++) {
+                    sum += kernel[k + 2] * tmp[Math.min(h - 1, Math.max(0, y + k))][x];
+                }
+                out[y][x] = sum;
+            }
+        }
+        return out;
+    }
+
+    private static float[][] half(float[][] img) {
+        float[][] out = new float[img.length / 2][img[0].length / 2];
+        for (int y = 0; y < out.length; y++) {
+            for (int x = 0; x < out[0].length; x++) {
+                out[y][x] = img[2 * y][2 * x];
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Corner location and scale in pixels of the original image, orientation in radians
+     */
+    public static class LocalFeature {
+        public final float x;
+        public final float y;
+        public final float scale;
+        public final float orientation;
+        public final double[] descriptor;
+        public final float response;
+
+        public LocalFeature(float x, float y, float scale, float orientation, double[] descriptor, float response) {
+            this.x = x;
+            this.y = y;
+            this.scale = scale;
+            this.orientation = orientation;
+            this.descriptor = descriptor;
+            this.response = response;
+        }
+    }
+}
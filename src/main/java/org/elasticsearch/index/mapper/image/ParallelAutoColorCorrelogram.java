@@ -0,0 +1,13 @@
+package org.elasticsearch.index.mapper.image;
+
+import net.semanticmetadata.lire.imageanalysis.AutoColorCorrelogram;
+
+/**
+ * {@link AutoColorCorrelogram} with the default bins and distances of LIRE, extracted by {@link ParallelAutoCorrelogramExtraction}
+ */
+public class ParallelAutoColorCorrelogram extends AutoColorCorrelogram {
+
+    public ParallelAutoColorCorrelogram() {
+        super(256, new int[] {1, 2, 3, 4}, new ParallelAutoCorrelogramExtraction());
+    }
+}
@@ -0,0 +1,167 @@
+package org.elasticsearch.index.mapper.image;
+
+import net.semanticmetadata.lire.imageanalysis.correlogram.IAutoCorrelogramFeatureExtractor;
+import net.semanticmetadata.lire.imageanalysis.correlogram.NaiveAutoCorrelogramExtraction;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Same output as {@link NaiveAutoCorrelogramExtraction}, the default extraction of LIRE, with rows of the image counted
+ * in parallel on a fork join pool and the partial counts summed. Small images, and all images while no node has started
+ * the pool (see {@link AutoCorrelogramPool}), are counted on the calling thread
+ */
+public class ParallelAutoCorrelogramExtraction implements IAutoCorrelogramFeatureExtractor {
+
+    /** Pool shared by the nodes of the JVM, sized by the first one started, shut down when the last one stops */
+    private static volatile ForkJoinPool pool;
+
+    private static int poolUsers;
+
+    /** Rows are split until a task has less pixels than this */
+    private static final int PIXELS_PER_TASK = 16384;
+
+    /** LIRE counts in floats, adding 1 to a float stops changing it at 2^24 */
+    private static final long MAX_FLOAT_COUNT = 1 << 24;
+
+    static synchronized void acquirePool(int threads) {
+        if (poolUsers++ == 0 && threads > 1) {
+            pool = new ForkJoinPool(threads);
+        }
+    }
+
+    static synchronized void releasePool() {
+        if (--poolUsers == 0 && pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    @Override
+    public float[][] extract(int maxFeatureValue, int[] distanceSet, int[][] img) {
+        Counts counts = null;
+        ForkJoinPool forkJoinPool = pool;
+        if (forkJoinPool != null && img.length * (long) img[0].length > PIXELS_PER_TASK) {
+            try {
+                counts = forkJoinPool.invoke(new RowsTask(maxFeatureValue, distanceSet, img, 0, img.length));
+            } catch (RejectedExecutionException e) {
+                // pool shut down meanwhile
+            }
+        }
+        if (counts == null) {
+            counts = new RowsTask(maxFeatureValue, distanceSet, img, 0, img.length).count();
+        }
+
+        float[][] correlogram = new float[maxFeatureValue][distanceSet.length];
+        for (int di = 0; di < distanceSet.length; di++) {
+            int d = distanceSet[di];
+            for (int c = 0; c < maxFeatureValue; c++) {
+                float count = Math.min(counts.correlogram[c][di], MAX_FLOAT_COUNT);
+                if (counts.histogram[c] > 0) {
+                    correlogram[c][di] = (float) Math.floor(16.0 * (count / (counts.histogram[c] * 8f * d)));
+                } else {
+                    correlogram[c][di] = count;
+                }
+            }
+        }
+        return correlogram;
+    }
+
+    /**
+     * Pixels of each color, and pixels of the same color at each distance of each color, summed over some rows
+     */
+    private static class Counts {
+        final int[] histogram;
+        final long[][] correlogram;
+
+        Counts(int maxFeatureValue, int distances) {
+            histogram = new int[maxFeatureValue];
+            correlogram = new long[maxFeatureValue][distances];
+        }
+
+        Counts add(Counts other) {
+            for (int c = 0; c < histogram.length; c++) {
+                histogram[c] += other.histogram[c];
+                for (int di = 0; di < correlogram[c].length; di++) {
+                    correlogram[c][di] += other.correlogram[c][di];
+                }
+            }
+            return this;
+        }
+    }
+
+    private static class RowsTask extends RecursiveTask<Counts> {
+        private final int maxFeatureValue;
+        private final int[] distanceSet;
+        private final int[][] img;
+        private final int from;
+        private final int to;
+
+        RowsTask(int maxFeatureValue, int[] distanceSet, int[][] img, int from, int to) {
+            this.maxFeatureValue = maxFeatureValue;
+            this.distanceSet = distanceSet;
+            this.img = img;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Counts compute() {
+            if (to - from > 1 && (to - from) * (long) img[0].length > PIXELS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                RowsTask right = new RowsTask(maxFeatureValue, distanceSet, img, middle, to);
+                right.fork();
+                Counts left = new RowsTask(maxFeatureValue, distanceSet, img, from, middle).compute();
+                return left.add(right.join());
+            }
+            return count();
+        }
+
+        /**
+         * Compare each pixel of the rows to the pixels on the square ring at each distance around it
+         */
+        private Counts count() {
+            Counts counts = new Counts(maxFeatureValue, distanceSet.length);
+            int height = img.length;
+            int width = img[0].length;
+            for (int x = from; x < to; x++) {
+                for (int y = 0; y < width; y++) {
+                    int c = img[x][y];
+                    counts.histogram[c]++;
+                    long[] colorCounts = counts.correlogram[c];
+                    for (int di = 0; di < distanceSet.length; di++) {
+                        int d = distanceSet[di];
+                        long same = 0;
+                        for (int dx = -d; dx <= d; dx++) {
+                            int nx = x + dx;
+                            if (nx < 0 || nx >= height) {
+                                continue;
+                            }
+                            if (y - d >= 0 && img[nx][y - d] == c) {
+                                same++;
+                            }
+                            if (y + d < width && img[nx][y + d] == c) {
+                                same++;
+                            }
+                        }
+                        for (int dy = -d + 1; dy <= d - 1; dy++) {
+                            int ny = y + dy;
+                            if (ny < 0 || ny >= width) {
+                                continue;
+                            }
+                            if (x - d >= 0 && img[x - d][ny] == c) {
+                                same++;
+                            }
+                            if (x + d < height && img[x + d][ny] == c) {
+                                same++;
+                            }
+                        }
+                        colorCounts[di] += same;
+                    }
+                }
+            }
+            return counts;
+        }
+    }
+}
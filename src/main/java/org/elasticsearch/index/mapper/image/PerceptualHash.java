@@ -0,0 +1,82 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * 64 bits difference hash (dHash) of image, similar images have hashes with small hamming distance.
+ * Hash is split into bands indexed as terms, two hashes within hamming distance d share at least one band if there are more than d bands
+ */
+public class PerceptualHash {
+
+    public static final int BITS = 64;
+
+    public static final int DEFAULT_BANDS = 4;
+
+    private static final int WIDTH = 9;
+
+    private static final int HEIGHT = 8;
+
+    /**
+     * Shrink image to 9x8 grey cells by averaging, each bit tells if a cell is brighter than its right neighbour
+     */
+    public static long hash(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        long[] sums = new long[WIDTH * HEIGHT];
+        int[] counts = new int[WIDTH * HEIGHT];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            int cellRow = (y * HEIGHT / height) * WIDTH;
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                int grey = (((rgb >> 16) & 0xFF) * 299 + ((rgb >> 8) & 0xFF) * 587 + (rgb & 0xFF) * 114) / 1000;
+                int cell = cellRow + x * WIDTH / width;
+                sums[cell] += grey;
+                counts[cell]++;
+            }
+        }
+
+        double[] cells = new double[WIDTH * HEIGHT];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = counts[i] == 0 ? 0 : (double) sums[i] / counts[i];
+        }
+
+        long hash = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH - 1; x++) {
+                hash <<= 1;
+                if (cells[y * WIDTH + x] > cells[y * WIDTH + x + 1]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Split hash into terms, one per band. Band number is part of the term so same bits in different bands don't collide
+     */
+    public static String[] bands(long hash, int bands) {
+        validateBands(bands);
+        int width = BITS / bands;
+        long mask = width == BITS ? -1L : (1L << width) - 1;
+        String[] terms = new String[bands];
+        for (int b = 0; b < bands; b++) {
+            terms[b] = b + "_" + Long.toHexString((hash >>> (b * width)) & mask);
+        }
+        return terms;
+    }
+
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    public static void validateBands(int bands) {
+        if (bands <= 0 || bands > BITS || BITS % bands != 0) {
+            throw new ElasticsearchIllegalArgumentException("Number of phash bands must divide " + BITS);
+        }
+    }
+}
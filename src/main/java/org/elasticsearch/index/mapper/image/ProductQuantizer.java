@@ -0,0 +1,153 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.collect.Lists;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Encode features as product quantization codes, one byte per subspace.
+ * The feature histogram is split into M contiguous subspaces, each is quantized against its own codebook of at most 256 centroids.
+ * Distance between a query and a code is computed with M lookups in a per-query distance table
+ */
+public class ProductQuantizer {
+
+    public static final int MAX_CLUSTERS = 256;
+
+    private final double[][][] codebooks;
+
+    private final int[] offsets;
+
+    public ProductQuantizer(double[][][] codebooks) {
+        if (codebooks == null || codebooks.length == 0) {
+            throw new ElasticsearchIllegalArgumentException("No codebooks found");
+        }
+        this.codebooks = codebooks;
+        this.offsets = new int[codebooks.length];
+        int offset = 0;
+        for (int m = 0; m < codebooks.length; m++) {
+            if (codebooks[m].length == 0 || codebooks[m].length > MAX_CLUSTERS) {
+                throw new ElasticsearchIllegalArgumentException("Codebook must have between 1 and " + MAX_CLUSTERS + " centroids");
+            }
+            offsets[m] = offset;
+            offset += codebooks[m][0].length;
+        }
+    }
+
+    /**
+     * Build from the codebooks in mapping, a list of codebooks where each codebook is a list of centroids
+     */
+    @SuppressWarnings({"unchecked"})
+    public static ProductQuantizer parse(Object codebooksNode) {
+        if (!(codebooksNode instanceof List)) {
+            throw new ElasticsearchIllegalArgumentException("Malformed codebooks value");
+        }
+        List<Object> codebookList = (List<Object>) codebooksNode;
+        double[][][] codebooks = new double[codebookList.size()][][];
+        for (int m = 0; m < codebooks.length; m++) {
+            codebooks[m] = CoarseQuantizer.parse(codebookList.get(m)).centroids();
+        }
+        return new ProductQuantizer(codebooks);
+    }
+
+    /**
+     * Train codebooks, histogram is split into subspaces and each subspace is clustered separately
+     */
+    public static double[][][] train(List<double[]> samples, int subspaces, int clusters, int maxIterations, Random random) {
+        if (samples.isEmpty()) {
+            throw new ElasticsearchIllegalArgumentException("No samples to train");
+        }
+        int dimension = samples.get(0).length;
+        if (subspaces <= 0 || subspaces > dimension) {
+            throw new ElasticsearchIllegalArgumentException("Number of subspaces must be between 1 and " + dimension);
+        }
+        clusters = Math.min(clusters, MAX_CLUSTERS);
+
+        double[][][] codebooks = new double[subspaces][][];
+        for (int m = 0; m < subspaces; m++) {
+            int from = m * dimension / subspaces;
+            int to = (m + 1) * dimension / subspaces;
+            List<double[]> subSamples = Lists.newArrayListWithCapacity(samples.size());
+            for (double[] sample : samples) {
+                double[] subSample = new double[to - from];
+                System.arraycopy(sample, from, subSample, 0, to - from);
+                subSamples.add(subSample);
+            }
+            codebooks[m] = KMeans.cluster(subSamples, clusters, maxIterations, random);
+        }
+        return codebooks;
+    }
+
+    public double[][][] codebooks() {
+        return codebooks;
+    }
+
+    /**
+     * Number of subspaces, also the length of each code in bytes
+     */
+    public int size() {
+        return codebooks.length;
+    }
+
+    public byte[] encode(double[] vector) {
+        byte[] code = new byte[codebooks.length];
+        for (int m = 0; m < codebooks.length; m++) {
+            code[m] = (byte) nearest(m, vector);
+        }
+        return code;
+    }
+
+    private int nearest(int m, double[] vector) {
+        double[][] codebook = codebooks[m];
+        int nearest = 0;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int c = 0; c < codebook.length; c++) {
+            double distance = squaredDistance(codebook[c], vector, offsets[m]);
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = c;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Squared distance from each subspace of the query to each centroid of that subspace
+     */
+    public float[][] distanceTable(double[] query) {
+        float[][] table = new float[codebooks.length][];
+        for (int m = 0; m < codebooks.length; m++) {
+            table[m] = new float[codebooks[m].length];
+            for (int c = 0; c < codebooks[m].length; c++) {
+                table[m][c] = (float) squaredDistance(codebooks[m][c], query, offsets[m]);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Asymmetric distance between the query of table and a code, the euclidean distance over the histogram.
+     * A code of another length (e.g. a missing one) is infinitely far
+     */
+    public static float distance(float[][] table, BytesRef code) {
+        if (code.length != table.length) {
+            return Float.POSITIVE_INFINITY;
+        }
+        float sum = 0;
+        for (int m = 0; m < table.length; m++) {
+            sum += table[m][code.bytes[code.offset + m] & 0xFF];
+        }
+        return (float) Math.sqrt(sum);
+    }
+
+    private static double squaredDistance(double[] centroid, double[] vector, int offset) {
+        double sum = 0;
+        for (int d = 0; d < centroid.length && offset + d < vector.length; d++) {
+            double diff = centroid[d] - vector[offset + d];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+}
@@ -11,8 +11,9 @@ import org.elasticsearch.threadpool.ThreadPool;
 public class RegisterImageType extends AbstractIndexComponent {
 
     @Inject
-    public RegisterImageType(Index index, @IndexSettings Settings indexSettings, MapperService mapperService, ThreadPool threadPool) {
+    public RegisterImageType(Index index, @IndexSettings Settings indexSettings, MapperService mapperService, ThreadPool threadPool,
+                             ImageDecoder imageDecoder) {
         super(index, indexSettings);
-        mapperService.documentMapperParser().putTypeParser("image", new ImageMapper.TypeParser(threadPool));
+        mapperService.documentMapperParser().putTypeParser("image", new ImageMapper.TypeParser(threadPool, imageDecoder));
     }
 }
@@ -0,0 +1,158 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.hppc.LongIntOpenHashMap;
+import org.elasticsearch.common.hppc.cursors.LongIntCursor;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Bag of visual words: local keypoints of image, each quantized to the nearest word of a visual vocabulary.
+ * Words are indexed as terms, keypoints are kept in doc values for geometric verification
+ */
+public class VisualWords {
+
+    public static final int DEFAULT_MAX_KEYPOINTS = 200;
+
+    /** Distinct words of the query become clauses of a boolean query */
+    public static final int MAX_KEYPOINTS = 1024;
+
+    /** Max doc keypoints of the same word matched to a query keypoint, frequent words tell little about geometry */
+    private static final int MAX_MATCHES_PER_WORD = 5;
+
+    private static final double SCALE_BIN = 1;  // in log2 scale
+
+    private static final double ORIENTATION_BIN = Math.PI / 6;
+
+    private static final double LOCATION_BIN = 64;  // in pixels of the query image
+
+    private final CoarseQuantizer vocabulary;
+
+    private final int maxKeypoints;
+
+    public VisualWords(CoarseQuantizer vocabulary, int maxKeypoints) {
+        if (maxKeypoints <= 0 || maxKeypoints > MAX_KEYPOINTS) {
+            throw new ElasticsearchIllegalArgumentException("Number of keypoints must be between 1 and " + MAX_KEYPOINTS);
+        }
+        this.vocabulary = vocabulary;
+        this.maxKeypoints = maxKeypoints;
+    }
+
+    public CoarseQuantizer vocabulary() {
+        return vocabulary;
+    }
+
+    public int maxKeypoints() {
+        return maxKeypoints;
+    }
+
+    /**
+     * Keypoints of image with their visual words, keypoints of strongest corner response are kept
+     */
+    public Keypoint[] extract(BufferedImage image) {
+        List<KeypointExtractor.LocalFeature> features = KeypointExtractor.extract(image, maxKeypoints);
+        Keypoint[] keypoints = new Keypoint[features.size()];
+        for (int i = 0; i < keypoints.length; i++) {
+            KeypointExtractor.LocalFeature feature = features.get(i);
+            keypoints[i] = new Keypoint(vocabulary.nearest(feature.descriptor), feature.x, feature.y, feature.scale, feature.orientation);
+        }
+        return keypoints;
+    }
+
+    public static byte[] encode(Keypoint[] keypoints) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput(keypoints.length * 17 + 5);
+        out.writeVInt(keypoints.length);
+        for (Keypoint keypoint : keypoints) {
+            out.writeVInt(keypoint.word);
+            out.writeFloat(keypoint.x);
+            out.writeFloat(keypoint.y);
+            out.writeFloat(keypoint.scale);
+            out.writeFloat(keypoint.orientation);
+        }
+        return out.bytes().toBytes();
+    }
+
+    public static Keypoint[] decode(byte[] bytes, int offset, int length) throws IOException {
+        BytesStreamInput in = new BytesStreamInput(bytes, offset, length, false);
+        Keypoint[] keypoints = new Keypoint[in.readVInt()];
+        for (int i = 0; i < keypoints.length; i++) {
+            keypoints[i] = new Keypoint(in.readVInt(), in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+        }
+        return keypoints;
+    }
+
+    /**
+     * Number of keypoint matches agreeing on one similarity transform from query to doc.
+     * Each match of the same word votes for the scale, rotation and translation it implies, in the two nearest bins of each,
+     * the largest bin is the number of inliers
+     */
+    public static int inliers(Keypoint[] query, Keypoint[] doc) {
+        LongIntOpenHashMap votes = new LongIntOpenHashMap();
+        for (Keypoint q : query) {
+            int matches = 0;
+            for (Keypoint d : doc) {
+                if (d.word != q.word) {
+                    continue;
+                }
+                if (++matches > MAX_MATCHES_PER_WORD) {
+                    break;
+                }
+                double scale = d.scale / q.scale;
+                double rotation = d.orientation - q.orientation;
+                double cos = Math.cos(rotation);
+                double sin = Math.sin(rotation);
+                // where the query origin lands in doc, in query pixels
+                double tx = (d.x - scale * (cos * q.x - sin * q.y)) / scale;
+                double ty = (d.y - scale * (sin * q.x + cos * q.y)) / scale;
+
+                double[] bins = new double[] {log2(scale) / SCALE_BIN, normalize(rotation) / ORIENTATION_BIN, tx / LOCATION_BIN, ty / LOCATION_BIN};
+                for (int corner = 0; corner < 16; corner++) {
+                    long key = 0;
+                    for (int b = 0; b < 4; b++) {
+                        long bin = (long) Math.floor(bins[b]) + ((corner >> b) & 1);
+                        if (b == 1) {
+                            bin = ((bin % 12) + 12) % 12;  // rotation wraps around
+                        }
+                        key = key * 65536 + (bin & 0xFFFF);
+                    }
+                    votes.putOrAdd(key, 1, 1);
+                }
+            }
+        }
+
+        int inliers = 0;
+        for (LongIntCursor cursor : votes) {
+            inliers = Math.max(inliers, cursor.value);
+        }
+        return inliers;
+    }
+
+    private static double log2(double value) {
+        return Math.log(value) / Math.log(2);
+    }
+
+    private static double normalize(double angle) {
+        angle = angle % (2 * Math.PI);
+        return angle < 0 ? angle + 2 * Math.PI : angle;
+    }
+
+    public static class Keypoint {
+        public final int word;
+        public final float x;
+        public final float y;
+        public final float scale;
+        public final float orientation;
+
+        public Keypoint(int word, float x, float y, float scale, float orientation) {
+            this.word = word;
+            this.x = x;
+            this.y = y;
+            this.scale = scale;
+            this.orientation = orientation;
+        }
+    }
+}
@@ -8,56 +8,100 @@ import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
 
 import java.io.IOException;
 
 /**
  * Calculate score for each image
  * score = (1 / distance) * boost
+ * If max distance is set, docs further than it don't match, subclasses should skip them with {@link #withinMaxDistance(int)}
  */
 public abstract class AbstractImageScorer extends Scorer {
     private final String luceneFieldName;
     private final LireFeature lireFeature;
     private final IndexReader reader;
     private final float boost;
+    private final float maxDistance;
     private BinaryDocValues binaryDocValues;
+    private LireFeature docFeature;  // overwritten by each doc
+    private int distanceDoc = -1;
+    private float docDistance;
 
     protected AbstractImageScorer(Weight weight, String luceneFieldName, LireFeature lireFeature, IndexReader reader,
                                   float boost) {
+        this(weight, luceneFieldName, lireFeature, reader, boost, -1);
+    }
+
+    protected AbstractImageScorer(Weight weight, String luceneFieldName, LireFeature lireFeature, IndexReader reader,
+                                  float boost, float maxDistance) {
         super(weight);
         this.luceneFieldName = luceneFieldName;
         this.lireFeature = lireFeature;
         this.reader = reader;
         this.boost = boost;
+        this.maxDistance = maxDistance;
     }
 
     @Override
     public float score() throws IOException {
         assert docID() != NO_MORE_DOCS;
 
-        if (binaryDocValues == null) {
-            AtomicReader atomicReader = (AtomicReader) reader;
-            binaryDocValues = atomicReader.getBinaryDocValues(luceneFieldName);
+        return score(docDistance(docID())) * boost;
+    }
+
+    /**
+     * Whether doc is within max distance, always true if max distance is not set.
+     * Distance is kept so it is not calculated again for score
+     */
+    protected boolean withinMaxDistance(int doc) throws IOException {
+        return maxDistance < 0 || docDistance(doc) <= maxDistance;
+    }
+
+    private float docDistance(int doc) throws IOException {
+        if (doc != distanceDoc) {
+            docDistance = distance(doc);
+            distanceDoc = doc;
+        }
+        return docDistance;
+    }
+
+    /**
+     * Image score of distance, before boost
+     */
+    public static float score(float distance) {
+        if (Float.compare(distance, 1.0f) <= 0) { // distance less than 1, consider as same image
+            return 2f - distance;
+        } else {
+            return 1 / distance;
         }
+    }
 
+    /**
+     * Distance between the query feature and the feature of doc
+     */
+    protected float distance(int doc) throws IOException {
         try {
-            BytesRef bytesRef = binaryDocValues.get(docID());
-            LireFeature docFeature = lireFeature.getClass().newInstance();
-            docFeature.setByteArrayRepresentation(bytesRef.bytes);
-
-            float distance = lireFeature.getDistance(docFeature);
-            float score;
-            if (Float.compare(distance, 1.0f) <= 0) { // distance less than 1, consider as same image
-                score = 2f - distance;
-            } else {
-                score = 1 / distance;
+            BytesRef bytesRef = binaryDocValues().get(doc);
+            if (docFeature == null) {
+                docFeature = FeatureEnum.getByFeature(lireFeature).newFeature();
             }
-            return score * boost;
+            docFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+
+            return lireFeature.getDistance(docFeature);
         } catch (Exception e) {
             throw new ElasticsearchImageProcessException("Failed to calculate score", e);
         }
     }
 
+    protected BinaryDocValues binaryDocValues() throws IOException {
+        if (binaryDocValues == null) {
+            AtomicReader atomicReader = (AtomicReader) reader;
+            binaryDocValues = atomicReader.getBinaryDocValues(luceneFieldName);
+        }
+        return binaryDocValues;
+    }
+
     @Override
     public int freq() {
         return 1;
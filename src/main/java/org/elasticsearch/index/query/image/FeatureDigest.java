@@ -0,0 +1,30 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.common.base.Charsets;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest of query features, LIRE features don't implement equals and hashCode so queries compare features by digest
+ */
+final class FeatureDigest {
+
+    private FeatureDigest() {
+    }
+
+    static byte[] digest(LireFeature... features) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
+            for (LireFeature feature : features) {
+                messageDigest.update(feature.getClass().getName().getBytes(Charsets.UTF_8));
+                messageDigest.update(feature.getByteArrayRepresentation());
+            }
+            return messageDigest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new ElasticsearchImageProcessException("Failed to digest feature", e);
+        }
+    }
+}
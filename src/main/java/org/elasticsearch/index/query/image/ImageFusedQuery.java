@@ -0,0 +1,236 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.ToStringUtils;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+
+
+/**
+ * Score all docs on several features in one pass, score is the weighted sum of the score of each feature.
+ * Same result as a bool query of one {@link ImageQuery} per feature, but docs are only iterated once
+ */
+public class ImageFusedQuery extends Query {
+
+    private String[] luceneFieldNames;
+    private LireFeature[] lireFeatures;
+    private byte[] featureDigest;
+    private float[] weights;
+
+    public ImageFusedQuery(String[] luceneFieldNames, LireFeature[] lireFeatures, float[] weights, float boost) {
+        this.luceneFieldNames = luceneFieldNames;
+        this.lireFeatures = lireFeatures;
+        this.featureDigest = FeatureDigest.digest(lireFeatures);
+        this.weights = weights;
+        setBoost(boost);
+    }
+
+    private class ImageFusedScorer extends Scorer {
+        private int doc = -1;
+        private final int maxDoc;
+        private final Bits liveDocs;
+        private final BinaryDocValues[] binaryDocValues;
+        private final LireFeature[] docFeatures;
+        private final float[] scores;
+
+        ImageFusedScorer(AtomicReader reader, Bits liveDocs, Weight w) throws IOException {
+            super(w);
+            this.liveDocs = liveDocs;
+            maxDoc = reader.maxDoc();
+            binaryDocValues = new BinaryDocValues[luceneFieldNames.length];
+            docFeatures = new LireFeature[luceneFieldNames.length];
+            scores = new float[luceneFieldNames.length];
+            for (int i = 0; i < luceneFieldNames.length; i++) {
+                binaryDocValues[i] = reader.getBinaryDocValues(luceneFieldNames[i]);
+                docFeatures[i] = FeatureEnum.getByFeature(lireFeatures[i]).newFeature();
+            }
+        }
+
+        /**
+         * Score of each feature for current doc, before weight and boost
+         */
+        float[] featureScores() {
+            for (int i = 0; i < binaryDocValues.length; i++) {
+                scores[i] = 0;
+                if (binaryDocValues[i] == null) {
+                    continue;
+                }
+                BytesRef bytesRef = binaryDocValues[i].get(doc);
+                if (bytesRef.length == 0) {
+                    continue;
+                }
+                try {
+                    docFeatures[i].setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                    scores[i] = AbstractImageScorer.score(lireFeatures[i].getDistance(docFeatures[i]));
+                } catch (Exception e) {
+                    throw new ElasticsearchImageProcessException("Failed to calculate score", e);
+                }
+            }
+            return scores;
+        }
+
+        @Override
+        public float score() throws IOException {
+            assert docID() != NO_MORE_DOCS;
+            float[] featureScores = featureScores();
+            float score = 0;
+            for (int i = 0; i < featureScores.length; i++) {
+                score += weights[i] * featureScores[i];
+            }
+            return score * getBoost();
+        }
+
+        @Override
+        public int freq() {
+            return 1;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            doc++;
+            while(liveDocs != null && doc < maxDoc && !liveDocs.get(doc)) {
+                doc++;
+            }
+            if (doc >= maxDoc) {
+                doc = NO_MORE_DOCS;
+            }
+            return doc;
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            if (target == NO_MORE_DOCS) {
+                doc = NO_MORE_DOCS;
+                return doc;
+            }
+            doc = target-1;
+            return nextDoc();
+        }
+
+        @Override
+        public long cost() {
+            return maxDoc;
+        }
+    }
+
+    private class ImageFusedWeight extends Weight {
+        public ImageFusedWeight(IndexSearcher searcher) {
+        }
+
+        @Override
+        public String toString() {
+            return "weight(" + ImageFusedQuery.this + ")";
+        }
+
+        @Override
+        public Query getQuery() {
+            return ImageFusedQuery.this;
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return 1f;
+        }
+
+        @Override
+        public void normalize(float queryNorm, float topLevelBoost) {
+        }
+
+        @Override
+        public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            return new ImageFusedScorer(context.reader(), acceptDocs, this);
+        }
+
+        @Override
+        public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+            ImageFusedScorer scorer = new ImageFusedScorer(context.reader(), context.reader().getLiveDocs(), this);
+            int newDoc = scorer.advance(doc);
+            if (newDoc == doc) {
+                float score = scorer.score();
+                float[] featureScores = scorer.featureScores();
+                ComplexExplanation result = new ComplexExplanation();
+                result.setDescription("ImageFusedQuery, sum of:");
+                result.setValue(score);
+                for (int i = 0; i < featureScores.length; i++) {
+                    Explanation featureExplanation = new Explanation(weights[i] * featureScores[i] * getBoost(), "weighted image score of " + luceneFieldNames[i] + ", product of:");
+                    featureExplanation.addDetail(new Explanation(featureScores[i], "image score (1/distance)"));
+                    featureExplanation.addDetail(new Explanation(weights[i], "weight"));
+                    if (getBoost() != 1.0f) {
+                        featureExplanation.addDetail(new Explanation(getBoost(), "boost"));
+                    }
+                    result.addDetail(featureExplanation);
+                }
+                result.setMatch(true);
+                return result;
+            }
+
+            return new ComplexExplanation(false, 0.0f, "no matching term");
+        }
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) {
+        return new ImageFusedWeight(searcher);
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < luceneFieldNames.length; i++) {
+            if (i > 0) {
+                buffer.append("+");
+            }
+            buffer.append(luceneFieldNames[i]);
+            buffer.append(",");
+            buffer.append(lireFeatures[i].getClass().getSimpleName());
+            buffer.append("^");
+            buffer.append(weights[i]);
+        }
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ImageFusedQuery))
+            return false;
+        ImageFusedQuery other = (ImageFusedQuery) o;
+        return (this.getBoost() == other.getBoost())
+                && Arrays.equals(luceneFieldNames, other.luceneFieldNames)
+                && Arrays.equals(featureDigest, other.featureDigest)
+                && Arrays.equals(weights, other.weights);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + Arrays.hashCode(luceneFieldNames);
+        result = 31 * result + Arrays.hashCode(featureDigest);
+        result = 31 * result + Arrays.hashCode(weights);
+        result = Float.floatToIntBits(getBoost()) ^ result;
+        return result;
+    }
+
+
+}
@@ -14,7 +14,7 @@ import java.util.BitSet;
 import java.util.Set;
 
 /**
- * Query by hash first and only calculate score for top n matches
+ * Query by hash first and only calculate score for top n matches, candidates are limited to docs matching the filter if given
  */
 public class ImageHashLimitQuery extends Query {
 
@@ -23,14 +23,37 @@ public class ImageHashLimitQuery extends Query {
     private int maxResult;
     private String luceneFieldName;
     private LireFeature lireFeature;
+    private byte[] featureDigest;
+    private Filter filter;
+    private float maxDistance;
+    private float maxHashFreq;
+    private int minHashCollisions;
 
 
     public ImageHashLimitQuery(String hashFieldName, int[] hashes, int maxResult, String luceneFieldName, LireFeature lireFeature, float boost) {
+        this(hashFieldName, hashes, maxResult, luceneFieldName, lireFeature, null, -1, boost);
+    }
+
+    public ImageHashLimitQuery(String hashFieldName, int[] hashes, int maxResult, String luceneFieldName, LireFeature lireFeature,
+                               Filter filter, float maxDistance, float boost) {
+        this(hashFieldName, hashes, maxResult, luceneFieldName, lireFeature, filter, maxDistance, 1, 1, boost);
+    }
+
+    /**
+     * Hashes in more than max hash freq (a fraction) of the docs are dropped, candidates must share at least min hash collisions hashes
+     */
+    public ImageHashLimitQuery(String hashFieldName, int[] hashes, int maxResult, String luceneFieldName, LireFeature lireFeature,
+                               Filter filter, float maxDistance, float maxHashFreq, int minHashCollisions, float boost) {
         this.hashFieldName = hashFieldName;
         this.hashes = hashes;
         this.maxResult = maxResult;
         this.luceneFieldName = luceneFieldName;
         this.lireFeature = lireFeature;
+        this.featureDigest = FeatureDigest.digest(lireFeature);
+        this.filter = filter;
+        this.maxDistance = maxDistance;
+        this.maxHashFreq = maxHashFreq;
+        this.minHashCollisions = minHashCollisions;
         setBoost(boost);
     }
 
@@ -43,7 +66,7 @@ public class ImageHashLimitQuery extends Query {
         private final Bits liveDocs;
 
         ImageHashScorer(Weight weight, BitSet bitSet, AtomicReaderContext context, Bits liveDocs) {
-            super(weight, luceneFieldName, lireFeature, context.reader(), ImageHashLimitQuery.this.getBoost());
+            super(weight, luceneFieldName, lireFeature, context.reader(), ImageHashLimitQuery.this.getBoost(), maxDistance);
             this.bitSet = bitSet;
             this.liveDocs = liveDocs;
             maxDoc = context.reader().maxDoc();
@@ -57,6 +80,9 @@ public class ImageHashLimitQuery extends Query {
 
         @Override
         public int nextDoc() throws IOException {
+            if (doc == NO_MORE_DOCS) {
+                return doc;
+            }
             int d;
             do {
                 d = bitSet.nextSetBit(docBase + doc + 1);
@@ -65,12 +91,16 @@ public class ImageHashLimitQuery extends Query {
                 } else {
                     doc = d - docBase;
                 }
-            } while (doc != NO_MORE_DOCS && d < maxDoc + docBase && liveDocs != null && !liveDocs.get(doc));
+            } while (doc != NO_MORE_DOCS && ((liveDocs != null && !liveDocs.get(doc)) || !withinMaxDistance(doc)));
             return doc;
         }
 
         @Override
         public int advance(int target) throws IOException {
+            if (target == NO_MORE_DOCS) {
+                doc = NO_MORE_DOCS;
+                return doc;
+            }
             doc = target-1;
             return nextDoc();
         }
@@ -138,25 +168,44 @@ public class ImageHashLimitQuery extends Query {
 
     @Override
     public Weight createWeight(IndexSearcher searcher) throws IOException {
+        BitSet bitSet = topHashDocs(searcher, hashFieldName, hashes, maxResult, filter, maxHashFreq, minHashCollisions);
+        if (bitSet == null) {  // no result find
+            return Queries.newMatchNoDocsQuery().createWeight(searcher);
+        }
+        return new ImageHashLimitWeight(searcher, bitSet);
+    }
+
+    /**
+     * Top level doc ids of the max result docs sharing the most hashes with the image, ties broken by doc id, null if no doc shares one
+     */
+    static BitSet topHashDocs(IndexSearcher searcher, String hashFieldName, int[] hashes, int maxResult, Filter filter,
+                              float maxHashFreq, int minHashCollisions) throws IOException {
         IndexSearcher indexSearcher = new IndexSearcher(searcher.getIndexReader());
         indexSearcher.setSimilarity(new SimpleSimilarity());
 
+        IndexReader reader = searcher.getIndexReader();
         BooleanQuery booleanQuery = new BooleanQuery();
         for (int h : hashes) {
-            booleanQuery.add(new BooleanClause(new TermQuery(new Term(hashFieldName, Integer.toString(h))), BooleanClause.Occur.SHOULD));
+            Term term = new Term(hashFieldName, Integer.toString(h));
+            if (maxHashFreq < 1 && reader.docFreq(term) > maxHashFreq * reader.maxDoc()) {  // too common, tells little about similarity
+                continue;
+            }
+            booleanQuery.add(new BooleanClause(new TermQuery(term), BooleanClause.Occur.SHOULD));
+        }
+        if (minHashCollisions > 1) {
+            booleanQuery.setMinimumNumberShouldMatch(minHashCollisions);
         }
-        TopDocs topDocs = indexSearcher.search(booleanQuery, maxResult);
+        TopDocs topDocs = indexSearcher.search(booleanQuery, filter, maxResult);
 
-        if (topDocs.scoreDocs.length == 0) {  // no result find
-            return Queries.newMatchNoDocsQuery().createWeight(searcher);
+        if (topDocs.scoreDocs.length == 0) {
+            return null;
         }
 
         BitSet bitSet = new BitSet(topDocs.scoreDocs.length);
         for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
             bitSet.set(scoreDoc.doc);
         }
-
-        return new ImageHashLimitWeight(searcher, bitSet);
+        return bitSet;
     }
 
     @Override
@@ -175,6 +224,22 @@ public class ImageHashLimitQuery extends Query {
         buffer.append(luceneFieldName);
         buffer.append(",");
         buffer.append(lireFeature.getClass().getSimpleName());
+        if (filter != null) {
+            buffer.append(",");
+            buffer.append(filter);
+        }
+        if (maxDistance >= 0) {
+            buffer.append(",max_distance=");
+            buffer.append(maxDistance);
+        }
+        if (maxHashFreq < 1) {
+            buffer.append(",max_hash_freq=");
+            buffer.append(maxHashFreq);
+        }
+        if (minHashCollisions > 1) {
+            buffer.append(",min_hash_collisions=");
+            buffer.append(minHashCollisions);
+        }
         buffer.append(ToStringUtils.boost(getBoost()));
         return buffer.toString();
     }
@@ -187,11 +252,16 @@ public class ImageHashLimitQuery extends Query {
 
         ImageHashLimitQuery that = (ImageHashLimitQuery) o;
 
+        if (getBoost() != that.getBoost()) return false;
         if (maxResult != that.maxResult) return false;
         if (!hashFieldName.equals(that.hashFieldName)) return false;
         if (!Arrays.equals(hashes, that.hashes)) return false;
-        if (!lireFeature.equals(that.lireFeature)) return false;
+        if (!Arrays.equals(featureDigest, that.featureDigest)) return false;
         if (!luceneFieldName.equals(that.luceneFieldName)) return false;
+        if (filter != null ? !filter.equals(that.filter) : that.filter != null) return false;
+        if (maxDistance != that.maxDistance) return false;
+        if (maxHashFreq != that.maxHashFreq) return false;
+        if (minHashCollisions != that.minHashCollisions) return false;
 
         return true;
     }
@@ -203,12 +273,16 @@ public class ImageHashLimitQuery extends Query {
         result = 31 * result + Arrays.hashCode(hashes);
         result = 31 * result + maxResult;
         result = 31 * result + luceneFieldName.hashCode();
-        result = 31 * result + lireFeature.hashCode();
+        result = 31 * result + Arrays.hashCode(featureDigest);
+        result = 31 * result + (filter != null ? filter.hashCode() : 0);
+        result = 31 * result + Float.floatToIntBits(maxDistance);
+        result = 31 * result + Float.floatToIntBits(maxHashFreq);
+        result = 31 * result + minHashCollisions;
         return result;
     }
 
 
-    final class SimpleSimilarity extends DefaultSimilarity{
+    static final class SimpleSimilarity extends DefaultSimilarity{
         @Override
         public float tf(float freq) {
             return 1;
@@ -1,6 +1,7 @@
 package org.elasticsearch.index.query.image;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Set;
 
 import net.semanticmetadata.lire.imageanalysis.LireFeature;
@@ -17,14 +18,17 @@ public class ImageHashQuery extends Query {
 
     private String luceneFieldName;
     private LireFeature lireFeature;
+    private byte[] featureDigest;
     private ImageScoreCache imageScoreCache;
+    private float maxDistance;
+    private float maxHashFreq;
 
     final class ImageHashScorer extends AbstractImageScorer {
         private final DocsEnum docsEnum;
         private final IndexReader reader;
 
         ImageHashScorer(Weight weight, DocsEnum td, IndexReader reader) {
-            super(weight, luceneFieldName, lireFeature, reader, ImageHashQuery.this.getBoost());
+            super(weight, luceneFieldName, lireFeature, reader, ImageHashQuery.this.getBoost(), maxDistance);
             this.docsEnum = td;
             this.reader = reader;
         }
@@ -37,7 +41,7 @@ public class ImageHashQuery extends Query {
 
         @Override
         public int nextDoc() throws IOException {
-            return docsEnum.nextDoc();
+            return nextWithinMaxDistance(docsEnum.nextDoc());
         }
 
         @Override
@@ -55,7 +59,14 @@ public class ImageHashQuery extends Query {
 
         @Override
         public int advance(int target) throws IOException {
-            return docsEnum.advance(target);
+            return nextWithinMaxDistance(docsEnum.advance(target));
+        }
+
+        private int nextWithinMaxDistance(int doc) throws IOException {
+            while (doc != NO_MORE_DOCS && !withinMaxDistance(doc)) {
+                doc = docsEnum.nextDoc();
+            }
+            return doc;
         }
 
         @Override
@@ -66,11 +77,13 @@ public class ImageHashQuery extends Query {
 
     final class ImageHashWeight extends Weight {
         private final TermContext termStates;
+        private final boolean tooCommon;
 
         public ImageHashWeight(IndexSearcher searcher, TermContext termStates)
                 throws IOException {
             assert termStates != null : "TermContext must not be null";
             this.termStates = termStates;
+            this.tooCommon = maxHashFreq < 1 && termStates.docFreq() > maxHashFreq * searcher.getIndexReader().maxDoc();
         }
 
         @Override
@@ -91,6 +104,9 @@ public class ImageHashQuery extends Query {
         @Override
         public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
             assert termStates.topReaderContext == ReaderUtil.getTopLevelContext(context) : "The top-reader used to create Weight (" + termStates.topReaderContext + ") is not the same as the current reader's top-reader (" + ReaderUtil.getTopLevelContext(context);
+            if (tooCommon) {  // too common in the shard, would score most of it
+                return null;
+            }
             final TermsEnum termsEnum = getTermsEnum(context);
             if (termsEnum == null) {
                 return null;
@@ -140,10 +156,25 @@ public class ImageHashQuery extends Query {
     }
 
     public ImageHashQuery(Term t, String luceneFieldName, LireFeature lireFeature, ImageScoreCache imageScoreCache, float boost) {
+        this(t, luceneFieldName, lireFeature, imageScoreCache, -1, boost);
+    }
+
+    public ImageHashQuery(Term t, String luceneFieldName, LireFeature lireFeature, ImageScoreCache imageScoreCache, float maxDistance, float boost) {
+        this(t, luceneFieldName, lireFeature, imageScoreCache, maxDistance, 1, boost);
+    }
+
+    /**
+     * The term is skipped when it is in more than max hash freq (a fraction) of the docs of the shard
+     */
+    public ImageHashQuery(Term t, String luceneFieldName, LireFeature lireFeature, ImageScoreCache imageScoreCache, float maxDistance,
+                          float maxHashFreq, float boost) {
         this.term = t;
         this.luceneFieldName = luceneFieldName;
         this.lireFeature = lireFeature;
+        this.featureDigest = FeatureDigest.digest(lireFeature);
         this.imageScoreCache = imageScoreCache;
+        this.maxDistance = maxDistance;
+        this.maxHashFreq = maxHashFreq;
         setBoost(boost);
     }
 
@@ -175,6 +206,14 @@ public class ImageHashQuery extends Query {
         buffer.append(luceneFieldName);
         buffer.append(",");
         buffer.append(lireFeature.getClass().getSimpleName());
+        if (maxDistance >= 0) {
+            buffer.append(",max_distance=");
+            buffer.append(maxDistance);
+        }
+        if (maxHashFreq < 1) {
+            buffer.append(",max_hash_freq=");
+            buffer.append(maxHashFreq);
+        }
         buffer.append(ToStringUtils.boost(getBoost()));
         return buffer.toString();
     }
@@ -186,8 +225,10 @@ public class ImageHashQuery extends Query {
         ImageHashQuery other = (ImageHashQuery)o;
         return (this.getBoost() == other.getBoost())
                 && this.term.equals(other.term)
-                & luceneFieldName.equals(luceneFieldName)
-                && lireFeature.equals(lireFeature);
+                && luceneFieldName.equals(other.luceneFieldName)
+                && Arrays.equals(featureDigest, other.featureDigest)
+                && maxDistance == other.maxDistance
+                && maxHashFreq == other.maxHashFreq;
     }
 
     @Override
@@ -195,7 +236,9 @@ public class ImageHashQuery extends Query {
         int result = super.hashCode();
         result = 31 * result + term.hashCode();
         result = 31 * result + luceneFieldName.hashCode();
-        result = 31 * result + lireFeature.hashCode();
+        result = 31 * result + Arrays.hashCode(featureDigest);
+        result = 31 * result + Float.floatToIntBits(maxDistance);
+        result = 31 * result + Float.floatToIntBits(maxHashFreq);
         result = Float.floatToIntBits(getBoost()) ^ result;
         return result;
     }
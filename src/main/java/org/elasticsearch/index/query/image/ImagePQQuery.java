@@ -0,0 +1,200 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.ToStringUtils;
+import org.elasticsearch.index.mapper.image.ProductQuantizer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+
+
+/**
+ * Same as {@link ImageQuery}, but calculate distance from product quantization codes.
+ * Distance table is computed once per query, each doc costs one lookup per subspace
+ */
+public class ImagePQQuery extends Query {
+
+    private String pqFieldName;
+    private LireFeature lireFeature;
+    private float[][] distanceTable;
+    private float maxDistance;
+
+    public ImagePQQuery(String pqFieldName, LireFeature lireFeature, ProductQuantizer productQuantizer, float boost) {
+        this(pqFieldName, lireFeature, productQuantizer, -1, boost);
+    }
+
+    public ImagePQQuery(String pqFieldName, LireFeature lireFeature, ProductQuantizer productQuantizer, float maxDistance, float boost) {
+        this.pqFieldName = pqFieldName;
+        this.lireFeature = lireFeature;
+        this.distanceTable = productQuantizer.distanceTable(lireFeature.getDoubleHistogram());
+        this.maxDistance = maxDistance;
+        setBoost(boost);
+    }
+
+    private class ImagePQScorer extends AbstractImageScorer {
+        private int doc = -1;
+        private final int maxDoc;
+        private final Bits liveDocs;
+        private final Bits docsWithField;
+
+        ImagePQScorer(IndexReader reader, Bits liveDocs, Bits docsWithField, Weight w) {
+            super(w, pqFieldName, lireFeature, reader, ImagePQQuery.this.getBoost(), maxDistance);
+            this.liveDocs = liveDocs;
+            this.docsWithField = docsWithField;
+            maxDoc = reader.maxDoc();
+        }
+
+        @Override
+        protected float distance(int doc) throws IOException {
+            BinaryDocValues binaryDocValues = binaryDocValues();
+            BytesRef code = binaryDocValues.get(doc);
+            return ProductQuantizer.distance(distanceTable, code);
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            do {
+                doc++;
+                // docs without pq code (e.g. without image) don't match
+                while(doc < maxDoc && ((liveDocs != null && !liveDocs.get(doc)) || !docsWithField.get(doc))) {
+                    doc++;
+                }
+                if (doc >= maxDoc) {
+                    doc = NO_MORE_DOCS;
+                }
+            } while (doc != NO_MORE_DOCS && !withinMaxDistance(doc));
+            return doc;
+        }
+
+
+        @Override
+        public int advance(int target) throws IOException {
+            if (target == NO_MORE_DOCS) {
+                doc = NO_MORE_DOCS;
+                return doc;
+            }
+            doc = target-1;
+            return nextDoc();
+        }
+
+        @Override
+        public long cost() {
+            return maxDoc;
+        }
+    }
+
+    private class ImagePQWeight extends Weight {
+        public ImagePQWeight(IndexSearcher searcher) {
+        }
+
+        @Override
+        public String toString() {
+            return "weight(" + ImagePQQuery.this + ")";
+        }
+
+        @Override
+        public Query getQuery() {
+            return ImagePQQuery.this;
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return 1f;
+        }
+
+        @Override
+        public void normalize(float queryNorm, float topLevelBoost) {
+        }
+
+        @Override
+        public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            if (context.reader().getBinaryDocValues(pqFieldName) == null) {
+                return null;
+            }
+            return new ImagePQScorer(context.reader(), acceptDocs, context.reader().getDocsWithField(pqFieldName), this);
+        }
+
+        @Override
+        public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+            Scorer scorer = scorer(context, context.reader().getLiveDocs());
+            if (scorer != null) {
+                int newDoc = scorer.advance(doc);
+                if (newDoc == doc) {
+                    float score = scorer.score();
+                    ComplexExplanation result = new ComplexExplanation();
+                    result.setDescription("ImagePQQuery, product of:");
+                    result.setValue(score);
+                    if (getBoost() != 1.0f) {
+                        result.addDetail(new Explanation(getBoost(),"boost"));
+                        score = score / getBoost();
+                    }
+                    result.addDetail(new Explanation(score ,"image score (1/distance)"));
+                    result.setMatch(true);
+                    return result;
+                }
+            }
+
+            return new ComplexExplanation(false, 0.0f, "no matching term");
+        }
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) {
+        return new ImagePQWeight(searcher);
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(pqFieldName);
+        buffer.append(",");
+        buffer.append(lireFeature.getClass().getSimpleName());
+        if (maxDistance >= 0) {
+            buffer.append(",max_distance=");
+            buffer.append(maxDistance);
+        }
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ImagePQQuery))
+            return false;
+        ImagePQQuery other = (ImagePQQuery) o;
+        return (this.getBoost() == other.getBoost())
+                && pqFieldName.equals(other.pqFieldName)
+                && Arrays.deepEquals(distanceTable, other.distanceTable)
+                && maxDistance == other.maxDistance;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + pqFieldName.hashCode();
+        result = 31 * result + Arrays.deepHashCode(distanceTable);
+        result = 31 * result + Float.floatToIntBits(maxDistance);
+        result = Float.floatToIntBits(getBoost()) ^ result;
+        return result;
+    }
+
+
+}
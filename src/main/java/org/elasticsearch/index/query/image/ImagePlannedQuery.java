@@ -0,0 +1,390 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.ToStringUtils;
+import org.elasticsearch.common.collect.Lists;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Image query by hash which picks how to run on each segment from its stats: scan all docs, or score the union of docs sharing a hash.
+ * Scanning small segments, or segments where the hashes cover most docs, is cheaper than reading postings. The picked plan is shown by explain.
+ * Hashes in more than max hash freq (a fraction) of the shard are dropped, only docs sharing min hash collisions hashes are kept,
+ * and with limit only the top limit docs of the shard sharing the most hashes are scored. Scan matches more docs, so it's only picked
+ * without these constraints, with them the query matches the same docs as the static one whatever the segments
+ */
+public class ImagePlannedQuery extends Query {
+
+    /** Relative cost of seeking a hash term, reading a posting and scoring a doc (decode feature and distance) */
+    private static final double TERM_COST = 1;
+    private static final double POSTING_COST = 0.05;
+    private static final double SCORE_COST = 1;
+
+    public static enum Plan {
+        SCAN, HASH_UNION, HASH_LIMIT
+    }
+
+    private final String luceneFieldName;
+    private final LireFeature lireFeature;
+    private final byte[] featureDigest;
+    private final String hashFieldName;
+    private final int[] hashes;
+    private final int limit;
+    private final Filter filter;
+    private final float maxDistance;
+    private final float maxHashFreq;
+    private final int minHashCollisions;
+
+    public ImagePlannedQuery(String luceneFieldName, LireFeature lireFeature, String hashFieldName, int[] hashes, int limit,
+                             Filter filter, float maxDistance, float maxHashFreq, int minHashCollisions, float boost) {
+        this.luceneFieldName = luceneFieldName;
+        this.lireFeature = lireFeature;
+        this.featureDigest = FeatureDigest.digest(lireFeature);
+        this.hashFieldName = hashFieldName;
+        this.hashes = hashes;
+        this.limit = limit;
+        this.filter = filter;
+        this.maxDistance = maxDistance;
+        this.maxHashFreq = maxHashFreq;
+        this.minHashCollisions = minHashCollisions;
+        setBoost(boost);
+    }
+
+    /**
+     * Plan of a segment with the stats it was picked from
+     */
+    static class SegmentPlan {
+        final Plan plan;
+        final int maxDoc;
+        final int docs;
+        final int hashTerms;
+        final long hashDocFreq;
+        final double scanCost;
+        final double hashCost;
+
+        SegmentPlan(Plan plan, int maxDoc, int docs, int hashTerms, long hashDocFreq, double scanCost, double hashCost) {
+            this.plan = plan;
+            this.maxDoc = maxDoc;
+            this.docs = docs;
+            this.hashTerms = hashTerms;
+            this.hashDocFreq = hashDocFreq;
+            this.scanCost = scanCost;
+            this.hashCost = hashCost;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "plan %s, max_doc=%d, docs=%d, hash terms=%d, hash doc_freq=%d, scan cost=%.1f, hash cost=%.1f",
+                    plan.name().toLowerCase(Locale.ROOT), maxDoc, docs, hashTerms, hashDocFreq, scanCost, hashCost);
+        }
+    }
+
+    /**
+     * Score candidate docs of the segment, in doc id order
+     */
+    private class PlannedImageScorer extends AbstractImageScorer {
+        private final DocIdSetIterator candidates;
+        private final SegmentPlan segmentPlan;
+
+        PlannedImageScorer(Weight weight, AtomicReader reader, DocIdSetIterator candidates, SegmentPlan segmentPlan) {
+            super(weight, luceneFieldName, lireFeature, reader, ImagePlannedQuery.this.getBoost(), maxDistance);
+            this.candidates = candidates;
+            this.segmentPlan = segmentPlan;
+        }
+
+        SegmentPlan segmentPlan() {
+            return segmentPlan;
+        }
+
+        @Override
+        public int docID() {
+            return candidates.docID();
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return nextWithinMaxDistance(candidates.nextDoc());
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return nextWithinMaxDistance(candidates.advance(target));
+        }
+
+        private int nextWithinMaxDistance(int doc) throws IOException {
+            while (doc != NO_MORE_DOCS && !withinMaxDistance(doc)) {
+                doc = candidates.nextDoc();
+            }
+            return doc;
+        }
+
+        @Override
+        public long cost() {
+            return candidates.cost();
+        }
+    }
+
+    private class ImagePlannedWeight extends Weight {
+        private final List<BytesRef> shardHashTerms;
+        private final BitSet topDocs;
+
+        ImagePlannedWeight(List<BytesRef> shardHashTerms, BitSet topDocs) {
+            this.shardHashTerms = shardHashTerms;
+            this.topDocs = topDocs;
+        }
+
+        @Override
+        public String toString() {
+            return "weight(" + ImagePlannedQuery.this + ")";
+        }
+
+        @Override
+        public Query getQuery() {
+            return ImagePlannedQuery.this;
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return 1f;
+        }
+
+        @Override
+        public void normalize(float queryNorm, float topLevelBoost) {
+        }
+
+        @Override
+        public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            AtomicReader reader = context.reader();
+            int maxDoc = reader.maxDoc();
+
+            // docs allowed in this segment, from the filter if given
+            Bits allowed = acceptDocs;
+            int docs = reader.numDocs();
+            if (filter != null) {
+                DocIdSet docIdSet = filter.getDocIdSet(context, acceptDocs);
+                DocIdSetIterator filterIterator = docIdSet == null ? null : docIdSet.iterator();
+                if (filterIterator == null) {
+                    return null;
+                }
+                FixedBitSet filterBits = new FixedBitSet(maxDoc);
+                filterBits.or(filterIterator);
+                allowed = filterBits;
+                docs = filterBits.cardinality();
+            }
+            if (docs == 0 || (limit > 0 && topDocs == null)) {
+                return null;
+            }
+
+            // hash terms in the segment, the ones too common in the shard are already dropped
+            TermsEnum termsEnum = null;
+            Terms terms = reader.terms(hashFieldName);
+            List<BytesRef> hashTerms = Lists.newArrayList();
+            long hashDocFreq = 0;
+            if (terms != null) {
+                termsEnum = terms.iterator(null);
+                for (BytesRef hashTerm : shardHashTerms) {
+                    if (termsEnum.seekExact(hashTerm)) {
+                        hashTerms.add(hashTerm);
+                        hashDocFreq += termsEnum.docFreq();
+                    }
+                }
+            }
+            SegmentPlan segmentPlan = plan(maxDoc, reader.numDocs(), docs, hashTerms.size(), hashDocFreq);
+
+            DocIdSetIterator candidates;
+            if (segmentPlan.plan == Plan.SCAN) {
+                final Bits scanned = allowed;
+                candidates = new FieldCacheDocIdSet(maxDoc, null) {
+                    @Override
+                    protected boolean matchDoc(int doc) {
+                        return scanned == null || scanned.get(doc);
+                    }
+                }.iterator();
+            } else if (segmentPlan.plan == Plan.HASH_LIMIT) {
+                candidates = topCandidates(topDocs, context.docBase, maxDoc, acceptDocs);
+                if (candidates == null) {
+                    return null;
+                }
+            } else {
+                candidates = hashCandidates(termsEnum, hashTerms, allowed, maxDoc);
+                if (candidates == null) {
+                    return null;
+                }
+            }
+            return new PlannedImageScorer(this, reader, candidates, segmentPlan);
+        }
+
+        @Override
+        public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+            PlannedImageScorer scorer = (PlannedImageScorer) scorer(context, context.reader().getLiveDocs());
+            if (scorer != null) {
+                int newDoc = scorer.advance(doc);
+                if (newDoc == doc) {
+                    float score = scorer.score();
+                    ComplexExplanation result = new ComplexExplanation();
+                    result.setDescription("ImagePlannedQuery, product of:");
+                    result.setValue(score);
+                    if (getBoost() != 1.0f) {
+                        result.addDetail(new Explanation(getBoost(),"boost"));
+                        score = score / getBoost();
+                    }
+                    Explanation scoreExplanation = new Explanation(score, "image score (1/distance)");
+                    scoreExplanation.addDetail(new Explanation(0f, scorer.segmentPlan().toString()));
+                    result.addDetail(scoreExplanation);
+                    result.setMatch(true);
+                    return result;
+                }
+            }
+
+            return new ComplexExplanation(false, 0.0f, "no matching term");
+        }
+    }
+
+    /**
+     * Cheapest plan of a segment. Deleted docs are still in postings, so hash doc freq is scaled by the live doc ratio.
+     * With limit the top docs are picked for the shard, so the segment only scores its share of them
+     */
+    SegmentPlan plan(int maxDoc, int numDocs, int docs, int hashTerms, long hashDocFreq) {
+        double liveRatio = maxDoc == 0 ? 0 : (double) numDocs / maxDoc;
+        double hashCandidates = Math.min(docs, hashDocFreq * liveRatio / minHashCollisions);
+        double scanCost = docs * SCORE_COST;
+        double hashCost = hashTerms * TERM_COST + hashDocFreq * POSTING_COST + Math.min(hashCandidates, limit > 0 ? limit : docs) * SCORE_COST;
+
+        Plan hashPlan = limit > 0 ? Plan.HASH_LIMIT : Plan.HASH_UNION;
+        boolean scannable = limit <= 0 && minHashCollisions == 1 && maxHashFreq >= 1;  // scan doesn't drop docs like the constraints do
+        return new SegmentPlan(scannable && scanCost <= hashCost ? Plan.SCAN : hashPlan, maxDoc, docs, hashTerms, hashDocFreq, scanCost, hashCost);
+    }
+
+    /**
+     * Allowed docs sharing at least min hash collisions hashes
+     */
+    private DocIdSetIterator hashCandidates(TermsEnum termsEnum, List<BytesRef> hashTerms, Bits allowed, int maxDoc) throws IOException {
+        if (termsEnum == null) {
+            return null;
+        }
+        FixedBitSet bits = new FixedBitSet(maxDoc);
+        int[] counts = minHashCollisions > 1 ? new int[maxDoc] : null;
+        DocsEnum docsEnum = null;
+        for (BytesRef hashTerm : hashTerms) {
+            termsEnum.seekExact(hashTerm);
+            docsEnum = termsEnum.docs(allowed, docsEnum, DocsEnum.FLAG_NONE);
+            int doc;
+            while ((doc = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                if (counts == null) {
+                    bits.set(doc);
+                } else if (++counts[doc] >= minHashCollisions) {
+                    bits.set(doc);
+                }
+            }
+        }
+        return bits.cardinality() == 0 ? null : bits.iterator();
+    }
+
+    /**
+     * Live docs of the segment among the top docs of the shard
+     */
+    private DocIdSetIterator topCandidates(BitSet topDocs, int docBase, int maxDoc, Bits acceptDocs) {
+        FixedBitSet bits = new FixedBitSet(maxDoc);
+        for (int doc = topDocs.nextSetBit(docBase); doc != -1 && doc < docBase + maxDoc; doc = topDocs.nextSetBit(doc + 1)) {
+            if (acceptDocs == null || acceptDocs.get(doc - docBase)) {
+                bits.set(doc - docBase);
+            }
+        }
+        return bits.cardinality() == 0 ? null : bits.iterator();
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+        IndexReader reader = searcher.getIndexReader();
+        List<BytesRef> shardHashTerms = Lists.newArrayList();
+        for (int h : hashes) {
+            Term term = new Term(hashFieldName, Integer.toString(h));
+            if (maxHashFreq < 1 && reader.docFreq(term) > maxHashFreq * reader.maxDoc()) {  // too common, tells little about similarity
+                continue;
+            }
+            shardHashTerms.add(term.bytes());
+        }
+        BitSet topDocs = limit > 0 ? ImageHashLimitQuery.topHashDocs(searcher, hashFieldName, hashes, limit, filter, maxHashFreq, minHashCollisions) : null;
+        return new ImagePlannedWeight(shardHashTerms, topDocs);
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(hashFieldName);
+        buffer.append(",");
+        buffer.append(Arrays.toString(hashes));
+        if (limit > 0) {
+            buffer.append(",limit=");
+            buffer.append(limit);
+        }
+        buffer.append(",");
+        buffer.append(luceneFieldName);
+        buffer.append(",");
+        buffer.append(lireFeature.getClass().getSimpleName());
+        if (filter != null) {
+            buffer.append(",");
+            buffer.append(filter);
+        }
+        if (maxDistance >= 0) {
+            buffer.append(",max_distance=");
+            buffer.append(maxDistance);
+        }
+        if (maxHashFreq < 1) {
+            buffer.append(",max_hash_freq=");
+            buffer.append(maxHashFreq);
+        }
+        if (minHashCollisions > 1) {
+            buffer.append(",min_hash_collisions=");
+            buffer.append(minHashCollisions);
+        }
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ImagePlannedQuery))
+            return false;
+        ImagePlannedQuery other = (ImagePlannedQuery) o;
+        return (this.getBoost() == other.getBoost())
+                && luceneFieldName.equals(other.luceneFieldName)
+                && Arrays.equals(featureDigest, other.featureDigest)
+                && hashFieldName.equals(other.hashFieldName)
+                && Arrays.equals(hashes, other.hashes)
+                && limit == other.limit
+                && (filter == null ? other.filter == null : filter.equals(other.filter))
+                && maxDistance == other.maxDistance
+                && maxHashFreq == other.maxHashFreq
+                && minHashCollisions == other.minHashCollisions;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + luceneFieldName.hashCode();
+        result = 31 * result + Arrays.hashCode(featureDigest);
+        result = 31 * result + hashFieldName.hashCode();
+        result = 31 * result + Arrays.hashCode(hashes);
+        result = 31 * result + limit;
+        result = 31 * result + (filter != null ? filter.hashCode() : 0);
+        result = 31 * result + Float.floatToIntBits(maxDistance);
+        result = 31 * result + Float.floatToIntBits(maxHashFreq);
+        result = 31 * result + minHashCollisions;
+        return result;
+    }
+}
@@ -7,22 +7,38 @@ import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.ToStringUtils;
+import org.elasticsearch.common.lucene.search.XFilteredQuery;
+import org.elasticsearch.search.internal.SearchContext;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Set;
 
 
 /**
- * Copied from {@link MatchAllDocsQuery}, calculate score for all docs
+ * Copied from {@link MatchAllDocsQuery}, calculate score for all docs, or only for docs matching the filter if given.
+ * Docs further than max distance don't match if it is set
  */
 public class ImageQuery extends Query {
 
     private String luceneFieldName;
     private LireFeature lireFeature;
+    private byte[] featureDigest;
+    private Filter filter;
+    private float maxDistance;
+    private ImageQueryCache cache;
 
     public ImageQuery(String luceneFieldName, LireFeature lireFeature, float boost) {
+        this(luceneFieldName, lireFeature, null, -1, null, boost);
+    }
+
+    public ImageQuery(String luceneFieldName, LireFeature lireFeature, Filter filter, float maxDistance, ImageQueryCache cache, float boost) {
         this.luceneFieldName = luceneFieldName;
         this.lireFeature = lireFeature;
+        this.featureDigest = FeatureDigest.digest(lireFeature);
+        this.filter = filter;
+        this.maxDistance = maxDistance;
+        this.cache = cache;
         setBoost(boost);
     }
 
@@ -32,7 +48,7 @@ public class ImageQuery extends Query {
         private final Bits liveDocs;
 
         ImageScorer(IndexReader reader, Bits liveDocs, Weight w) {
-            super(w, luceneFieldName, lireFeature, reader, ImageQuery.this.getBoost());
+            super(w, luceneFieldName, lireFeature, reader, ImageQuery.this.getBoost(), maxDistance);
             this.liveDocs = liveDocs;
             maxDoc = reader.maxDoc();
         }
@@ -44,13 +60,15 @@ public class ImageQuery extends Query {
 
         @Override
         public int nextDoc() throws IOException {
-            doc++;
-            while(liveDocs != null && doc < maxDoc && !liveDocs.get(doc)) {
+            do {
                 doc++;
-            }
-            if (doc == maxDoc) {
-                doc = NO_MORE_DOCS;
-            }
+                while(liveDocs != null && doc < maxDoc && !liveDocs.get(doc)) {
+                    doc++;
+                }
+                if (doc >= maxDoc) {
+                    doc = NO_MORE_DOCS;
+                }
+            } while (doc != NO_MORE_DOCS && !withinMaxDistance(doc));
             return doc;
         }
 
@@ -67,8 +85,134 @@ public class ImageQuery extends Query {
         }
     }
 
+    /**
+     * Iterate docs of the filter instead of all docs, cost is the cost of the filter
+     */
+    private class FilteredImageScorer extends AbstractImageScorer {
+        private final DocIdSetIterator filterIterator;
+
+        FilteredImageScorer(IndexReader reader, DocIdSetIterator filterIterator, Weight w) {
+            super(w, luceneFieldName, lireFeature, reader, ImageQuery.this.getBoost(), maxDistance);
+            this.filterIterator = filterIterator;
+        }
+
+        @Override
+        public int docID() {
+            return filterIterator.docID();
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return nextWithinMaxDistance(filterIterator.nextDoc());
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return nextWithinMaxDistance(filterIterator.advance(target));
+        }
+
+        private int nextWithinMaxDistance(int doc) throws IOException {
+            while (doc != NO_MORE_DOCS && !withinMaxDistance(doc)) {
+                doc = filterIterator.nextDoc();
+            }
+            return doc;
+        }
+
+        @Override
+        public long cost() {
+            return filterIterator.cost();
+        }
+    }
+
+    /**
+     * Iterate cached matches of the segment, docs not accepted (e.g. deleted since the result was cached) are skipped.
+     * Matches past the cached ones are scored from the resume doc of the result
+     */
+    private class CachedImageScorer extends Scorer {
+        private final ImageQueryCache.Result result;
+        private final AtomicReaderContext context;
+        private final Bits acceptDocs;
+        private Scorer resumed;  // scores matches past the cached ones, null until they are reached
+        private int index = -1;
+        private int doc = -1;
+
+        CachedImageScorer(ImageQueryCache.Result result, AtomicReaderContext context, Bits acceptDocs, ImageWeight w) {
+            super(w);
+            this.result = result;
+            this.context = context;
+            this.acceptDocs = acceptDocs;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            if (resumed != null) {
+                doc = resumed.nextDoc();
+                return doc;
+            }
+            return nextAccepted(index + 1);
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            if (resumed != null || (result.resumeDoc() != NO_MORE_DOCS && target >= result.resumeDoc())) {
+                return resume(target);
+            }
+            int found = Arrays.binarySearch(result.docs(), index + 1, result.size(), target);
+            return nextAccepted(found >= 0 ? found : -found - 1);
+        }
+
+        private int nextAccepted(int i) throws IOException {
+            int[] docs = result.docs();
+            while (i < result.size() && acceptDocs != null && !acceptDocs.get(docs[i])) {
+                i++;
+            }
+            index = i;
+            if (i < result.size()) {
+                doc = docs[i];
+            } else {
+                doc = result.resumeDoc() == NO_MORE_DOCS ? NO_MORE_DOCS : resume(result.resumeDoc());
+            }
+            return doc;
+        }
+
+        private int resume(int target) throws IOException {
+            if (resumed == null) {
+                resumed = ((ImageWeight) weight).uncachedScorer(context, acceptDocs);
+                if (resumed == null) {
+                    doc = NO_MORE_DOCS;
+                    return doc;
+                }
+            }
+            doc = resumed.advance(Math.max(target, result.resumeDoc()));
+            return doc;
+        }
+
+        @Override
+        public float score() throws IOException {
+            return resumed != null ? resumed.score() : result.scores()[index];
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return 1;
+        }
+
+        @Override
+        public long cost() {
+            return result.resumeDoc() == NO_MORE_DOCS ? result.size() : result.size() + context.reader().maxDoc() - result.resumeDoc();
+        }
+    }
+
     private class ImageWeight extends Weight {
-        public ImageWeight(IndexSearcher searcher) {
+        private final Query topLevelQuery;  // cache key, null if results are not cached
+
+        public ImageWeight(IndexSearcher searcher, Query topLevelQuery) {
+            this.topLevelQuery = topLevelQuery;
         }
 
         @Override
@@ -92,12 +236,88 @@ public class ImageQuery extends Query {
 
         @Override
         public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
-            return new ImageScorer(context.reader(), acceptDocs, this);
+            if (topLevelQuery == null) {
+                return uncachedScorer(context, acceptDocs);
+            }
+            ImageQueryCache.Result result = cache.get(context.reader(), topLevelQuery);
+            if (result == null) {
+                result = record(context);
+            }
+            if (result == null) {
+                return uncachedScorer(context, acceptDocs);
+            }
+            if (result.size() == 0 && result.resumeDoc() == DocIdSetIterator.NO_MORE_DOCS) {
+                return null;
+            }
+            return new CachedImageScorer(result, context, acceptDocs, this);
+        }
+
+        /**
+         * Score the docs of the segment the top-level query will visit anyway (live docs accepted by its type or alias filter)
+         * and cache the matches, up to the max matches of an entry. Null if the segment can't be cached
+         */
+        private ImageQueryCache.Result record(AtomicReaderContext context) throws IOException {
+            ImageQueryCache.Recorder recorder = cache.recorder(context.reader(), topLevelQuery);
+            if (recorder == null) {
+                return null;
+            }
+            Scorer scorer = uncachedScorer(context, context.reader().getLiveDocs());
+            if (scorer == null) {
+                return recorder.finish();
+            }
+            if (!(topLevelQuery instanceof XFilteredQuery)) {
+                for (int doc = scorer.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = scorer.nextDoc()) {
+                    if (!recorder.record(doc, scorer.score())) {
+                        return recorder.finish(doc);
+                    }
+                }
+                return recorder.finish();
+            }
+
+            DocIdSet docIdSet = ((XFilteredQuery) topLevelQuery).getFilter().getDocIdSet(context, context.reader().getLiveDocs());
+            DocIdSetIterator filterIterator = docIdSet == null ? null : docIdSet.iterator();
+            if (filterIterator == null) {
+                return recorder.finish();
+            }
+            int doc = -1;
+            int filterDoc = filterIterator.nextDoc();
+            while (filterDoc != DocIdSetIterator.NO_MORE_DOCS) {
+                if (doc < filterDoc) {
+                    doc = scorer.advance(filterDoc);
+                }
+                if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+                    break;
+                }
+                if (doc == filterDoc) {
+                    if (!recorder.record(doc, scorer.score())) {
+                        return recorder.finish(doc);
+                    }
+                    filterDoc = filterIterator.nextDoc();
+                } else {
+                    filterDoc = filterIterator.advance(doc);
+                }
+            }
+            return recorder.finish();
+        }
+
+        private Scorer uncachedScorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            if (filter == null) {
+                return new ImageScorer(context.reader(), acceptDocs, this);
+            }
+            DocIdSet docIdSet = filter.getDocIdSet(context, acceptDocs);
+            if (docIdSet == null) {
+                return null;
+            }
+            DocIdSetIterator filterIterator = docIdSet.iterator();
+            if (filterIterator == null) {
+                return null;
+            }
+            return new FilteredImageScorer(context.reader(), filterIterator, this);
         }
 
         @Override
         public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
-            Scorer scorer = scorer(context, context.reader().getLiveDocs());
+            Scorer scorer = uncachedScorer(context, context.reader().getLiveDocs());
             if (scorer != null) {
                 int newDoc = scorer.advance(doc);
                 if (newDoc == doc) {
@@ -121,7 +341,23 @@ public class ImageQuery extends Query {
 
     @Override
     public Weight createWeight(IndexSearcher searcher) {
-        return new ImageWeight(searcher);
+        return new ImageWeight(searcher, cache == null ? null : topLevelQuery());
+    }
+
+    /**
+     * Query of the current search if this query is its top-level query, possibly filtered by type or alias. Its scorers only
+     * iterate every match of each segment once, unlike scorers of a query in a bool query, a rescore query or explain. Null otherwise
+     */
+    private Query topLevelQuery() {
+        SearchContext searchContext = SearchContext.current();
+        if (searchContext == null) {
+            return null;
+        }
+        Query query = searchContext.query();
+        if (query == this || (query instanceof XFilteredQuery && ((XFilteredQuery) query).getQuery() == this)) {
+            return query;
+        }
+        return null;
     }
 
     @Override
@@ -134,6 +370,14 @@ public class ImageQuery extends Query {
         buffer.append(luceneFieldName);
         buffer.append(",");
         buffer.append(lireFeature.getClass().getSimpleName());
+        if (filter != null) {
+            buffer.append(",");
+            buffer.append(filter);
+        }
+        if (maxDistance >= 0) {
+            buffer.append(",max_distance=");
+            buffer.append(maxDistance);
+        }
         buffer.append(ToStringUtils.boost(getBoost()));
         return buffer.toString();
     }
@@ -145,15 +389,19 @@ public class ImageQuery extends Query {
             return false;
         ImageQuery other = (ImageQuery) o;
         return (this.getBoost() == other.getBoost())
-                && luceneFieldName.equals(luceneFieldName)
-                && lireFeature.equals(lireFeature);
+                && luceneFieldName.equals(other.luceneFieldName)
+                && Arrays.equals(featureDigest, other.featureDigest)
+                && (filter == null ? other.filter == null : filter.equals(other.filter))
+                && maxDistance == other.maxDistance;
     }
 
     @Override
     public int hashCode() {
         int result = super.hashCode();
         result = 31 * result + luceneFieldName.hashCode();
-        result = 31 * result + lireFeature.hashCode();
+        result = 31 * result + Arrays.hashCode(featureDigest);
+        result = 31 * result + (filter != null ? filter.hashCode() : 0);
+        result = 31 * result + Float.floatToIntBits(maxDistance);
         result = Float.floatToIntBits(getBoost()) ^ result;
         return result;
     }
@@ -1,11 +1,14 @@
 package org.elasticsearch.index.query.image;
 
 
+import org.elasticsearch.common.collect.Maps;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.index.query.BaseQueryBuilder;
 import org.elasticsearch.index.query.BoostableQueryBuilder;
+import org.elasticsearch.index.query.FilterBuilder;
 
 import java.io.IOException;
+import java.util.Map;
 
 public class ImageQueryBuilder extends BaseQueryBuilder implements BoostableQueryBuilder<ImageQueryBuilder> {
 
@@ -13,14 +16,34 @@ public class ImageQueryBuilder extends BaseQueryBuilder implements BoostableQuer
 
     private String feature;
 
+    private Map<String, Float> features;
+
     private byte[] image;
 
+    private byte[] featureVector;
+
     private String hash;
 
+    private int[] hashes;
+
     private float boost = -1;
 
     private int limit = -1;
 
+    private int nprobe = -1;
+
+    private Boolean pq;
+
+    private FilterBuilder filter;
+
+    private float maxDistance = -1;
+
+    private String plan;
+
+    private float maxHashFreq = -1;
+
+    private int minHashCollisions = -1;
+
     private String lookupIndex;
 
     private String lookupType;
@@ -40,11 +63,38 @@ public class ImageQueryBuilder extends BaseQueryBuilder implements BoostableQuer
         return this;
     }
 
+    /**
+     * Add a feature to score on with weight, all added features are scored in one pass
+     */
+    public ImageQueryBuilder feature(String feature, float weight) {
+        if (features == null) {
+            features = Maps.newLinkedHashMap();
+        }
+        features.put(feature, weight);
+        return this;
+    }
+
     public ImageQueryBuilder image(byte[] image) {
         this.image = image;
         return this;
     }
 
+    /**
+     * Feature already extracted by client, in {@code LireFeature.getByteArrayRepresentation()} form, instead of image
+     */
+    public ImageQueryBuilder featureVector(byte[] featureVector) {
+        this.featureVector = featureVector;
+        return this;
+    }
+
+    /**
+     * Hashes already computed by client from the feature, used instead of hashing the feature again
+     */
+    public ImageQueryBuilder hashes(int[] hashes) {
+        this.hashes = hashes;
+        return this;
+    }
+
     public ImageQueryBuilder hash(String hash) {
         this.hash = hash;
         return this;
@@ -55,6 +105,56 @@ public class ImageQueryBuilder extends BaseQueryBuilder implements BoostableQuer
         return this;
     }
 
+    public ImageQueryBuilder nprobe(int nprobe) {
+        this.nprobe = nprobe;
+        return this;
+    }
+
+    public ImageQueryBuilder pq(boolean pq) {
+        this.pq = pq;
+        return this;
+    }
+
+    /**
+     * Only score images matching the filter
+     */
+    public ImageQueryBuilder filter(FilterBuilder filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * Only match images within the distance, e.g. 0 for exact duplicates
+     */
+    public ImageQueryBuilder maxDistance(float maxDistance) {
+        this.maxDistance = maxDistance;
+        return this;
+    }
+
+    /**
+     * "auto" to pick scan, hash union or hash limit per segment, "static" (default) to follow hash and limit
+     */
+    public ImageQueryBuilder plan(String plan) {
+        this.plan = plan;
+        return this;
+    }
+
+    /**
+     * Drop hashes found in more than this fraction of the docs, e.g. hashes of near black images
+     */
+    public ImageQueryBuilder maxHashFreq(float maxHashFreq) {
+        this.maxHashFreq = maxHashFreq;
+        return this;
+    }
+
+    /**
+     * Only match images sharing at least this number of hashes with the image to search
+     */
+    public ImageQueryBuilder minHashCollisions(int minHashCollisions) {
+        this.minHashCollisions = minHashCollisions;
+        return this;
+    }
+
     public ImageQueryBuilder lookupIndex(String lookupIndex) {
         this.lookupIndex = lookupIndex;
         return this;
@@ -91,12 +191,22 @@ public class ImageQueryBuilder extends BaseQueryBuilder implements BoostableQuer
         builder.startObject(ImageQueryParser.NAME);
 
         builder.startObject(fieldName);
-        builder.field("feature", feature);
+        if (feature != null) {
+            builder.field("feature", feature);
+        }
+
+        if (features != null) {
+            builder.field("features", features);
+        }
 
         if (image != null) {
             builder.field("image", image);
         }
 
+        if (featureVector != null) {
+            builder.field("feature_vector", featureVector);
+        }
+
 
         if (lookupIndex != null) {
             builder.field("index", lookupIndex);
@@ -112,6 +222,10 @@ public class ImageQueryBuilder extends BaseQueryBuilder implements BoostableQuer
             builder.field("hash", hash);
         }
 
+        if (hashes != null) {
+            builder.field("hashes", hashes);
+        }
+
         if (boost != -1) {
             builder.field("boost", boost);
         }
@@ -120,6 +234,35 @@ public class ImageQueryBuilder extends BaseQueryBuilder implements BoostableQuer
             builder.field("limit", limit);
         }
 
+        if (nprobe != -1) {
+            builder.field("nprobe", nprobe);
+        }
+
+        if (pq != null) {
+            builder.field("pq", pq);
+        }
+
+        if (maxDistance != -1) {
+            builder.field("max_distance", maxDistance);
+        }
+
+        if (plan != null) {
+            builder.field("plan", plan);
+        }
+
+        if (maxHashFreq != -1) {
+            builder.field("max_hash_freq", maxHashFreq);
+        }
+
+        if (minHashCollisions != -1) {
+            builder.field("min_hash_collisions", minHashCollisions);
+        }
+
+        if (filter != null) {
+            builder.field("filter");
+            filter.toXContent(builder, params);
+        }
+
         builder.endObject();
 
         builder.endObject();
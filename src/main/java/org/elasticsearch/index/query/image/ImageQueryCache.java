@@ -0,0 +1,240 @@
+package org.elasticsearch.index.query.image;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.ArrayUtil;
+import org.elasticsearch.common.breaker.MemoryCircuitBreaker;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.CacheStats;
+import org.elasticsearch.common.cache.RemovalListener;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lucene.SegmentReaderUtils;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.indices.fielddata.breaker.CircuitBreakerService;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per segment results of top-level image queries, so repeated queries (paging, refreshing the same page) don't scan the segment again.
+ * An entry holds at most a tenth of the cache, matches of a segment past it are not recorded and are scored again by each query.
+ * Cached results are charged to the circuit breaker, entries of a segment are removed when the segment is closed
+ */
+public class ImageQueryCache extends AbstractComponent implements AtomicReader.CoreClosedListener {
+
+    public static final String SIZE_SETTING = "image.query_cache.size";
+
+    private final Cache<Key, Result> cache;
+
+    private final int maxDocs;
+
+    private final ConcurrentMap<Object, Set<Key>> coreKeys = ConcurrentCollections.newConcurrentMap();  // cores with a close listener
+
+    private final CircuitBreakerService circuitBreakerService;
+
+    @Inject
+    public ImageQueryCache(Settings settings, CircuitBreakerService circuitBreakerService) {
+        super(settings);
+        this.circuitBreakerService = circuitBreakerService;
+        ByteSizeValue size = settings.getAsBytesSize(SIZE_SETTING, new ByteSizeValue(10, ByteSizeUnit.MB));
+        if (size.bytes() > 0) {
+            cache = CacheBuilder.newBuilder().maximumWeight(size.bytes()).weigher(new Weigher<Key, Result>() {
+                @Override
+                public int weigh(Key key, Result value) {
+                    return (int) Math.min(Integer.MAX_VALUE, value.ramBytesUsed());
+                }
+            }).removalListener(new RemovalListener<Key, Result>() {
+                @Override
+                public void onRemoval(RemovalNotification<Key, Result> notification) {
+                    Set<Key> keys = coreKeys.get(notification.getKey().coreKey);
+                    if (keys != null) {
+                        keys.remove(notification.getKey());
+                    }
+                    ImageQueryCache.this.circuitBreakerService.getBreaker().addWithoutBreaking(-notification.getValue().ramBytesUsed());
+                }
+            }).recordStats().build();
+            maxDocs = (int) Math.min(ArrayUtil.MAX_ARRAY_LENGTH, size.bytes() / 10 / 8);  // a doc and its score take 8 bytes
+        } else {
+            cache = null;
+            maxDocs = 0;
+        }
+    }
+
+    /**
+     * Cached result of query on the segment of reader, null if not cached
+     */
+    public Result get(AtomicReader reader, Query query) {
+        if (cache == null) {
+            return null;
+        }
+        return cache.getIfPresent(new Key(reader.getCoreCacheKey(), query));
+    }
+
+    /**
+     * Recorder of the result of query on the segment of reader, null if results of the segment can't be cached
+     */
+    public Recorder recorder(AtomicReader reader, Query query) {
+        if (cache == null) {
+            return null;
+        }
+        Object coreKey = reader.getCoreCacheKey();
+        if (coreKeys.putIfAbsent(coreKey, ConcurrentCollections.<Key>newConcurrentSet()) == null) {
+            if (!SegmentReaderUtils.registerCoreListener(reader, this)) {  // can't know when to evict
+                coreKeys.remove(coreKey);
+                return null;
+            }
+        }
+        return new Recorder(new Key(coreKey, query));
+    }
+
+    public CacheStats stats() {
+        return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+    }
+
+    @Override
+    public void onClose(Object coreKey) {
+        Set<Key> keys = coreKeys.remove(coreKey);
+        if (keys != null) {
+            cache.invalidateAll(keys);
+        }
+    }
+
+    /**
+     * Records matches of a segment in doc id order, up to the max matches of an entry, they are cached once recording is finished
+     */
+    public class Recorder {
+        private final Key key;
+        private int[] docs = new int[16];
+        private float[] scores = new float[16];
+        private int size = 0;
+
+        Recorder(Key key) {
+            this.key = key;
+        }
+
+        /**
+         * Record a match, false if the entry is full, the match is not recorded and recording should be finished from it
+         */
+        public boolean record(int doc, float score) {
+            if (size == maxDocs) {
+                return false;
+            }
+            if (size == docs.length) {
+                docs = ArrayUtil.grow(docs, size + 1);
+                scores = ArrayUtil.grow(scores, size + 1);
+            }
+            docs[size] = doc;
+            scores[size] = score;
+            size++;
+            return true;
+        }
+
+        /**
+         * Cache all matches of the segment
+         */
+        public Result finish() {
+            return finish(DocIdSetIterator.NO_MORE_DOCS);
+        }
+
+        /**
+         * Cache the matches recorded before resume doc, matches from resume doc on are scored again by each query.
+         * Nothing is cached if the circuit breaker has no room for them or the segment is already closed
+         */
+        public Result finish(int resumeDoc) {
+            Result result = new Result(Arrays.copyOf(docs, size), Arrays.copyOf(scores, size), size, resumeDoc);
+            MemoryCircuitBreaker breaker = circuitBreakerService.getBreaker();
+            if (breaker.getMaximum() > 0 && (breaker.getUsed() + result.ramBytesUsed()) * breaker.getOverhead() > breaker.getMaximum()) {
+                return result;  // a cache miss is cheaper than tripping the breaker
+            }
+            Set<Key> keys = coreKeys.get(key.coreKey);
+            if (keys == null) {
+                return result;
+            }
+            keys.add(key);
+            breaker.addWithoutBreaking(result.ramBytesUsed());
+            cache.put(key, result);
+            if (coreKeys.get(key.coreKey) != keys) {  // closed meanwhile
+                cache.invalidate(key);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Matching docs of a segment in doc id order with their scores, docs deleted since the result was recorded are included.
+     * Only matches before resume doc are held when the segment has more than an entry takes
+     */
+    public static class Result {
+        private final int[] docs;
+        private final float[] scores;
+        private final int size;
+        private final int resumeDoc;
+
+        public Result(int[] docs, float[] scores, int size) {
+            this(docs, scores, size, DocIdSetIterator.NO_MORE_DOCS);
+        }
+
+        public Result(int[] docs, float[] scores, int size, int resumeDoc) {
+            this.docs = docs;
+            this.scores = scores;
+            this.size = size;
+            this.resumeDoc = resumeDoc;
+        }
+
+        public int[] docs() {
+            return docs;
+        }
+
+        public float[] scores() {
+            return scores;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * First doc whose match may not be held, matches from it on must be scored, NO_MORE_DOCS if all matches are held
+         */
+        public int resumeDoc() {
+            return resumeDoc;
+        }
+
+        long ramBytesUsed() {
+            return 4L * docs.length + 4L * scores.length;
+        }
+    }
+
+    private static class Key {
+        private final Object coreKey;
+        private final Query query;
+
+        Key(Object coreKey, Query query) {
+            this.coreKey = coreKey;
+            this.query = query;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return coreKey == other.coreKey && query.equals(other.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(coreKey) + query.hashCode();
+        }
+    }
+}
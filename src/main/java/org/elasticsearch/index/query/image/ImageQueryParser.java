@@ -4,40 +4,75 @@ package org.elasticsearch.index.query.image;
 import net.semanticmetadata.lire.imageanalysis.LireFeature;
 import net.semanticmetadata.lire.indexing.hashing.BitSampling;
 import net.semanticmetadata.lire.indexing.hashing.LocalitySensitiveHashing;
-import net.semanticmetadata.lire.utils.ImageUtils;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
 import org.apache.lucene.search.Query;
 import org.elasticsearch.ElasticsearchImageProcessException;
-import org.elasticsearch.action.get.GetRequest;
-import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.image.lookup.ImageLookupAction;
+import org.elasticsearch.action.image.lookup.ImageLookupRequest;
+import org.elasticsearch.action.image.lookup.ImageLookupResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
 import org.elasticsearch.common.inject.Inject;
-import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.lucene.search.XFilteredQuery;
+import org.elasticsearch.common.primitives.Ints;
 import org.elasticsearch.common.xcontent.XContentParser;
-import org.elasticsearch.index.get.GetField;
+import org.elasticsearch.index.mapper.image.CoarseQuantizer;
 import org.elasticsearch.index.mapper.image.FeatureEnum;
 import org.elasticsearch.index.mapper.image.HashEnum;
+import org.elasticsearch.index.mapper.image.ImageDecoder;
 import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.mapper.image.ProductQuantizer;
 import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.index.query.QueryParser;
 import org.elasticsearch.index.query.QueryParsingException;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.search.internal.ShardSearchRequest;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 public class ImageQueryParser implements QueryParser {
 
     public static final String NAME = "image";
 
+    public static final String STATIC_PLAN = "static";
+
+    public static final String AUTO_PLAN = "auto";
+
     private Client client;
 
+    private ImageQueryCache imageQueryCache;
+
+    private ImageDecoder imageDecoder;
+
+    /** Lookups of the searches running on this node, guarded by itself */
+    private final Map<String, SharedLookup> lookups = Maps.newHashMap();
+
+    /**
+     * Lookup result shared by the shards of a search, kept until the last of their search contexts is released
+     */
+    private static class SharedLookup {
+        final PlainActionFuture<ImageLookupResponse> future = PlainActionFuture.newFuture();
+        int refCount;
+    }
+
     @Inject
-    public ImageQueryParser(Client client) {
+    public ImageQueryParser(Client client, ImageQueryCache imageQueryCache, ImageDecoder imageDecoder) {
         this.client = client;
+        this.imageQueryCache = imageQueryCache;
+        this.imageDecoder = imageDecoder;
     }
 
     @Override
@@ -57,10 +92,20 @@ public class ImageQueryParser implements QueryParser {
 
         String fieldName = parser.currentName();
         FeatureEnum featureEnum = null;
+        Map<FeatureEnum, Float> featureWeights = null;
         byte[] image = null;
+        byte[] featureVector = null;
         HashEnum hashEnum = null;
+        int[] hashes = null;
         float boost = 1.0f;
         int limit = -1;
+        int nprobe = -1;
+        boolean pq = false;
+        Filter filter = null;
+        float maxDistance = -1;
+        String plan = STATIC_PLAN;
+        float maxHashFreq = 1;
+        int minHashCollisions = 1;
 
         String lookupIndex = parseContext.index().name();
         String lookupType = null;
@@ -75,18 +120,50 @@ public class ImageQueryParser implements QueryParser {
             while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
                 if (token == XContentParser.Token.FIELD_NAME) {
                     currentFieldName = parser.currentName();
+                } else if (token == XContentParser.Token.START_OBJECT && "features".equals(currentFieldName)) {
+                    featureWeights = Maps.newLinkedHashMap();
+                    String featureName = null;
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                        if (token == XContentParser.Token.FIELD_NAME) {
+                            featureName = parser.currentName();
+                        } else {
+                            featureWeights.put(FeatureEnum.getByName(featureName), parser.floatValue());
+                        }
+                    }
+                } else if (token == XContentParser.Token.START_OBJECT && "filter".equals(currentFieldName)) {
+                    filter = parseContext.parseInnerFilter();
+                } else if (token == XContentParser.Token.START_ARRAY && "hashes".equals(currentFieldName)) {
+                    List<Integer> hashList = Lists.newArrayList();
+                    while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                        hashList.add(parser.intValue());
+                    }
+                    hashes = Ints.toArray(hashList);
                 } else {
                     if ("feature".equals(currentFieldName)) {
                         featureEnum = FeatureEnum.getByName(parser.text());
                     } else if ("image".equals(currentFieldName)) {
                         image = parser.binaryValue();
+                    } else if ("feature_vector".equals(currentFieldName)) {
+                        featureVector = parser.binaryValue();
                     } else if ("hash".equals(currentFieldName)) {
                         hashEnum = HashEnum.getByName(parser.text());
                     } else if ("boost".equals(currentFieldName)) {
                         boost = parser.floatValue();
                     } else if ("limit".equals(currentFieldName)) {
                         limit = parser.intValue();
-                    }else if ("index".equals(currentFieldName)) {
+                    } else if ("nprobe".equals(currentFieldName)) {
+                        nprobe = parser.intValue();
+                    } else if ("pq".equals(currentFieldName)) {
+                        pq = parser.booleanValue();
+                    } else if ("max_distance".equals(currentFieldName)) {
+                        maxDistance = parser.floatValue();
+                    } else if ("plan".equals(currentFieldName)) {
+                        plan = parser.text();
+                    } else if ("max_hash_freq".equals(currentFieldName)) {
+                        maxHashFreq = parser.floatValue();
+                    } else if ("min_hash_collisions".equals(currentFieldName)) {
+                        minHashCollisions = parser.intValue();
+                    } else if ("index".equals(currentFieldName)) {
                         lookupIndex = parser.text();
                     } else if ("type".equals(currentFieldName)) {
                         lookupType = parser.text();
@@ -104,68 +181,228 @@ public class ImageQueryParser implements QueryParser {
             parser.nextToken();
         }
 
-        if (featureEnum == null) {
+        if (featureEnum == null && (featureWeights == null || featureWeights.isEmpty())) {
             throw new QueryParsingException(parseContext.index(), "No feature specified for image query");
         }
+        if (featureEnum != null && featureWeights != null) {
+            throw new QueryParsingException(parseContext.index(), "[image] query does not support [feature] together with [features]");
+        }
 
-        String luceneFieldName = fieldName + "." + featureEnum.name();
-        LireFeature feature = null;
+        if (hashes != null && hashEnum == null) {
+            throw new QueryParsingException(parseContext.index(), "[image] query does not support [hashes] without [hash]");
+        }
+        if (!STATIC_PLAN.equals(plan) && !AUTO_PLAN.equals(plan)) {
+            throw new QueryParsingException(parseContext.index(), "[image] query does not support [plan] [" + plan + "]");
+        }
+        if (AUTO_PLAN.equals(plan) && hashEnum == null) {
+            throw new QueryParsingException(parseContext.index(), "[image] query does not support [plan] [" + AUTO_PLAN + "] without [hash]");
+        }
+        if ((maxHashFreq != 1 || minHashCollisions != 1) && hashEnum == null) {
+            throw new QueryParsingException(parseContext.index(), "[image] query does not support [max_hash_freq] or [min_hash_collisions] without [hash]");
+        }
+        if (maxHashFreq <= 0 || maxHashFreq > 1) {
+            throw new QueryParsingException(parseContext.index(), "[image] query [max_hash_freq] must be in (0, 1]");
+        }
+        if (minHashCollisions < 1) {
+            throw new QueryParsingException(parseContext.index(), "[image] query [min_hash_collisions] must be positive");
+        }
 
-        if (image != null) {
+        List<FeatureEnum> featureEnums = featureWeights != null ? Lists.newArrayList(featureWeights.keySet()) : Collections.singletonList(featureEnum);
+        LireFeature[] features;
+        if (featureVector != null) {  // already extracted by client, no image to decode
+            if (featureWeights != null || image != null) {
+                throw new QueryParsingException(parseContext.index(), "[image] query does not support [feature_vector] together with [features] or [image]");
+            }
             try {
-                feature = featureEnum.getFeatureClass().newInstance();
-                BufferedImage img = ImageIO.read(new BytesStreamInput(image, false));
-                if (Math.max(img.getHeight(), img.getWidth()) > ImageMapper.MAX_IMAGE_DIMENSION) {
-                    img = ImageUtils.scaleImage(img, ImageMapper.MAX_IMAGE_DIMENSION);
-                }
-                feature.extract(img);
+                LireFeature feature = featureEnum.newFeature();
+                feature.setByteArrayRepresentation(featureVector);
+                features = new LireFeature[] {feature};
             } catch (Exception e) {
-                throw new ElasticsearchImageProcessException("Failed to parse image", e);
+                throw new QueryParsingException(parseContext.index(), "Failed to parse [feature_vector] of feature [" + featureEnum.name() + "]", e);
             }
-        } else if (lookupIndex != null && lookupType != null && lookupId != null && lookupPath != null) {
-            String lookupFieldName = lookupPath + "." + featureEnum.name();
-            GetResponse getResponse = client.get(new GetRequest(lookupIndex, lookupType, lookupId).preference("_local").routing(lookupRouting).fields(lookupFieldName).realtime(false)).actionGet();
-            if (getResponse.isExists()) {
-                GetField getField = getResponse.getField(lookupFieldName);
-                if (getField != null) {
-                    BytesReference bytesReference = (BytesReference) getField.getValue();
-                    try {
-                        feature = featureEnum.getFeatureClass().newInstance();
-                        feature.setByteArrayRepresentation(bytesReference.array(), bytesReference.arrayOffset(), bytesReference.length());
-                    } catch (Exception e) {
-                        throw new ElasticsearchImageProcessException("Failed to parse image", e);
-                    }
-                }
+        } else {
+            features = extractFeatures(featureEnums, image, lookupIndex, lookupType, lookupId, lookupPath, lookupRouting);
+        }
+        for (LireFeature f : features) {
+            if (f == null) {
+                throw new QueryParsingException(parseContext.index(), "No image specified for image query");
             }
         }
-        if (feature == null) {
-            throw new QueryParsingException(parseContext.index(), "No image specified for image query");
+
+        if (featureWeights != null) {  // score all features in one pass
+            if (hashEnum != null || nprobe > 0 || pq || maxDistance >= 0) {
+                throw new QueryParsingException(parseContext.index(), "[image] query does not support [features] together with [hash], [nprobe], [pq] or [max_distance]");
+            }
+            String[] luceneFieldNames = new String[featureEnums.size()];
+            float[] weights = new float[featureEnums.size()];
+            for (int i = 0; i < luceneFieldNames.length; i++) {
+                luceneFieldNames[i] = fieldName + "." + featureEnums.get(i).name();
+                weights[i] = featureWeights.get(featureEnums.get(i));
+            }
+            return filtered(new ImageFusedQuery(luceneFieldNames, features, weights, boost), filter);
+        }
+
+        String luceneFieldName = fieldName + "." + featureEnum.name();
+        LireFeature feature = features[0];
+
+        if (pq) {  // scan all documents, but calculate distance from pq codes
+            if (hashEnum != null || nprobe > 0) {
+                throw new QueryParsingException(parseContext.index(), "[image] query does not support [pq] together with [hash] or [nprobe]");
+            }
+            ImageMapper imageMapper = imageMapper(parseContext, fieldName);
+            ProductQuantizer productQuantizer = imageMapper == null ? null : imageMapper.productQuantizer(featureEnum);
+            if (productQuantizer == null) {
+                throw new QueryParsingException(parseContext.index(), "Feature [" + featureEnum.name() + "] of [" + fieldName + "] is not encoded with pq");
+            }
+            return filtered(new ImagePQQuery(luceneFieldName + "." + ImageMapper.PQ, feature, productQuantizer, maxDistance, boost), filter);
         }
 
+        if (nprobe > 0) {  // query nearest ivf clusters only
+            if (hashEnum != null) {
+                throw new QueryParsingException(parseContext.index(), "[image] query does not support [hash] together with [nprobe]");
+            }
+            ImageMapper imageMapper = imageMapper(parseContext, fieldName);
+            CoarseQuantizer coarseQuantizer = imageMapper == null ? null : imageMapper.coarseQuantizer(featureEnum);
+            if (coarseQuantizer == null) {
+                throw new QueryParsingException(parseContext.index(), "Feature [" + featureEnum.name() + "] of [" + fieldName + "] is not indexed with ivf");
+            }
+            int[] clusters = coarseQuantizer.nearest(feature.getDoubleHistogram(), nprobe);
+            String ivfFieldName = luceneFieldName + "." + ImageMapper.IVF;
+
+            BooleanQuery query = new BooleanQuery(true);
+            ImageScoreCache imageScoreCache = new ImageScoreCache();
+            for (int c : clusters) {
+                query.add(new BooleanClause(new ImageHashQuery(new Term(ivfFieldName, Integer.toString(c)), luceneFieldName, feature, imageScoreCache, maxDistance, boost), BooleanClause.Occur.SHOULD));
+            }
+            return filtered(query, filter);
+        }
 
-        if (hashEnum == null) {  // no hash, need to scan all documents
-            return new ImageQuery(luceneFieldName, feature, boost);
+        if (hashEnum == null) {  // no hash, need to scan all documents, or all documents matching the filter
+            return new ImageQuery(luceneFieldName, feature, filter, maxDistance, imageQueryCache, boost);
         } else {  // query by hash first
-            int[] hash = null;
-            if (hashEnum.equals(HashEnum.BIT_SAMPLING)) {
+            int[] hash = hashes;  // precomputed by client
+            if (hash == null && hashEnum.equals(HashEnum.BIT_SAMPLING)) {
                 hash = BitSampling.generateHashes(feature.getDoubleHistogram());
-            } else if (hashEnum.equals(HashEnum.LSH)) {
+            } else if (hash == null && hashEnum.equals(HashEnum.LSH)) {
                 hash = LocalitySensitiveHashing.generateHashes(feature.getDoubleHistogram());
             }
             String hashFieldName = luceneFieldName + "." + ImageMapper.HASH + "." + hashEnum.name();
 
-            if (limit > 0) {  // has max result limit, use ImageHashLimitQuery
-                return new ImageHashLimitQuery(hashFieldName, hash, limit, luceneFieldName, feature, boost);
+            if (AUTO_PLAN.equals(plan)) {  // pick scan, hash union or hash limit per segment
+                return new ImagePlannedQuery(luceneFieldName, feature, hashFieldName, hash, limit, filter, maxDistance, maxHashFreq, minHashCollisions, boost);
+            } else if (limit > 0) {  // has max result limit, use ImageHashLimitQuery
+                return new ImageHashLimitQuery(hashFieldName, hash, limit, luceneFieldName, feature, filter, maxDistance, maxHashFreq, minHashCollisions, boost);
             } else {  // no max result limit, use ImageHashQuery
                 BooleanQuery query = new BooleanQuery(true);
                 ImageScoreCache imageScoreCache = new ImageScoreCache();
 
                 for (int h : hash) {
-                    query.add(new BooleanClause(new ImageHashQuery(new Term(hashFieldName, Integer.toString(h)), luceneFieldName, feature, imageScoreCache, boost), BooleanClause.Occur.SHOULD));
+                    query.add(new BooleanClause(new ImageHashQuery(new Term(hashFieldName, Integer.toString(h)), luceneFieldName, feature, imageScoreCache, maxDistance, maxHashFreq, boost), BooleanClause.Occur.SHOULD));
+                }
+                if (minHashCollisions > 1) {
+                    query.setMinimumNumberShouldMatch(minHashCollisions);
+                }
+                return filtered(query, filter);
+            }
+
+        }
+    }
+
+    /**
+     * Extract features from image, or load them from doc values of an existing doc. Decodes the image once for all features
+     */
+    private LireFeature[] extractFeatures(List<FeatureEnum> featureEnums, byte[] image, String lookupIndex, String lookupType,
+                                          String lookupId, String lookupPath, String lookupRouting) {
+        LireFeature[] features = new LireFeature[featureEnums.size()];
+        if (image != null) {
+            try {
+                BufferedImage img = imageDecoder.read(image);
+                for (int i = 0; i < features.length; i++) {
+                    features[i] = featureEnums.get(i).newFeature();
+                    features[i].extract(img);
+                }
+            } catch (Exception e) {
+                throw new ElasticsearchImageProcessException("Failed to parse image", e);
+            }
+        } else if (lookupIndex != null && lookupType != null && lookupId != null && lookupPath != null) {
+            String[] lookupFieldNames = new String[features.length];
+            for (int i = 0; i < features.length; i++) {
+                lookupFieldNames[i] = lookupPath + "." + featureEnums.get(i).name();
+            }
+            ImageLookupResponse lookupResponse = lookup(new ImageLookupRequest(lookupIndex, lookupType, lookupId)
+                    .preference("_local").routing(lookupRouting).fields(lookupFieldNames));
+            if (lookupResponse.isExists()) {
+                for (int i = 0; i < features.length; i++) {
+                    BytesReference bytesReference = lookupResponse.getField(lookupFieldNames[i]);
+                    if (bytesReference != null) {
+                        try {
+                            features[i] = featureEnums.get(i).newFeature();
+                            features[i].setByteArrayRepresentation(bytesReference.array(), bytesReference.arrayOffset(), bytesReference.length());
+                        } catch (Exception e) {
+                            throw new ElasticsearchImageProcessException("Failed to parse image", e);
+                        }
+                    }
                 }
-                return query;
             }
+        }
+        return features;
+    }
 
+    /**
+     * Load features of an existing doc. Shards of the same search on this node share the result while any of their search
+     * contexts is open, a search is told apart by the node it came from (the address of the connection, none if sent by this node)
+     * and the time that node set for it. Outside of a search the doc is loaded for each parse
+     */
+    private ImageLookupResponse lookup(ImageLookupRequest request) {
+        SearchContext searchContext = SearchContext.current();
+        if (searchContext == null) {
+            return client.execute(ImageLookupAction.INSTANCE, request).actionGet();
+        }
+        ShardSearchRequest shardRequest = searchContext.request();
+        final String key = shardRequest.remoteAddress() + "/" + shardRequest.nowInMillis() + "/" + request.index() + "/" + request.type() + "/" + request.id()
+                + "/" + request.routing() + "/" + Arrays.toString(request.fields());
+        final SharedLookup lookup;
+        boolean owner = false;
+        synchronized (lookups) {
+            SharedLookup existing = lookups.get(key);
+            if (existing == null) {
+                existing = new SharedLookup();
+                lookups.put(key, existing);
+                owner = true;
+            }
+            existing.refCount++;
+            lookup = existing;
         }
+        searchContext.addReleasable(new Releasable() {
+            @Override
+            public void close() {
+                synchronized (lookups) {
+                    if (--lookup.refCount == 0) {
+                        lookups.remove(key);
+                    }
+                }
+            }
+        }, SearchContext.Lifetime.CONTEXT);
+        if (owner) {
+            client.execute(ImageLookupAction.INSTANCE, request, lookup.future);
+        }
+        return lookup.future.actionGet();
+    }
+
+    /**
+     * Only score docs matching the filter, iteration is driven by the filter
+     */
+    private Query filtered(Query query, Filter filter) {
+        if (filter == null) {
+            return query;
+        }
+        return new XFilteredQuery(query, filter, FilteredQuery.LEAP_FROG_FILTER_FIRST_STRATEGY);
+    }
+
+    /**
+     * Image mapper of the field in the queried types, null if not found
+     */
+    static ImageMapper imageMapper(QueryParseContext parseContext, String fieldName) {
+        return ImageMapper.imageMapper(parseContext.mapperService(), parseContext.queryTypes(), fieldName);
     }
 }
@@ -0,0 +1,225 @@
+package org.elasticsearch.index.query.image;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.ToStringUtils;
+import org.elasticsearch.index.mapper.image.PerceptualHash;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Find images with perceptual hash within max hamming distance.
+ * If there are more bands than max distance, only docs sharing a band with the hash are candidates, otherwise all docs with hash are.
+ * Candidates are verified with hamming distance from doc values, score is the image score of the hamming distance
+ */
+public class PerceptualHashQuery extends Query {
+
+    private final String hashFieldName;
+    private final String bandFieldName;
+    private final long hash;
+    private final int bands;
+    private final int maxDistance;
+
+    public PerceptualHashQuery(String hashFieldName, String bandFieldName, long hash, int bands, int maxDistance, float boost) {
+        this.hashFieldName = hashFieldName;
+        this.bandFieldName = bandFieldName;
+        this.hash = hash;
+        this.bands = bands;
+        this.maxDistance = maxDistance;
+        setBoost(boost);
+    }
+
+    private class PerceptualHashScorer extends Scorer {
+        private final DocIdSetIterator candidates;
+        private final NumericDocValues hashes;
+        private int distance;
+
+        PerceptualHashScorer(Weight weight, DocIdSetIterator candidates, NumericDocValues hashes) {
+            super(weight);
+            this.candidates = candidates;
+            this.hashes = hashes;
+        }
+
+        @Override
+        public int docID() {
+            return candidates.docID();
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return nextWithinMaxDistance(candidates.nextDoc());
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return nextWithinMaxDistance(candidates.advance(target));
+        }
+
+        private int nextWithinMaxDistance(int doc) throws IOException {
+            while (doc != NO_MORE_DOCS) {
+                distance = PerceptualHash.distance(hash, hashes.get(doc));
+                if (distance <= maxDistance) {
+                    break;
+                }
+                doc = candidates.nextDoc();
+            }
+            return doc;
+        }
+
+        /**
+         * Hamming distance of current doc
+         */
+        int distance() {
+            return distance;
+        }
+
+        @Override
+        public float score() throws IOException {
+            return AbstractImageScorer.score(distance) * getBoost();
+        }
+
+        @Override
+        public int freq() {
+            return 1;
+        }
+
+        @Override
+        public long cost() {
+            return candidates.cost();
+        }
+    }
+
+    private class PerceptualHashWeight extends Weight {
+        private final Weight bandWeight;
+
+        public PerceptualHashWeight(Weight bandWeight) {
+            this.bandWeight = bandWeight;
+        }
+
+        @Override
+        public String toString() {
+            return "weight(" + PerceptualHashQuery.this + ")";
+        }
+
+        @Override
+        public Query getQuery() {
+            return PerceptualHashQuery.this;
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return 1f;
+        }
+
+        @Override
+        public void normalize(float queryNorm, float topLevelBoost) {
+        }
+
+        @Override
+        public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            NumericDocValues hashes = context.reader().getNumericDocValues(hashFieldName);
+            if (hashes == null) {
+                return null;
+            }
+
+            DocIdSetIterator candidates;
+            if (bandWeight != null) {  // docs sharing a band
+                candidates = bandWeight.scorer(context, acceptDocs);
+            } else {  // all docs with hash
+                final Bits docsWithField = context.reader().getDocsWithField(hashFieldName);
+                candidates = new FieldCacheDocIdSet(context.reader().maxDoc(), acceptDocs) {
+                    @Override
+                    protected boolean matchDoc(int doc) {
+                        return docsWithField.get(doc);
+                    }
+                }.iterator();
+            }
+            if (candidates == null) {
+                return null;
+            }
+            return new PerceptualHashScorer(this, candidates, hashes);
+        }
+
+        @Override
+        public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+            PerceptualHashScorer scorer = (PerceptualHashScorer) scorer(context, context.reader().getLiveDocs());
+            if (scorer != null) {
+                int newDoc = scorer.advance(doc);
+                if (newDoc == doc) {
+                    float score = scorer.score();
+                    ComplexExplanation result = new ComplexExplanation();
+                    result.setDescription("PerceptualHashQuery, product of:");
+                    result.setValue(score);
+                    if (getBoost() != 1.0f) {
+                        result.addDetail(new Explanation(getBoost(),"boost"));
+                        score = score / getBoost();
+                    }
+                    Explanation scoreExplanation = new Explanation(score, "image score (1/distance)");
+                    scoreExplanation.addDetail(new Explanation(scorer.distance(), "hamming distance"));
+                    result.addDetail(scoreExplanation);
+                    result.setMatch(true);
+                    return result;
+                }
+            }
+
+            return new ComplexExplanation(false, 0.0f, "no matching term");
+        }
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+        if (maxDistance >= bands) {  // similar hashes may share no band, need to check all docs
+            return new PerceptualHashWeight(null);
+        }
+
+        BooleanQuery bandQuery = new BooleanQuery(true);
+        for (String band : PerceptualHash.bands(hash, bands)) {
+            bandQuery.add(new BooleanClause(new TermQuery(new Term(bandFieldName, band)), BooleanClause.Occur.SHOULD));
+        }
+        return new PerceptualHashWeight(searcher.createNormalizedWeight(bandQuery));
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(hashFieldName);
+        buffer.append(",");
+        buffer.append(Long.toHexString(hash));
+        buffer.append(",max_distance=");
+        buffer.append(maxDistance);
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PerceptualHashQuery))
+            return false;
+        PerceptualHashQuery other = (PerceptualHashQuery) o;
+        return (this.getBoost() == other.getBoost())
+                && hashFieldName.equals(other.hashFieldName)
+                && bandFieldName.equals(other.bandFieldName)
+                && hash == other.hash
+                && bands == other.bands
+                && maxDistance == other.maxDistance;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + hashFieldName.hashCode();
+        result = 31 * result + bandFieldName.hashCode();
+        result = 31 * result + (int) (hash ^ (hash >>> 32));
+        result = 31 * result + bands;
+        result = 31 * result + maxDistance;
+        return result;
+    }
+}
@@ -0,0 +1,75 @@
+package org.elasticsearch.index.query.image;
+
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.BaseQueryBuilder;
+import org.elasticsearch.index.query.BoostableQueryBuilder;
+
+import java.io.IOException;
+
+public class PerceptualHashQueryBuilder extends BaseQueryBuilder implements BoostableQueryBuilder<PerceptualHashQueryBuilder> {
+
+    private final String fieldName;
+
+    private byte[] image;
+
+    private Long hash;
+
+    private int maxDistance = -1;
+
+    private float boost = -1;
+
+    public PerceptualHashQueryBuilder(String fieldName) {
+        this.fieldName = fieldName;
+    }
+
+    public PerceptualHashQueryBuilder image(byte[] image) {
+        this.image = image;
+        return this;
+    }
+
+    public PerceptualHashQueryBuilder hash(long hash) {
+        this.hash = hash;
+        return this;
+    }
+
+    /**
+     * Max hamming distance between hashes, 0 for exact duplicates
+     */
+    public PerceptualHashQueryBuilder maxDistance(int maxDistance) {
+        this.maxDistance = maxDistance;
+        return this;
+    }
+
+    @Override
+    public PerceptualHashQueryBuilder boost(float boost) {
+        this.boost = boost;
+        return this;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(PerceptualHashQueryParser.NAME);
+
+        builder.startObject(fieldName);
+        if (image != null) {
+            builder.field("image", image);
+        }
+
+        if (hash != null) {
+            builder.field("hash", hash);
+        }
+
+        if (maxDistance != -1) {
+            builder.field("max_distance", maxDistance);
+        }
+
+        if (boost != -1) {
+            builder.field("boost", boost);
+        }
+
+        builder.endObject();
+
+        builder.endObject();
+    }
+}
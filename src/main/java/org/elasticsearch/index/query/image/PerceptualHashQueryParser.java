@@ -0,0 +1,95 @@
+package org.elasticsearch.index.query.image;
+
+
+import org.apache.lucene.search.Query;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.image.ImageDecoder;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.mapper.image.PerceptualHash;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryParser;
+import org.elasticsearch.index.query.QueryParsingException;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+public class PerceptualHashQueryParser implements QueryParser {
+
+    public static final String NAME = "phash";
+
+    private final ImageDecoder imageDecoder;
+
+    @Inject
+    public PerceptualHashQueryParser(ImageDecoder imageDecoder) {
+        this.imageDecoder = imageDecoder;
+    }
+
+    @Override
+    public String[] names() {
+        return new String[] {NAME};
+    }
+
+    @Override
+    public Query parse(QueryParseContext parseContext) throws IOException, QueryParsingException {
+        XContentParser parser = parseContext.parser();
+
+        XContentParser.Token token = parser.nextToken();
+        if (token != XContentParser.Token.FIELD_NAME) {
+            throw new QueryParsingException(parseContext.index(), "[phash] query malformed, no field");
+        }
+
+        String fieldName = parser.currentName();
+        byte[] image = null;
+        Long hash = null;
+        int maxDistance = 0;
+        float boost = 1.0f;
+
+        token = parser.nextToken();
+        if (token == XContentParser.Token.START_OBJECT) {
+            String currentFieldName = null;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentFieldName = parser.currentName();
+                } else {
+                    if ("image".equals(currentFieldName)) {
+                        image = parser.binaryValue();
+                    } else if ("hash".equals(currentFieldName)) {
+                        hash = parser.longValue();
+                    } else if ("max_distance".equals(currentFieldName)) {
+                        maxDistance = parser.intValue();
+                    } else if ("boost".equals(currentFieldName)) {
+                        boost = parser.floatValue();
+                    } else {
+                        throw new QueryParsingException(parseContext.index(), "[phash] query does not support [" + currentFieldName + "]");
+                    }
+                }
+            }
+            parser.nextToken();
+        }
+
+        ImageMapper imageMapper = ImageQueryParser.imageMapper(parseContext, fieldName);
+        if (imageMapper == null || imageMapper.phashBands() == 0) {
+            throw new QueryParsingException(parseContext.index(), "Field [" + fieldName + "] is not indexed with phash");
+        }
+        if (maxDistance < 0) {
+            throw new QueryParsingException(parseContext.index(), "[phash] query [max_distance] must not be negative");
+        }
+
+        if (hash == null) {
+            if (image == null) {
+                throw new QueryParsingException(parseContext.index(), "No image or hash specified for phash query");
+            }
+            try {
+                BufferedImage img = imageDecoder.read(image);
+                hash = PerceptualHash.hash(img);
+            } catch (Exception e) {
+                throw new ElasticsearchImageProcessException("Failed to parse image", e);
+            }
+        }
+
+        String hashFieldName = fieldName + "." + ImageMapper.PHASH;
+        return new PerceptualHashQuery(hashFieldName, hashFieldName + "." + ImageMapper.BAND, hash, imageMapper.phashBands(), maxDistance, boost);
+    }
+}
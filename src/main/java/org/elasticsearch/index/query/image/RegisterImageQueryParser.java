@@ -13,8 +13,11 @@ public class RegisterImageQueryParser extends AbstractIndexComponent {
     @Inject
     protected RegisterImageQueryParser(Index index, @IndexSettings Settings indexSettings,
                                        IndicesQueriesRegistry indicesQueriesRegistry,
-                                       ImageQueryParser parser) {
+                                       ImageQueryParser parser, PerceptualHashQueryParser perceptualHashQueryParser,
+                                       VisualWordsQueryParser visualWordsQueryParser) {
         super(index, indexSettings);
         indicesQueriesRegistry.addQueryParser(parser);
+        indicesQueriesRegistry.addQueryParser(perceptualHashQueryParser);
+        indicesQueriesRegistry.addQueryParser(visualWordsQueryParser);
     }
 }
@@ -0,0 +1,287 @@
+package org.elasticsearch.index.query.image;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.ToStringUtils;
+import org.elasticsearch.common.hppc.IntIntOpenHashMap;
+import org.elasticsearch.common.hppc.cursors.IntIntCursor;
+import org.elasticsearch.common.lucene.search.Queries;
+import org.elasticsearch.index.mapper.image.VisualWords;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Query by visual words with tf-idf first, then verify the geometry of the top n matches with their keypoints from doc values.
+ * Docs with fewer inliers than min inliers don't match, score is tf-idf score * (1 + inliers)
+ */
+public class VisualWordsQuery extends Query {
+
+    private static final Comparator<ScoreDoc> DOC_COMPARATOR = new Comparator<ScoreDoc>() {
+        @Override
+        public int compare(ScoreDoc o1, ScoreDoc o2) {
+            return o1.doc - o2.doc;
+        }
+    };
+
+    private final String wordFieldName;
+    private final VisualWords.Keypoint[] keypoints;
+    private final byte[] encodedKeypoints;
+    private final int limit;
+    private final int minInliers;
+
+    public VisualWordsQuery(String wordFieldName, VisualWords.Keypoint[] keypoints, int limit, int minInliers, float boost) throws IOException {
+        this.wordFieldName = wordFieldName;
+        this.keypoints = keypoints;
+        this.encodedKeypoints = VisualWords.encode(keypoints);
+        this.limit = limit;
+        this.minInliers = minInliers;
+        setBoost(boost);
+    }
+
+    /**
+     * Iterate verified docs of the segment, in doc id order
+     */
+    private class VisualWordsScorer extends Scorer {
+        private final int[] docs;
+        private final float[] tfidf;
+        private final int[] inliers;
+        private final Bits acceptDocs;
+        private int index = -1;
+        private int doc = -1;
+
+        VisualWordsScorer(Weight weight, int[] docs, float[] tfidf, int[] inliers, Bits acceptDocs) {
+            super(weight);
+            this.docs = docs;
+            this.tfidf = tfidf;
+            this.inliers = inliers;
+            this.acceptDocs = acceptDocs;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return nextAccepted(index + 1);
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            int found = Arrays.binarySearch(docs, index + 1, docs.length, target);
+            return nextAccepted(found >= 0 ? found : -found - 1);
+        }
+
+        private int nextAccepted(int i) {
+            while (i < docs.length && acceptDocs != null && !acceptDocs.get(docs[i])) {
+                i++;
+            }
+            index = i;
+            doc = i < docs.length ? docs[i] : NO_MORE_DOCS;
+            return doc;
+        }
+
+        float tfidf() {
+            return tfidf[index];
+        }
+
+        int inliers() {
+            return inliers[index];
+        }
+
+        @Override
+        public float score() throws IOException {
+            return tfidf[index] * (1 + inliers[index]) * getBoost();
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return 1;
+        }
+
+        @Override
+        public long cost() {
+            return docs.length;
+        }
+    }
+
+    private class VisualWordsWeight extends Weight {
+        private final ScoreDoc[] verified;  // sorted by doc
+
+        private final int[] inliers;
+
+        VisualWordsWeight(ScoreDoc[] verified, int[] inliers) {
+            this.verified = verified;
+            this.inliers = inliers;
+        }
+
+        @Override
+        public String toString() {
+            return "weight(" + VisualWordsQuery.this + ")";
+        }
+
+        @Override
+        public Query getQuery() {
+            return VisualWordsQuery.this;
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return 1f;
+        }
+
+        @Override
+        public void normalize(float queryNorm, float topLevelBoost) {
+        }
+
+        @Override
+        public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            int maxDoc = context.reader().maxDoc();
+            int from = 0;
+            while (from < verified.length && verified[from].doc < context.docBase) {
+                from++;
+            }
+            int to = from;
+            while (to < verified.length && verified[to].doc < context.docBase + maxDoc) {
+                to++;
+            }
+            if (from == to) {
+                return null;
+            }
+
+            int[] docs = new int[to - from];
+            float[] tfidf = new float[to - from];
+            int[] segmentInliers = new int[to - from];
+            for (int i = from; i < to; i++) {
+                docs[i - from] = verified[i].doc - context.docBase;
+                tfidf[i - from] = verified[i].score;
+                segmentInliers[i - from] = inliers[i];
+            }
+            return new VisualWordsScorer(this, docs, tfidf, segmentInliers, acceptDocs);
+        }
+
+        @Override
+        public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+            VisualWordsScorer scorer = (VisualWordsScorer) scorer(context, context.reader().getLiveDocs());
+            if (scorer != null) {
+                int newDoc = scorer.advance(doc);
+                if (newDoc == doc) {
+                    float score = scorer.score();
+                    ComplexExplanation result = new ComplexExplanation();
+                    result.setDescription("VisualWordsQuery, product of:");
+                    result.setValue(score);
+                    if (getBoost() != 1.0f) {
+                        result.addDetail(new Explanation(getBoost(),"boost"));
+                    }
+                    result.addDetail(new Explanation(scorer.tfidf(), "tf-idf of visual words"));
+                    result.addDetail(new Explanation(1 + scorer.inliers(), "1 + inliers, " + scorer.inliers() + " keypoints agree on geometry"));
+                    result.setMatch(true);
+                    return result;
+                }
+            }
+
+            return new ComplexExplanation(false, 0.0f, "no matching term");
+        }
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+        IndexSearcher indexSearcher = new IndexSearcher(searcher.getIndexReader());
+        indexSearcher.setSimilarity(new DefaultSimilarity());
+
+        // one clause per distinct word, boosted by the number of query keypoints with the word
+        IntIntOpenHashMap wordCounts = new IntIntOpenHashMap();
+        for (VisualWords.Keypoint keypoint : keypoints) {
+            wordCounts.putOrAdd(keypoint.word, 1, 1);
+        }
+        BooleanQuery booleanQuery = new BooleanQuery();
+        for (IntIntCursor cursor : wordCounts) {
+            TermQuery termQuery = new TermQuery(new Term(wordFieldName, Integer.toString(cursor.key)));
+            termQuery.setBoost(cursor.value);
+            booleanQuery.add(new BooleanClause(termQuery, BooleanClause.Occur.SHOULD));
+        }
+        TopDocs topDocs = indexSearcher.search(booleanQuery, limit);
+
+        // geometric verification of candidates, in doc order so each segment is visited once
+        ScoreDoc[] candidates = topDocs.scoreDocs;
+        Arrays.sort(candidates, DOC_COMPARATOR);
+        List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+        ScoreDoc[] verified = new ScoreDoc[candidates.length];
+        int[] inliers = new int[candidates.length];
+        int size = 0;
+        AtomicReaderContext leaf = null;
+        BinaryDocValues docValues = null;
+        for (ScoreDoc candidate : candidates) {
+            if (leaf == null || candidate.doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(candidate.doc, leaves));
+                docValues = leaf.reader().getBinaryDocValues(wordFieldName);
+            }
+            if (docValues == null) {
+                continue;
+            }
+            BytesRef bytesRef = docValues.get(candidate.doc - leaf.docBase);
+            if (bytesRef.length == 0) {
+                continue;
+            }
+            int docInliers = VisualWords.inliers(keypoints, VisualWords.decode(bytesRef.bytes, bytesRef.offset, bytesRef.length));
+            if (docInliers >= minInliers) {
+                verified[size] = candidate;
+                inliers[size] = docInliers;
+                size++;
+            }
+        }
+
+        if (size == 0) {  // no result find
+            return Queries.newMatchNoDocsQuery().createWeight(searcher);
+        }
+        return new VisualWordsWeight(Arrays.copyOf(verified, size), Arrays.copyOf(inliers, size));
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(wordFieldName);
+        buffer.append(",keypoints=");
+        buffer.append(keypoints.length);
+        buffer.append(",limit=");
+        buffer.append(limit);
+        buffer.append(",min_inliers=");
+        buffer.append(minInliers);
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof VisualWordsQuery))
+            return false;
+        VisualWordsQuery other = (VisualWordsQuery) o;
+        return (this.getBoost() == other.getBoost())
+                && wordFieldName.equals(other.wordFieldName)
+                && Arrays.equals(encodedKeypoints, other.encodedKeypoints)
+                && limit == other.limit
+                && minInliers == other.minInliers;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + wordFieldName.hashCode();
+        result = 31 * result + Arrays.hashCode(encodedKeypoints);
+        result = 31 * result + limit;
+        result = 31 * result + minInliers;
+        return result;
+    }
+}
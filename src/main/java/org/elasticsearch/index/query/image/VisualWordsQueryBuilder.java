@@ -0,0 +1,78 @@
+package org.elasticsearch.index.query.image;
+
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.BaseQueryBuilder;
+import org.elasticsearch.index.query.BoostableQueryBuilder;
+
+import java.io.IOException;
+
+public class VisualWordsQueryBuilder extends BaseQueryBuilder implements BoostableQueryBuilder<VisualWordsQueryBuilder> {
+
+    private final String fieldName;
+
+    private byte[] image;
+
+    private int limit = -1;
+
+    private int minInliers = -1;
+
+    private float boost = -1;
+
+    public VisualWordsQueryBuilder(String fieldName) {
+        this.fieldName = fieldName;
+    }
+
+    public VisualWordsQueryBuilder image(byte[] image) {
+        this.image = image;
+        return this;
+    }
+
+    /**
+     * Number of tf-idf top matches to verify geometry of
+     */
+    public VisualWordsQueryBuilder limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Min number of keypoints agreeing on geometry for a doc to match
+     */
+    public VisualWordsQueryBuilder minInliers(int minInliers) {
+        this.minInliers = minInliers;
+        return this;
+    }
+
+    @Override
+    public VisualWordsQueryBuilder boost(float boost) {
+        this.boost = boost;
+        return this;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(VisualWordsQueryParser.NAME);
+
+        builder.startObject(fieldName);
+        if (image != null) {
+            builder.field("image", image);
+        }
+
+        if (limit != -1) {
+            builder.field("limit", limit);
+        }
+
+        if (minInliers != -1) {
+            builder.field("min_inliers", minInliers);
+        }
+
+        if (boost != -1) {
+            builder.field("boost", boost);
+        }
+
+        builder.endObject();
+
+        builder.endObject();
+    }
+}
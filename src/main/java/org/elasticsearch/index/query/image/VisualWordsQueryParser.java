@@ -0,0 +1,95 @@
+package org.elasticsearch.index.query.image;
+
+
+import org.apache.lucene.search.Query;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.image.ImageDecoder;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.mapper.image.VisualWords;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryParser;
+import org.elasticsearch.index.query.QueryParsingException;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+public class VisualWordsQueryParser implements QueryParser {
+
+    public static final String NAME = "bovw";
+
+    public static final int DEFAULT_LIMIT = 100;
+
+    private final ImageDecoder imageDecoder;
+
+    @Inject
+    public VisualWordsQueryParser(ImageDecoder imageDecoder) {
+        this.imageDecoder = imageDecoder;
+    }
+
+    @Override
+    public String[] names() {
+        return new String[] {NAME};
+    }
+
+    @Override
+    public Query parse(QueryParseContext parseContext) throws IOException, QueryParsingException {
+        XContentParser parser = parseContext.parser();
+
+        XContentParser.Token token = parser.nextToken();
+        if (token != XContentParser.Token.FIELD_NAME) {
+            throw new QueryParsingException(parseContext.index(), "[bovw] query malformed, no field");
+        }
+
+        String fieldName = parser.currentName();
+        byte[] image = null;
+        int limit = DEFAULT_LIMIT;
+        int minInliers = 0;
+        float boost = 1.0f;
+
+        token = parser.nextToken();
+        if (token == XContentParser.Token.START_OBJECT) {
+            String currentFieldName = null;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentFieldName = parser.currentName();
+                } else {
+                    if ("image".equals(currentFieldName)) {
+                        image = parser.binaryValue();
+                    } else if ("limit".equals(currentFieldName)) {
+                        limit = parser.intValue();
+                    } else if ("min_inliers".equals(currentFieldName)) {
+                        minInliers = parser.intValue();
+                    } else if ("boost".equals(currentFieldName)) {
+                        boost = parser.floatValue();
+                    } else {
+                        throw new QueryParsingException(parseContext.index(), "[bovw] query does not support [" + currentFieldName + "]");
+                    }
+                }
+            }
+            parser.nextToken();
+        }
+
+        ImageMapper imageMapper = ImageQueryParser.imageMapper(parseContext, fieldName);
+        if (imageMapper == null || imageMapper.visualWords() == null) {
+            throw new QueryParsingException(parseContext.index(), "Field [" + fieldName + "] is not indexed with bovw");
+        }
+        if (image == null) {
+            throw new QueryParsingException(parseContext.index(), "No image specified for bovw query");
+        }
+        if (limit <= 0) {
+            throw new QueryParsingException(parseContext.index(), "[bovw] query [limit] must be positive");
+        }
+
+        VisualWords.Keypoint[] keypoints;
+        try {
+            BufferedImage img = imageDecoder.read(image);
+            keypoints = imageMapper.visualWords().extract(img);
+        } catch (Exception e) {
+            throw new ElasticsearchImageProcessException("Failed to parse image", e);
+        }
+
+        return new VisualWordsQuery(fieldName + "." + ImageMapper.BOVW, keypoints, limit, minInliers, boost);
+    }
+}
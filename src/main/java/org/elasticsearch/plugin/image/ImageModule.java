@@ -0,0 +1,19 @@
+package org.elasticsearch.plugin.image;
+
+import org.elasticsearch.common.inject.AbstractModule;
+import org.elasticsearch.index.mapper.image.AutoCorrelogramPool;
+import org.elasticsearch.index.mapper.image.ImageDecoder;
+import org.elasticsearch.index.mapper.image.ImageWarmer;
+import org.elasticsearch.index.query.image.ImageQueryCache;
+
+
+public class ImageModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(ImageQueryCache.class).asEagerSingleton();
+        bind(ImageDecoder.class).asEagerSingleton();
+        bind(ImageWarmer.class).asEagerSingleton();
+        bind(AutoCorrelogramPool.class).asEagerSingleton();
+    }
+}
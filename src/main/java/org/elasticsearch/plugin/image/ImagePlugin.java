@@ -1,7 +1,28 @@
 package org.elasticsearch.plugin.image;
 
+import org.elasticsearch.action.ActionModule;
+import org.elasticsearch.action.image.backfill.ImageBackfillAction;
+import org.elasticsearch.action.image.backfill.TransportImageBackfillAction;
+import org.elasticsearch.action.image.batch.ImageBatchSearchAction;
+import org.elasticsearch.action.image.batch.TransportImageBatchSearchAction;
+import org.elasticsearch.action.image.collisions.ImageCollisionsAction;
+import org.elasticsearch.action.image.collisions.TransportImageCollisionsAction;
+import org.elasticsearch.action.image.duplicates.ImageDuplicatesAction;
+import org.elasticsearch.action.image.duplicates.TransportImageDuplicatesAction;
+import org.elasticsearch.action.image.lookup.ImageLookupAction;
+import org.elasticsearch.action.image.lookup.TransportImageLookupAction;
+import org.elasticsearch.action.image.train.ImageTrainAction;
+import org.elasticsearch.action.image.train.TransportImageTrainAction;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.index.mapper.image.AutoCorrelogramPool;
 import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.rest.RestModule;
+import org.elasticsearch.rest.action.image.RestImageBackfillAction;
+import org.elasticsearch.rest.action.image.RestImageBatchSearchAction;
+import org.elasticsearch.rest.action.image.RestImageCollisionsAction;
+import org.elasticsearch.rest.action.image.RestImageDuplicatesAction;
+import org.elasticsearch.rest.action.image.RestImageTrainAction;
 
 import java.util.Collection;
 
@@ -20,10 +41,41 @@ public class ImagePlugin extends AbstractPlugin {
         return "Elasticsearch Image Plugin";
     }
 
+    @Override
+    public Collection<Class<? extends Module>> modules() {
+        Collection<Class<? extends Module>> modules = newArrayList();
+        modules.add(ImageModule.class);
+        return modules;
+    }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> services() {
+        Collection<Class<? extends LifecycleComponent>> services = newArrayList();
+        services.add(AutoCorrelogramPool.class);
+        return services;
+    }
+
     @Override
     public Collection<Class<? extends Module>> indexModules() {
         Collection<Class<? extends Module>> modules = newArrayList();
         modules.add(ImageIndexModule.class);
         return modules;
     }
+
+    public void onModule(ActionModule module) {
+        module.registerAction(ImageTrainAction.INSTANCE, TransportImageTrainAction.class);
+        module.registerAction(ImageBatchSearchAction.INSTANCE, TransportImageBatchSearchAction.class);
+        module.registerAction(ImageDuplicatesAction.INSTANCE, TransportImageDuplicatesAction.class);
+        module.registerAction(ImageLookupAction.INSTANCE, TransportImageLookupAction.class);
+        module.registerAction(ImageCollisionsAction.INSTANCE, TransportImageCollisionsAction.class);
+        module.registerAction(ImageBackfillAction.INSTANCE, TransportImageBackfillAction.class);
+    }
+
+    public void onModule(RestModule module) {
+        module.addRestAction(RestImageTrainAction.class);
+        module.addRestAction(RestImageBatchSearchAction.class);
+        module.addRestAction(RestImageDuplicatesAction.class);
+        module.addRestAction(RestImageCollisionsAction.class);
+        module.addRestAction(RestImageBackfillAction.class);
+    }
 }
@@ -0,0 +1,59 @@
+package org.elasticsearch.rest.action.image;
+
+import org.elasticsearch.action.image.backfill.ImageBackfillAction;
+import org.elasticsearch.action.image.backfill.ImageBackfillRequest;
+import org.elasticsearch.action.image.backfill.ImageBackfillResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+
+import java.util.Map;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * Start backfilling features and hashes added to the mapping of an image field, then get its progress, e.g.
+ * <pre>
+ * curl -XPOST 'localhost:9200/test/_image/backfill' -d '{"field": "my_img", "docs_per_second": 100}'
+ * curl -XGET 'localhost:9200/test/_image/backfill?field=my_img'
+ * </pre>
+ */
+public class RestImageBackfillAction extends BaseRestHandler {
+
+    @Inject
+    public RestImageBackfillAction(Settings settings, Client client, RestController controller) {
+        super(settings, client);
+        controller.registerHandler(GET, "/{index}/_image/backfill", this);
+        controller.registerHandler(POST, "/{index}/_image/backfill", this);
+    }
+
+    @Override
+    public void handleRequest(final RestRequest request, final RestChannel channel, final Client client) {
+        ImageBackfillRequest backfillRequest = new ImageBackfillRequest(Strings.splitStringByCommaToArray(request.param("index")));
+        backfillRequest.indicesOptions(IndicesOptions.fromRequest(request, backfillRequest.indicesOptions()));
+        backfillRequest.start(request.method() == POST);
+
+        if (request.hasContent()) {
+            Map<String, Object> source = XContentHelper.convertToMap(request.content(), false).v2();
+            for (Map.Entry<String, Object> entry : source.entrySet()) {
+                String name = entry.getKey();
+                Object value = entry.getValue();
+                if ("field".equals(name)) {
+                    backfillRequest.field(value.toString());
+                } else if ("docs_per_second".equals(name)) {
+                    backfillRequest.docsPerSecond(((Number) value).floatValue());
+                }
+            }
+        }
+        backfillRequest.field(request.param("field", backfillRequest.field()));
+        backfillRequest.docsPerSecond(request.paramAsFloat("docs_per_second", backfillRequest.docsPerSecond()));
+
+        client.execute(ImageBackfillAction.INSTANCE, backfillRequest, new RestToXContentListener<ImageBackfillResponse>(channel));
+    }
+}
@@ -0,0 +1,96 @@
+package org.elasticsearch.rest.action.image;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.image.batch.ImageBatchSearchAction;
+import org.elasticsearch.action.image.batch.ImageBatchSearchRequest;
+import org.elasticsearch.action.image.batch.ImageBatchSearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * Search many images in one scan, e.g.
+ * <pre>
+ * curl -XPOST 'localhost:9200/test/_image/batch_search' -d '{"field": "my_img", "feature": "CEDD", "size": 10, "images": ["...", "..."]}'
+ * </pre>
+ */
+public class RestImageBatchSearchAction extends BaseRestHandler {
+
+    @Inject
+    public RestImageBatchSearchAction(Settings settings, Client client, RestController controller) {
+        super(settings, client);
+        controller.registerHandler(GET, "/{index}/_image/batch_search", this);
+        controller.registerHandler(POST, "/{index}/_image/batch_search", this);
+    }
+
+    @Override
+    public void handleRequest(final RestRequest request, final RestChannel channel, final Client client) throws IOException {
+        ImageBatchSearchRequest searchRequest = new ImageBatchSearchRequest(Strings.splitStringByCommaToArray(request.param("index")));
+        searchRequest.indicesOptions(IndicesOptions.fromRequest(request, searchRequest.indicesOptions()));
+
+        if (request.hasContent()) {
+            Map<String, Object> source = XContentHelper.convertToMap(request.content(), false).v2();
+            for (Map.Entry<String, Object> entry : source.entrySet()) {
+                String name = entry.getKey();
+                Object value = entry.getValue();
+                if ("field".equals(name)) {
+                    searchRequest.field(value.toString());
+                } else if ("feature".equals(name)) {
+                    searchRequest.feature(value.toString());
+                } else if ("size".equals(name)) {
+                    searchRequest.size(((Number) value).intValue());
+                } else if ("images".equals(name)) {
+                    for (Object image : (List) value) {
+                        searchRequest.addImage(Base64.decode(image.toString()));
+                    }
+                } else if ("lookups".equals(name)) {
+                    for (Object lookup : (List) value) {
+                        searchRequest.addLookup(parseLookup((Map<String, Object>) lookup, searchRequest.indices()[0]));
+                    }
+                } else if ("features".equals(name)) {
+                    for (Object feature : (List) value) {
+                        searchRequest.addFeature(Base64.decode(feature.toString()));
+                    }
+                } else {
+                    throw new ElasticsearchIllegalArgumentException("[_image/batch_search] does not support [" + name + "]");
+                }
+            }
+        }
+        searchRequest.field(request.param("field", searchRequest.field()));
+        searchRequest.feature(request.param("feature", searchRequest.feature()));
+        searchRequest.size(request.paramAsInt("size", searchRequest.size()));
+
+        client.execute(ImageBatchSearchAction.INSTANCE, searchRequest, new RestToXContentListener<ImageBatchSearchResponse>(channel));
+    }
+
+    /**
+     * Lookup of an existing image, index defaults to the searched index
+     */
+    private ImageBatchSearchRequest.Lookup parseLookup(Map<String, Object> lookupMap, String defaultIndex) {
+        Object type = lookupMap.get("type");
+        Object id = lookupMap.get("id");
+        Object path = lookupMap.get("path");
+        if (type == null || id == null || path == null) {
+            throw new ElasticsearchIllegalArgumentException("[_image/batch_search] lookup requires [type], [id] and [path]");
+        }
+        Object index = lookupMap.containsKey("index") ? lookupMap.get("index") : defaultIndex;
+        ImageBatchSearchRequest.Lookup lookup = new ImageBatchSearchRequest.Lookup(index.toString(), type.toString(), id.toString(), path.toString());
+        if (lookupMap.containsKey("routing")) {
+            lookup.routing(lookupMap.get("routing").toString());
+        }
+        return lookup;
+    }
+}
@@ -0,0 +1,81 @@
+package org.elasticsearch.rest.action.image;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.image.collisions.ImageCollisionsAction;
+import org.elasticsearch.action.image.collisions.ImageCollisionsRequest;
+import org.elasticsearch.action.image.collisions.ImageCollisionsResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * Global min hash collisions for a candidate budget, e.g.
+ * <pre>
+ * curl -XPOST 'localhost:9200/test/_image/collisions' -d '{"field": "my_img", "feature": "CEDD", "hash": "BIT_SAMPLING", "image": "... base64 ...", "budget": 100}'
+ * </pre>
+ */
+public class RestImageCollisionsAction extends BaseRestHandler {
+
+    @Inject
+    public RestImageCollisionsAction(Settings settings, Client client, RestController controller) {
+        super(settings, client);
+        controller.registerHandler(GET, "/{index}/_image/collisions", this);
+        controller.registerHandler(POST, "/{index}/_image/collisions", this);
+    }
+
+    @Override
+    public void handleRequest(final RestRequest request, final RestChannel channel, final Client client) throws IOException {
+        ImageCollisionsRequest collisionsRequest = new ImageCollisionsRequest(Strings.splitStringByCommaToArray(request.param("index")));
+        collisionsRequest.indicesOptions(IndicesOptions.fromRequest(request, collisionsRequest.indicesOptions()));
+
+        if (request.hasContent()) {
+            Map<String, Object> source = XContentHelper.convertToMap(request.content(), false).v2();
+            for (Map.Entry<String, Object> entry : source.entrySet()) {
+                String name = entry.getKey();
+                Object value = entry.getValue();
+                if ("field".equals(name)) {
+                    collisionsRequest.field(value.toString());
+                } else if ("feature".equals(name)) {
+                    collisionsRequest.feature(value.toString());
+                } else if ("hash".equals(name)) {
+                    collisionsRequest.hash(value.toString());
+                } else if ("image".equals(name)) {
+                    collisionsRequest.image(Base64.decode(value.toString()));
+                } else if ("hashes".equals(name)) {
+                    List hashList = (List) value;
+                    int[] hashes = new int[hashList.size()];
+                    for (int i = 0; i < hashes.length; i++) {
+                        hashes[i] = ((Number) hashList.get(i)).intValue();
+                    }
+                    collisionsRequest.hashes(hashes);
+                } else if ("budget".equals(name)) {
+                    collisionsRequest.budget(((Number) value).intValue());
+                } else if ("max_hash_freq".equals(name)) {
+                    collisionsRequest.maxHashFreq(((Number) value).floatValue());
+                } else {
+                    throw new ElasticsearchIllegalArgumentException("[_image/collisions] does not support [" + name + "]");
+                }
+            }
+        }
+        collisionsRequest.field(request.param("field", collisionsRequest.field()));
+        collisionsRequest.feature(request.param("feature", collisionsRequest.feature()));
+        collisionsRequest.hash(request.param("hash", collisionsRequest.hash()));
+        collisionsRequest.budget(request.paramAsInt("budget", collisionsRequest.budget()));
+        collisionsRequest.maxHashFreq(request.paramAsFloat("max_hash_freq", collisionsRequest.maxHashFreq()));
+
+        client.execute(ImageCollisionsAction.INSTANCE, collisionsRequest, new RestToXContentListener<ImageCollisionsResponse>(channel));
+    }
+}
@@ -0,0 +1,73 @@
+package org.elasticsearch.rest.action.image;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.image.duplicates.ImageDuplicatesAction;
+import org.elasticsearch.action.image.duplicates.ImageDuplicatesRequest;
+import org.elasticsearch.action.image.duplicates.ImageDuplicatesResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * Find near duplicate image clusters, e.g.
+ * <pre>
+ * curl -XPOST 'localhost:9200/test/_image/duplicates' -d '{"field": "my_img", "feature": "CEDD", "hash": "BIT_SAMPLING", "max_distance": 1.0}'
+ * </pre>
+ */
+public class RestImageDuplicatesAction extends BaseRestHandler {
+
+    @Inject
+    public RestImageDuplicatesAction(Settings settings, Client client, RestController controller) {
+        super(settings, client);
+        controller.registerHandler(GET, "/{index}/_image/duplicates", this);
+        controller.registerHandler(POST, "/{index}/_image/duplicates", this);
+    }
+
+    @Override
+    public void handleRequest(final RestRequest request, final RestChannel channel, final Client client) throws IOException {
+        ImageDuplicatesRequest duplicatesRequest = new ImageDuplicatesRequest(Strings.splitStringByCommaToArray(request.param("index")));
+        duplicatesRequest.indicesOptions(IndicesOptions.fromRequest(request, duplicatesRequest.indicesOptions()));
+
+        if (request.hasContent()) {
+            Map<String, Object> source = XContentHelper.convertToMap(request.content(), false).v2();
+            for (Map.Entry<String, Object> entry : source.entrySet()) {
+                String name = entry.getKey();
+                Object value = entry.getValue();
+                if ("field".equals(name)) {
+                    duplicatesRequest.field(value.toString());
+                } else if ("feature".equals(name)) {
+                    duplicatesRequest.feature(value.toString());
+                } else if ("hash".equals(name)) {
+                    duplicatesRequest.hash(value.toString());
+                } else if ("max_distance".equals(name)) {
+                    duplicatesRequest.maxDistance(((Number) value).floatValue());
+                } else if ("max_block_size".equals(name)) {
+                    duplicatesRequest.maxBlockSize(((Number) value).intValue());
+                } else if ("size".equals(name)) {
+                    duplicatesRequest.size(((Number) value).intValue());
+                } else {
+                    throw new ElasticsearchIllegalArgumentException("[_image/duplicates] does not support [" + name + "]");
+                }
+            }
+        }
+        duplicatesRequest.field(request.param("field", duplicatesRequest.field()));
+        duplicatesRequest.feature(request.param("feature", duplicatesRequest.feature()));
+        duplicatesRequest.hash(request.param("hash", duplicatesRequest.hash()));
+        duplicatesRequest.maxDistance(request.paramAsFloat("max_distance", duplicatesRequest.maxDistance()));
+        duplicatesRequest.maxBlockSize(request.paramAsInt("max_block_size", duplicatesRequest.maxBlockSize()));
+        duplicatesRequest.size(request.paramAsInt("size", duplicatesRequest.size()));
+
+        client.execute(ImageDuplicatesAction.INSTANCE, duplicatesRequest, new RestToXContentListener<ImageDuplicatesResponse>(channel));
+    }
+}
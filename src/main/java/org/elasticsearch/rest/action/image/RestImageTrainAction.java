@@ -0,0 +1,73 @@
+package org.elasticsearch.rest.action.image;
+
+import org.elasticsearch.action.image.train.ImageTrainAction;
+import org.elasticsearch.action.image.train.ImageTrainRequest;
+import org.elasticsearch.action.image.train.ImageTrainResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+
+import java.util.Map;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * Train ivf centroids or pq codebooks for an image feature, e.g.
+ * <pre>
+ * curl -XPOST 'localhost:9200/test/_image/train' -d '{"field": "my_img", "feature": "CEDD", "clusters": 64}'
+ * curl -XPOST 'localhost:9200/test/_image/train' -d '{"method": "pq", "field": "my_img", "feature": "CEDD", "subspaces": 16}'
+ * </pre>
+ */
+public class RestImageTrainAction extends BaseRestHandler {
+
+    @Inject
+    public RestImageTrainAction(Settings settings, Client client, RestController controller) {
+        super(settings, client);
+        controller.registerHandler(GET, "/{index}/_image/train", this);
+        controller.registerHandler(POST, "/{index}/_image/train", this);
+    }
+
+    @Override
+    public void handleRequest(final RestRequest request, final RestChannel channel, final Client client) {
+        ImageTrainRequest trainRequest = new ImageTrainRequest(Strings.splitStringByCommaToArray(request.param("index")));
+        trainRequest.indicesOptions(IndicesOptions.fromRequest(request, trainRequest.indicesOptions()));
+
+        if (request.hasContent()) {
+            Map<String, Object> source = XContentHelper.convertToMap(request.content(), false).v2();
+            for (Map.Entry<String, Object> entry : source.entrySet()) {
+                String name = entry.getKey();
+                Object value = entry.getValue();
+                if ("method".equals(name)) {
+                    trainRequest.method(value.toString());
+                } else if ("field".equals(name)) {
+                    trainRequest.field(value.toString());
+                } else if ("feature".equals(name)) {
+                    trainRequest.feature(value.toString());
+                } else if ("clusters".equals(name)) {
+                    trainRequest.clusters(((Number) value).intValue());
+                } else if ("sample_size".equals(name)) {
+                    trainRequest.sampleSize(((Number) value).intValue());
+                } else if ("max_iterations".equals(name)) {
+                    trainRequest.maxIterations(((Number) value).intValue());
+                } else if ("subspaces".equals(name)) {
+                    trainRequest.subspaces(((Number) value).intValue());
+                }
+            }
+        }
+        trainRequest.method(request.param("method", trainRequest.method()));
+        trainRequest.field(request.param("field", trainRequest.field()));
+        trainRequest.feature(request.param("feature", trainRequest.feature()));
+        trainRequest.clusters(request.paramAsInt("clusters", trainRequest.clusters()));
+        trainRequest.sampleSize(request.paramAsInt("sample_size", trainRequest.sampleSize()));
+        trainRequest.maxIterations(request.paramAsInt("max_iterations", trainRequest.maxIterations()));
+        trainRequest.subspaces(request.paramAsInt("subspaces", trainRequest.subspaces()));
+
+        client.execute(ImageTrainAction.INSTANCE, trainRequest, new RestToXContentListener<ImageTrainResponse>(channel));
+    }
+}
@@ -0,0 +1,132 @@
+package org.elasticsearch.plugin.image.test;
+
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.DocValuesConsumer;
+import org.apache.lucene.codecs.DocValuesFormat;
+import org.apache.lucene.codecs.DocValuesProducer;
+import org.apache.lucene.codecs.lucene49.Lucene49DocValuesFormat;
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.TestUtil;
+import org.elasticsearch.index.codec.docvaluesformat.ImageFeatureDocValuesFormat;
+
+import java.io.IOException;
+
+/**
+ * Runs the Lucene doc values format tests against {@link ImageFeatureDocValuesFormat}.
+ * The format only supports binary doc values, other types are written with the default format of Lucene
+ */
+public class ImageFeatureDocValuesFormatTests extends BaseDocValuesFormatTestCase {
+
+    @Override
+    protected Codec getCodec() {
+        return TestUtil.alwaysDocValuesFormat(new BinaryOnlyDocValuesFormat());
+    }
+
+    /**
+     * Binary doc values go to {@link ImageFeatureDocValuesFormat}, other types to the default format
+     */
+    public static class BinaryOnlyDocValuesFormat extends DocValuesFormat {
+        private final DocValuesFormat binary = new ImageFeatureDocValuesFormat();
+        private final DocValuesFormat other = new Lucene49DocValuesFormat();
+
+        public BinaryOnlyDocValuesFormat() {
+            super("ImageFeatureBinaryOnly");
+        }
+
+        @Override
+        public DocValuesConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+            final DocValuesConsumer binaryConsumer = binary.fieldsConsumer(state);
+            final DocValuesConsumer otherConsumer = other.fieldsConsumer(state);
+            return new DocValuesConsumer() {
+                @Override
+                public void addNumericField(FieldInfo field, Iterable<Number> values) throws IOException {
+                    otherConsumer.addNumericField(field, values);
+                }
+
+                @Override
+                public void addBinaryField(FieldInfo field, Iterable<BytesRef> values) throws IOException {
+                    binaryConsumer.addBinaryField(field, values);
+                }
+
+                @Override
+                public void addSortedField(FieldInfo field, Iterable<BytesRef> values, Iterable<Number> docToOrd) throws IOException {
+                    otherConsumer.addSortedField(field, values, docToOrd);
+                }
+
+                @Override
+                public void addSortedNumericField(FieldInfo field, Iterable<Number> docToValueCount, Iterable<Number> values) throws IOException {
+                    otherConsumer.addSortedNumericField(field, docToValueCount, values);
+                }
+
+                @Override
+                public void addSortedSetField(FieldInfo field, Iterable<BytesRef> values, Iterable<Number> docToOrdCount, Iterable<Number> ords) throws IOException {
+                    otherConsumer.addSortedSetField(field, values, docToOrdCount, ords);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    IOUtils.close(binaryConsumer, otherConsumer);
+                }
+            };
+        }
+
+        @Override
+        public DocValuesProducer fieldsProducer(SegmentReadState state) throws IOException {
+            final DocValuesProducer binaryProducer = binary.fieldsProducer(state);
+            final DocValuesProducer otherProducer = other.fieldsProducer(state);
+            return new DocValuesProducer() {
+                @Override
+                public NumericDocValues getNumeric(FieldInfo field) throws IOException {
+                    return otherProducer.getNumeric(field);
+                }
+
+                @Override
+                public BinaryDocValues getBinary(FieldInfo field) throws IOException {
+                    return binaryProducer.getBinary(field);
+                }
+
+                @Override
+                public SortedDocValues getSorted(FieldInfo field) throws IOException {
+                    return otherProducer.getSorted(field);
+                }
+
+                @Override
+                public SortedNumericDocValues getSortedNumeric(FieldInfo field) throws IOException {
+                    return otherProducer.getSortedNumeric(field);
+                }
+
+                @Override
+                public SortedSetDocValues getSortedSet(FieldInfo field) throws IOException {
+                    return otherProducer.getSortedSet(field);
+                }
+
+                @Override
+                public Bits getDocsWithField(FieldInfo field) throws IOException {
+                    if (field.getDocValuesType() == FieldInfo.DocValuesType.BINARY) {
+                        return binaryProducer.getDocsWithField(field);
+                    }
+                    return otherProducer.getDocsWithField(field);
+                }
+
+                @Override
+                public long ramBytesUsed() {
+                    return binaryProducer.ramBytesUsed() + otherProducer.ramBytesUsed();
+                }
+
+                @Override
+                public void checkIntegrity() throws IOException {
+                    binaryProducer.checkIntegrity();
+                    otherProducer.checkIntegrity();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    IOUtils.close(binaryProducer, otherProducer);
+                }
+            };
+        }
+    }
+}
@@ -1,28 +1,101 @@
 package org.elasticsearch.plugin.image.test;
 
+import net.semanticmetadata.lire.imageanalysis.AutoColorCorrelogram;
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.imageanalysis.FCTH;
+import net.semanticmetadata.lire.imageanalysis.JCD;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.indexing.hashing.BitSampling;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.FilterAtomicReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.sanselan.ImageFormat;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.image.backfill.ImageBackfillAction;
+import org.elasticsearch.action.image.backfill.ImageBackfillRequest;
+import org.elasticsearch.action.image.backfill.ImageBackfillResponse;
+import org.elasticsearch.action.image.batch.ImageBatchSearchAction;
+import org.elasticsearch.action.image.batch.ImageBatchSearchHit;
+import org.elasticsearch.action.image.batch.ImageBatchSearchRequest;
+import org.elasticsearch.action.image.batch.ImageBatchSearchResponse;
+import org.elasticsearch.action.image.collisions.ImageCollisionsAction;
+import org.elasticsearch.action.image.collisions.ImageCollisionsRequest;
+import org.elasticsearch.action.image.collisions.ImageCollisionsResponse;
+import org.elasticsearch.action.image.duplicates.ImageDuplicatesAction;
+import org.elasticsearch.action.image.duplicates.ImageDuplicatesCluster;
+import org.elasticsearch.action.image.duplicates.ImageDuplicatesRequest;
+import org.elasticsearch.action.image.duplicates.ImageDuplicatesResponse;
+import org.elasticsearch.action.image.train.ImageTrainAction;
+import org.elasticsearch.action.image.train.ImageTrainRequest;
+import org.elasticsearch.action.image.train.ImageTrainResponse;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.breaker.MemoryCircuitBreaker;
+import org.elasticsearch.common.collect.Lists;
 import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.collect.Sets;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.mapper.image.AutoCorrelogramPool;
 import org.elasticsearch.index.mapper.image.FeatureEnum;
 import org.elasticsearch.index.mapper.image.HashEnum;
+import org.elasticsearch.index.mapper.image.ImageDecoder;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.mapper.image.ImageWarmer;
+import org.elasticsearch.index.mapper.image.KMeans;
+import org.elasticsearch.index.mapper.image.KeypointExtractor;
+import org.elasticsearch.index.mapper.image.PerceptualHash;
 import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.IndexQueryParserService;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.TermQueryBuilder;
 import org.elasticsearch.index.query.image.ImageQueryBuilder;
+import org.elasticsearch.index.query.image.ImageQueryCache;
+import org.elasticsearch.index.query.image.PerceptualHashQueryBuilder;
+import org.elasticsearch.index.query.image.VisualWordsQueryBuilder;
+import org.elasticsearch.index.service.IndexService;
+import org.elasticsearch.index.shard.service.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.indices.fielddata.breaker.CircuitBreakerService;
+import org.elasticsearch.indices.fielddata.breaker.InternalCircuitBreakerService;
 import org.elasticsearch.plugins.PluginsService;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.rescore.RescoreBuilder;
 import org.elasticsearch.test.ElasticsearchIntegrationTest;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.elasticsearch.client.Requests.putMappingRequest;
 import static org.elasticsearch.common.io.Streams.copyToStringFromClasspath;
@@ -43,9 +116,16 @@ public class ImageIntegrationTests extends ElasticsearchIntegrationTest {
         return ImmutableSettings.builder()
                 .put(super.nodeSettings(nodeOrdinal))
                 .put("plugins." + PluginsService.LOAD_PLUGIN_FROM_CLASSPATH, true)
+                .put(ImageDecoder.MAX_PIXELS_SETTING, 2000000)
+                .put(AutoCorrelogramPool.THREADS_SETTING, 2)
                 .build();
     }
 
+    @Override
+    protected double getPerTestTransportClientRatio() {
+        return 0;  // transport client doesn't load plugin actions from classpath
+    }
+
     @Before
     public void createEmptyIndex() throws Exception {
         logger.info("creating index [{}]", INDEX_NAME);
@@ -155,6 +235,924 @@ public class ImageIntegrationTests extends ElasticsearchIntegrationTest {
         assertImageScore(hits7, nameToSearch, 2.0f);
     }
 
+    @Test
+    public void test_parallel_correlogram_image() throws Exception {
+        // test parallel auto color correlogram extracts the same feature as LIRE, on the pool of the nodes
+        BufferedImage correlogramImage = Sanselan.getBufferedImage(getRandomImage());
+        AutoColorCorrelogram lireCorrelogram = new AutoColorCorrelogram();
+        lireCorrelogram.extract(correlogramImage);
+        LireFeature parallelCorrelogram = FeatureEnum.AUTO_COLOR_CORRELOGRAM.newFeature();
+        parallelCorrelogram.extract(correlogramImage);
+        assertThat(parallelCorrelogram.getByteArrayRepresentation(), equalTo(lireCorrelogram.getByteArrayRepresentation()));
+    }
+
+    @Test
+    public void test_fused_image_query() throws Exception {
+        int totalImages = randomIntBetween(10, 30);
+        byte[][] images = indexRandomImages(totalImages);
+        byte[] imgToSearch = images[0];
+
+        // test search on multiple features in one pass
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name(), 1.0f).feature(FeatureEnum.JCD.name(), 0.5f).image(imgToSearch);
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        SearchHits hits = searchResponse.getHits();
+        assertThat("Should get all images", hits.getTotalHits(), equalTo((long) totalImages));
+
+        // should score same as a bool query of one image query per feature
+        BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery()
+                .should(new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch))
+                .should(new ImageQueryBuilder("img").feature(FeatureEnum.JCD.name()).image(imgToSearch).boost(0.5f));
+        SearchResponse searchResponse2 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(boolQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse2);
+        Map<String, Float> boolScores = Maps.newHashMap();
+        for (SearchHit hit : searchResponse2.getHits()) {
+            boolScores.put(hit.getId(), hit.getScore());
+        }
+        for (SearchHit hit : hits) {
+            assertThat((double) hit.getScore(), closeTo(boolScores.get(hit.getId()), 0.0001));
+        }
+    }
+
+    @Test
+    public void test_rescore_image() throws Exception {
+        int totalImages = randomIntBetween(10, 30);
+        byte[][] images = indexRandomImages(totalImages);
+        byte[] imgToSearch = images[0];
+        String nameToSearch = "image0";
+
+        // test rescore top hits of a cheap query by image similarity
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(QueryBuilders.termQuery("name", nameToSearch))
+                .setRescorer(RescoreBuilder.queryRescorer(new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch)).setQueryWeight(0.0f)).setRescoreWindow(10).get();
+        assertNoFailures(searchResponse);
+        assertImageScore(searchResponse.getHits(), nameToSearch, 2.0f);
+
+        // only docs in rescore window of each shard should be scored by image
+        SearchResponse searchResponse2 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(QueryBuilders.matchAllQuery())
+                .setRescorer(RescoreBuilder.queryRescorer(new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch))).setRescoreWindow(1).setSize(totalImages).get();
+        assertNoFailures(searchResponse2);
+        int rescored = 0;
+        for (SearchHit hit : searchResponse2.getHits()) {
+            if (hit.getScore() > 1.0f) {
+                rescored++;
+            }
+        }
+        assertThat(rescored, greaterThanOrEqualTo(1));
+        assertThat(rescored, lessThanOrEqualTo(getNumShards(INDEX_NAME).numPrimaries));
+
+        // rescore filters the image query by the window docs, distance is read from doc values only for them
+        IndexService indexService = null;
+        IndexShard indexShard = null;
+        for (IndicesService indicesService : internalCluster().getInstances(IndicesService.class)) {
+            if (indicesService.hasIndex(INDEX_NAME)) {
+                for (IndexShard shard : indicesService.indexServiceSafe(INDEX_NAME)) {
+                    if (indexShard == null || shard.docStats().getCount() > indexShard.docStats().getCount()) {
+                        indexService = indicesService.indexServiceSafe(INDEX_NAME);
+                        indexShard = shard;
+                    }
+                }
+            }
+        }
+        assertThat(indexShard, notNullValue());
+        Query imageQuery = indexService.queryParserService().parse(new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch)).query();
+        Engine.Searcher engineSearcher = indexShard.acquireSearcher("test");
+        try {
+            final AtomicInteger docValuesRead = new AtomicInteger();
+            List<AtomicReader> leaves = Lists.newArrayList();
+            for (AtomicReaderContext context : engineSearcher.reader().leaves()) {
+                leaves.add(new FilterAtomicReader(context.reader()) {
+                    @Override
+                    public BinaryDocValues getBinaryDocValues(String field) throws IOException {
+                        final BinaryDocValues binaryDocValues = super.getBinaryDocValues(field);
+                        return binaryDocValues == null ? null : new BinaryDocValues() {
+                            @Override
+                            public BytesRef get(int docID) {
+                                docValuesRead.incrementAndGet();
+                                return binaryDocValues.get(docID);
+                            }
+                        };
+                    }
+                });
+            }
+            IndexSearcher searcher = new IndexSearcher(new MultiReader(leaves.toArray(new AtomicReader[leaves.size()]), false));
+            final TopDocs window = searcher.search(new MatchAllDocsQuery(), 3);
+            Filter windowFilter = new Filter() {  // same as the filter of the rescore phase, iterator only
+                @Override
+                public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+                    final FixedBitSet bits = new FixedBitSet(context.reader().maxDoc());
+                    for (ScoreDoc scoreDoc : window.scoreDocs) {
+                        if (scoreDoc.doc >= context.docBase && scoreDoc.doc < context.docBase + context.reader().maxDoc()) {
+                            bits.set(scoreDoc.doc - context.docBase);
+                        }
+                    }
+                    return new DocIdSet() {
+                        @Override
+                        public DocIdSetIterator iterator() throws IOException {
+                            return bits.iterator();
+                        }
+                    };
+                }
+            };
+            TopDocs windowHits = searcher.search(imageQuery, windowFilter, window.scoreDocs.length);
+            assertThat(windowHits.totalHits, equalTo(window.scoreDocs.length));
+            assertThat(docValuesRead.get(), equalTo(window.scoreDocs.length));
+        } finally {
+            engineSearcher.close();
+        }
+    }
+
+    @Test
+    public void test_filter_image_query() throws Exception {
+        int totalImages = randomIntBetween(10, 30);
+        byte[][] images = indexRandomImages(totalImages);
+        byte[] imgToSearch = images[0];
+        String nameToSearch = "image0";
+
+        // test search with filter, only matching images are scored
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).filter(FilterBuilders.termFilter("name", nameToSearch));
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should match filtered image only", searchResponse.getHits().getTotalHits(), equalTo(1l));
+        assertImageScore(searchResponse.getHits(), nameToSearch, 2.0f);
+
+        // test search with hash, limit and filter, candidates are picked from filtered images
+        ImageQueryBuilder imageQueryBuilder2 = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name()).limit(1)
+                .filter(FilterBuilders.termFilter("name", nameToSearch));
+        SearchResponse searchResponse2 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder2).setSize(totalImages).get();
+        assertNoFailures(searchResponse2);
+        assertThat("Should match filtered image only", searchResponse2.getHits().getTotalHits(), equalTo(1l));
+        assertImageScore(searchResponse2.getHits(), nameToSearch, 2.0f);
+    }
+
+    @Test
+    public void test_max_distance_image_query() throws Exception {
+        int totalImages = randomIntBetween(10, 30);
+        byte[][] images = indexRandomImages(totalImages);
+        byte[] imgToSearch = images[0];
+        String nameToSearch = "image0";
+
+        // test search with max distance, images further than it don't match
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).maxDistance(1.0f);
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should match at least one image", searchResponse.getHits().getTotalHits(), greaterThanOrEqualTo(1l));
+        for (SearchHit hit : searchResponse.getHits()) {
+            assertThat("Distance should be less than 1", hit.getScore(), greaterThanOrEqualTo(1.0f));
+        }
+        assertImageScore(searchResponse.getHits(), nameToSearch, 2.0f);
+
+        // test search with hash and max distance 0, only exact duplicates match
+        ImageQueryBuilder imageQueryBuilder2 = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name()).maxDistance(0f);
+        SearchResponse searchResponse2 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder2).setSize(totalImages).get();
+        assertNoFailures(searchResponse2);
+        for (SearchHit hit : searchResponse2.getHits()) {
+            assertThat("Should be exact duplicate", hit.getScore(), equalTo(2.0f));
+        }
+        assertImageScore(searchResponse2.getHits(), nameToSearch, 2.0f);
+    }
+
+    @Test
+    public void test_phash_index_search_image() throws Exception {
+        int totalImages = randomIntBetween(10, 30);
+        byte[][] images = indexRandomImages(totalImages);
+        byte[] imgToSearch = images[0];
+        String nameToSearch = "image0";
+
+        // test search with perceptual hash, exact duplicates are found by band terms
+        PerceptualHashQueryBuilder phashQueryBuilder = new PerceptualHashQueryBuilder("img").image(imgToSearch).maxDistance(0);
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(phashQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        for (SearchHit hit : searchResponse.getHits()) {
+            assertThat("Should be exact duplicate", hit.getScore(), equalTo(2.0f));
+        }
+        assertImageScore(searchResponse.getHits(), nameToSearch, 2.0f);
+
+        // max distance not less than number of bands, all hashes are checked
+        PerceptualHashQueryBuilder phashQueryBuilder2 = new PerceptualHashQueryBuilder("img").image(imgToSearch).maxDistance(64);
+        SearchResponse searchResponse2 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(phashQueryBuilder2).setSize(totalImages).get();
+        assertNoFailures(searchResponse2);
+        assertThat("Should get all images", searchResponse2.getHits().getTotalHits(), equalTo((long) totalImages));
+        assertImageScore(searchResponse2.getHits(), nameToSearch, 2.0f);
+    }
+
+    @Test
+    public void test_image_query_cache() throws Exception {
+        int totalImages = randomIntBetween(10, 30);
+        byte[][] images = indexRandomImages(totalImages);
+        byte[] imgToSearch = images[0];
+
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).boost(2.0f);
+
+        // queries parsed separately from the same image are equal, so they share cache entries
+        IndexQueryParserService queryParserService = null;
+        for (IndicesService indicesService : internalCluster().getInstances(IndicesService.class)) {
+            if (indicesService.hasIndex(INDEX_NAME)) {
+                queryParserService = indicesService.indexServiceSafe(INDEX_NAME).queryParserService();
+            }
+        }
+        Query query = queryParserService.parse(imageQueryBuilder).query();
+        Query query2 = queryParserService.parse(imageQueryBuilder).query();
+        assertThat(query2, not(sameInstance(query)));
+        assertThat(query2, equalTo(query));
+        assertThat(query2.hashCode(), equalTo(query.hashCode()));
+        assertThat(queryParserService.parse(new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(toPng(new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB))).boost(2.0f)).query(),
+                not(equalTo(query)));
+
+        long hitCount = queryCacheHitCount();
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        SearchHits hits = searchResponse.getHits();
+        assertThat(queryCacheHitCount(), equalTo(hitCount));
+
+        // same query again is served from the query cache, with same hits and scores
+        SearchResponse searchResponse2 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse2);
+        assertThat(queryCacheHitCount(), greaterThan(hitCount));
+        assertThat(searchResponse2.getHits().getTotalHits(), equalTo((long) totalImages));
+        for (int i = 0; i < totalImages; i++) {
+            assertThat(searchResponse2.getHits().getAt(i).getScore(), equalTo(hits.getAt(i).getScore()));
+        }
+
+        // image query in a bool query is advanced to the docs of the other clause, it is neither cached nor served from the cache
+        hitCount = queryCacheHitCount();
+        BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery().must(QueryBuilders.termQuery("name", "image0")).must(imageQueryBuilder);
+        SearchResponse searchResponse3 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(boolQueryBuilder).get();
+        assertNoFailures(searchResponse3);
+        assertThat(searchResponse3.getHits().getTotalHits(), equalTo(1l));
+        assertThat(queryCacheHitCount(), equalTo(hitCount));
+    }
+
+    @Test
+    public void test_image_query_cache_large_segment() throws Exception {
+        // node with a query cache taking 10 matches per segment, the index only lives there
+        String node = internalCluster().startNode(settingsBuilder().put(ImageQueryCache.SIZE_SETTING, "800b"));
+        String cacheIndex = "test_cache";
+        client().admin().indices().prepareCreate(cacheIndex).setSettings(settingsBuilder().put("index.number_of_shards", 1)
+                .put("index.number_of_replicas", 0).put("index.routing.allocation.include._name", node))
+                .addMapping(DOC_TYPE_NAME, copyToStringFromClasspath("/mapping/test-mapping.json")).get();
+        ensureGreen(cacheIndex);
+        int totalImages = randomIntBetween(15, 30);
+        Random random = getRandom();
+        for (int i = 0; i < totalImages; i++) {
+            index(cacheIndex, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", toPng(getRandomShapeImage(random))).field("name", "image" + i).endObject());
+        }
+        client().admin().indices().prepareOptimize(cacheIndex).setMaxNumSegments(1).get();
+        refresh();
+        ImageQueryCache imageQueryCache = internalCluster().getInstance(ImageQueryCache.class, node);
+
+        // test segment with more matches than an entry takes is cached up to it, the rest is scored again with same hits and scores
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(toPng(getRandomShapeImage(random)));
+        SearchResponse searchResponse = client().prepareSearch(cacheIndex).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        long hitCount = imageQueryCache.stats().hitCount();
+        SearchResponse searchResponse2 = client().prepareSearch(cacheIndex).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse2);
+        assertThat(imageQueryCache.stats().hitCount(), greaterThan(hitCount));
+        assertThat(searchResponse2.getHits().getTotalHits(), equalTo((long) totalImages));
+        for (int i = 0; i < totalImages; i++) {
+            assertThat(searchResponse2.getHits().getAt(i).getId(), equalTo(searchResponse.getHits().getAt(i).getId()));
+            assertThat(searchResponse2.getHits().getAt(i).getScore(), equalTo(searchResponse.getHits().getAt(i).getScore()));
+        }
+    }
+
+    @Test
+    public void test_precomputed_feature_image() throws Exception {
+        int totalImages = randomIntBetween(10, 30);
+        byte[][] images = indexRandomImages(totalImages);
+        byte[] imgToSearch = images[0];
+        String nameToSearch = "image0";
+
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name());
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        SearchHits hits = searchResponse.getHits();
+
+        // test search with feature and hashes extracted by client
+        CEDD cedd = new CEDD();
+        cedd.extract(ImageIO.read(new ByteArrayInputStream(imgToSearch)));
+        int[] ceddHashes = BitSampling.generateHashes(cedd.getDoubleHistogram());
+        ImageQueryBuilder imageQueryBuilder2 = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).featureVector(cedd.getByteArrayRepresentation())
+                .hash(HashEnum.BIT_SAMPLING.name()).hashes(ceddHashes);
+        SearchResponse searchResponse2 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder2).setSize(totalImages).get();
+        assertNoFailures(searchResponse2);
+        assertThat(searchResponse2.getHits().getTotalHits(), equalTo(hits.getTotalHits()));
+        assertImageScore(searchResponse2.getHits(), nameToSearch, 2.0f);
+
+        // index features extracted by client instead of image, hashes are generated when indexing
+        BufferedImage bufferedImage = ImageIO.read(new ByteArrayInputStream(imgToSearch));
+        JCD jcd = new JCD();
+        jcd.extract(bufferedImage);
+        FCTH fcth = new FCTH();
+        fcth.extract(bufferedImage);
+        index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().startObject("img").field("CEDD", cedd.getByteArrayRepresentation())
+                .field("JCD", jcd.getByteArrayRepresentation()).field("FCTH", fcth.getByteArrayRepresentation())
+                .field("phash", PerceptualHash.hash(bufferedImage)).endObject().field("name", "precomputed").endObject());
+        refresh();
+        SearchResponse searchResponse3 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages + 1).get();
+        assertNoFailures(searchResponse3);
+        assertImageScore(searchResponse3.getHits(), "precomputed", 2.0f);
+        assertImageScore(searchResponse3.getHits(), nameToSearch, 2.0f);
+    }
+
+    @Test
+    public void test_planned_image_query() throws Exception {
+        int totalImages = randomIntBetween(10, 30);
+        byte[][] images = indexRandomImages(totalImages);
+        byte[] imgToSearch = images[0];
+        String nameToSearch = "image0";
+
+        // test search with hash planned per segment, small segments holding all hashes of the image are scanned
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name()).plan("auto");
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setExplain(true).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertImageScore(searchResponse.getHits(), nameToSearch, 2.0f);
+        for (SearchHit hit : searchResponse.getHits()) {
+            if (hit.getSource().get("name").equals(nameToSearch)) {
+                assertThat(hit.getExplanation().getDetails()[0].getDetails()[0].getDescription(), startsWith("plan scan"));
+            }
+        }
+
+        // test planned search with limit, min hash collisions or max hash freq matches the same images as static, before and after
+        // docs without image make hash union cheaper than scan
+        CEDD cedd = new CEDD();
+        cedd.extract(ImageIO.read(new ByteArrayInputStream(imgToSearch)));
+        int[] ceddHashes = BitSampling.generateHashes(cedd.getDoubleHistogram());
+        int[] someHashes = new int[] {ceddHashes[0], ceddHashes[1], ceddHashes[2]};
+        for (int round = 0; round < 2; round++) {
+            if (round == 1) {
+                for (int i = 0; i < 5 * totalImages; i++) {
+                    index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("name", "noimage" + i).endObject());
+                }
+                client().admin().indices().prepareOptimize(INDEX_NAME).setMaxNumSegments(1).get();
+                refresh();
+            }
+            ImageQueryBuilder[] staticQueryBuilders = new ImageQueryBuilder[] {
+                    new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name()).limit(5),
+                    new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name()).hashes(someHashes).minHashCollisions(2),
+                    new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name()).maxHashFreq(0.2f)
+            };
+            for (ImageQueryBuilder staticQueryBuilder : staticQueryBuilders) {
+                SearchResponse staticResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(staticQueryBuilder).setSize(totalImages).get();
+                assertNoFailures(staticResponse);
+                SearchResponse plannedResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(staticQueryBuilder.plan("auto")).setSize(totalImages).get();
+                assertNoFailures(plannedResponse);
+                assertThat(hitIds(plannedResponse.getHits()), equalTo(hitIds(staticResponse.getHits())));
+            }
+        }
+    }
+
+    @Test
+    public void test_hash_collisions_image() throws Exception {
+        int totalImages = randomIntBetween(10, 30);
+        byte[][] images = indexRandomImages(totalImages);
+        byte[] imgToSearch = images[0];
+        String nameToSearch = "image0";
+
+        // test search with hash collisions, exact match shares all hashes and hashes in every image are dropped
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name()).minHashCollisions(10);
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertImageScore(searchResponse.getHits(), nameToSearch, 2.0f);
+        ImageQueryBuilder imageQueryBuilder2 = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name()).maxHashFreq(0.001f);
+        SearchResponse searchResponse2 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder2).setSize(totalImages).get();
+        assertNoFailures(searchResponse2);
+        assertThat(searchResponse2.getHits().getTotalHits(), equalTo(0l));
+
+        // test global candidate budget, threshold from collisions on all shards bounds the images scored by the hash query
+        ImageCollisionsRequest collisionsRequest = new ImageCollisionsRequest(INDEX_NAME).field("img").feature(FeatureEnum.CEDD.name())
+                .hash(HashEnum.BIT_SAMPLING.name()).image(imgToSearch).budget(1);
+        ImageCollisionsResponse collisionsResponse = client().execute(ImageCollisionsAction.INSTANCE, collisionsRequest).actionGet();
+        assertThat(collisionsResponse.getFailedShards(), equalTo(0));
+        assertThat(collisionsResponse.getCandidates(), greaterThanOrEqualTo(1l));
+        ImageQueryBuilder imageQueryBuilder3 = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name())
+                .hashes(collisionsResponse.getHashes()).minHashCollisions(collisionsResponse.getMinHashCollisions());
+        SearchResponse searchResponse3 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder3).setSize(totalImages).get();
+        assertNoFailures(searchResponse3);
+        assertThat(searchResponse3.getHits().getTotalHits(), equalTo(collisionsResponse.getCandidates()));
+        assertImageScore(searchResponse3.getHits(), nameToSearch, 2.0f);
+    }
+
+    @Test
+    public void test_large_image_rejected() throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        // test image larger than max pixels is rejected from its header, before decoding
+        byte[] largeImage = toPng(new BufferedImage(2000, 1001, BufferedImage.TYPE_INT_RGB));
+        try {
+            index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", largeImage).field("name", "large").endObject());
+            fail("image larger than max pixels should be rejected");
+        } catch (Exception e) {
+            assertThat(ExceptionsHelper.detailedMessage(e), containsString(ImageDecoder.MAX_PIXELS_SETTING));
+        }
+    }
+
+    @Test
+    public void test_decoder_circuit_breaker() throws Exception {
+        // node with a small fielddata breaker, the index only lives there
+        String node = internalCluster().startNode(settingsBuilder().put(InternalCircuitBreakerService.CIRCUIT_BREAKER_MAX_BYTES_SETTING, "1mb"));
+        String breakerIndex = "test_breaker";
+        client().admin().indices().prepareCreate(breakerIndex).setSettings(settingsBuilder().put("index.number_of_shards", 1)
+                .put("index.number_of_replicas", 0).put("index.routing.allocation.include._name", node))
+                .addMapping(DOC_TYPE_NAME, copyToStringFromClasspath("/mapping/test-mapping.json")).get();
+        ensureGreen(breakerIndex);
+        MemoryCircuitBreaker breaker = internalCluster().getInstance(CircuitBreakerService.class, node).getBreaker();
+        long usedBefore = breaker.getUsed();
+        long trippedBefore = breaker.getTrippedCount();
+
+        // test decoding an image larger than the breaker limit trips it, and the estimate is given back
+        byte[] image = toPng(new BufferedImage(1000, 1000, BufferedImage.TYPE_INT_RGB));
+        try {
+            index(breakerIndex, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", image).field("name", "large").endObject());
+            fail("image larger than the breaker limit should trip it");
+        } catch (Exception e) {
+            assertThat(ExceptionsHelper.detailedMessage(e), containsString("image [1000x1000]"));
+        }
+        assertThat(breaker.getTrippedCount(), equalTo(trippedBefore + 1));
+        assertThat(breaker.getUsed(), equalTo(usedBefore));
+
+        // test smaller images still fit, and their estimate is given back too
+        byte[] smallImage = toPng(new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB));
+        index(breakerIndex, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", smallImage).field("name", "small").endObject());
+        assertThat(breaker.getUsed(), equalTo(usedBefore));
+    }
+
+    @Test
+    public void test_image_warmer() throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping.json");
+
+        // test nothing is warmed when the image warmer is disabled
+        String coldIndex = "test_cold";
+        client().admin().indices().prepareCreate(coldIndex).setSettings(settingsBuilder().put("index.number_of_replicas", 0)
+                .put("index.warmer.enabled", true).put(ImageWarmer.ENABLED_SETTING, false)).addMapping(DOC_TYPE_NAME, mapping).get();
+        ensureGreen(coldIndex);
+        long warmedBefore = warmedValues();
+        for (int i = 0; i < 3; i++) {
+            index(coldIndex, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", getRandomImage()).field("name", "image" + i).endObject());
+        }
+        refresh();
+        assertThat(warmedValues(), equalTo(warmedBefore));
+
+        // test refresh returns once image fields of the new segments are warmed, before they are searchable
+        String warmIndex = "test_warm";
+        client().admin().indices().prepareCreate(warmIndex).setSettings(settingsBuilder().put("index.number_of_replicas", 0)
+                .put("index.warmer.enabled", true)).addMapping(DOC_TYPE_NAME, mapping).get();
+        ensureGreen(warmIndex);
+        int totalImages = randomIntBetween(3, 10);
+        for (int i = 0; i < totalImages; i++) {
+            index(warmIndex, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", getRandomImage()).field("name", "image" + i).endObject());
+        }
+        refresh();
+        assertThat(warmedValues() - warmedBefore, greaterThanOrEqualTo((long) totalImages));
+    }
+
+    @Test
+    public void test_reused_feature_image() throws Exception {
+        BufferedImage image1 = ImageIO.read(new ByteArrayInputStream(getRandomImage()));
+        BufferedImage image2 = ImageIO.read(new ByteArrayInputStream(getRandomImage()));
+
+        // test instance given back is reused by the thread, and is the same as a new instance once overwritten
+        for (FeatureEnum featureEnum : FeatureEnum.values()) {
+            LireFeature lireFeature = featureEnum.borrowFeature();
+            lireFeature.extract(image1);
+            featureEnum.returnFeature(lireFeature);
+            LireFeature reused = featureEnum.borrowFeature();
+            assertThat(reused, sameInstance(lireFeature));
+            reused.extract(image2);
+            LireFeature fresh = featureEnum.newFeature();
+            fresh.extract(image2);
+            assertThat(featureEnum.name(), reused.getByteArrayRepresentation(), equalTo(fresh.getByteArrayRepresentation()));
+
+            LireFeature fresh1 = featureEnum.newFeature();
+            fresh1.extract(image1);
+            LireFeature parsed = featureEnum.newFeature();  // byte representation of some features is lossy, compare parsed to parsed
+            parsed.setByteArrayRepresentation(fresh1.getByteArrayRepresentation());
+            reused.setByteArrayRepresentation(fresh1.getByteArrayRepresentation());
+            assertThat(featureEnum.name(), reused.getByteArrayRepresentation(), equalTo(parsed.getByteArrayRepresentation()));
+            assertThat(featureEnum.name(), reused.getDoubleHistogram(), equalTo(parsed.getDoubleHistogram()));
+            featureEnum.returnFeature(reused);
+        }
+    }
+
+    @Test
+    public void test_pooled_feature_index_image() throws Exception {
+        // mapping has several features, they are extracted on the generic thread pool
+        String pooledIndex = "test_pooled";
+        client().admin().indices().prepareCreate(pooledIndex).setSettings(settingsBuilder().put(indexSettings()).put("index.image.use_thread_pool", true))
+                .addMapping(DOC_TYPE_NAME, copyToStringFromClasspath("/mapping/test-mapping.json")).get();
+        ensureGreen(pooledIndex);
+        long created = FeatureEnum.CEDD.created();
+        int totalImages = randomIntBetween(20, 30);
+        byte[][] images = new byte[totalImages][];
+        for (int i = 0; i < totalImages; i ++) {
+            images[i] = getRandomImage();
+            index(pooledIndex, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", images[i]).field("name", "image" + i).endObject());
+        }
+        refresh();
+
+        // instances are given back on the thread that extracted them, so pool threads reuse them for later images
+        assertThat(FeatureEnum.CEDD.created() - created, lessThan((long) totalImages));
+
+        // features extracted by reused instances are the same as by new ones
+        int i = randomInt(totalImages - 1);
+        for (FeatureEnum featureEnum : new FeatureEnum[] {FeatureEnum.CEDD, FeatureEnum.FCTH}) {
+            ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(featureEnum.name()).image(images[i]);
+            SearchResponse searchResponse = client().prepareSearch(pooledIndex).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+            assertNoFailures(searchResponse);
+            assertImageScore(searchResponse.getHits(), "image" + i, 2.0f);
+        }
+    }
+
+    @Test
+    public void test_ivf_index_search_image() throws Exception {
+        int totalImages = randomIntBetween(10, 30);
+        byte[][] images = indexRandomImages(totalImages);
+
+        // train centroids from existing index
+        ImageTrainResponse trainResponse = client().execute(ImageTrainAction.INSTANCE, new ImageTrainRequest(INDEX_NAME)
+                .field("img").feature(FeatureEnum.CEDD.name()).clusters(4).sampleSize(totalImages)).actionGet();
+        assertThat(trainResponse.getFailedShards(), equalTo(0));
+        assertThat(trainResponse.getSampleCount(), equalTo(totalImages));
+        assertThat(trainResponse.getCentroids().length, equalTo(4));
+
+        // create new index using trained centroids
+        String ivfIndex = "test_ivf";
+        createIndex(ivfIndex);
+        XContentBuilder ivfMapping = jsonBuilder().startObject().startObject(DOC_TYPE_NAME).startObject("properties")
+                .startObject("img").field("type", "image").startObject("feature").startObject(FeatureEnum.CEDD.name())
+                .startObject("ivf").field("centroids", trainResponse.getCentroids()).endObject()
+                .endObject().endObject().endObject()
+                .startObject("name").field("type", "string").field("index", "not_analyzed").endObject()
+                .endObject().endObject().endObject();
+        client().admin().indices().putMapping(putMappingRequest(ivfIndex).type(DOC_TYPE_NAME).source(ivfMapping)).actionGet();
+        ensureGreen(ivfIndex);
+        for (int i = 0; i < totalImages; i ++) {
+            index(ivfIndex, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", images[i]).field("name", "image" + i).endObject());
+        }
+        refresh();
+
+        // query nearest clusters only
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(images[0]).nprobe(1);
+        SearchResponse searchResponse = client().prepareSearch(ivfIndex).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        SearchHits hits = searchResponse.getHits();
+        assertThat("Should match at least one image", hits.getTotalHits(), greaterThanOrEqualTo(1l));
+        assertThat("First should be exact match and has score 2", hits.getHits()[0].getScore(), equalTo(2.0f));
+        assertImageScore(hits, "image0", 2.0f);
+
+        // all clusters probed should match all images
+        ImageQueryBuilder imageQueryBuilder2 = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(images[0]).nprobe(4);
+        SearchResponse searchResponse2 = client().prepareSearch(ivfIndex).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder2).setSize(totalImages).get();
+        assertNoFailures(searchResponse2);
+        assertThat("Should get all images", searchResponse2.getHits().getTotalHits(), equalTo((long) totalImages));
+    }
+
+    @Test
+    public void test_store_features_image() throws Exception {
+        XContentBuilder mapping = jsonBuilder().startObject().startObject(DOC_TYPE_NAME).startObject("properties")
+                .startObject("img").field("type", "image").field("store_features", false).startObject("feature")
+                .startObject(FeatureEnum.CEDD.name()).endObject()
+                .endObject().endObject()
+                .startObject("name").field("type", "string").field("index", "not_analyzed").endObject()
+                .endObject().endObject().endObject();
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        int totalImages = randomIntBetween(5, 15);
+        String firstId = null;
+        for (int i = 0; i < totalImages; i ++) {
+            IndexResponse response = index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", getRandomImage()).field("name", "image" + i).endObject());
+            if (firstId == null) {
+                firstId = response.getId();
+            }
+        }
+        refresh();
+
+        // features are not stored, existing image is loaded from doc values
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name())
+                .lookupIndex(INDEX_NAME).lookupType(DOC_TYPE_NAME).lookupId(firstId).lookupPath("img");
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo((long) totalImages));
+        assertImageScore(searchResponse.getHits(), "image0", 2.0f);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void test_source_digest_image() throws Exception {
+        XContentBuilder mapping = jsonBuilder().startObject().startObject(DOC_TYPE_NAME).startObject("properties")
+                .startObject("img").field("type", "image").field("source_digest", true).startObject("feature")
+                .startObject(FeatureEnum.CEDD.name()).endObject()
+                .endObject().endObject()
+                .startObject("name").field("type", "string").field("index", "not_analyzed").endObject()
+                .endObject().endObject().endObject();
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        byte[] image = getRandomImage();
+        String id = index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", image).field("name", "image0").endObject()).getId();
+        refresh();
+
+        // image is replaced with digest in stored source, features are still indexed
+        Map<String, Object> source = client().prepareGet(INDEX_NAME, DOC_TYPE_NAME, id).setRealtime(false).get().getSourceAsMap();
+        assertThat(source.get("name"), equalTo((Object) "image0"));
+        assertThat(((Map<String, Object>) source.get("img")).get("digest"), notNullValue());
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(image);
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).get();
+        assertNoFailures(searchResponse);
+        assertImageScore(searchResponse.getHits(), "image0", 2.0f);
+
+        // doc can't be updated from the digest once the image is out of the translog
+        client().admin().indices().prepareFlush(INDEX_NAME).get();
+        try {
+            client().prepareUpdate(INDEX_NAME, DOC_TYPE_NAME, id).setDoc("name", "renamed").get();
+            fail("doc with image replaced by digest should not be updated");
+        } catch (Exception e) {
+            assertThat(ExceptionsHelper.detailedMessage(e), containsString(ImageMapper.SOURCE_DIGEST));
+        }
+    }
+
+    @Test
+    public void test_pq_index_search_image() throws Exception {
+        int totalImages = randomIntBetween(10, 30);
+        byte[][] images = indexRandomImages(totalImages);
+
+        // train codebooks from existing index
+        ImageTrainResponse trainResponse = client().execute(ImageTrainAction.INSTANCE, new ImageTrainRequest(INDEX_NAME)
+                .method("pq").field("img").feature(FeatureEnum.CEDD.name()).subspaces(4).clusters(8).sampleSize(totalImages)).actionGet();
+        assertThat(trainResponse.getFailedShards(), equalTo(0));
+        assertThat(trainResponse.getCodebooks().length, equalTo(4));
+
+        // create new index using trained codebooks
+        String pqIndex = "test_pq";
+        createIndex(pqIndex);
+        XContentBuilder pqMapping = jsonBuilder().startObject().startObject(DOC_TYPE_NAME).startObject("properties")
+                .startObject("img").field("type", "image").startObject("feature").startObject(FeatureEnum.CEDD.name())
+                .startObject("pq").field("codebooks", trainResponse.getCodebooks()).endObject()
+                .endObject().endObject().endObject()
+                .startObject("name").field("type", "string").field("index", "not_analyzed").endObject()
+                .endObject().endObject().endObject();
+        client().admin().indices().putMapping(putMappingRequest(pqIndex).type(DOC_TYPE_NAME).source(pqMapping)).actionGet();
+        ensureGreen(pqIndex);
+        for (int i = 0; i < totalImages; i ++) {
+            index(pqIndex, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", images[i]).field("name", "image" + i).endObject());
+        }
+        index(pqIndex, DOC_TYPE_NAME, jsonBuilder().startObject().field("name", "no_image").endObject());
+        refresh();
+
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(images[0]).pq(true);
+        SearchResponse searchResponse = client().prepareSearch(pqIndex).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages + 1).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should get all images but not the doc without image", searchResponse.getHits().getTotalHits(), equalTo((long) totalImages));
+        assertThat("First should be exact match and has score 2", searchResponse.getHits().getAt(0).getScore(), equalTo(2.0f));
+        assertImageScore(searchResponse.getHits(), "image0", 2.0f);
+        for (SearchHit hit : searchResponse.getHits()) {
+            assertThat(hit.getSource().get("name"), not(equalTo((Object) "no_image")));
+        }
+    }
+
+    @Test
+    public void test_backfill_image() throws Exception {
+        XContentBuilder mapping = jsonBuilder().startObject().startObject(DOC_TYPE_NAME).startObject("properties")
+                .startObject("img").field("type", "image").startObject("feature")
+                .startObject(FeatureEnum.CEDD.name()).endObject()
+                .endObject().endObject()
+                .startObject("name").field("type", "string").field("index", "not_analyzed").endObject()
+                .endObject().endObject().endObject();
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        int totalImages = randomIntBetween(10, 30);
+        byte[][] images = new byte[totalImages][];
+        for (int i = 0; i < totalImages; i ++) {
+            images[i] = getRandomImage();
+            index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", images[i]).field("name", "image" + i).endObject());
+        }
+        refresh();
+
+        // add a feature with hash to the mapping, then backfill it for existing images
+        XContentBuilder newFeatureMapping = jsonBuilder().startObject().startObject(DOC_TYPE_NAME).startObject("properties")
+                .startObject("img").field("type", "image").startObject("feature")
+                .startObject(FeatureEnum.CEDD.name()).endObject()
+                .startObject(FeatureEnum.FCTH.name()).field("hash", HashEnum.BIT_SAMPLING.name()).endObject()
+                .endObject().endObject().endObject().endObject().endObject();
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(newFeatureMapping)).actionGet();
+        ImageQueryBuilder newFeatureQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.FCTH.name()).image(images[0]).hash(HashEnum.BIT_SAMPLING.name());
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(newFeatureQueryBuilder).get();
+        assertNoFailures(searchResponse);
+        assertThat("Existing images don't have the new feature", searchResponse.getHits().getTotalHits(), equalTo(0l));
+
+        ImageBackfillResponse backfillResponse = client().execute(ImageBackfillAction.INSTANCE, new ImageBackfillRequest(INDEX_NAME)
+                .field("img").docsPerSecond(2)).actionGet();
+        assertThat(backfillResponse.getFailedShards(), equalTo(0));
+        assertThat(backfillResponse.getRunningShards(), greaterThan(0));
+
+        // another field can't be backfilled while the first one is running, the first doc of each shard waits half a second
+        ImageBackfillResponse otherFieldResponse = client().execute(ImageBackfillAction.INSTANCE, new ImageBackfillRequest(INDEX_NAME)
+                .field("name").docsPerSecond(2)).actionGet();
+        assertThat(otherFieldResponse.getFailedShards(), greaterThan(0));
+        assertThat(otherFieldResponse.getShardFailures()[0].reason(), containsString("Backfill of [img] is running"));
+
+        for (int i = 0; i < 300 && backfillResponse.getRunningShards() > 0; i++) {
+            Thread.sleep(100);
+            backfillResponse = client().execute(ImageBackfillAction.INSTANCE, new ImageBackfillRequest(INDEX_NAME).field("img").start(false)).actionGet();
+        }
+        assertThat(backfillResponse.getRunningShards(), equalTo(0));
+        assertThat(backfillResponse.getBackfilled(), equalTo((long) totalImages));
+        assertThat(backfillResponse.getFailed(), equalTo(0l));
+        refresh();
+        searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(newFeatureQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertThat(searchResponse.getHits().getTotalHits(), greaterThanOrEqualTo(1l));
+        assertImageScore(searchResponse.getHits(), "image0", 2.0f);
+        assertThat("Source keeps the image", searchResponse.getHits().getAt(0).getSource().get("img"), instanceOf(String.class));
+        ImageQueryBuilder existingFeatureQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(images[0]);
+        searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(existingFeatureQueryBuilder).setSize(totalImages).get();
+        assertThat("Existing feature is kept", searchResponse.getHits().getTotalHits(), equalTo((long) totalImages));
+        assertImageScore(searchResponse.getHits(), "image0", 2.0f);
+
+        // nothing left to backfill
+        backfillResponse = client().execute(ImageBackfillAction.INSTANCE, new ImageBackfillRequest(INDEX_NAME).field("img").docsPerSecond(1000)).actionGet();
+        for (int i = 0; i < 300 && backfillResponse.getRunningShards() > 0; i++) {
+            Thread.sleep(100);
+            backfillResponse = client().execute(ImageBackfillAction.INSTANCE, new ImageBackfillRequest(INDEX_NAME).field("img").start(false)).actionGet();
+        }
+        assertThat(backfillResponse.getProcessed(), equalTo((long) totalImages));
+        assertThat(backfillResponse.getBackfilled(), equalTo(0l));
+    }
+
+    @Test
+    public void test_batch_search_image() throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        int totalImages = randomIntBetween(10, 30);
+        byte[][] images = new byte[totalImages][];
+        String[] ids = new String[totalImages];
+        for (int i = 0; i < totalImages; i ++) {
+            images[i] = getRandomImage();
+            ids[i] = index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", images[i]).field("name", "image" + i).endObject()).getId();
+        }
+        refresh();
+
+        int totalQueries = randomIntBetween(2, 5);
+        ImageBatchSearchRequest batchRequest = new ImageBatchSearchRequest(INDEX_NAME).field("img").feature(FeatureEnum.CEDD.name()).size(5);
+        for (int q = 0; q < totalQueries; q++) {
+            batchRequest.addImage(images[q]);
+        }
+        ImageBatchSearchResponse batchResponse = client().execute(ImageBatchSearchAction.INSTANCE, batchRequest).actionGet();
+        assertThat(batchResponse.getFailedShards(), equalTo(0));
+        assertThat(batchResponse.getHits(), hasSize(totalQueries));
+
+        // each query should get the same hits as an image query
+        for (int q = 0; q < totalQueries; q++) {
+            List<ImageBatchSearchHit> batchHits = batchResponse.getHits().get(q);
+            assertThat(batchHits, hasSize(5));
+            assertThat("First should be exact match and has score 2", batchHits.get(0).getScore(), equalTo(2.0f));
+
+            ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(images[q]);
+            SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+            assertNoFailures(searchResponse);
+            Map<String, Float> scores = Maps.newHashMap();
+            for (SearchHit hit : searchResponse.getHits()) {
+                scores.put(hit.getId(), hit.getScore());
+            }
+            assertThat(scores.get(ids[q]), equalTo(2.0f));
+            for (int i = 0; i < batchHits.size(); i++) {
+                assertThat(batchHits.get(i).getScore(), equalTo(scores.get(batchHits.get(i).getId())));
+                assertThat(batchHits.get(i).getScore(), equalTo(searchResponse.getHits().getAt(i).getScore()));
+            }
+        }
+
+        // existing images are looked up on the coordinating node, results follow images
+        ImageBatchSearchRequest lookupRequest = new ImageBatchSearchRequest(INDEX_NAME).field("img").feature(FeatureEnum.CEDD.name()).size(5)
+                .addImage(images[0]);
+        for (int q = 0; q < totalQueries; q++) {
+            lookupRequest.addLookup(new ImageBatchSearchRequest.Lookup(INDEX_NAME, DOC_TYPE_NAME, ids[q], "img"));
+        }
+        ImageBatchSearchResponse lookupResponse = client().execute(ImageBatchSearchAction.INSTANCE, lookupRequest).actionGet();
+        assertThat(lookupResponse.getFailedShards(), equalTo(0));
+        assertThat(lookupResponse.getHits(), hasSize(totalQueries + 1));
+        for (int q = 0; q < totalQueries; q++) {
+            assertThat(lookupResponse.getHits().get(q + 1).get(0).getScore(), equalTo(2.0f));
+        }
+    }
+
+    @Test
+    public void test_duplicates_image() throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        // duplicates are spread over shards, blocks of all shards are merged
+        int totalImages = randomIntBetween(5, 20);
+        for (int i = 0; i < totalImages; i ++) {
+            client().prepareIndex(INDEX_NAME, DOC_TYPE_NAME).setSource(jsonBuilder().startObject().field("img", getRandomImage()).field("name", "image" + i).endObject()).get();
+        }
+        byte[] duplicate = getRandomImage();
+        int totalDuplicates = randomIntBetween(6, 10);
+        List<String> duplicateIds = Lists.newArrayList();
+        for (int i = 0; i < totalDuplicates; i ++) {
+            duplicateIds.add(client().prepareIndex(INDEX_NAME, DOC_TYPE_NAME).setId("duplicate" + i).setSource(jsonBuilder().startObject().field("img", duplicate).field("name", "duplicate" + i).endObject()).get().getId());
+        }
+        refresh();
+
+        ImageDuplicatesRequest duplicatesRequest = new ImageDuplicatesRequest(INDEX_NAME).field("img").feature(FeatureEnum.CEDD.name()).hash(HashEnum.BIT_SAMPLING.name());
+        ImageDuplicatesResponse duplicatesResponse = client().execute(ImageDuplicatesAction.INSTANCE, duplicatesRequest).actionGet();
+        assertThat(duplicatesResponse.getFailedShards(), equalTo(0));
+        assertThat(duplicatesResponse.getComparisons(), greaterThan(0l));
+
+        boolean found = false;
+        for (ImageDuplicatesCluster cluster : duplicatesResponse.getClusters()) {
+            if (cluster.getIds().containsAll(duplicateIds)) {
+                found = true;
+            }
+        }
+        assertThat("Should cluster all duplicates together", found, equalTo(true));
+
+        // test blocks larger than max block size are split instead of skipped, duplicates are still clustered together
+        ImageDuplicatesRequest smallBlocksRequest = new ImageDuplicatesRequest(INDEX_NAME).field("img").feature(FeatureEnum.CEDD.name()).hash(HashEnum.BIT_SAMPLING.name()).maxBlockSize(2);
+        ImageDuplicatesResponse smallBlocksResponse = client().execute(ImageDuplicatesAction.INSTANCE, smallBlocksRequest).actionGet();
+        assertThat(smallBlocksResponse.getFailedShards(), equalTo(0));
+        assertThat("Should cluster all duplicates together with small blocks", smallBlocksResponse.getClusters().get(0).getIds().containsAll(duplicateIds), equalTo(true));
+    }
+
+    @Test
+    public void test_bovw_index_search_image() throws Exception {
+        // images of random shapes have corners, random pixels don't
+        Random random = getRandom();
+        int totalImages = randomIntBetween(5, 15);
+        BufferedImage[] images = new BufferedImage[totalImages];
+        List<double[]> descriptors = Lists.newArrayList();
+        for (int i = 0; i < totalImages; i ++) {
+            images[i] = getRandomShapeImage(random);
+            for (KeypointExtractor.LocalFeature feature : KeypointExtractor.extract(images[i], 200)) {
+                descriptors.add(feature.descriptor);
+            }
+        }
+        double[][] vocabulary = KMeans.cluster(descriptors, 64, 10, random);
+
+        String bovwIndex = "test_bovw";
+        createIndex(bovwIndex);
+        XContentBuilder bovwMapping = jsonBuilder().startObject().startObject(DOC_TYPE_NAME).startObject("properties")
+                .startObject("img").field("type", "image").startObject("bovw").field("vocabulary", vocabulary).field("max_keypoints", 200).endObject().endObject()
+                .startObject("name").field("type", "string").field("index", "not_analyzed").endObject()
+                .endObject().endObject().endObject();
+        client().admin().indices().putMapping(putMappingRequest(bovwIndex).type(DOC_TYPE_NAME).source(bovwMapping)).actionGet();
+        ensureGreen(bovwIndex);
+        for (int i = 0; i < totalImages; i ++) {
+            index(bovwIndex, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", toPng(images[i])).field("name", "image" + i).endObject());
+        }
+        refresh();
+
+        // a crop of the first image should find it
+        BufferedImage crop = new BufferedImage(250, 200, BufferedImage.TYPE_INT_RGB);
+        crop.getGraphics().drawImage(images[0].getSubimage(100, 50, 250, 200), 0, 0, null);
+        VisualWordsQueryBuilder bovwQueryBuilder = new VisualWordsQueryBuilder("img").image(toPng(crop)).minInliers(10);
+        SearchResponse searchResponse = client().prepareSearch(bovwIndex).setTypes(DOC_TYPE_NAME).setQuery(bovwQueryBuilder).setExplain(true).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should find the cropped image", searchResponse.getHits().getTotalHits(), greaterThanOrEqualTo(1l));
+        SearchHit hit = searchResponse.getHits().getAt(0);
+        assertThat(hit.getSource().get("name"), equalTo((Object) "image0"));
+        assertThat(hit.getExplanation().getDescription(), startsWith("VisualWordsQuery"));
+    }
+
+    /**
+     * Put the test mapping and index random images named image0, image1...
+     */
+    private byte[][] indexRandomImages(int totalImages) throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        byte[][] images = new byte[totalImages][];
+        for (int i = 0; i < totalImages; i ++) {
+            images[i] = getRandomImage();
+            index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", images[i]).field("name", "image" + i).endObject());
+        }
+        refresh();
+        return images;
+    }
+
+    private long warmedValues() {
+        long warmedValues = 0;
+        for (ImageWarmer imageWarmer : internalCluster().getInstances(ImageWarmer.class)) {
+            warmedValues += imageWarmer.warmedValues();
+        }
+        return warmedValues;
+    }
+
+    private long queryCacheHitCount() {
+        long hitCount = 0;
+        for (ImageQueryCache imageQueryCache : internalCluster().getInstances(ImageQueryCache.class)) {
+            hitCount += imageQueryCache.stats().hitCount();
+        }
+        return hitCount;
+    }
+
+    private Set<String> hitIds(SearchHits hits) {
+        Set<String> ids = Sets.newHashSet();
+        for (SearchHit hit : hits) {
+            ids.add(hit.getId());
+        }
+        return ids;
+    }
+
     private void assertImageScore(SearchHits hits, String name, float score) {
         for (SearchHit hit : hits) {
             if ((hit.getSource() != null && hit.getSource().get("name").equals(name))
@@ -166,6 +1164,30 @@ public class ImageIntegrationTests extends ElasticsearchIntegrationTest {
         throw new AssertionError("Image " + name + " not found");
     }
 
+    private BufferedImage getRandomShapeImage(Random random) {
+        BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(new Color(random.nextInt(0xFFFFFF)));
+        graphics.fillRect(0, 0, 400, 300);
+        for (int i = 0; i < 40; i ++) {
+            graphics.setColor(new Color(random.nextInt(0xFFFFFF)));
+            int x = random.nextInt(400), y = random.nextInt(300), width = 10 + random.nextInt(100), height = 10 + random.nextInt(75);
+            if (random.nextBoolean()) {
+                graphics.fillRect(x, y, width, height);
+            } else {
+                graphics.fillOval(x, y, width, height);
+            }
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    private byte[] toPng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
     private byte[] getRandomImage() throws IOException, ImageWriteException {
         int width = randomIntBetween(100, 1000);
         int height = randomIntBetween(100, 1000);